@@ -0,0 +1,83 @@
+package openagendamail.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link AgendaItem#compareTo(openagendamail.data.AgendaItem)} and sorting whole agendas with
+ * Collections.sort.  Items come from a small pool of senders, as on a real agenda, so most comparisons fall through to
+ * the title.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AgendaItemSortBenchmark {
+
+    /** The number of items on the agenda. */
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    /** The number of distinct senders. */
+    @Param({"20"})
+    public int senders;
+
+    /** The items, in the order they arrived. */
+    private List<AgendaItem> m_items;
+
+    /** Two items from the same sender, compared by title. */
+    private AgendaItem m_first;
+
+    /** The second item of the pair. */
+    private AgendaItem m_second;
+
+    /** Creates the items. */
+    @Setup
+    public void setUp(){
+        Random random = new Random(size);
+        m_items = new ArrayList<>();
+        for (int i = 0; i < size; i++){
+            String email = "member" + random.nextInt(senders) + "@example.com";
+            m_items.add(new AgendaItem(email, "Member", "Agenda item " + random.nextInt(1000000), "Body of item " + i));
+        }
+        m_first = new AgendaItem("member@example.com", "Member", "Approve the minutes of the last meeting");
+        m_second = new AgendaItem("member@example.com", "Member", "Approve the budget for the next year");
+    }
+
+    /**
+     * Sorts a copy of the agenda.
+     * @return the sorted items.
+     */
+    @Benchmark
+    public List<AgendaItem> sort(){
+        List<AgendaItem> items = new ArrayList<>(m_items);
+        Collections.sort(items);
+        return items;
+    }
+
+    /**
+     * Compares two items from the same sender.
+     * @return the result of the comparison.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int compareTo(){
+        return m_first.compareTo(m_second);
+    }
+}
@@ -0,0 +1,115 @@
+package openagendamail.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import openagendamail.util.email.MailSessionManager;
+import openagendamail.util.email.MailboxLoadGenerator;
+import openagendamail.util.email.MailboxLoadGenerator.Shape;
+import openagendamail.util.email.TestMailServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading the inbox with {@link EmailAgendaItemProvider}:  finding the submissions, extracting the text of
+ * their bodies and turning them into agenda items.  The inbox is on the in-process test mail server, filled with
+ * generated submissions of the chosen MIME shape, and is left in place between runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BodyExtractionBenchmark {
+
+    /** The account the submissions are sent to. */
+    private static final String ACCOUNT = "agenda@example.com";
+
+    /** The members of the email list. */
+    private static final List<String> MEMBERS = Arrays.asList("member1@example.com", "member2@example.com",
+            "member3@example.com");
+
+    /** The number of messages in the inbox. */
+    @Param({"200"})
+    public int messages;
+
+    /** The approximate size of each message body, in bytes. */
+    @Param({"4096"})
+    public int bodySize;
+
+    /** The MIME shape of the messages. */
+    @Param({"PLAIN", "ALTERNATIVE", "HTML", "ATTACHMENT"})
+    public Shape shape;
+
+    /** True to read the inbox with bulk fetches, false to read each message on its own. */
+    @Param({"true", "false"})
+    public boolean prefetch;
+
+    /** The mail server. */
+    private TestMailServer m_server;
+
+    /** The email list file. */
+    private File m_emailList;
+
+    /** The configuration of the provider. */
+    private Properties m_props;
+
+    /**
+     * Starts the mail server and fills the inbox.
+     * @throws IOException if the server cannot be started.
+     * @throws MessagingException if the messages cannot be generated.
+     */
+    @Setup
+    public void setUp() throws IOException, MessagingException {
+        m_server = new TestMailServer();
+        new MailboxLoadGenerator(messages, ACCOUNT, MEMBERS).setBodySize(bodySize).setShapes(shape)
+                .setMemberFraction(0.9).fill(m_server.getMailbox(ACCOUNT), messages);
+
+        m_emailList = File.createTempFile("oam-bench-emails", ".txt");
+        Files.write(m_emailList.toPath(), MEMBERS, StandardCharsets.UTF_8);
+
+        m_props = m_server.getProperties(ACCOUNT);
+        m_props.setProperty("email.list.filename", m_emailList.getPath());
+        m_props.setProperty("imap.prefetch", String.valueOf(prefetch));
+        m_props.setProperty("imap.server.search", String.valueOf(prefetch));
+        m_props.setProperty("imap.incremental", "false");
+        m_props.setProperty("imap.count.round.trips", "false");
+        m_props.setProperty("journal.on", "false");
+        m_props.setProperty("dedupe.on", "false");
+    }
+
+    /** Stops the mail server. */
+    @TearDown
+    public void tearDown(){
+        MailSessionManager.closeAll();
+        m_server.close();
+        m_emailList.delete();
+    }
+
+    /**
+     * Reads every submission in the inbox, leaving the messages in place.
+     * @return the agenda items read.
+     */
+    @Benchmark
+    public Collection<AgendaItem> readInbox(){
+        return new EmailAgendaItemProvider(false, m_props).getItems();
+    }
+}
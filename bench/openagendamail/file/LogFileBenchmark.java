@@ -0,0 +1,44 @@
+package openagendamail.file;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many messages a second {@link LogFile#log(java.lang.String)} can write, from one thread and from
+ * several at once, as when agendas are built side by side.  The log is written to the 'logs' directory of the
+ * benchmark's working directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogFileBenchmark {
+
+    /** A message of typical length. */
+    private static final String MESSAGE = "Rendering Agenda Item:  Approve the minutes of the last meeting";
+
+    /** Logs a message from a single thread. */
+    @Benchmark
+    @Threads(1)
+    public void log(){
+        LogFile.getLogFile().log(MESSAGE);
+    }
+
+    /** Logs a message from four threads at once. */
+    @Benchmark
+    @Threads(4)
+    public void logContended(){
+        LogFile.getLogFile().log(MESSAGE);
+    }
+}
@@ -0,0 +1,109 @@
+package openagendamail.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import openagendamail.data.AgendaItem;
+import openagendamail.data.AgendaItemProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the agenda document with {@link BuildAgendaRunnable}:  rendering every item to the PDF and saving
+ * it, with each of the ways the document can be rendered.  Each run builds a whole agenda, so the time of a single
+ * build is measured rather than a throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PdfAgendaBenchmark {
+
+    /** The number of items on the agenda. */
+    @Param({"10", "1000", "100000"})
+    public int items;
+
+    /** The approximate size of each item's body, in characters. */
+    @Param({"400"})
+    public int bodySize;
+
+    /**
+     * How the document is rendered:  with PlainPdf, a page at a time, a page at a time with parallel layout, or a page
+     * at a time as a compact document.
+     */
+    @Param({"plain", "streaming", "parallel", "optimized"})
+    public String renderer;
+
+    /** Hands out the generated items. */
+    private AgendaItemProvider m_provider;
+
+    /** The configuration of the agenda. */
+    private Properties m_props;
+
+    /** The agenda document. */
+    private File m_document;
+
+    /**
+     * Creates the agenda items.
+     * @throws IOException if the document's file cannot be created.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(items);
+        final List<AgendaItem> agenda = new ArrayList<>();
+        for (int i = 0; i < items; i++){
+            StringBuilder body = new StringBuilder();
+            while (body.length() < bodySize){
+                body.append("Discussion point ").append(random.nextInt(1000)).append(" for the agenda item. ");
+            }
+            agenda.add(new AgendaItem("member" + random.nextInt(20) + "@example.com", "Member " + i,
+                    "Agenda item " + i, body.toString()));
+        }
+        m_provider = new AgendaItemProvider() {
+            @Override
+            public Collection<AgendaItem> getItems() {
+                return agenda;
+            }
+        };
+        m_document = File.createTempFile("oam-bench-agenda", ".pdf");
+        m_props = new Properties();
+        m_props.setProperty("agenda.title", "Benchmark Agenda");
+        m_props.setProperty("doc.name", m_document.getPath());
+        m_props.setProperty("pdf.streaming", String.valueOf(!renderer.equals("plain")));
+        m_props.setProperty("pdf.parallel", String.valueOf(renderer.equals("parallel")));
+        m_props.setProperty("pdf.optimize", String.valueOf(renderer.equals("optimized")));
+    }
+
+    /** Deletes the agenda document. */
+    @TearDown
+    public void tearDown(){
+        m_document.delete();
+    }
+
+    /**
+     * Builds the agenda document.
+     * @return the size of the document, in bytes.
+     */
+    @Benchmark
+    public long generatePdfAgenda(){
+        new BuildAgendaRunnable(m_provider, m_props).run();
+        return m_document.length();
+    }
+}
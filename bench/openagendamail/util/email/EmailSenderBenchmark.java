@@ -0,0 +1,120 @@
+package openagendamail.util.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures assembling the agenda email with {@link EmailSender#buildEmail(javax.mail.Session, Email)} and writing it
+ * out as MIME, as the SMTP transport does, for large BCC lists and attachments.  Nothing is sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmailSenderBenchmark {
+
+    /** The number of BCC recipients. */
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    /** The size of the attached agenda, in bytes, or 0 for no attachment. */
+    @Param({"0", "1048576"})
+    public int attachmentSize;
+
+    /** The sender. */
+    private EmailSender m_sender;
+
+    /** The session messages are built in. */
+    private Session m_session;
+
+    /** The email to build. */
+    private Email m_email;
+
+    /** The attached agenda, or null. */
+    private File m_attachment;
+
+    /**
+     * Creates the email and its attachment.
+     * @throws IOException if the attachment cannot be written.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        m_sender = new EmailSender(new EmailAccount("agenda@example.com", "password"), new Properties());
+        m_session = Session.getInstance(new Properties());
+        m_email = new Email("This week's agenda", "Please find this week's agenda attached.");
+        for (int i = 0; i < recipients; i++){
+            m_email.addRecipient("member" + i + "@example.com", RecipientType.BCC);
+        }
+        if (attachmentSize > 0){
+            byte[] data = new byte[attachmentSize];
+            new Random(attachmentSize).nextBytes(data);
+            m_attachment = File.createTempFile("oam-bench-agenda", ".pdf");
+            Files.write(m_attachment.toPath(), data);
+            m_email.addAttachment(m_attachment.getPath());
+        }
+    }
+
+    /** Deletes the attachment. */
+    @TearDown
+    public void tearDown(){
+        if (m_attachment != null){
+            m_attachment.delete();
+        }
+    }
+
+    /**
+     * Builds the message and writes it out.
+     * @return the size of the message, in bytes.
+     * @throws MessagingException if the message cannot be built.
+     * @throws IOException if the message cannot be written.
+     */
+    @Benchmark
+    public long buildEmail() throws MessagingException, IOException {
+        MimeMessage message = m_sender.buildEmail(m_session, m_email);
+        message.saveChanges();
+        CountingOutputStream out = new CountingOutputStream();
+        message.writeTo(out);
+        return out.m_count;
+    }
+
+    /** Counts the bytes written to it and throws them away. */
+    private static class CountingOutputStream extends OutputStream {
+
+        /** The number of bytes written. */
+        private long m_count;
+
+        /** {@inheritDoc} */
+        @Override
+        public void write(int b){
+            m_count++;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void write(byte[] b, int off, int len){
+            m_count += len;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package openagendamail.util.render;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import openagendamail.data.AgendaItem;
+import openagendamail.data.AgendaItemProvider;
+import openagendamail.util.AgendaBuffer;
+import openagendamail.util.BuildAgendaRunnable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of each agenda format:  how many agenda items a second {@link BuildAgendaRunnable} renders
+ * in each format, and in every format at once from the same pass over the items.  The agenda is rendered into memory,
+ * as with 'doc.in.memory', so the numbers are those of the renderers rather than of the disk; the PDF is therefore
+ * written a page at a time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AgendaRenderBenchmark {
+
+    /** The number of items on each agenda rendered. */
+    private static final int ITEMS = 1000;
+
+    /** The formats rendered, as listed by the 'agenda.formats' property. */
+    @Param({"pdf", "html", "text", "pdf,html,text"})
+    public String formats;
+
+    /** The approximate size of each item's body, in characters. */
+    @Param({"400"})
+    public int bodySize;
+
+    /** Hands out the generated items. */
+    private AgendaItemProvider m_provider;
+
+    /** The configuration of the agenda. */
+    private Properties m_props;
+
+    /** Creates the agenda items. */
+    @Setup
+    public void setUp(){
+        Random random = new Random(ITEMS);
+        final List<AgendaItem> agenda = new ArrayList<>();
+        for (int i = 0; i < ITEMS; i++){
+            StringBuilder body = new StringBuilder();
+            while (body.length() < bodySize){
+                body.append("Discussion point ").append(random.nextInt(1000)).append(" for the agenda item. ");
+            }
+            agenda.add(new AgendaItem("member" + random.nextInt(20) + "@example.com", "Member " + i,
+                    "Agenda item " + i, body.toString()));
+        }
+        m_provider = new AgendaItemProvider() {
+            @Override
+            public Collection<AgendaItem> getItems() {
+                return agenda;
+            }
+        };
+        m_props = new Properties();
+        m_props.setProperty("agenda.title", "Benchmark Agenda");
+        m_props.setProperty("doc.name", "oam-bench-render-" + System.nanoTime() + ".pdf");
+        m_props.setProperty("doc.in.memory", "true");
+        m_props.setProperty("agenda.formats", formats);
+    }
+
+    /**
+     * Renders the agenda in the formats measured.
+     * @return the size of the agenda rendered last, in bytes.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public int renderAgenda(){
+        new BuildAgendaRunnable(m_provider, m_props).run();
+        List<String> rendered = AgendaRenderers.getFormats(m_props);
+        String last = rendered.get(rendered.size() - 1);
+        return AgendaBuffer.get(AgendaRenderers.getOutputName(m_props, last)).size();
+    }
+}
@@ -1,14 +1,16 @@
 package openagendamail;
 
-import java.util.Properties;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import openagendamail.data.EmailAgendaItemProvider;
+import openagendamail.data.JournalAgendaItemProvider;
 import openagendamail.file.LogFile;
+import openagendamail.util.AgendaScheduler;
 import openagendamail.util.BuildAgendaRunnable;
-import openagendamail.util.EmailSenderRunnable;
-import openagendamail.util.FirstAndThirdRunnable;
 import openagendamail.util.OamTools;
 
 /**
@@ -26,6 +28,9 @@ public class OpenAgendaMail {
     /** The date of the last update to the system. */
     private static final String LAST_UPDATED = "May 9th, 2013";
 
+    /** The default number of threads the agendas' tasks are run on. */
+    private static final int AGENDA_THREADS = 3;
+
 
     /**
      * The Main method.
@@ -44,12 +49,18 @@ public class OpenAgendaMail {
         LogFile.getLogFile().log(bldr.toString());
 
         // VALIDATE ARGUMENTS
+        if (args.length == 2 && args[0].toLowerCase().equals("agendas")){
+            LogFile.getLogFile().log("Application started in agendas mode.");
+            executeAgendasMode(args[1]);
+            return;
+        }
         if (args.length != 1){
             printUsage();
             System.exit(0);
         }
         if (!(args[0].toLowerCase().equals("1stand3rd") || args[0].toLowerCase().equals("week-based") ||
-                args[0].toLowerCase().equals("-h") || args[0].toLowerCase().equals("--help") | args[0].toLowerCase().equals("one-shot"))) {
+                args[0].toLowerCase().equals("-h") || args[0].toLowerCase().equals("--help") | args[0].toLowerCase().equals("one-shot") ||
+                args[0].toLowerCase().equals("rebuild"))) {
             printUsage();
             LogFile.getLogFile().log("Invalid argument provided:  " + args[0]);
             System.exit(0);
@@ -75,6 +86,11 @@ public class OpenAgendaMail {
                 executeOneShot();
                 break;
 
+            case "rebuild":
+                LogFile.getLogFile().log("Application started in rebuild mode.");
+                executeRebuild();
+                break;
+
             default:
                 System.exit(1);
                 break;
@@ -83,42 +99,7 @@ public class OpenAgendaMail {
 
     /** Starts the application in week-based mode. */
     private static void executeWeekBasedMode(){
-        Properties props = OamTools.PROPS;
-        long frequencyInSeconds = Integer.valueOf(props.getProperty("weeks.between.meetings", "1")) * OamTools.ONE_WEEK_IN_SECONDS;
-        long secondsUntilAgendaIsDue = OamTools.getSecondsUntilSpecifiedDay(OamTools.getDayOfWeek(props.getProperty("send.day", "tue")));
-        LogFile.getLogFile().log("Time until send:  " + OamTools.getCountdownString(secondsUntilAgendaIsDue));
-
-        // Schedule the agenda building.
-        BuildAgendaRunnable builder = new BuildAgendaRunnable(new EmailAgendaItemProvider(true));
-        ScheduledExecutorService buildExecutor = Executors.newSingleThreadScheduledExecutor();
-        if (props.getProperty("debug", "false").toLowerCase().equals("true")){
-            buildExecutor.scheduleWithFixedDelay(builder, 0, frequencyInSeconds, TimeUnit.SECONDS);
-        } else {
-            buildExecutor.scheduleWithFixedDelay(builder, secondsUntilAgendaIsDue, frequencyInSeconds, TimeUnit.SECONDS);
-        }
-
-        // Schedule the agenda sending.
-        EmailSenderRunnable sender = OamTools.buildAgendaEmailSender(null);
-        ScheduledExecutorService sendExecutor = Executors.newSingleThreadScheduledExecutor();
-        if (props.getProperty("debug", "false").toLowerCase().equals("true")){
-            sendExecutor.scheduleWithFixedDelay(sender, 60, frequencyInSeconds, TimeUnit.SECONDS);
-        } else {
-            sendExecutor.scheduleWithFixedDelay(sender, secondsUntilAgendaIsDue + OamTools.SECONDS_IN_FOUR_HOURS, frequencyInSeconds, TimeUnit.SECONDS);
-        }
-
-        // if enabled, schedule the reminder email
-        if ((props.getProperty("reminders.on", "false")).toLowerCase().equals("true")){
-            long secondsUntilReminder = OamTools.getSecondsUntilSpecifiedDay(OamTools.getDayOfWeek(props.getProperty("reminder.day", "mon")));
-            EmailSenderRunnable reminder = OamTools.buildReminderSender();
-            ScheduledExecutorService reminderExecutor = Executors.newSingleThreadScheduledExecutor();
-
-            if (props.getProperty("debug", "false").equals("true")){
-                System.out.println("Debug scheduling reminder...");
-                reminderExecutor.scheduleWithFixedDelay(reminder, 30, frequencyInSeconds, TimeUnit.SECONDS);
-            } else {
-                reminderExecutor.scheduleWithFixedDelay(reminder, secondsUntilReminder, frequencyInSeconds, TimeUnit.SECONDS);
-            }
-        }
+        new AgendaScheduler("default", OamTools.PROPS, Executors.newScheduledThreadPool(AGENDA_THREADS), null).scheduleWeekBased();
     }
 
     /** 
@@ -126,40 +107,60 @@ public class OpenAgendaMail {
      * no repetition.
      */
     private static void executeOneShot() {
-        BuildAgendaRunnable builder;
-        if (OamTools.PROPS.getProperty("debug", "false").toLowerCase().equals("true")){
-            // Create agenda, but don't delete emails.
-            builder = new BuildAgendaRunnable(new EmailAgendaItemProvider(false));
-        } else {
-            // Create agenda and delete emails.
-            builder = new BuildAgendaRunnable(new EmailAgendaItemProvider(true));
-        }
-        ScheduledExecutorService buildExecutor = Executors.newSingleThreadScheduledExecutor();
-        buildExecutor.schedule(builder, 0, TimeUnit.MILLISECONDS);
-
-        // Send the agenda after a 60 second delay.  This should take advantage of J7's new File System listening
-        // Capabilities.
-        EmailSenderRunnable sender = OamTools.buildAgendaEmailSender(null);
-        ScheduledExecutorService sendExecutor = Executors.newSingleThreadScheduledExecutor();
-        sendExecutor.schedule(sender, 90, TimeUnit.SECONDS);
+        AgendaScheduler scheduler = new AgendaScheduler("default", OamTools.PROPS, Executors.newScheduledThreadPool(AGENDA_THREADS), null);
+
+        // In debug mode create the agenda, but don't delete emails.
+        scheduler.runOneShot(!OamTools.PROPS.getProperty("debug", "false").toLowerCase().equals("true"));
+    }
+
+    /**
+     * Builds the agenda document again from the local item journal, without connecting to the email account or
+     * sending anything.  This is useful for previewing the agenda or recovering it after a crash.
+     */
+    private static void executeRebuild() {
+        String filename = EmailAgendaItemProvider.getStateFilename(OamTools.PROPS, "journal.filename",
+                "agenda.journal");
+        new BuildAgendaRunnable(new JournalAgendaItemProvider(filename)).run();
     }
 
     
     /** Starts the scheduling for meetings that are on the 1st and 3rd of a given day of the week within a month. */
     private static void executeFirstAndThirdMode() {
-        // Get time until the day that we need to send the agenda.
-        int dayofweek = OamTools.getDayOfWeek(OamTools.PROPS.getProperty("send.day", "tue"));
-        long secondsUntilAgendaIsDue = OamTools.getSecondsUntilSpecifiedDay(dayofweek);
-        LogFile.getLogFile().log("Time until send:  " + OamTools.getCountdownString(secondsUntilAgendaIsDue));
-
-        // Schedule the day check.
-        FirstAndThirdRunnable firstAndThird = new FirstAndThirdRunnable();
-        ScheduledExecutorService checkerExecutor = Executors.newSingleThreadScheduledExecutor();
-        if (OamTools.PROPS.getProperty("debug", "false").toLowerCase().equals("true")){
-            checkerExecutor.scheduleWithFixedDelay(firstAndThird, 5, secondsUntilAgendaIsDue, TimeUnit.SECONDS);
-        } else {
-            // Schedules the first and third runnable to be run once a week starting on the next 'send day' at midnight.
-            checkerExecutor.scheduleWithFixedDelay(firstAndThird, secondsUntilAgendaIsDue, OamTools.ONE_WEEK_IN_SECONDS, TimeUnit.SECONDS);
+        new AgendaScheduler("default", OamTools.PROPS, Executors.newScheduledThreadPool(AGENDA_THREADS), null).scheduleFirstAndThird();
+    }
+
+    /**
+     * Runs every agenda configured in the subdirectories of the given directory in this one process.  Each
+     * subdirectory holds one agenda's properties files, along with the files the agenda uses and its logs.  The
+     * agenda's mode is set by its 'mode' property ('week-based', the default, or '1stand3rd').  The agendas share one
+     * pool of threads; an agenda that is misconfigured or fails is logged to its own log and does not affect the others.
+     *
+     * @param directory the directory holding the agendas.
+     */
+    private static void executeAgendasMode(String directory) {
+        File[] agendas = new File(directory).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        });
+        if (agendas == null || agendas.length == 0){
+            System.out.println("No agendas found in '" + directory + "'.");
+            LogFile.getLogFile().log("No agendas found in '" + directory + "'.");
+            System.exit(1);
+        }
+        Arrays.sort(agendas);
+
+        int threads = Integer.valueOf(OamTools.PROPS.getProperty("agendas.threads", String.valueOf(AGENDA_THREADS)));
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(threads);
+        for (File agenda : agendas){
+            try {
+                AgendaScheduler scheduler = AgendaScheduler.forDirectory(agenda, executor);
+                scheduler.start(scheduler.getProperties().getProperty("mode", "week-based"));
+                LogFile.getLogFile().log("Started agenda '" + agenda.getName() + "'.");
+            } catch (IOException ex) {
+                LogFile.getLogFile().log("Could not read the properties of agenda '" + agenda.getName() + "'.  Skipping it.", ex);
+            }
         }
     }
 
@@ -181,6 +182,16 @@ public class OpenAgendaMail {
         System.out.println("   To run run the program once with no scheduled repetition, at the command prompt type:");
         System.out.println("      'java -jar OpenAgendaMail.jar one-shot' but without quotes.\n\n");
 
+        // agendas
+        System.out.println("   To run many agendas at once, each configured in its own subdirectory of a directory,");
+        System.out.println("   at the command prompt type:");
+        System.out.println("      'java -jar OpenAgendaMail.jar agendas <directory>' but without quotes.\n\n");
+
+        // rebuild
+        System.out.println("   To rebuild the agenda document from the items already read, without checking the");
+        System.out.println("   email account or sending anything, at the command prompt type:");
+        System.out.println("      'java -jar OpenAgendaMail.jar rebuild' but without quotes.\n\n");
+
         System.out.println("   To show this help type:");
         System.out.println("      'java -jar OpenAgendaMail.jar -h' but without quotes.\n");
         System.out.println("   or type:");
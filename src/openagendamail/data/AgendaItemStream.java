@@ -0,0 +1,18 @@
+package openagendamail.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A stream of {@link AgendaItem}s that are read one at a time, so that an agenda can be built without holding all of
+ * its items in memory at once.  Streams hold resources such as temporary files and must be closed when done with.
+ */
+public interface AgendaItemStream extends Closeable {
+
+    /**
+     * Reads the next item from the stream.
+     * @return the next item, or null if there are no more.
+     * @throws IOException if the item cannot be read.
+     */
+    public AgendaItem read() throws IOException;
+}
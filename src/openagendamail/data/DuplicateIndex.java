@@ -0,0 +1,207 @@
+package openagendamail.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import openagendamail.file.LogFile;
+import openagendamail.util.EmailList;
+
+/**
+ * Detects agenda items that were submitted more than once, so that each is only rendered once.  Two messages are the
+ * same submission if they share a Message-ID, or if they have the same content fingerprint:  a hash of the sender,
+ * the title and the body after normalizing away differences that do not change what was submitted (case, spacing,
+ * "Re:" and "Fwd:" prefixes, plus-addressing aliases and the header block of a forwarded message).
+ *
+ * The index maps each fingerprint to the Message-ID of the first message seen with it, so reading that same message
+ * again on a later run is not mistaken for a duplicate.  Each check is a single hash lookup.  The index is kept in a
+ * file between runs, so submissions kept in the inbox through an off-week are still recognised, and is cleared when an
+ * agenda's emails are deleted.
+ */
+class DuplicateIndex {
+
+    /** Matches any number of reply and forward prefixes at the start of a title. */
+    private static final Pattern REPLY_PREFIX = Pattern.compile("^((re|fwd?|aw|wg)\\s*(\\[\\d+\\])?\\s*:\\s*)+",
+            Pattern.CASE_INSENSITIVE);
+
+    /** Matches the line that starts the quoted headers of a forwarded message. */
+    private static final Pattern FORWARD_MARKER = Pattern.compile(
+            "^\\s*(-{2,}\\s*(forwarded|original) message\\s*-{2,}|begin forwarded message:)\\s*$",
+            Pattern.CASE_INSENSITIVE);
+
+    /** Matches a quoted header line of a forwarded message. */
+    private static final Pattern FORWARD_HEADER = Pattern.compile("^\\s*(from|date|sent|subject|to|cc):.*$",
+            Pattern.CASE_INSENSITIVE);
+
+    /** The file the index is stored in, or null if it is only kept in memory. */
+    private String m_filename;
+
+    /** The Message-ID of the first message seen with each fingerprint. */
+    private Map<String, String> m_owners;
+
+    /** True if the index has changed since it was loaded or saved. */
+    private boolean m_changed;
+
+    /**
+     * Constructs an empty index.
+     * @param filename the file the index is stored in, or null to keep it in memory only.
+     */
+    DuplicateIndex(String filename){
+        m_filename = filename;
+        m_owners = new HashMap<>();
+        m_changed = false;
+    }
+
+    /**
+     * Loads the index stored in the given file.  If the file does not exist or cannot be read an empty index is
+     * returned.
+     *
+     * @param filename the file the index is stored in.
+     * @return the stored index, or an empty one.
+     */
+    static DuplicateIndex load(String filename){
+        DuplicateIndex index = new DuplicateIndex(filename);
+        if (!new File(filename).exists()){
+            return index;
+        }
+        try {
+            for (String line : Files.readAllLines(new File(filename).toPath(), StandardCharsets.UTF_8)){
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 2){
+                    index.m_owners.put(fields[0], ItemJournal.unescape(fields[1]));
+                }
+            }
+        } catch (IOException ex) {
+            LogFile.getLogFile().log("Error reading the duplicate index '" + filename + "'.", ex);
+        }
+        return index;
+    }
+
+    /**
+     * Removes the duplicate submissions from the given items.  An item is dropped if an earlier item in the same call
+     * came from the same message, or if a different message with the same fingerprint has been seen before.  The
+     * items kept are recorded in the index.
+     *
+     * @param items the items to check, by the Message-ID of the email each came from.
+     * @return the items that are not duplicates, in their original order.
+     */
+    Map<String, AgendaItem> filter(Map<String, AgendaItem> items){
+        Map<String, AgendaItem> kept = new LinkedHashMap<>();
+        Set<String> seen = new HashSet<>();
+        for (Map.Entry<String, AgendaItem> entry : items.entrySet()){
+            String messageId = entry.getKey();
+            if (!seen.add(messageId)){
+                continue;
+            }
+            String fingerprint = fingerprint(entry.getValue());
+            String owner = m_owners.get(fingerprint);
+            if (owner != null && !owner.equals(messageId)){
+                LogFile.getLogFile().log("Skipping duplicate submission:  " + entry.getValue().getTitle());
+                continue;
+            }
+            if (owner == null){
+                m_owners.put(fingerprint, messageId);
+                m_changed = true;
+            }
+            kept.put(messageId, entry.getValue());
+        }
+        return kept;
+    }
+
+    /** Forgets every submission, for example once an agenda's emails have been deleted. */
+    void clear(){
+        m_changed = m_changed || !m_owners.isEmpty();
+        m_owners.clear();
+    }
+
+    /**
+     * Writes the index to its file if it has changed.  The index is written to a temporary file first and then moved
+     * into place.
+     */
+    void save(){
+        if (m_filename == null || !m_changed){
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, String> entry : m_owners.entrySet()){
+            lines.append(entry.getKey()).append('\t').append(ItemJournal.escape(entry.getValue())).append('\n');
+        }
+
+        File file = new File(m_filename);
+        File temp = new File(m_filename + ".tmp");
+        try {
+            Files.write(temp.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            m_changed = false;
+        } catch (IOException ex) {
+            LogFile.getLogFile().log("Error saving the duplicate index '" + m_filename + "'.", ex);
+        }
+    }
+
+    /**
+     * Computes the content fingerprint of an item:  a SHA-256 hash of its normalized sender, title and body.
+     *
+     * @param item the item.
+     * @return the fingerprint, in hex.
+     */
+    static String fingerprint(AgendaItem item){
+        String sender = item.getEmail() == null ? "" : EmailList.normalize(item.getEmail());
+        String title = item.getTitle() == null ? "" : REPLY_PREFIX.matcher(item.getTitle().trim()).replaceFirst("");
+        String body = item.getBody() == null ? "" : stripForwardHeaders(item.getBody());
+        String content = sender + '\0' + collapse(title) + '\0' + collapse(body);
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash){
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Removes the quoted header block ("From:", "Date:", "Subject:" ...) that mail programs put in front of a forwarded
+     * message, so a forward matches the message it forwards.
+     *
+     * @param body the message body.
+     * @return the body without forwarded headers.
+     */
+    private static String stripForwardHeaders(String body){
+        StringBuilder stripped = new StringBuilder(body.length());
+        boolean inHeaders = false;
+        for (String line : body.split("\r?\n", -1)){
+            if (FORWARD_MARKER.matcher(line).matches()){
+                inHeaders = true;
+                continue;
+            }
+            if (inHeaders && (line.trim().isEmpty() || FORWARD_HEADER.matcher(line).matches())){
+                continue;
+            }
+            inHeaders = false;
+            stripped.append(line).append('\n');
+        }
+        return stripped.toString();
+    }
+
+    /**
+     * Lower-cases text and collapses every run of whitespace to a single space.
+     *
+     * @param text the text to collapse.
+     * @return the collapsed text.
+     */
+    private static String collapse(String text){
+        return text.trim().replaceAll("\\s+", " ").toLowerCase();
+    }
+}
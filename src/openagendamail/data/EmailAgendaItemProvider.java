@@ -1,51 +1,97 @@
 package openagendamail.data;
 
+import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPMessage;
 import com.sun.mail.imap.IMAPStore;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.mail.BodyPart;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
-import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMultipart;
 import openagendamail.file.LogFile;
+import openagendamail.util.EmailList;
 import openagendamail.util.OamTools;
+import openagendamail.util.email.ImapCommandCounter;
+import openagendamail.util.email.MailSessionManager;
 
 /**
  * A class that provides AgendaItems from an email account.
  *
+ * Each call to {@link #getItems()} keeps its state (the connection, the messages read and so on) to itself and lets go
+ * of all of it before returning, giving the connection back to the account's {@link MailSessionManager} pool, so any
+ * number of providers may be used at once from different threads.  Calls that read the same email account are run one
+ * at a time, since each may delete the messages the other is reading, and so are calls that use the same state files
+ * (the inbox checkpoint, item journal and duplicate index).
+ *
  * @author adam
  * @date May 4th, 2013
  */
-public class EmailAgendaItemProvider implements AgendaItemProvider {
+public class EmailAgendaItemProvider implements AgendaItemProvider, StreamingAgendaItemProvider {
 
     /** A constant for the Content Type. */
     private static final String PLAIN_TEXT = "TEXT/PLAIN";
 
+    /** The properties holding the names of the files that keep an account's state, by the default name of each. */
+    private static final String[][] STATE_FILES = {
+        {"imap.checkpoint.filename", "inbox.checkpoint"},
+        {"journal.filename", "agenda.journal"},
+        {"dedupe.index.filename", "duplicate.index"}};
+
+    /**
+     * A lock for each email account and each state file, so that only one provider reads an account, or uses a state
+     * file, at a time.
+     */
+    private static final ConcurrentMap<String, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
     /** True if the emails should be deleted after generating the agenda document. */
-    private static boolean m_deleteEmails;
+    private final boolean m_deleteEmails;
 
-    /** The messages from the email account. */
-    private static Message[] m_messages;
+    /** The configuration of this provider:  the account to read, where to keep its files and how to read it. */
+    private final Properties m_props;
 
 
     /**
-     * Constructor.
+     * Constructor.  The provider is configured by the application's properties.
      * @param deleteEmails true if the emails should be deleted after retrieval, false otherwise.
      */
     public EmailAgendaItemProvider(boolean deleteEmails){
+        this(deleteEmails, OamTools.PROPS);
+    }
+
+    /**
+     * Constructor.
+     * @param deleteEmails true if the emails should be deleted after retrieval, false otherwise.
+     * @param props the configuration of this provider.  The properties are copied, so later changes to them are not
+     * seen by this provider.
+     */
+    public EmailAgendaItemProvider(boolean deleteEmails, Properties props){
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' cannot be null.");
+        }
         m_deleteEmails = deleteEmails;
-        OamTools.PROPS.put("mail.store.protocol", "imaps");
+        m_props = new Properties();
+        m_props.putAll(props);
+        m_props.put("mail.store.protocol", "imaps");
     }
 
 
@@ -55,105 +101,157 @@ public class EmailAgendaItemProvider implements AgendaItemProvider {
      */
     @Override
     public Collection<AgendaItem> getItems() {
-        Store store = null;
-        try {
-            // Fetch the mail from the account.
-            LogFile.getLogFile().log("Connecting to email account...");
-            Session session = Session.getInstance(OamTools.PROPS);
-            store = session.getStore("imaps");
-            store.connect("imap.gmail.com", OamTools.PROPS.getProperty("email"), OamTools.PROPS.getProperty("password"));
-            LogFile.getLogFile().log("Successfully connected.");
-
-            if (store instanceof IMAPStore){
-                IMAPStore imapStore = (IMAPStore)store;
-
-                LogFile.getLogFile().log("Retrieving emails from inbox...");
-                Folder inbox = imapStore.getFolder("inbox");
-                inbox.open(Folder.READ_WRITE);
-                m_messages = inbox.getMessages();
-                LogFile.getLogFile().log(m_messages.length + " messages successfully retrieved.\n\n");
-
-            } else {
-                LogFile.getLogFile().log("Message store was not an IMAP Message store.  No messages retrieved.");
+        List<AgendaItem> items = new ArrayList<>();
+        try (AgendaItemStream stream = openItems()) {
+            for (AgendaItem item = stream.read(); item != null; item = stream.read()){
+                items.add(item);
             }
-        } catch (NoSuchProviderException ex) {
-            LogFile.getLogFile().log("Couldn't find the mail provider.", ex);
-        } catch (MessagingException ex) {
-            LogFile.getLogFile().log("Message exception while initializing store", ex);
+        } catch (IOException ex) {
+            LogFile.getLogFile().log("Error reading the sorted agenda items.", ex);
         }
+        return items;
+    }
 
-        List<AgendaItem> items = new ArrayList<>(generateAgendaItems());
-        Collections.sort(items);
-
-        // delete the old messages.
-        if (OamTools.PROPS.getProperty("debug", "false").equals("true")){
-            LogFile.getLogFile().log("In debug mode:  Skipping email delete step.");
-        } else {
-            if (m_deleteEmails){
-                deleteEmails(store);
+    /**
+     * Reads the {@link AgendaItem}s from the Email account configured to be used with this application.  The inbox is
+     * read, and its messages deleted if asked to, before this method returns.  The items are parsed a batch at a time
+     * and sorted with an {@link ExternalItemSorter}, so only a bounded number of them ('sort.max.memory.bytes') are
+     * held in memory at once.
+     * {@inheritDoc}
+     */
+    @Override
+    public AgendaItemStream openItems() throws IOException {
+        long maxMemory = Long.valueOf(m_props.getProperty("sort.max.memory.bytes",
+                String.valueOf(ExternalItemSorter.DEFAULT_MAX_MEMORY_BYTES)));
+        ExternalItemSorter sorter = new ExternalItemSorter(maxMemory);
+        try {
+            // Two accounts configured with the same state files would still overwrite each other's, so those are
+            // locked too.  The locks are always taken in the same order so that no two providers wait on each other.
+            Set<String> keys = new TreeSet<>();
+            keys.add("account:" + String.valueOf(m_props.getProperty("email")).trim().toLowerCase());
+            for (String[] property : STATE_FILES){
+                keys.add("file:" + new File(getStateFilename(m_props, property[0], property[1])).getCanonicalPath());
             }
+            List<ReentrantLock> held = new ArrayList<>();
+            try {
+                for (String key : keys){
+                    LOCKS.putIfAbsent(key, new ReentrantLock());
+                    ReentrantLock lock = LOCKS.get(key);
+                    lock.lock();
+                    held.add(lock);
+                }
+                new InboxRun(sorter).read();
+            } finally {
+                for (int i = held.size() - 1; i >= 0; i--){
+                    held.get(i).unlock();
+                }
+            }
+            return sorter.sort();
+        } catch (IOException | RuntimeException ex) {
+            sorter.close();
+            throw ex;
         }
+    }
 
-        return items;
+    /**
+     * Returns the name of a file that keeps the state of an email account between runs.  If the file's property is not
+     * set the file is named after the account ('data/&lt;email&gt;.&lt;name&gt;'), so that providers reading different
+     * accounts never share one.
+     *
+     * @param props the configuration of the provider.
+     * @param property the property holding the file name, such as 'journal.filename'.
+     * @param name the name of the file when no account is configured, such as 'agenda.journal'.
+     * @return the name of the file.
+     */
+    public static String getStateFilename(Properties props, String property, String name){
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' cannot be null.");
+        }
+        String filename = props.getProperty(property);
+        if (filename != null){
+            return filename;
+        }
+        String account = props.getProperty("email", "").trim().toLowerCase().replaceAll("[^a-z0-9@._-]", "_");
+        return account.isEmpty() ? "data/" + name : "data/" + account + "." + name;
     }
 
     /**
-     * Assembles the emails into AgendaItems.
-     * @return a list of AgendaItems constructed from the emails received.
+     * Returns the messages that arrived in the inbox since the checkpoint was taken.  If the checkpoint does not
+     * belong to the inbox's current UIDVALIDITY it is reset and every message in the inbox is returned.
+     *
+     * @param inbox the open inbox.
+     * @param checkpoint the record of how far the inbox has been read.
+     * @return the messages to process on this run.
+     * @throws MessagingException if the messages cannot be listed.
      */
-    private static Collection<AgendaItem> generateAgendaItems(){
-        Collection<AgendaItem> agendaItems = new ArrayList<>();
-        try {
-            // PROCESS AGENDA ITEMS
-            List<IMAPMessage> messages = getValidMessages();
-            for (IMAPMessage item : messages){
-
-                // Item Title
-                String title = item.getSubject();
-
-                // Item Sender
-                InternetAddress address = (InternetAddress)item.getSender();
-                String email = address.getAddress();
-                String name = "";
-                if (address.getPersonal() != null){
-                    name = address.getPersonal();
-                }
-
-                // Body Text if any...
-                String body = "";
-                if (item.getContent() != null){
-                    if (item.getContent() instanceof MimeMultipart){
-                        MimeMultipart mmp = (MimeMultipart)item.getContent();
-                        int bodyParts = mmp.getCount();
-                        for (int i = 0; i < bodyParts; i++){
-                            BodyPart bp = mmp.getBodyPart(i);
-                            if (bp.getContentType().trim().startsWith(PLAIN_TEXT)){
-                                body = bp.getContent().toString();
-                                break;
-                            }
-                        }
-                    }
-                }
-                agendaItems.add(new AgendaItem(email, name, title, body));
+    private static Message[] getNewMessages(IMAPFolder inbox, InboxCheckpoint checkpoint) throws MessagingException {
+        long uidValidity = inbox.getUIDValidity();
+        if (!checkpoint.isValidFor(uidValidity)){
+            LogFile.getLogFile().log("No usable inbox checkpoint (UIDVALIDITY " + uidValidity + ").  Reading the whole inbox.");
+            checkpoint.reset(uidValidity);
+            return inbox.getMessages();
+        }
+
+        // "n:*" always matches the newest message, even when its UID is below n, so filter the range again.
+        List<Message> newMessages = new ArrayList<>();
+        for (Message msg : inbox.getMessagesByUID(checkpoint.getLastUid() + 1, UIDFolder.LASTUID)){
+            if (inbox.getUID(msg) > checkpoint.getLastUid()){
+                newMessages.add(msg);
             }
-        } catch (MessagingException ex) {
-            LogFile.getLogFile().log("Error processing agenda items.", ex);
-        } catch (IOException ioex){
-            LogFile.getLogFile().log("Error fetching email body.", ioex);
         }
+        LogFile.getLogFile().log("Reading messages after UID " + checkpoint.getLastUid() + " from the inbox checkpoint.");
+        return newMessages.toArray(new Message[newMessages.size()]);
+    }
 
-        return agendaItems;
+    /**
+     * Builds an AgendaItem from a message.  The item's title is the message subject and its submitter is the message
+     * sender.
+     *
+     * @param item the message to build the AgendaItem from.
+     * @param body the body text of the message.
+     * @return the AgendaItem for the message.
+     * @throws MessagingException if the message's subject or sender cannot be read.
+     */
+    static AgendaItem toAgendaItem(IMAPMessage item, String body) throws MessagingException {
+        // Item Title
+        String title = item.getSubject();
+
+        // Item Sender
+        InternetAddress address = (InternetAddress)item.getSender();
+        String email = address.getAddress();
+        String name = "";
+        if (address.getPersonal() != null){
+            name = address.getPersonal();
+        }
+        return new AgendaItem(email, name, title, body);
     }
 
     /**
-     * Fetches the valid messages (those that are actually _from_ members of the email list) from those in the inbox.
-     * @return only the valid messages from the inbox.
+     * Returns the key an AgendaItem is stored under in the {@link ItemJournal}:  the Message-ID of the message it came
+     * from.  Messages without a Message-ID are keyed by the UIDVALIDITY of their folder and their UID instead.
+     *
+     * @param msg the message.
+     * @return the key for the message.
+     * @throws MessagingException if the message's headers cannot be read.
      */
-    private static List<IMAPMessage> getValidMessages() {
-        List<IMAPMessage> validMessages = new ArrayList<>();
+    static String getMessageKey(IMAPMessage msg) throws MessagingException {
+        String messageId = msg.getMessageID();
+        if (messageId != null && !messageId.trim().isEmpty()){
+            return messageId.trim();
+        }
+        IMAPFolder folder = (IMAPFolder)msg.getFolder();
+        return "uid:" + folder.getUIDValidity() + "." + folder.getUID(msg);
+    }
 
-        List<Message> allMessages = Arrays.asList(m_messages);
-        List<String> validEmails = OamTools.readEmails(OamTools.PROPS.getProperty("email.list.filename", "emails.txt"));
+    /**
+     * Filters a list of messages down to those that are actually _from_ members of the email list.
+     *
+     * @param allMessages the messages to filter.
+     * @param validEmails the email list.
+     * @return only the messages sent by members of the email list.
+     */
+    static List<IMAPMessage> filterValidMessages(List<Message> allMessages, EmailList validEmails) {
+        List<IMAPMessage> validMessages = new ArrayList<>();
 
         // Check each message to determine its sender's authority to add items to the agenda.
         try {
@@ -178,28 +276,487 @@ public class EmailAgendaItemProvider implements AgendaItemProvider {
     }
 
     /**
-     * Deletes the emails in the account and closes the message store.
-     * @param store the message store to close.
+     * Flags the given messages as deleted and expunges them.  The flags are set with a single STORE command covering
+     * ranges of messages.  Where the server supports UIDPLUS only these messages are expunged (UID EXPUNGE), otherwise
+     * a single EXPUNGE removes every message flagged as deleted.
+     *
+     * @param folder the open folder the messages belong to.
+     * @param messages the messages to delete.
+     * @throws MessagingException if the messages cannot be deleted.
      */
-    private static void deleteEmails(Store store){
-        try {
+    static void deleteMessages(IMAPFolder folder, Message[] messages) throws MessagingException {
+        if (messages.length == 0){
+            return;
+        }
+        folder.setFlags(messages, new Flags(Flags.Flag.DELETED), true);
+        if (((IMAPStore)folder.getStore()).hasCapability("UIDPLUS")){
+            folder.expunge(messages);
+        } else {
+            folder.expunge();
+        }
+    }
+
+
+    /**
+     * A single read of the inbox.  It holds everything the read needs while it runs and is thrown away once the items
+     * have been returned.
+     */
+    private class InboxRun {
+
+        /** The connections to the email account. */
+        private MailSessionManager m_manager;
+
+        /** The connection to the email account, borrowed from the manager, or null if it could not be made. */
+        private Store m_store;
+
+        /** True if the connection failed, so that it is thrown away rather than reused. */
+        private boolean m_failed;
+
+        /** The number of IMAP commands sent to the account before this run started. */
+        private int m_startCount;
+
+        /** The inbox the messages were read from, or null if it could not be opened. */
+        private IMAPFolder m_inbox;
+
+        /** The messages read from the inbox on this run. */
+        private Message[] m_messages = new Message[0];
+
+        /** The messages that may be agenda items:  those the server found from members of the email list, if asked. */
+        private Message[] m_candidates = new Message[0];
+
+        /** The record of how far the inbox has been read, or null if the whole inbox is read on each run. */
+        private InboxCheckpoint m_checkpoint;
+
+        /** The item journal, or null if items are not journaled. */
+        private ItemJournal m_journal;
+
+        /** The index of submissions already seen, or null if duplicates are not dropped. */
+        private DuplicateIndex m_duplicates;
+
+        /**
+         * The items read on this run, held for a checkpoint that keeps the items itself, or null if there is no
+         * checkpoint or the items are kept in the journal.
+         */
+        private List<AgendaItem> m_newItems;
+
+        /** The number of new items read on this run. */
+        private int m_newCount;
+
+        /** The number of items written to the journal on this run. */
+        private int m_journaled;
+
+        /** The keys of the messages handed on so far, so that a message is never handed on twice. */
+        private Set<String> m_emitted = new HashSet<>();
+
+        /** The sorter the agenda items are handed to. */
+        private ExternalItemSorter m_sorter;
+
+        /**
+         * Constructor.
+         * @param sorter the sorter to hand the agenda items to.
+         */
+        InboxRun(ExternalItemSorter sorter){
+            m_sorter = sorter;
+        }
+
+        /**
+         * Reads the agenda items from the inbox into the sorter, deletes the messages they came from if asked to, and
+         * disconnects.
+         *
+         * @throws IOException if the items cannot be sorted.
+         */
+        void read() throws IOException {
+            m_manager = MailSessionManager.getManager(m_props);
+            ImapCommandCounter counter = m_manager.getCommandCounter();
+            if (counter != null){
+                m_startCount = counter.getCount();
+            }
+            try {
+                // Fetch the mail from the account.
+                LogFile.getLogFile().log("Connecting to email account...");
+                m_store = m_manager.getStore();
+                LogFile.getLogFile().log("Successfully connected.");
+
+                if (m_store instanceof IMAPStore){
+                    IMAPStore imapStore = (IMAPStore)m_store;
+
+                    LogFile.getLogFile().log("Retrieving emails from inbox...");
+                    Folder inbox = imapStore.getFolder("inbox");
+                    inbox.open(Folder.READ_WRITE);
+                    if (inbox instanceof IMAPFolder){
+                        m_inbox = (IMAPFolder)inbox;
+                    }
+                    if (m_inbox != null && m_props.getProperty("imap.incremental", "true").toLowerCase().equals("true")){
+                        m_checkpoint = InboxCheckpoint.load(
+                                getStateFilename(m_props, "imap.checkpoint.filename", "inbox.checkpoint"));
+                        m_messages = getNewMessages(m_inbox, m_checkpoint);
+                    } else {
+                        m_messages = inbox.getMessages();
+                    }
+                    m_candidates = m_messages;
+                    if (m_inbox != null && m_props.getProperty("imap.server.search", "true").toLowerCase().equals("true")){
+                        m_candidates = searchBySender(m_messages);
+                    }
+                    if (isPrefetchOn()){
+                        getPrefetcher().prefetchHeaders(m_inbox, m_candidates);
+                    }
+                    LogFile.getLogFile().log(m_messages.length + " messages successfully retrieved.\n\n");
+
+                } else {
+                    LogFile.getLogFile().log("Message store was not an IMAP Message store.  No messages retrieved.");
+                }
+            } catch (NoSuchProviderException ex) {
+                LogFile.getLogFile().log("Couldn't find the mail provider.", ex);
+                m_failed = true;
+            } catch (MessagingException ex) {
+                LogFile.getLogFile().log("Message exception while initializing store", ex);
+                m_failed = true;
+            }
+
+            try {
+                process(counter);
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Turns the messages read into agenda items, hands them to the sorter, records them, and deletes the messages
+         * if asked to.  If this run's messages could not all be processed none of its items are handed out, and they
+         * are read again next time.
+         *
+         * @param counter the counter of IMAP commands sent, or null if they are not being counted.
+         * @throws IOException if the items cannot be sorted.
+         */
+        private void process(ImapCommandCounter counter) throws IOException {
+            boolean processed = false;
+            if (m_props.getProperty("journal.on", "true").toLowerCase().equals("true")){
+                m_journal = ItemJournal.open(getStateFilename(m_props, "journal.filename", "agenda.journal"));
+            }
+            if (m_props.getProperty("dedupe.on", "true").toLowerCase().equals("true")){
+                m_duplicates = DuplicateIndex.load(
+                        getStateFilename(m_props, "dedupe.index.filename", "duplicate.index"));
+            }
+            if (m_inbox == null){
+                // Nothing was read, so there is nothing to record or delete.
+                return;
+            }
+            if (m_checkpoint != null && m_journal != null){
+                // The journal holds the items, so any a checkpoint written before it was turned on are dropped.
+                m_checkpoint.clearItems();
+            } else if (m_checkpoint != null){
+                m_newItems = new ArrayList<>();
+            }
+
+            try {
+                generateAgendaItems();
+                processed = true;
+            } catch (MessagingException ex) {
+                LogFile.getLogFile().log("Error processing agenda items.", ex);
+                m_failed = true;
+            } catch (IOException ioex){
+                LogFile.getLogFile().log("Error fetching an email body or writing the item journal.", ioex);
+            }
+            if (m_checkpoint != null){
+                mergeWithCheckpoint(processed);
+            } else if (!processed){
+                m_sorter.clear();
+            }
+            if (m_journal != null){
+                LogFile.getLogFile().log(m_journaled + " new agenda items written to the item journal.");
+            }
+            if (counter != null){
+                LogFile.getLogFile().log("IMAP round trips while reading the inbox:  " + (counter.getCount() - m_startCount));
+            }
+
+            // delete the old messages.
+            if (m_props.getProperty("debug", "false").equals("true")){
+                LogFile.getLogFile().log("In debug mode:  Skipping email delete step.");
+            } else {
+                if (m_deleteEmails && m_journal != null && m_checkpoint != null && !processed){
+                    // The agenda holds the items journaled so far, but this run's messages will be read again, so the
+                    // cycle is left open for the next agenda rather than putting the same items on two agendas.
+                    LogFile.getLogFile().log("Not every email was processed.  No emails will be deleted, and the "
+                            + "agenda's items are kept for the next agenda.");
+                } else if (m_deleteEmails && deleteEmails(processed)){
+                    if (m_checkpoint != null){
+                        m_checkpoint.clearItems();
+                    }
+                    if (m_journal != null && (m_checkpoint != null || processed)){
+                        // The agenda's emails are gone from the inbox, so its items become the journal's closed cycle.
+                        m_journal.closeCycle();
+                    }
+                    if (m_duplicates != null && (m_checkpoint != null || processed)){
+                        m_duplicates.clear();
+                    }
+                }
+            }
+            if (m_duplicates != null){
+                m_duplicates.save();
+            }
+            if (m_checkpoint != null && processed){
+                m_checkpoint.save();
+            }
+        }
+
+        /**
+         * Hands on a batch of newly read items:  duplicates are dropped, the rest are written to the journal and then
+         * either held for the checkpoint or given straight to the sorter.  When there is both a checkpoint and a
+         * journal the items are only written to the journal, and are read back from it once the inbox has been read.
+         *
+         * @param batch the items, by the key of the message each came from.
+         * @throws IOException if the items cannot be sorted.
+         */
+        private void emit(Map<String, AgendaItem> batch) throws IOException {
+            batch = new LinkedHashMap<>(batch);
+            batch.keySet().removeAll(m_emitted);
+            m_emitted.addAll(batch.keySet());
+            if (m_duplicates != null){
+                batch = m_duplicates.filter(batch);
+            }
+            if (m_journal != null){
+                m_journaled += m_journal.append(batch);
+            }
+            m_newCount += batch.size();
+            if (m_newItems != null){
+                m_newItems.addAll(batch.values());
+            } else if (m_checkpoint == null){
+                for (AgendaItem item : batch.values()){
+                    m_sorter.add(item);
+                }
+            }
+        }
+
+        /**
+         * Hands the items read on this run and those already stored to the sorter, and advances the checkpoint past
+         * the messages that were read.  If this run's messages could not be processed the checkpoint is left where it
+         * was so they are read again next time.  When the item journal is on it already holds every item of the next
+         * agenda, so the checkpoint only records how far the inbox was read and the items are read back from the
+         * journal one at a time.
+         *
+         * @param processed true if every message read on this run was processed.
+         * @throws IOException if the journal cannot be read, or the items cannot be sorted.
+         */
+        private void mergeWithCheckpoint(boolean processed) throws IOException {
+            int total = 0;
+            if (m_journal != null){
+                try (AgendaItemStream items = m_journal.openItems()) {
+                    for (AgendaItem item = items.read(); item != null; item = items.read()){
+                        m_sorter.add(item);
+                        total++;
+                    }
+                }
+            } else {
+                List<AgendaItem> items = new ArrayList<>(m_checkpoint.getItems());
+                if (processed){
+                    items.addAll(m_newItems);
+                }
+                for (AgendaItem item : items){
+                    m_sorter.add(item);
+                }
+                total = items.size();
+            }
+            if (processed){
+                try {
+                    long lastUid = 0;
+                    for (Message msg : m_messages){
+                        lastUid = Math.max(lastUid, m_inbox.getUID(msg));
+                    }
+                    m_checkpoint.advanceTo(lastUid);
+                    if (m_journal == null){
+                        m_checkpoint.addItems(m_newItems);
+                    }
+                } catch (MessagingException ex) {
+                    LogFile.getLogFile().log("Error reading message UIDs.  The inbox checkpoint was not advanced.", ex);
+                }
+            }
+            LogFile.getLogFile().log(m_newCount + " new agenda items, " + total + " in total.");
+        }
+
+        /**
+         * Assembles the emails into AgendaItems and hands them on a batch at a time, so that only one batch of message
+         * bodies is held in memory at once.
+         *
+         * @throws MessagingException if the messages cannot be read.
+         * @throws IOException if a message body cannot be read, or the items cannot be sorted.
+         */
+        private void generateAgendaItems() throws MessagingException, IOException {
+            // PROCESS AGENDA ITEMS
+            List<IMAPMessage> messages = getValidMessages();
+            // The parallel connections come from the same pool as the one already held.
+            int connections = Math.min(Integer.valueOf(m_props.getProperty("imap.parallel.connections", "1")),
+                    m_manager.getMaxStores() - 1);
+            int batchSize = getPrefetcher().getBatchSize();
+            if (isPrefetchOn() && connections > 1 && messages.size() > 1){
+                readInParallel(messages, connections, batchSize);
+                return;
+            }
+            for (int start = 0; start < messages.size(); start += batchSize){
+                List<IMAPMessage> batch = messages.subList(start, Math.min(start + batchSize, messages.size()));
+                Map<IMAPMessage, String> prefetched = null;
+                if (isPrefetchOn()){
+                    prefetched = getPrefetcher().fetchPlainTextBodies(m_inbox, batch);
+                }
+                Map<String, AgendaItem> agendaItems = new LinkedHashMap<>();
+                for (IMAPMessage item : batch){
+
+                    // Body Text if any...
+                    String body = "";
+                    if (prefetched != null){
+                        body = prefetched.get(item);
+                    } else if (item.getContent() != null){
+                        if (item.getContent() instanceof MimeMultipart){
+                            MimeMultipart mmp = (MimeMultipart)item.getContent();
+                            int bodyParts = mmp.getCount();
+                            for (int i = 0; i < bodyParts; i++){
+                                BodyPart bp = mmp.getBodyPart(i);
+                                if (bp.getContentType().trim().startsWith(PLAIN_TEXT)){
+                                    body = bp.getContent().toString();
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                    agendaItems.put(getMessageKey(item), toAgendaItem(item, body));
+                }
+                emit(agendaItems);
+            }
+        }
+
+        /**
+         * Downloads and parses the given messages over several connections at once, handing the items on a batch at a
+         * time as each is read.
+         *
+         * @param messages the messages to read.
+         * @param connections the number of connections to use.
+         * @param batchSize the most messages read in one batch.
+         * @throws MessagingException if some of the messages could not be read.
+         * @throws IOException if the items cannot be sorted.
+         */
+        private void readInParallel(List<IMAPMessage> messages, int connections, int batchSize)
+                throws MessagingException, IOException {
+            long[] uids = new long[messages.size()];
+            for (int i = 0; i < uids.length; i++){
+                uids[i] = m_inbox.getUID(messages.get(i));
+            }
+            Arrays.sort(uids);
+
+            int retries = Integer.valueOf(m_props.getProperty("imap.parallel.retries", "2"));
+            ParallelInboxReader reader = new ParallelInboxReader(m_props, m_manager, connections, batchSize, retries);
+            reader.read(uids, new ParallelInboxReader.RangeHandler() {
+                @Override
+                public void handle(Map<String, AgendaItem> items) throws IOException {
+                    emit(items);
+                }
+            });
+        }
+
+        /**
+         * Returns true if the inbox should be read with bulk FETCH commands rather than message by message.
+         * @return true if the inbox should be read with bulk FETCH commands.
+         */
+        private boolean isPrefetchOn(){
+            return m_inbox != null && m_props.getProperty("imap.prefetch", "true").toLowerCase().equals("true");
+        }
+
+        /**
+         * Creates an {@link ImapPrefetcher} using the configured batch size and body size limit.
+         * @return a new ImapPrefetcher.
+         */
+        private ImapPrefetcher getPrefetcher(){
+            return ImapPrefetcher.fromProperties(m_props);
+        }
+
+        /**
+         * Fetches the valid messages (those that are actually _from_ members of the email list) from those in the
+         * inbox.
+         * @return only the valid messages from the inbox.
+         */
+        private List<IMAPMessage> getValidMessages() {
+            EmailList validEmails = EmailList.getEmailList(m_props.getProperty("email.list.filename", "emails.txt"));
+            return filterValidMessages(Arrays.asList(m_candidates), validEmails);
+        }
+
+        /**
+         * Asks the mail server which of the given messages were sent by members of the email list.  If the server
+         * cannot perform the search every message is returned and the senders are checked on this side instead.
+         *
+         * @param messages the messages to search.
+         * @return the messages that may have been sent by members of the email list.
+         */
+        private Message[] searchBySender(Message[] messages){
+            EmailList validEmails = EmailList.getEmailList(m_props.getProperty("email.list.filename", "emails.txt"));
+            int chunkSize = Integer.valueOf(m_props.getProperty("imap.search.chunk.size",
+                    String.valueOf(SenderSearch.DEFAULT_CHUNK_SIZE)));
+            try {
+                Message[] found = new SenderSearch(validEmails.getAddresses(), chunkSize).search(m_inbox, messages);
+                LogFile.getLogFile().log("Server-side search by sender skipped " + (messages.length - found.length) + " of "
+                        + messages.length + " messages.");
+                return found;
+            } catch (MessagingException ex) {
+                LogFile.getLogFile().log("The mail server could not search by sender.  Checking every message instead.", ex);
+                return messages;
+            }
+        }
+
+        /**
+         * Deletes the emails that have been dealt with.  Only messages that were turned into agenda items or rejected
+         * are deleted, so mail that arrives while the agenda is being built is kept for the next one.  If this run's
+         * messages could not all be processed none of them are deleted.
+         *
+         * @param processed true if every message read on this run was processed.
+         * @return true if the emails were deleted, or there were none to delete.
+         */
+        private boolean deleteEmails(boolean processed){
+            try {
                 LogFile.getLogFile().log("Deleting old emails...");
-                for (Message msg : m_messages){
-                    msg.setFlag(Flags.Flag.DELETED, true);
+                Message[] toDelete = new Message[0];
+                if (m_checkpoint != null){
+                    // Messages kept on earlier runs are only recorded in the checkpoint, so delete by UID range.
+                    if (m_checkpoint.getLastUid() > 0){
+                        toDelete = m_inbox.getMessagesByUID(1, m_checkpoint.getLastUid());
+                    }
+                } else if (processed){
+                    toDelete = m_messages;
+                } else {
+                    LogFile.getLogFile().log("Not every email was processed.  No emails will be deleted.");
                 }
-                LogFile.getLogFile().log("Done deleting old emails.");
-         } catch (MessagingException ex) {
-            LogFile.getLogFile().log("Error deleting mesesages", ex);
+                deleteMessages(m_inbox, toDelete);
+                LogFile.getLogFile().log("Done deleting " + toDelete.length + " old emails.");
+                return true;
+            } catch (MessagingException ex) {
+                LogFile.getLogFile().log("Error deleting mesesages", ex);
+                m_failed = true;
+                return false;
+            }
         }
 
-        // Close the store if it was initialized.
-        try {
-            if (store != null){
-                LogFile.getLogFile().log("Closing the connection to the email account.\n\n");
-                store.close();
+        /**
+         * Closes the inbox and gives the connection to the email account back to the pool, if one was made, and lets go
+         * of the messages read.  A connection that failed is thrown away instead.
+         */
+        private void close(){
+            try {
+                if (m_inbox != null && m_inbox.isOpen()){
+                    m_inbox.close(false);
+                }
+            } catch (MessagingException ex) {
+                LogFile.getLogFile().log("Error closing the inbox.", ex);
+                m_failed = true;
             }
-        } catch (MessagingException ex) {
-                LogFile.getLogFile().log("Error closing message store.", ex);
+            if (m_store != null){
+                LogFile.getLogFile().log("Done with the connection to the email account.\n\n");
+                if (m_failed){
+                    m_manager.discard(m_store);
+                } else {
+                    m_manager.release(m_store);
+                }
+            }
+            m_store = null;
+            m_inbox = null;
+            m_messages = new Message[0];
+            m_candidates = m_messages;
+            m_checkpoint = null;
         }
     }
-}
\ No newline at end of file
+}
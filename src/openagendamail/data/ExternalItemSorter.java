@@ -0,0 +1,326 @@
+package openagendamail.data;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import openagendamail.file.LogFile;
+
+/**
+ * Sorts {@link AgendaItem}s into agenda order using a bounded amount of memory.  Items are added one at a time and held
+ * in memory until they take up more than the memory limit.  The held items are then sorted and written out to a
+ * temporary file as a sorted run, and memory is freed for the next items.  Once every item has been added the runs,
+ * and the items still in memory, are merged into a single sorted {@link AgendaItemStream}, which holds only one item
+ * from each run in memory at a time.
+ *
+ * Agendas small enough to fit in memory never touch the disk.  Each run is stored one item per line in the same
+ * escaped, tab separated form the {@link ItemJournal} uses.
+ *
+ * The items are fingerprinted as they are added, so the sorted stream knows its fingerprint before it is read.
+ */
+class ExternalItemSorter implements Closeable {
+
+    /** The default number of bytes of items held in memory before a run is written out. */
+    static final long DEFAULT_MAX_MEMORY_BYTES = 8 * 1024 * 1024;
+
+    /** The rough number of bytes an item takes in memory in addition to its text. */
+    private static final int ITEM_OVERHEAD_BYTES = 128;
+
+    /** The number of fields in each line of a run. */
+    private static final int FIELDS = 4;
+
+    /** The number of bytes of items held in memory before a run is written out. */
+    private long m_maxMemoryBytes;
+
+    /** The items held in memory. */
+    private List<AgendaItem> m_buffer;
+
+    /** The estimated number of bytes the items held in memory take up. */
+    private long m_bufferBytes;
+
+    /** The sorted runs written out so far. */
+    private List<File> m_runs;
+
+    /** The number of items added. */
+    private int m_count;
+
+    /** The fingerprint of the items added. */
+    private ItemFingerprint m_fingerprint = new ItemFingerprint();
+
+    /**
+     * Constructor.
+     * @param maxMemoryBytes the number of bytes of items to hold in memory before writing a sorted run to disk.
+     */
+    ExternalItemSorter(long maxMemoryBytes){
+        if (maxMemoryBytes < 1){
+            throw new IllegalArgumentException("Parameter 'maxMemoryBytes' must be greater than zero.");
+        }
+        m_maxMemoryBytes = maxMemoryBytes;
+        m_buffer = new ArrayList<>();
+        m_runs = new ArrayList<>();
+    }
+
+    /**
+     * Adds an item to be sorted.
+     * @param item the item.
+     * @throws IOException if a sorted run cannot be written out.
+     */
+    void add(AgendaItem item) throws IOException {
+        m_buffer.add(item);
+        m_bufferBytes += estimateBytes(item);
+        m_fingerprint.add(item);
+        m_count++;
+        if (m_bufferBytes > m_maxMemoryBytes){
+            spill();
+        }
+    }
+
+    /**
+     * Returns the number of items added.
+     * @return the number of items added.
+     */
+    int size(){
+        return m_count;
+    }
+
+    /** Forgets every item added so far and deletes the runs written out. */
+    void clear(){
+        close();
+        m_count = 0;
+        m_fingerprint.clear();
+    }
+
+    /**
+     * Merges everything added into a single sorted stream.  No more items may be added afterwards.  Closing the stream
+     * deletes the runs written out.
+     *
+     * @return the items, in agenda order, and their fingerprint.
+     * @throws IOException if a run cannot be read.
+     */
+    FingerprintedItemStream sort() throws IOException {
+        final String fingerprint = m_fingerprint.getValue();
+        Collections.sort(m_buffer);
+        final List<File> runs = new ArrayList<>(m_runs);
+        final List<AgendaItem> buffer = m_buffer;
+        m_runs.clear();
+        m_buffer = new ArrayList<>();
+        m_bufferBytes = 0;
+        if (!runs.isEmpty()){
+            LogFile.getLogFile().log("Merging " + m_count + " agenda items from " + runs.size() + " sorted runs on disk.");
+        }
+
+        final PriorityQueue<Run> heads = new PriorityQueue<>();
+        try {
+            for (File file : runs){
+                Run run = new FileRun(file);
+                if (run.advance()){
+                    heads.add(run);
+                } else {
+                    run.close();
+                }
+            }
+            Run memory = new MemoryRun(buffer.iterator());
+            if (memory.advance()){
+                heads.add(memory);
+            }
+        } catch (IOException | RuntimeException ex) {
+            closeAll(heads);
+            deleteAll(runs);
+            throw ex;
+        }
+
+        return new FingerprintedItemStream() {
+            @Override
+            public String getFingerprint() {
+                return fingerprint;
+            }
+
+            @Override
+            public AgendaItem read() throws IOException {
+                Run run = heads.poll();
+                if (run == null){
+                    return null;
+                }
+                AgendaItem item = run.m_head;
+                if (run.advance()){
+                    heads.add(run);
+                } else {
+                    run.close();
+                }
+                return item;
+            }
+
+            @Override
+            public void close() {
+                closeAll(heads);
+                deleteAll(runs);
+            }
+        };
+    }
+
+    /** Deletes the runs written out so far and forgets the items held in memory. */
+    @Override
+    public void close(){
+        deleteAll(m_runs);
+        m_runs.clear();
+        m_buffer = new ArrayList<>();
+        m_bufferBytes = 0;
+    }
+
+    /**
+     * Sorts the items held in memory and writes them out as a run.
+     * @throws IOException if the run cannot be written.
+     */
+    private void spill() throws IOException {
+        Collections.sort(m_buffer);
+        File file = File.createTempFile("oam-sort-", ".run");
+        file.deleteOnExit();
+        m_runs.add(file);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (AgendaItem item : m_buffer){
+                writer.write(ItemJournal.escape(item.getEmail()));
+                writer.write('\t');
+                writer.write(ItemJournal.escape(item.getUser()));
+                writer.write('\t');
+                writer.write(ItemJournal.escape(item.getTitle()));
+                writer.write('\t');
+                writer.write(ItemJournal.escape(item.getBody()));
+                writer.write('\n');
+            }
+        }
+        m_buffer = new ArrayList<>();
+        m_bufferBytes = 0;
+    }
+
+    /**
+     * Estimates the number of bytes an item takes up in memory.
+     * @param item the item.
+     * @return the estimated size, in bytes.
+     */
+    private static long estimateBytes(AgendaItem item){
+        return ITEM_OVERHEAD_BYTES + 2L * (length(item.getEmail()) + length(item.getUser()) + length(item.getTitle())
+                + length(item.getBody()));
+    }
+
+    /** Returns the length of a String that may be null. */
+    private static int length(String value){
+        return value == null ? 0 : value.length();
+    }
+
+    /** Closes every run, ignoring errors. */
+    private static void closeAll(Iterable<Run> runs){
+        for (Run run : runs){
+            run.close();
+        }
+    }
+
+    /** Deletes every file, logging any that cannot be deleted. */
+    private static void deleteAll(List<File> files){
+        for (File file : files){
+            if (file.exists() && !file.delete()){
+                LogFile.getLogFile().log("Unable to delete the sorted run '" + file + "'.");
+            }
+        }
+    }
+
+    /** A sorted sequence of items, ordered by the item at its head so that the runs can be merged. */
+    private abstract static class Run implements Comparable<Run> {
+
+        /** The next item of the run. */
+        AgendaItem m_head;
+
+        /**
+         * Moves to the next item of the run.
+         * @return true if there was another item, false if the run is used up.
+         * @throws IOException if the item cannot be read.
+         */
+        abstract boolean advance() throws IOException;
+
+        /** Releases anything the run holds. */
+        void close(){
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int compareTo(Run other) {
+            return m_head.compareTo(other.m_head);
+        }
+    }
+
+    /** A run of items held in memory. */
+    private static class MemoryRun extends Run {
+
+        /** The items left in the run. */
+        private Iterator<AgendaItem> m_items;
+
+        /**
+         * Constructor.
+         * @param items the items, in agenda order.
+         */
+        MemoryRun(Iterator<AgendaItem> items){
+            m_items = items;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        boolean advance() {
+            m_head = m_items.hasNext() ? m_items.next() : null;
+            return m_head != null;
+        }
+    }
+
+    /** A run of items read back from a temporary file. */
+    private static class FileRun extends Run {
+
+        /** The reader of the file. */
+        private BufferedReader m_reader;
+
+        /**
+         * Constructor.
+         * @param file the file holding the run.
+         * @throws IOException if the file cannot be opened.
+         */
+        FileRun(File file) throws IOException {
+            m_reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        boolean advance() throws IOException {
+            String line = m_reader.readLine();
+            if (line == null){
+                m_head = null;
+                return false;
+            }
+            String[] fields = line.split("\t", -1);
+            if (fields.length != FIELDS){
+                throw new IOException("Corrupt sorted run:  expected " + FIELDS + " fields but found " + fields.length + ".");
+            }
+            m_head = new AgendaItem(ItemJournal.unescape(fields[0]), ItemJournal.unescape(fields[1]),
+                    ItemJournal.unescape(fields[2]), ItemJournal.unescape(fields[3]));
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        void close(){
+            try {
+                m_reader.close();
+            } catch (IOException ex) {
+                // Do nothing, the run is being discarded.
+            }
+        }
+    }
+}
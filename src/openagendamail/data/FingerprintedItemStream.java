@@ -0,0 +1,15 @@
+package openagendamail.data;
+
+/**
+ * An {@link AgendaItemStream} that knows the fingerprint of all of its items before any of them are read, so that a
+ * caller can tell whether the agenda has changed without reading the stream through.
+ */
+public interface FingerprintedItemStream extends AgendaItemStream {
+
+    /**
+     * Returns the fingerprint of every item in the stream, including those already read.
+     * @return the fingerprint.
+     * @see ItemFingerprint#getValue()
+     */
+    public String getFingerprint();
+}
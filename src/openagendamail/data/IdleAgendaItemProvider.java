@@ -0,0 +1,480 @@
+package openagendamail.data;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
+import openagendamail.file.LogFile;
+import openagendamail.util.EmailList;
+import openagendamail.util.OamTools;
+import openagendamail.util.email.MailSessionManager;
+
+/**
+ * An AgendaItemProvider that keeps the inbox open and builds the agenda as submissions arrive, rather than reading the
+ * whole inbox at the moment the agenda is due.  The inbox is watched using IMAP IDLE, each new message from a member
+ * of the email list is parsed as soon as the server reports it, and the parsed items are kept sorted in memory.  When
+ * {@link #getItems()} is called the agenda is already built and is returned straight away.
+ *
+ * If the connection to the mail server is lost the provider reconnects, waiting a little longer after each failed
+ * attempt, and re-reads the inbox so that nothing sent while it was disconnected is missed.  The number of items kept
+ * and the length of each body are capped so that a flood of mail cannot exhaust the heap.  Messages beyond the cap are
+ * left in the inbox, and are read once {@link #getItems()} has handed the agenda out and made room for them.
+ *
+ * The provider does nothing until {@link #start()} is called, and keeps running until {@link #stop()} is called.  For
+ * all that time it holds one of the connections in the account's {@link MailSessionManager} pool.
+ */
+public class IdleAgendaItemProvider implements AgendaItemProvider {
+
+    /** The default maximum number of agenda items held in memory. */
+    private static final int DEFAULT_MAX_ITEMS = 1000;
+
+    /** The default maximum number of characters kept from each item's body. */
+    private static final int DEFAULT_MAX_BODY_CHARS = 64 * 1024;
+
+    /** The longest time, in seconds, to wait between reconnection attempts. */
+    private static final long MAX_RECONNECT_DELAY = 300;
+
+    /** The configuration of this provider:  the account to watch and how to read it. */
+    private Properties m_props;
+
+    /** True if the emails should be deleted once they have been handed out as agenda items. */
+    private boolean m_deleteEmails;
+
+    /** The maximum number of agenda items held in memory. */
+    private int m_maxItems;
+
+    /** The maximum number of characters kept from each item's body. */
+    private int m_maxBodyChars;
+
+    /** The number of minutes between restarts of the IDLE command, since servers drop IDLE connections left alone. */
+    private long m_refreshMinutes;
+
+    /** The agenda items received so far, always kept sorted.  Guarded by 'this'. */
+    private List<AgendaItem> m_items;
+
+    /** The UID of the message each agenda item came from.  Guarded by 'this'. */
+    private Map<Long, AgendaItem> m_itemsByUid;
+
+    /** The UIDs of the submissions left in the inbox because the agenda was full.  Guarded by 'this'. */
+    private SortedSet<Long> m_leftOver;
+
+    /** True while the provider should keep the inbox open. */
+    private volatile boolean m_running;
+
+    /** The open inbox, or null while disconnected. */
+    private volatile IMAPFolder m_inbox;
+
+    /** The thread that holds the inbox open. */
+    private Thread m_idleThread;
+
+    /** Periodically interrupts IDLE so the connection is refreshed before the server drops it. */
+    private ScheduledExecutorService m_refresher;
+
+    /**
+     * Constructor.  The provider is configured by the application's properties.
+     * @param deleteEmails true if the emails should be deleted once they are handed out as agenda items, false
+     * otherwise.
+     */
+    public IdleAgendaItemProvider(boolean deleteEmails){
+        this(deleteEmails, OamTools.PROPS);
+    }
+
+    /**
+     * Constructor.
+     * @param deleteEmails true if the emails should be deleted once they are handed out as agenda items, false
+     * otherwise.
+     * @param props the configuration of this provider.  The properties are copied, so later changes to them are not
+     * seen by this provider.
+     */
+    public IdleAgendaItemProvider(boolean deleteEmails, Properties props){
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' cannot be null.");
+        }
+        m_props = new Properties();
+        m_props.putAll(props);
+        m_props.put("mail.store.protocol", "imaps");
+        m_deleteEmails = deleteEmails;
+        m_maxItems = Integer.valueOf(m_props.getProperty("imap.idle.max.items", String.valueOf(DEFAULT_MAX_ITEMS)));
+        m_maxBodyChars = Integer.valueOf(m_props.getProperty("imap.idle.max.body.chars", String.valueOf(DEFAULT_MAX_BODY_CHARS)));
+        m_refreshMinutes = Long.valueOf(m_props.getProperty("imap.idle.refresh.minutes", "20"));
+        m_items = new ArrayList<>();
+        m_itemsByUid = new HashMap<>();
+        m_leftOver = new TreeSet<>();
+    }
+
+    /** Opens the inbox and starts listening for new submissions in a background thread. */
+    public synchronized void start(){
+        if (m_running){
+            return;
+        }
+        m_running = true;
+        // Both threads log to the log of the agenda that started the provider.
+        m_idleThread = new Thread(LogFile.inheritThreadLogFile(new Runnable() {
+            @Override
+            public void run() {
+                listen();
+            }
+        }), "imap-idle");
+        m_idleThread.setDaemon(true);
+        m_idleThread.start();
+
+        m_refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "imap-idle-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_refresher.scheduleWithFixedDelay(LogFile.inheritThreadLogFile(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }), m_refreshMinutes, m_refreshMinutes, TimeUnit.MINUTES);
+    }
+
+    /** Stops listening for new submissions and closes the inbox. */
+    public synchronized void stop(){
+        m_running = false;
+        if (m_refresher != null){
+            m_refresher.shutdownNow();
+        }
+        if (m_idleThread != null){
+            m_idleThread.interrupt();
+        }
+        closeQuietly(m_inbox);
+    }
+
+    /**
+     * Returns the agenda items received so far, already sorted.  If the provider was created to delete emails, the
+     * messages the returned items came from are deleted and the items are cleared, ready for the next agenda; any
+     * submissions left in the inbox because the agenda was full are then read onto the next agenda.
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<AgendaItem> getItems() {
+        List<AgendaItem> items;
+        List<Long> uids;
+        synchronized (this){
+            items = new ArrayList<>(m_items);
+            uids = new ArrayList<>(m_itemsByUid.keySet());
+        }
+        LogFile.getLogFile().log(items.size() + " agenda items ready from the watched inbox.");
+
+        if (m_props.getProperty("debug", "false").equals("true")){
+            LogFile.getLogFile().log("In debug mode:  Skipping email delete step.");
+        } else if (m_deleteEmails){
+            deleteEmails(uids);
+            readOverflow();
+        }
+        return items;
+    }
+
+    /**
+     * Returns the number of agenda items received so far, without handing them out.
+     * @return the number of agenda items.
+     */
+    synchronized int getItemCount(){
+        return m_items.size();
+    }
+
+    /**
+     * The body of the IDLE thread.  Connects to the inbox, reads what is already there, then waits for new messages
+     * until the provider is stopped.  Whenever the connection fails it is opened again after a delay that doubles with
+     * each consecutive failure.
+     */
+    private void listen(){
+        long delay = 5;
+        final LogFile log = LogFile.getLogFile();
+        MailSessionManager manager = MailSessionManager.getManager(m_props);
+        while (m_running){
+            Store store = null;
+            boolean failed = false;
+            try {
+                LogFile.getLogFile().log("Connecting to email account to watch the inbox...");
+                store = manager.getStore();
+
+                IMAPFolder inbox = (IMAPFolder)store.getFolder("inbox");
+                inbox.open(Folder.READ_WRITE);
+                // The listener is called on JavaMail's event thread, so it is given this thread's log.
+                inbox.addMessageCountListener(new MessageCountAdapter() {
+                    @Override
+                    public void messagesAdded(MessageCountEvent event) {
+                        LogFile.setThreadLogFile(log);
+                        try {
+                            addMessages((IMAPFolder)event.getSource(), event.getMessages());
+                        } finally {
+                            LogFile.setThreadLogFile(null);
+                        }
+                    }
+
+                    @Override
+                    public void messagesRemoved(MessageCountEvent event) {
+                        LogFile.setThreadLogFile(log);
+                        try {
+                            removeMessages((IMAPFolder)event.getSource(), event.getMessages());
+                        } finally {
+                            LogFile.setThreadLogFile(null);
+                        }
+                    }
+                });
+                m_inbox = inbox;
+
+                // Anything could have arrived while disconnected, so start again from what is in the inbox now.
+                synchronized (this){
+                    m_items.clear();
+                    m_itemsByUid.clear();
+                    m_leftOver.clear();
+                }
+                addMessages(inbox, inbox.getMessages());
+                LogFile.getLogFile().log("Watching the inbox for new agenda items.");
+                delay = 5;
+
+                while (m_running && inbox.isOpen()){
+                    inbox.idle();
+                }
+            } catch (MessagingException | RuntimeException ex) {
+                failed = true;
+                if (m_running){
+                    LogFile.getLogFile().log("Lost the connection to the inbox.  Reconnecting in " + delay + " seconds.", ex);
+                }
+            } finally {
+                closeQuietly(m_inbox);
+                m_inbox = null;
+                if (store != null && failed){
+                    manager.discard(store);
+                } else if (store != null){
+                    manager.release(store);
+                }
+            }
+
+            if (m_running){
+                try {
+                    Thread.sleep(delay * 1000);
+                } catch (InterruptedException ex) {
+                    // Do nothing, the loop condition decides whether to carry on.
+                }
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+            }
+        }
+        LogFile.getLogFile().log("Stopped watching the inbox.");
+    }
+
+    /**
+     * Parses newly arrived messages and adds those from members of the email list to the agenda.  Messages already
+     * flagged as deleted are skipped, as are messages beyond the item limit.
+     *
+     * @param inbox the open inbox.
+     * @param messages the messages to add.
+     */
+    private void addMessages(IMAPFolder inbox, Message[] messages){
+        if (messages.length == 0){
+            return;
+        }
+        try {
+            ImapPrefetcher prefetcher = ImapPrefetcher.fromProperties(m_props);
+            prefetcher.prefetchHeaders(inbox, messages);
+
+            List<Message> live = new ArrayList<>();
+            for (Message msg : messages){
+                if (!msg.isSet(Flags.Flag.DELETED)){
+                    live.add(msg);
+                }
+            }
+            EmailList validEmails = EmailList.getEmailList(m_props.getProperty("email.list.filename", "emails.txt"));
+            List<IMAPMessage> valid = EmailAgendaItemProvider.filterValidMessages(live, validEmails);
+
+            // Checking for room here saves fetching bodies that would be turned away; insert() checks again, since
+            // the IDLE thread and readOverflow() may both be adding messages.
+            synchronized (this){
+                int room = Math.max(m_maxItems - m_items.size(), 0);
+                if (valid.size() > room){
+                    LogFile.getLogFile().log("The agenda is full (" + m_maxItems + " items).  " + (valid.size() - room)
+                            + " submissions were left in the inbox for the next agenda.");
+                    for (IMAPMessage msg : valid.subList(room, valid.size())){
+                        m_leftOver.add(inbox.getUID(msg));
+                    }
+                    valid = valid.subList(0, room);
+                }
+            }
+
+            Map<IMAPMessage, String> bodies = prefetcher.fetchPlainTextBodies(inbox, valid);
+            for (IMAPMessage msg : valid){
+                String body = bodies.get(msg);
+                if (body.length() > m_maxBodyChars){
+                    body = body.substring(0, m_maxBodyChars);
+                }
+                insert(inbox.getUID(msg), EmailAgendaItemProvider.toAgendaItem(msg, body));
+            }
+        } catch (MessagingException ex) {
+            LogFile.getLogFile().log("Error processing new agenda items.", ex);
+        }
+    }
+
+    /**
+     * Removes the agenda items whose messages were removed from the inbox by someone else.
+     *
+     * @param inbox the open inbox.
+     * @param messages the messages that were removed.
+     */
+    private void removeMessages(IMAPFolder inbox, Message[] messages){
+        for (Message msg : messages){
+            try {
+                remove(inbox.getUID(msg));
+            } catch (MessagingException ex) {
+                // The UID of a removed message is only known if it was read earlier, in which case it is on the agenda.
+            }
+        }
+    }
+
+    /**
+     * Adds an item to the agenda, keeping the agenda sorted.  If the agenda is full the item is not added, and its
+     * message is left in the inbox for the next agenda.
+     *
+     * @param uid the UID of the message the item came from.
+     * @param item the item to add.
+     */
+    private synchronized void insert(long uid, AgendaItem item){
+        if (m_itemsByUid.containsKey(uid)){
+            return;
+        }
+        if (m_items.size() >= m_maxItems){
+            LogFile.getLogFile().log("The agenda is full (" + m_maxItems + " items).  '" + item.getTitle()
+                    + "' was left in the inbox for the next agenda.");
+            m_leftOver.add(uid);
+            return;
+        }
+        int index = Collections.binarySearch(m_items, item);
+        if (index < 0){
+            index = -(index + 1);
+        }
+        m_items.add(index, item);
+        m_itemsByUid.put(uid, item);
+        m_leftOver.remove(uid);
+        LogFile.getLogFile().log("Agenda item received:  " + item.getTitle());
+    }
+
+    /**
+     * Removes the item that came from the message with the given UID, if there is one.
+     * @param uid the UID of the message.
+     */
+    private synchronized void remove(long uid){
+        m_leftOver.remove(uid);
+        AgendaItem item = m_itemsByUid.remove(uid);
+        if (item != null){
+            m_items.remove(item);
+        }
+    }
+
+    /**
+     * Deletes the messages the given items came from, and removes the items from the agenda.
+     * @param uids the UIDs of the messages to delete.
+     */
+    private void deleteEmails(List<Long> uids){
+        IMAPFolder inbox = m_inbox;
+        if (uids.isEmpty()){
+            return;
+        }
+        if (inbox == null){
+            LogFile.getLogFile().log("Not connected to the inbox.  Emails will be deleted after the next agenda.");
+            return;
+        }
+        try {
+            LogFile.getLogFile().log("Deleting old emails...");
+            long[] toDelete = new long[uids.size()];
+            for (int i = 0; i < toDelete.length; i++){
+                toDelete[i] = uids.get(i);
+            }
+            List<Message> messages = new ArrayList<>(Arrays.asList(inbox.getMessagesByUID(toDelete)));
+            messages.removeAll(Collections.singleton(null));
+            EmailAgendaItemProvider.deleteMessages(inbox, messages.toArray(new Message[messages.size()]));
+            for (Long uid : uids){
+                remove(uid);
+            }
+            LogFile.getLogFile().log("Done deleting old emails.");
+        } catch (MessagingException ex) {
+            LogFile.getLogFile().log("Error deleting mesesages", ex);
+        }
+    }
+
+    /**
+     * Reads the submissions that were left in the inbox because the agenda was full, now that handing the agenda out
+     * has made room for them.  They are read in the order they arrived, and each stays left over until it is put on
+     * the agenda or removed from the inbox.
+     */
+    private void readOverflow(){
+        IMAPFolder inbox = m_inbox;
+        long[] uids;
+        synchronized (this){
+            if (m_leftOver.isEmpty() || inbox == null){
+                return;
+            }
+            uids = new long[m_leftOver.size()];
+            int i = 0;
+            for (Long uid : m_leftOver){
+                uids[i++] = uid;
+            }
+        }
+        try {
+            LogFile.getLogFile().log("Reading the submissions left in the inbox while the agenda was full...");
+            Message[] found = inbox.getMessagesByUID(uids);
+            List<Message> messages = new ArrayList<>();
+            for (int i = 0; i < found.length; i++){
+                if (found[i] != null){
+                    messages.add(found[i]);
+                } else {
+                    remove(uids[i]);
+                }
+            }
+            addMessages(inbox, messages.toArray(new Message[messages.size()]));
+        } catch (MessagingException ex) {
+            LogFile.getLogFile().log("Error reading the submissions left in the inbox.", ex);
+        }
+    }
+
+    /** Ends the current IDLE command so that it is re-issued on a fresh exchange with the server. */
+    private void refresh(){
+        IMAPFolder inbox = m_inbox;
+        if (inbox != null){
+            try {
+                inbox.getMessageCount();
+            } catch (MessagingException ex) {
+                LogFile.getLogFile().log("Error refreshing the inbox connection.", ex);
+            }
+        }
+    }
+
+    /**
+     * Closes a folder, ignoring any errors.
+     * @param folder the folder to close, may be null.
+     */
+    private static void closeQuietly(Folder folder){
+        if (folder != null && folder.isOpen()){
+            try {
+                folder.close(false);
+            } catch (MessagingException ex) {
+                // Do nothing, the folder is being discarded.
+            }
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package openagendamail.data;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.MessageSet;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.mail.BodyPart;
+import javax.mail.FetchProfile;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+import openagendamail.file.LogFile;
+
+/**
+ * Reads messages from an IMAP folder in bulk rather than one message at a time.  Headers, flags, UIDs and body
+ * structures for a whole folder are requested with a single FETCH, and the text parts of the messages that are
+ * actually needed are then requested in batches, one FETCH per batch.
+ *
+ * Only one part of each message is downloaded:  the first plain text part, or failing that the first HTML part, which
+ * is converted to plain text.  Attachments are never downloaded, and the text part itself is cut off after a set
+ * number of bytes using a partial FETCH, so the memory used does not grow with the size of the message.
+ */
+class ImapPrefetcher {
+
+    /** The default number of messages whose bodies are requested in a single FETCH command. */
+    static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** The default maximum number of bytes downloaded from each message body. */
+    static final int DEFAULT_MAX_BODY_BYTES = 64 * 1024;
+
+    /** The number of messages whose bodies are requested in a single FETCH command. */
+    private int m_batchSize;
+
+    /** The maximum number of bytes downloaded from each message body. */
+    private int m_maxBodyBytes;
+
+    /**
+     * Constructor.
+     * @param batchSize the maximum number of messages whose bodies are requested in a single FETCH command.
+     * @param maxBodyBytes the maximum number of (encoded) bytes downloaded from each message body.
+     */
+    ImapPrefetcher(int batchSize, int maxBodyBytes){
+        if (batchSize < 1){
+            throw new IllegalArgumentException("Parameter 'batchSize' must be greater than zero.");
+        }
+        if (maxBodyBytes < 1){
+            throw new IllegalArgumentException("Parameter 'maxBodyBytes' must be greater than zero.");
+        }
+        m_batchSize = batchSize;
+        m_maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Creates an ImapPrefetcher configured by the 'imap.fetch.batch.size' and 'imap.max.body.bytes' properties.
+     * @param props the properties to read the configuration from.
+     * @return a new ImapPrefetcher.
+     */
+    static ImapPrefetcher fromProperties(Properties props){
+        int batchSize = Integer.valueOf(props.getProperty("imap.fetch.batch.size", String.valueOf(DEFAULT_BATCH_SIZE)));
+        int maxBodyBytes = Integer.valueOf(props.getProperty("imap.max.body.bytes", String.valueOf(DEFAULT_MAX_BODY_BYTES)));
+        return new ImapPrefetcher(batchSize, maxBodyBytes);
+    }
+
+    /**
+     * Returns the maximum number of messages whose bodies are requested in a single FETCH command.
+     * @return the batch size.
+     */
+    int getBatchSize(){
+        return m_batchSize;
+    }
+
+    /**
+     * Fetches the envelope, flags, UID and body structure of every supplied message with a single FETCH command.
+     * Once this is done the sender, subject and MIME layout of each message can be read without going back to the
+     * server.
+     *
+     * @param folder the open folder the messages belong to.
+     * @param messages the messages to prefetch.
+     * @throws MessagingException if the fetch fails.
+     */
+    void prefetchHeaders(IMAPFolder folder, Message[] messages) throws MessagingException {
+        if (messages.length == 0){
+            return;
+        }
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(FetchProfile.Item.FLAGS);
+        profile.add(FetchProfile.Item.CONTENT_INFO);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        folder.fetch(messages, profile);
+    }
+
+    /**
+     * Fetches the text of each supplied message.  The part of each message to download is located using its
+     * (prefetched) body structure, and the messages are grouped by that part so that each group can be downloaded
+     * with as few FETCH commands as the batch size allows.  Messages without a text part are mapped to the empty
+     * String.
+     *
+     * @param folder the open folder the messages belong to.
+     * @param messages the messages whose bodies should be fetched.
+     * @return a map of each message to its decoded, plain text body.
+     * @throws MessagingException if the messages' structure cannot be read or a fetch fails.
+     */
+    Map<IMAPMessage, String> fetchPlainTextBodies(IMAPFolder folder, List<IMAPMessage> messages) throws MessagingException {
+        Map<IMAPMessage, String> bodies = new HashMap<>();
+
+        // Group the messages by the section that holds their text.
+        Map<String, List<TextPart>> sections = new LinkedHashMap<>();
+        for (IMAPMessage msg : messages){
+            bodies.put(msg, "");
+            TextPart part = findText(msg);
+            if (part != null){
+                List<TextPart> group = sections.get(part.m_section);
+                if (group == null){
+                    group = new ArrayList<>();
+                    sections.put(part.m_section, group);
+                }
+                group.add(part);
+            }
+        }
+
+        // Request each group in batches.
+        for (Map.Entry<String, List<TextPart>> entry : sections.entrySet()){
+            List<TextPart> group = entry.getValue();
+            for (int start = 0; start < group.size(); start += m_batchSize){
+                List<TextPart> batch = group.subList(start, Math.min(start + m_batchSize, group.size()));
+                Map<Integer, BODY> fetched = fetchSection(folder, entry.getKey(), m_maxBodyBytes, batch);
+                for (TextPart part : batch){
+                    BODY body = fetched.get(part.m_message.getMessageNumber());
+                    if (body != null){
+                        bodies.put(part.m_message, decode(body, part));
+                    }
+                }
+            }
+        }
+        return bodies;
+    }
+
+    /**
+     * Issues one FETCH command for the start of the given body section of each message in the batch.
+     *
+     * @param folder the open folder the messages belong to.
+     * @param section the IMAP body section to fetch, for example "1" or "2.1".
+     * @param maxBytes the number of bytes to fetch from the start of the section.
+     * @param batch the messages to fetch the section for.
+     * @return the fetched body sections, keyed by message sequence number.
+     * @throws MessagingException if the fetch fails.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<Integer, BODY> fetchSection(IMAPFolder folder, String section, int maxBytes, List<TextPart> batch)
+            throws MessagingException {
+        final String item = "BODY.PEEK[" + section + "]<0." + maxBytes + ">";
+        final int[] msgnums = new int[batch.size()];
+        for (int i = 0; i < msgnums.length; i++){
+            msgnums[i] = batch.get(i).m_message.getMessageNumber();
+        }
+
+        return (Map<Integer, BODY>)folder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                Map<Integer, BODY> result = new HashMap<>();
+                Response[] responses = protocol.fetch(MessageSet.createMessageSets(msgnums), item);
+                for (int i = 0; i < responses.length; i++){
+                    if (responses[i] instanceof FetchResponse){
+                        BODY body = (BODY)((FetchResponse)responses[i]).getItem(BODY.class);
+                        if (body != null){
+                            result.put(body.msgno, body);
+                            responses[i] = null;
+                        }
+                    }
+                }
+
+                // Let the folder see anything else the server sent, then check the command completed.
+                protocol.notifyResponseHandlers(responses);
+                protocol.handleResult(responses[responses.length - 1]);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Locates the text of a message using its body structure:  the first plain text part, or if there is none the
+     * first HTML part.
+     *
+     * @param msg the message to search.
+     * @return the text part, or null if the message has none.
+     * @throws MessagingException if the message's structure cannot be read.
+     */
+    private static TextPart findText(IMAPMessage msg) throws MessagingException {
+        if (msg.isMimeType("text/plain") || msg.isMimeType("text/html")){
+            return new TextPart(msg, "1", msg);
+        }
+        if (msg.isMimeType("multipart/*")){
+            try {
+                MimeMultipart multipart = (MimeMultipart)msg.getContent();
+                TextPart found = findText(msg, multipart, "", "text/plain");
+                if (found == null){
+                    found = findText(msg, multipart, "", "text/html");
+                }
+                return found;
+            } catch (IOException ex) {
+                LogFile.getLogFile().log("Error reading the structure of a message.", ex);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Searches a multipart (depth first) for its first part of the given type.  For IMAP messages the parts of a
+     * multipart are built from the body structure, so no message content is downloaded by this search.
+     *
+     * @param msg the message the multipart belongs to.
+     * @param multipart the multipart to search.
+     * @param prefix the section number of the multipart, or the empty String for the top level.
+     * @param mimeType the type of part to find.
+     * @return the part, or null if there is none.
+     */
+    private static TextPart findText(IMAPMessage msg, MimeMultipart multipart, String prefix, String mimeType)
+            throws MessagingException, IOException {
+        for (int i = 0; i < multipart.getCount(); i++){
+            BodyPart bp = multipart.getBodyPart(i);
+            String section = prefix.isEmpty() ? String.valueOf(i + 1) : prefix + "." + (i + 1);
+            if (bp.isMimeType(mimeType)){
+                return new TextPart(msg, section, (MimePart)bp);
+            }
+            if (bp.isMimeType("multipart/*")){
+                TextPart found = findText(msg, (MimeMultipart)bp.getContent(), section, mimeType);
+                if (found != null){
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a fetched body section using the transfer encoding and charset of the part it came from.  The bytes are
+     * decoded as they are read, and HTML is converted to plain text.  A section cut short by the size limit may end
+     * part way through an encoded character or line, in which case the text decoded up to that point is kept.
+     *
+     * @param body the fetched body section.
+     * @param part the part the section belongs to.
+     * @return the decoded text.
+     */
+    private static String decode(BODY body, TextPart part) throws MessagingException {
+        StringBuilder text = new StringBuilder();
+        try {
+            InputStream in = MimeUtility.decode(body.getByteArrayInputStream(), part.m_encoding);
+            Reader reader = new InputStreamReader(in, part.m_charset);
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1){
+                text.append(buffer, 0, read);
+            }
+        } catch (IOException ex) {
+            if (text.length() == 0){
+                LogFile.getLogFile().log("Error decoding email body.", ex);
+            }
+        }
+        return part.m_html ? htmlToText(text.toString()) : text.toString();
+    }
+
+    /**
+     * Converts HTML to plain text.  Scripts, styles and tags are removed, line and block breaks become newlines and
+     * common character entities are decoded.  This is only meant to make an HTML-only submission readable on the
+     * agenda, not to render it faithfully.
+     *
+     * @param html the HTML to convert.
+     * @return the plain text.
+     */
+    static String htmlToText(String html){
+        String text = html.replaceAll("(?is)<(script|style)[^>]*>.*?</\\1\\s*>", "");
+        text = text.replaceAll("(?i)<br\\s*/?>", "\n");
+        text = text.replaceAll("(?i)</?(p|div|li|tr|h[1-6])(\\s[^>]*)?>", "\n");
+        text = text.replaceAll("(?s)<[^>]*>", "");
+        text = text.replaceAll("&nbsp;", " ").replaceAll("&lt;", "<").replaceAll("&gt;", ">")
+                .replaceAll("&quot;", "\"").replaceAll("&#39;", "'");
+
+        // Numeric entities, then ampersands last so that "&amp;lt;" becomes "&lt;" and not "<".
+        Matcher numeric = Pattern.compile("&#(\\d{1,6});").matcher(text);
+        StringBuffer decoded = new StringBuffer();
+        while (numeric.find()){
+            int codePoint = Integer.parseInt(numeric.group(1));
+            String replacement = Character.isValidCodePoint(codePoint) ? new String(Character.toChars(codePoint)) : "";
+            numeric.appendReplacement(decoded, Matcher.quoteReplacement(replacement));
+        }
+        numeric.appendTail(decoded);
+        text = decoded.toString().replaceAll("&amp;", "&");
+
+        return text.replaceAll("[ \t]+\n", "\n").replaceAll("\n{3,}", "\n\n").trim();
+    }
+
+    /** A text part of a message, along with what is needed to fetch and decode it. */
+    private static class TextPart {
+
+        /** The message the part belongs to. */
+        private IMAPMessage m_message;
+
+        /** The IMAP body section number of the part. */
+        private String m_section;
+
+        /** The content transfer encoding of the part. */
+        private String m_encoding;
+
+        /** The Java name of the part's charset. */
+        private String m_charset;
+
+        /** True if the part is HTML rather than plain text. */
+        private boolean m_html;
+
+        /**
+         * Constructor.
+         * @param message the message the part belongs to.
+         * @param section the IMAP body section number of the part.
+         * @param part the part itself, used to read its encoding and charset.
+         */
+        TextPart(IMAPMessage message, String section, MimePart part) throws MessagingException {
+            m_message = message;
+            m_section = section;
+            m_encoding = part.getEncoding() == null ? "7bit" : part.getEncoding().trim();
+            ContentType type = new ContentType(part.getContentType());
+            String charset = type.getParameter("charset");
+            m_charset = MimeUtility.javaCharset(charset == null ? "us-ascii" : charset);
+            try {
+                if (!Charset.isSupported(m_charset)){
+                    m_charset = "US-ASCII";
+                }
+            } catch (IllegalCharsetNameException ex) {
+                m_charset = "US-ASCII";
+            }
+            m_html = type.match("text/html");
+        }
+    }
+}
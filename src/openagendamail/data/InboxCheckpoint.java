@@ -0,0 +1,194 @@
+package openagendamail.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import openagendamail.file.LogFile;
+
+/**
+ * Records how far the inbox has been read so that later runs only have to read messages that arrived since.  The
+ * checkpoint holds the inbox's UIDVALIDITY, the highest message UID processed so far and the AgendaItems already
+ * parsed from the messages up to that UID.  It is kept in a properties file between runs.  When the {@link ItemJournal}
+ * is on the journal holds the items instead, and the checkpoint holds none.
+ *
+ * A checkpoint is only good for as long as the inbox's UIDVALIDITY stays the same.  If the server reports a different
+ * UIDVALIDITY the UIDs recorded here no longer mean anything and the inbox must be read again from the start.
+ */
+class InboxCheckpoint {
+
+    /** The key for the inbox's UIDVALIDITY. */
+    private static final String UID_VALIDITY = "uid.validity";
+
+    /** The key for the highest UID processed. */
+    private static final String LAST_UID = "last.uid";
+
+    /** The key for the number of stored AgendaItems. */
+    private static final String ITEM_COUNT = "item.count";
+
+    /** The file this checkpoint is stored in. */
+    private String m_filename;
+
+    /** The UIDVALIDITY of the inbox when this checkpoint was taken, or -1 if there is no checkpoint. */
+    private long m_uidValidity;
+
+    /** The highest message UID processed so far. */
+    private long m_lastUid;
+
+    /** The AgendaItems parsed from the messages processed so far. */
+    private List<AgendaItem> m_items;
+
+    /**
+     * Constructs an empty checkpoint.
+     * @param filename the file to store the checkpoint in.
+     */
+    private InboxCheckpoint(String filename){
+        m_filename = filename;
+        m_uidValidity = -1;
+        m_lastUid = 0;
+        m_items = new ArrayList<>();
+    }
+
+    /**
+     * Loads the checkpoint stored in the given file.  If the file does not exist or cannot be read an empty checkpoint
+     * is returned, which forces the next read of the inbox to start from the beginning.
+     *
+     * @param filename the file the checkpoint is stored in.
+     * @return the stored checkpoint, or an empty one.
+     */
+    static InboxCheckpoint load(String filename){
+        InboxCheckpoint checkpoint = new InboxCheckpoint(filename);
+        if (!new File(filename).exists()){
+            return checkpoint;
+        }
+
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(filename)) {
+            props.load(in);
+            long uidValidity = Long.parseLong(props.getProperty(UID_VALIDITY, "-1"));
+            long lastUid = Long.parseLong(props.getProperty(LAST_UID, "0"));
+            int count = Integer.parseInt(props.getProperty(ITEM_COUNT, "0"));
+
+            List<AgendaItem> items = new ArrayList<>(count);
+            for (int i = 0; i < count; i++){
+                items.add(new AgendaItem(props.getProperty("item." + i + ".email"),
+                        props.getProperty("item." + i + ".user"),
+                        props.getProperty("item." + i + ".title"),
+                        props.getProperty("item." + i + ".body", "")));
+            }
+            checkpoint.m_uidValidity = uidValidity;
+            checkpoint.m_lastUid = lastUid;
+            checkpoint.m_items = items;
+        } catch (IOException | NumberFormatException ex) {
+            LogFile.getLogFile().log("Error reading inbox checkpoint '" + filename + "'.  The inbox will be read in full.", ex);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Writes this checkpoint to its file.  The checkpoint is written to a temporary file first and then moved into
+     * place so that a crash part way through never leaves a half written checkpoint behind.
+     */
+    void save(){
+        Properties props = new Properties();
+        props.setProperty(UID_VALIDITY, String.valueOf(m_uidValidity));
+        props.setProperty(LAST_UID, String.valueOf(m_lastUid));
+        props.setProperty(ITEM_COUNT, String.valueOf(m_items.size()));
+        for (int i = 0; i < m_items.size(); i++){
+            AgendaItem item = m_items.get(i);
+            setIfNotNull(props, "item." + i + ".email", item.getEmail());
+            setIfNotNull(props, "item." + i + ".user", item.getUser());
+            setIfNotNull(props, "item." + i + ".title", item.getTitle());
+            setIfNotNull(props, "item." + i + ".body", item.getBody());
+        }
+
+        File file = new File(m_filename);
+        File temp = new File(m_filename + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                props.store(out, "OpenAgendaMail inbox checkpoint - do not edit.");
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (FileNotFoundException ex) {
+            LogFile.getLogFile().log("Cannot create inbox checkpoint file:  " + temp, ex);
+        } catch (IOException ex) {
+            LogFile.getLogFile().log("Error saving inbox checkpoint '" + m_filename + "'.", ex);
+        }
+    }
+
+    /**
+     * Returns true if this checkpoint was taken against an inbox with the given UIDVALIDITY.
+     *
+     * @param uidValidity the current UIDVALIDITY of the inbox.
+     * @return true if the UIDs in this checkpoint are still valid, false if the inbox must be read in full.
+     */
+    boolean isValidFor(long uidValidity){
+        return m_uidValidity != -1 && m_uidValidity == uidValidity;
+    }
+
+    /**
+     * Discards everything in this checkpoint and starts a new one for an inbox with the given UIDVALIDITY.
+     * @param uidValidity the current UIDVALIDITY of the inbox.
+     */
+    void reset(long uidValidity){
+        m_uidValidity = uidValidity;
+        m_lastUid = 0;
+        m_items.clear();
+    }
+
+    /**
+     * Returns the highest message UID processed so far.
+     * @return the highest message UID processed so far, or 0 if none have been.
+     */
+    long getLastUid(){
+        return m_lastUid;
+    }
+
+    /**
+     * Records that messages up to and including the given UID have been processed.  UIDs lower than the current one
+     * are ignored.
+     *
+     * @param uid the highest UID processed.
+     */
+    void advanceTo(long uid){
+        m_lastUid = Math.max(m_lastUid, uid);
+    }
+
+    /**
+     * Returns the AgendaItems parsed so far.
+     * @return the AgendaItems parsed so far.
+     */
+    List<AgendaItem> getItems(){
+        return Collections.unmodifiableList(m_items);
+    }
+
+    /**
+     * Adds newly parsed AgendaItems to this checkpoint.
+     * @param items the items to add.
+     */
+    void addItems(Collection<AgendaItem> items){
+        m_items.addAll(items);
+    }
+
+    /** Removes the stored AgendaItems, for example once the messages they came from have been deleted. */
+    void clearItems(){
+        m_items.clear();
+    }
+
+    /** Sets a property if the value is not null. */
+    private static void setIfNotNull(Properties props, String key, String value){
+        if (value != null){
+            props.setProperty(key, value);
+        }
+    }
+}
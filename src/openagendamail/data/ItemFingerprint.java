@@ -0,0 +1,100 @@
+package openagendamail.data;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A fingerprint of a set of {@link AgendaItem}s that is built up one item at a time, so that it can be taken while the
+ * items are read without holding them all in memory.  Each item is hashed with SHA-256 and the hashes are added
+ * together, so the fingerprint does not depend on the order the items are added in:  items read from the inbox in
+ * any order give the same fingerprint as the same items read back in agenda order.  Two agendas with the same
+ * fingerprint hold the same items, and since the agenda's sort is stable they render the same document.
+ */
+public class ItemFingerprint {
+
+    /** Sums are kept modulo this, the range of a SHA-256 hash. */
+    private static final BigInteger MODULUS = BigInteger.ONE.shiftLeft(256);
+
+    /** Hashes each item. */
+    private final MessageDigest m_digest;
+
+    /** The sum of the hashes of the items added. */
+    private BigInteger m_sum = BigInteger.ZERO;
+
+    /** The number of items added. */
+    private int m_count;
+
+    /** Constructor.  Creates the fingerprint of no items. */
+    public ItemFingerprint(){
+        m_digest = newDigest();
+    }
+
+    /**
+     * Adds an item to the fingerprint.
+     * @param item the item.
+     */
+    public void add(AgendaItem item){
+        update(m_digest, item.getEmail());
+        update(m_digest, item.getUser());
+        update(m_digest, item.getTitle());
+        update(m_digest, item.getBody());
+        m_sum = m_sum.add(new BigInteger(1, m_digest.digest())).mod(MODULUS);
+        m_count++;
+    }
+
+    /** Forgets every item added so far. */
+    public void clear(){
+        m_sum = BigInteger.ZERO;
+        m_count = 0;
+    }
+
+    /**
+     * Returns the number of items added.
+     * @return the number of items.
+     */
+    public int size(){
+        return m_count;
+    }
+
+    /**
+     * Returns the fingerprint of the items added so far.
+     * @return the fingerprint, as text.
+     */
+    public String getValue(){
+        return m_count + ":" + m_sum.toString(16);
+    }
+
+    /**
+     * Adds a String to a digest, length first so that the fields of an item cannot run into each other.  A null
+     * String is told apart from an empty one.
+     *
+     * @param digest the digest.
+     * @param value the String, which may be null.
+     */
+    static void update(MessageDigest digest, String value){
+        if (value == null){
+            digest.update((byte)0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte)1);
+        digest.update(new byte[]{(byte)(bytes.length >>> 24), (byte)(bytes.length >>> 16), (byte)(bytes.length >>> 8),
+            (byte)bytes.length});
+        digest.update(bytes);
+    }
+
+    /**
+     * Returns a new SHA-256 digest.
+     * @return the digest.
+     */
+    static MessageDigest newDigest(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException("SHA-256 is not available.", ex);
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package openagendamail.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import openagendamail.file.LogFile;
+
+/**
+ * An append-only journal of the AgendaItems read from the inbox, kept on local disk so that an agenda can be built
+ * again without going back to the mail server.  Each item is keyed by the Message-ID of the email it came from, and an
+ * item already in the journal is never written twice.
+ *
+ * The journal is a UTF-8 text file with one record per line and tab separated fields.  An item record is
+ * "I, Message-ID, email, user, title, body".  A close record, "C", marks the end of an agenda cycle:  the items before
+ * it are those of the last agenda built from the inbox and deleted from it, and the items after it belong to the next
+ * agenda.  Closing a cycle compacts the journal, dropping older cycles and repeated records, so the file never holds
+ * more than two agendas' worth of items.  Only the Message-IDs of the current cycle are held in memory; the items
+ * themselves are read back from the file one at a time with {@link #openItems()} and {@link #openClosedItems()}.
+ *
+ * Records are only ever added to the end of the file and each batch is synced to disk before returning, so a crash can
+ * at worst leave a torn last record.  Torn records are dropped, and the file repaired, when the journal is opened, and
+ * a torn record left by an append that failed is cut off before the next append.
+ */
+public class ItemJournal {
+
+    /** The first field of an item record. */
+    private static final String ITEM = "I";
+
+    /** The record that closes an agenda cycle. */
+    private static final String CLOSE = "C";
+
+    /** The number of fields in an item record. */
+    private static final int ITEM_FIELDS = 6;
+
+    /** The file the journal is stored in. */
+    private String m_filename;
+
+    /** The Message-IDs of the items of the current, open agenda cycle. */
+    private Set<String> m_open;
+
+    /** The number of close records in the file, which is also the number of the current cycle, counting from 0. */
+    private int m_closes;
+
+    /** The length of the file up to the end of its last complete record, in bytes. */
+    private long m_length;
+
+    /**
+     * Constructs an empty journal.
+     * @param filename the file the journal is stored in.
+     */
+    private ItemJournal(String filename){
+        m_filename = filename;
+        m_open = new HashSet<>();
+    }
+
+    /**
+     * Opens the journal stored in the given file, creating an empty one if the file does not exist.  If the file holds
+     * torn or unreadable records, or older cycles that were never compacted, it is rewritten without them.
+     *
+     * @param filename the file the journal is stored in.
+     * @return the journal.
+     */
+    public static ItemJournal open(String filename){
+        ItemJournal journal = new ItemJournal(filename);
+        if (!new File(filename).exists()){
+            return journal;
+        }
+
+        boolean needsCompaction = false;
+        try (RecordReader reader = new RecordReader(new File(filename), Long.MAX_VALUE)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()){
+                if (line.equals(CLOSE)){
+                    journal.m_open = new HashSet<>();
+                    journal.m_closes++;
+                    continue;
+                }
+                String messageId = parseMessageId(line);
+                if (messageId == null || !journal.m_open.add(messageId)){
+                    needsCompaction = true;
+                }
+            }
+            journal.m_length = reader.getPosition();
+            needsCompaction = needsCompaction || reader.isTorn() || journal.m_closes > 1;
+        } catch (IOException ex) {
+            LogFile.getLogFile().log("Error reading the item journal '" + filename + "'.", ex);
+            return new ItemJournal(filename);
+        }
+
+        if (needsCompaction){
+            LogFile.getLogFile().log("Repairing the item journal '" + filename + "'.");
+            journal.rewrite();
+        }
+        return journal;
+    }
+
+    /**
+     * Adds items to the current agenda cycle.  Items whose Message-ID is already in the current cycle are skipped.  The
+     * new records are written with a single append and synced to disk before this method returns.  If the append
+     * fails none of the items are added, and whatever part of them reached the file is cut off before the next append.
+     *
+     * @param items the items to add, by the Message-ID of the email they came from.
+     * @return the number of items added.
+     * @throws IOException if the items cannot be written to the journal.
+     */
+    public synchronized int append(Map<String, AgendaItem> items) throws IOException {
+        StringBuilder records = new StringBuilder();
+        Map<String, AgendaItem> added = new LinkedHashMap<>();
+        for (Map.Entry<String, AgendaItem> entry : items.entrySet()){
+            if (entry.getKey() != null && !m_open.contains(entry.getKey()) && !added.containsKey(entry.getKey())){
+                appendRecord(records, entry.getKey(), entry.getValue());
+                added.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (added.isEmpty()){
+            return 0;
+        }
+
+        appendBytes(records.toString().getBytes(StandardCharsets.UTF_8));
+        m_open.addAll(added.keySet());
+        return added.size();
+    }
+
+    /**
+     * Closes the current agenda cycle, for example once its emails have been deleted from the inbox.  The items of the
+     * cycle become the last closed cycle, the cycle before it is dropped, and the journal is compacted.  If the close
+     * record cannot be written the cycle is left open.
+     */
+    public synchronized void closeCycle(){
+        try {
+            appendBytes((CLOSE + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            LogFile.getLogFile().log("Error closing the agenda cycle.  Its items are kept for the next agenda.", ex);
+            return;
+        }
+        m_closes++;
+        m_open = new HashSet<>();
+        rewrite();
+    }
+
+    /**
+     * Returns true if the current agenda cycle holds an item from the email with the given Message-ID.
+     *
+     * @param messageId the Message-ID to look up.
+     * @return true if the item has been journaled.
+     */
+    public synchronized boolean contains(String messageId){
+        return m_open.contains(messageId);
+    }
+
+    /**
+     * Opens a stream of the items of the current, open agenda cycle, read from the file one at a time.  Items appended
+     * after the stream is opened are not part of it.
+     *
+     * @return the items of the current agenda cycle, in the order they were written.
+     * @throws IOException if the journal cannot be read.
+     */
+    public synchronized AgendaItemStream openItems() throws IOException {
+        return openCycle(m_closes);
+    }
+
+    /**
+     * Opens a stream of the items of the last closed agenda cycle, that is of the last agenda whose emails were
+     * deleted, read from the file one at a time.
+     *
+     * @return the items of the last closed agenda cycle, in the order they were written.
+     * @throws IOException if the journal cannot be read.
+     */
+    public synchronized AgendaItemStream openClosedItems() throws IOException {
+        return openCycle(m_closes - 1);
+    }
+
+    /**
+     * Opens a stream of the items of one agenda cycle.
+     *
+     * @param cycle the number of the cycle, counting from 0.
+     * @return the items of the cycle.
+     * @throws IOException if the journal cannot be read.
+     */
+    private AgendaItemStream openCycle(int cycle) throws IOException {
+        if (m_length == 0 || cycle < 0){
+            // Nothing has been written, and the file may not exist yet.
+            return new CycleStream(null, -1);
+        }
+        return new CycleStream(new RecordReader(new File(m_filename), m_length), cycle);
+    }
+
+    /**
+     * Returns the items of the current, open agenda cycle.  Every item is held in memory, so callers building an
+     * agenda should use {@link #openItems()} instead.
+     *
+     * @return the items of the current agenda cycle, in the order they were written.
+     * @throws IOException if the journal cannot be read.
+     */
+    public List<AgendaItem> getOpenItems() throws IOException {
+        return readAll(openItems());
+    }
+
+    /**
+     * Returns the items of the last closed agenda cycle.  Every item is held in memory, so callers building an agenda
+     * should use {@link #openClosedItems()} instead.
+     *
+     * @return the items of the last closed agenda cycle, in the order they were written.
+     * @throws IOException if the journal cannot be read.
+     */
+    public List<AgendaItem> getClosedItems() throws IOException {
+        return readAll(openClosedItems());
+    }
+
+    /**
+     * Reads the whole of a stream into a list, and closes it.
+     *
+     * @param stream the stream to read.
+     * @return the items read.
+     * @throws IOException if the stream cannot be read.
+     */
+    private static List<AgendaItem> readAll(AgendaItemStream stream) throws IOException {
+        List<AgendaItem> items = new ArrayList<>();
+        try (AgendaItemStream open = stream) {
+            for (AgendaItem item = open.read(); item != null; item = open.read()){
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Adds records to the end of the journal and syncs them to disk.  Anything after the last complete record is cut
+     * off first.
+     *
+     * @param bytes the records to add.
+     * @throws IOException if the records cannot be written.
+     */
+    private void appendBytes(byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(m_filename).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            // Anything after the last complete record is left over from an append that failed, and would otherwise
+            // run into the first of these records.
+            channel.truncate(m_length);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()){
+                channel.write(buffer, m_length + buffer.position());
+            }
+            channel.force(true);
+        } catch (IOException ex) {
+            throw new IOException("Error writing to the item journal '" + m_filename + "'.", ex);
+        }
+        m_length += bytes.length;
+    }
+
+    /**
+     * Rewrites the journal with only the last closed cycle, a close record, then the current cycle, dropping repeated
+     * and unreadable records.  The records are copied a line at a time to a temporary file, which is then moved into
+     * place.
+     */
+    private void rewrite(){
+        File file = new File(m_filename);
+        File temp = new File(m_filename + ".tmp");
+        try {
+            long length = 0;
+            boolean closed = false;
+            try (RecordReader reader = new RecordReader(file, m_length);
+                    FileOutputStream stream = new FileOutputStream(temp);
+                    BufferedOutputStream out = new BufferedOutputStream(stream)) {
+                int cycle = 0;
+                Set<String> seen = new HashSet<>();
+                for (String line = reader.readLine(); line != null; line = reader.readLine()){
+                    if (line.equals(CLOSE)){
+                        cycle++;
+                        seen.clear();
+                        if (cycle == m_closes && closed){
+                            length += writeLine(out, CLOSE);
+                        }
+                        continue;
+                    }
+                    // Only the last closed cycle and the current one are kept.
+                    String messageId = parseMessageId(line);
+                    if (cycle >= m_closes - 1 && messageId != null && seen.add(messageId)){
+                        length += writeLine(out, line);
+                        closed = closed || cycle < m_closes;
+                    }
+                }
+                out.flush();
+                stream.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            m_length = length;
+            m_closes = closed ? 1 : 0;
+        } catch (IOException ex) {
+            LogFile.getLogFile().log("Error compacting the item journal '" + m_filename + "'.", ex);
+        }
+    }
+
+    /**
+     * Writes a record and the line break that ends it.
+     *
+     * @param out the stream to write to.
+     * @param line the record.
+     * @return the number of bytes written.
+     * @throws IOException if the record cannot be written.
+     */
+    private static int writeLine(BufferedOutputStream out, String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    /**
+     * Returns the Message-ID of an item record.
+     *
+     * @param line the record.
+     * @return the Message-ID, or null if the line is not a readable item record.
+     */
+    private static String parseMessageId(String line){
+        String[] fields = line.split("\t", -1);
+        if (fields.length != ITEM_FIELDS || !fields[0].equals(ITEM)){
+            return null;
+        }
+        return unescape(fields[1]);
+    }
+
+    /** Appends the item record for a single item. */
+    private static void appendRecord(StringBuilder records, String messageId, AgendaItem item){
+        records.append(ITEM).append('\t').append(escape(messageId))
+                .append('\t').append(escape(item.getEmail()))
+                .append('\t').append(escape(item.getUser()))
+                .append('\t').append(escape(item.getTitle()))
+                .append('\t').append(escape(item.getBody()))
+                .append('\n');
+    }
+
+    /**
+     * Escapes a field so that it holds no tabs or line breaks.  Null is written as "\0".
+     *
+     * @param value the field value, which may be null.
+     * @return the escaped field.
+     */
+    static String escape(String value){
+        if (value == null){
+            return "\\0";
+        }
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            switch (c){
+                case '\\': escaped.append("\\\\"); break;
+                case '\t': escaped.append("\\t"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Reverses {@link #escape(java.lang.String)}.
+     *
+     * @param field the escaped field.
+     * @return the field value, which may be null.
+     */
+    static String unescape(String field){
+        if (field.equals("\\0")){
+            return null;
+        }
+        StringBuilder value = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++){
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()){
+                char next = field.charAt(++i);
+                switch (next){
+                    case 't': value.append('\t'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    default: value.append(next);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * Reads the complete records of a journal file one line at a time, up to a given length.  A torn record at the end
+     * of the file is not returned.
+     */
+    private static class RecordReader implements Closeable {
+
+        /** The file being read. */
+        private InputStream m_in;
+
+        /** The number of bytes of the file that may be read. */
+        private long m_limit;
+
+        /** The number of bytes read so far. */
+        private long m_read;
+
+        /** The number of bytes up to the end of the last complete record read. */
+        private long m_position;
+
+        /** The bytes of the record being read. */
+        private ByteArrayOutputStream m_line = new ByteArrayOutputStream();
+
+        /**
+         * Constructor.
+         *
+         * @param file the file to read.
+         * @param limit the number of bytes of the file that may be read.
+         * @throws IOException if the file cannot be opened.
+         */
+        RecordReader(File file, long limit) throws IOException {
+            m_in = new BufferedInputStream(new FileInputStream(file));
+            m_limit = limit;
+        }
+
+        /**
+         * Reads the next complete record.
+         * @return the record, without its line break, or null if there are no more.
+         * @throws IOException if the file cannot be read.
+         */
+        String readLine() throws IOException {
+            m_line.reset();
+            while (m_read < m_limit){
+                int b = m_in.read();
+                if (b == -1){
+                    break;
+                }
+                m_read++;
+                if (b == '\n'){
+                    m_position = m_read;
+                    return new String(m_line.toByteArray(), StandardCharsets.UTF_8);
+                }
+                m_line.write(b);
+            }
+            return null;
+        }
+
+        /**
+         * Returns the number of bytes up to the end of the last complete record read.
+         * @return the position after the last complete record.
+         */
+        long getPosition(){
+            return m_position;
+        }
+
+        /**
+         * Returns true if bytes were read after the last complete record, that is if the file ends in a torn record.
+         * @return true if a torn record was found.
+         */
+        boolean isTorn(){
+            return m_read > m_position;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() throws IOException {
+            m_in.close();
+        }
+    }
+
+    /** A stream of the items of one agenda cycle, read from the journal file. */
+    private static class CycleStream implements AgendaItemStream {
+
+        /** The records of the journal. */
+        private RecordReader m_reader;
+
+        /** The number of the cycle whose items are read, counting from 0. */
+        private int m_cycle;
+
+        /** The number of the cycle the reader is in. */
+        private int m_current;
+
+        /** The Message-IDs of the items read so far, so that repeated records are skipped. */
+        private Set<String> m_seen = new HashSet<>();
+
+        /**
+         * Constructor.
+         *
+         * @param reader the records of the journal, or null if the stream is empty.
+         * @param cycle the number of the cycle whose items are read, or -1 if the stream is empty.
+         */
+        CycleStream(RecordReader reader, int cycle){
+            m_reader = reader;
+            m_cycle = cycle;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public AgendaItem read() throws IOException {
+            if (m_cycle < 0){
+                return null;
+            }
+            for (String line = m_reader.readLine(); line != null && m_current <= m_cycle; line = m_reader.readLine()){
+                if (line.equals(CLOSE)){
+                    m_current++;
+                    continue;
+                }
+                String messageId = parseMessageId(line);
+                if (m_current == m_cycle && messageId != null && m_seen.add(messageId)){
+                    String[] fields = line.split("\t", -1);
+                    return new AgendaItem(unescape(fields[2]), unescape(fields[3]), unescape(fields[4]),
+                            unescape(fields[5]));
+                }
+            }
+            return null;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() throws IOException {
+            if (m_reader != null){
+                m_reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package openagendamail.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import openagendamail.file.LogFile;
+
+/**
+ * A class that provides AgendaItems from the local {@link ItemJournal} rather than from the email account.  No
+ * connection is made to the mail server, so an agenda can be rebuilt, previewed or recovered after a crash in
+ * milliseconds.
+ *
+ * The items of the current agenda cycle are provided.  If the current cycle is empty, for example because the agenda
+ * has just been built and its emails deleted, the items of that last agenda are provided instead.
+ */
+public class JournalAgendaItemProvider implements AgendaItemProvider {
+
+    /** The file the journal is stored in. */
+    private String m_filename;
+
+    /**
+     * Constructor.
+     * @param filename the file the item journal is stored in.
+     */
+    public JournalAgendaItemProvider(String filename){
+        if (filename == null){
+            throw new IllegalArgumentException("Parameter 'filename' cannot be null.");
+        }
+        m_filename = filename;
+    }
+
+    /**
+     * Reads the {@link AgendaItem}s from the item journal.
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<AgendaItem> getItems() {
+        ItemJournal journal = ItemJournal.open(m_filename);
+        List<AgendaItem> items = new ArrayList<>();
+        try {
+            items = journal.getOpenItems();
+            if (items.isEmpty()){
+                items = journal.getClosedItems();
+                LogFile.getLogFile().log("No new agenda items in the item journal.  Using the " + items.size()
+                        + " items of the last agenda.");
+            } else {
+                LogFile.getLogFile().log("Read " + items.size() + " agenda items from the item journal.");
+            }
+        } catch (IOException ex) {
+            LogFile.getLogFile().log("Error reading the item journal '" + m_filename + "'.", ex);
+        }
+        Collections.sort(items);
+        return items;
+    }
+}
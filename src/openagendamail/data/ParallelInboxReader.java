@@ -0,0 +1,228 @@
+package openagendamail.data;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import openagendamail.file.LogFile;
+import openagendamail.util.email.MailSessionManager;
+
+/**
+ * Downloads and parses messages over several IMAP connections at once.  The UIDs to read are split into contiguous
+ * ranges, one per connection, and each connection fetches and parses its range independently.  A range that fails is
+ * retried on a fresh connection without disturbing the others.  The connections are borrowed from the account's
+ * {@link MailSessionManager}, so they are usually already logged in.
+ *
+ * Ranges hold at most a batch of messages each and are handed to the caller in order as they finish, with only one
+ * range per connection read ahead, so the items held in memory at once are bounded by the batch size and the number of
+ * connections rather than by the size of the inbox.
+ *
+ * Mail providers limit how many connections one account may hold open (Gmail allows 15), so the number of connections
+ * is capped at {@link #MAX_CONNECTIONS}, which leaves room for the connection the caller already holds.
+ */
+class ParallelInboxReader {
+
+    /** The most connections used at once. */
+    static final int MAX_CONNECTIONS = 14;
+
+    /** The properties used to configure how messages are fetched. */
+    private Properties m_properties;
+
+    /** The pool the connections are borrowed from. */
+    private MailSessionManager m_manager;
+
+    /** The number of connections to use. */
+    private int m_connections;
+
+    /** The most messages read in one range. */
+    private int m_rangeSize;
+
+    /** The number of times a failed range is retried. */
+    private int m_retries;
+
+    /**
+     * Constructor.
+     *
+     * @param properties the properties used to configure how messages are fetched.
+     * @param manager the pool to borrow the connections from.
+     * @param connections the number of connections to use.  Values above {@link #MAX_CONNECTIONS} are reduced to it.
+     * @param rangeSize the most messages read in one range.
+     * @param retries the number of times a failed range is retried.
+     */
+    ParallelInboxReader(Properties properties, MailSessionManager manager, int connections, int rangeSize,
+            int retries){
+        if (connections < 1){
+            throw new IllegalArgumentException("Parameter 'connections' must be greater than zero.");
+        }
+        if (rangeSize < 1){
+            throw new IllegalArgumentException("Parameter 'rangeSize' must be greater than zero.");
+        }
+        m_properties = properties;
+        m_manager = manager;
+        m_connections = Math.min(connections, MAX_CONNECTIONS);
+        m_rangeSize = rangeSize;
+        m_retries = Math.max(retries, 0);
+    }
+
+    /**
+     * Reads the messages with the given UIDs from the inbox and parses them into AgendaItems, handing them to the
+     * handler a range at a time.  The ranges are handed on in UID order; sorting the items is left to the caller.  If
+     * a range cannot be read the ranges before it have already been handed on.
+     *
+     * @param uids the UIDs of the messages to read, in ascending order.
+     * @param handler the handler to give the items of each range to.
+     * @throws MessagingException if a range could not be read even after retrying.
+     * @throws IOException if the handler fails.
+     * @see EmailAgendaItemProvider#getMessageKey(com.sun.mail.imap.IMAPMessage)
+     */
+    void read(long[] uids, RangeHandler handler) throws MessagingException, IOException {
+        List<long[]> ranges = split(uids, Math.max(m_connections, (uids.length + m_rangeSize - 1) / m_rangeSize));
+        if (ranges.isEmpty()){
+            return;
+        }
+        int threads = Math.min(m_connections, ranges.size());
+        LogFile.getLogFile().log("Reading " + uids.length + " messages over " + threads + " connections.");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Map<String, AgendaItem>>> results = new ArrayList<>();
+            for (int i = 0; i < ranges.size(); i++){
+                // Keep every connection busy, but read no further ahead than that.
+                while (results.size() < ranges.size() && results.size() < i + threads){
+                    RangeReader reader = new RangeReader(ranges.get(results.size()));
+                    results.add(pool.submit(LogFile.inheritThreadLogFile(reader)));
+                }
+                handler.handle(await(pool, ranges.get(i), results.set(i, null)));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for a range to finish, resubmitting it if it fails until the retries run out.
+     *
+     * @param pool the pool to resubmit the range to.
+     * @param range the UIDs in the range.
+     * @param result the pending result of the range.
+     * @return the items parsed from the range.
+     * @throws MessagingException if the range could not be read.
+     */
+    private Map<String, AgendaItem> await(ExecutorService pool, long[] range, Future<Map<String, AgendaItem>> result)
+            throws MessagingException {
+        for (int attempt = 0; ; attempt++){
+            try {
+                return result.get();
+            } catch (ExecutionException ex) {
+                String which = "UIDs " + range[0] + " to " + range[range.length - 1];
+                if (attempt >= m_retries){
+                    throw new MessagingException("Failed to read " + which + " after " + (attempt + 1) + " attempts.",
+                            ex.getCause() instanceof Exception ? (Exception)ex.getCause() : ex);
+                }
+                LogFile.getLogFile().log("Failed to read " + which + ".  Retrying.", ex.getCause());
+                result = pool.submit(LogFile.inheritThreadLogFile(new RangeReader(range)));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while reading the inbox.", ex);
+            }
+        }
+    }
+
+    /**
+     * Splits a sorted list of UIDs into at most the given number of contiguous ranges of near equal size.
+     *
+     * @param uids the UIDs to split.
+     * @param count the maximum number of ranges.
+     * @return the ranges, in UID order.
+     */
+    static List<long[]> split(long[] uids, int count){
+        List<long[]> ranges = new ArrayList<>();
+        int parts = Math.min(count, uids.length);
+        int start = 0;
+        for (int i = 0; i < parts; i++){
+            int end = start + (uids.length - start) / (parts - i);
+            ranges.add(Arrays.copyOfRange(uids, start, end));
+            start = end;
+        }
+        return ranges;
+    }
+
+    /** Receives the items read from the inbox, a range at a time. */
+    interface RangeHandler {
+
+        /**
+         * Handles the items parsed from one range of messages.
+         * @param items the items, by the key of the message each came from, in UID order.
+         * @throws IOException if the items cannot be handled.
+         */
+        void handle(Map<String, AgendaItem> items) throws IOException;
+    }
+
+    /** Reads and parses one range of UIDs over a connection of its own. */
+    private class RangeReader implements Callable<Map<String, AgendaItem>> {
+
+        /** The UIDs in the range. */
+        private long[] m_uids;
+
+        /**
+         * Constructor.
+         * @param uids the UIDs in the range.
+         */
+        RangeReader(long[] uids){
+            m_uids = uids;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Map<String, AgendaItem> call() throws MessagingException {
+            Store store = m_manager.getStore();
+            boolean failed = true;
+            try {
+                IMAPFolder inbox = (IMAPFolder)store.getFolder("inbox");
+                inbox.open(Folder.READ_ONLY);
+
+                List<IMAPMessage> messages = new ArrayList<>();
+                for (Message msg : inbox.getMessagesByUID(m_uids)){
+                    // Messages removed since the UIDs were listed come back as null.
+                    if (msg instanceof IMAPMessage){
+                        messages.add((IMAPMessage)msg);
+                    }
+                }
+
+                ImapPrefetcher prefetcher = ImapPrefetcher.fromProperties(m_properties);
+                prefetcher.prefetchHeaders(inbox, messages.toArray(new Message[messages.size()]));
+                Map<IMAPMessage, String> bodies = prefetcher.fetchPlainTextBodies(inbox, messages);
+
+                Map<String, AgendaItem> items = new LinkedHashMap<>();
+                for (IMAPMessage msg : messages){
+                    items.put(EmailAgendaItemProvider.getMessageKey(msg),
+                            EmailAgendaItemProvider.toAgendaItem(msg, bodies.get(msg)));
+                }
+                inbox.close(false);
+                failed = false;
+                return items;
+            } finally {
+                // A range that failed may have left the connection part way through a command, so it is not reused.
+                if (failed){
+                    m_manager.discard(store);
+                } else {
+                    m_manager.release(store);
+                }
+            }
+        }
+    }
+}
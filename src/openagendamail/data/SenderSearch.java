@@ -0,0 +1,124 @@
+package openagendamail.data;
+
+import com.sun.mail.imap.IMAPFolder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.search.AndTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.SearchTerm;
+import openagendamail.util.EmailList;
+
+/**
+ * Asks the mail server which messages were sent by members of the email list, so that only those messages have to be
+ * downloaded.  The email list is turned into IMAP SEARCH criteria of the form "OR FROM a FROM b ...".  Long lists are
+ * split into chunks, one SEARCH per chunk, since servers limit the size of a single command.  Each address also
+ * matches its plus-addressing aliases, in the same way as {@link EmailList}.
+ *
+ * The server's FROM criterion is a loose substring match, so the messages found are a superset of the valid ones and
+ * must still be checked against the email list by the caller.
+ */
+class SenderSearch {
+
+    /** The default number of addresses in a single SEARCH command. */
+    static final int DEFAULT_CHUNK_SIZE = 50;
+
+    /** The search criteria, one per chunk of the email list. */
+    private List<SearchTerm> m_terms;
+
+    /**
+     * Constructor.
+     *
+     * @param addresses the email addresses of the members of the email list.
+     * @param chunkSize the maximum number of addresses in a single SEARCH command.
+     */
+    SenderSearch(Collection<String> addresses, int chunkSize){
+        if (chunkSize < 1){
+            throw new IllegalArgumentException("Parameter 'chunkSize' must be greater than zero.");
+        }
+        Set<String> normalized = new LinkedHashSet<>();
+        for (String address : addresses){
+            normalized.add(EmailList.normalize(address));
+        }
+        m_terms = buildTerms(new ArrayList<>(normalized), chunkSize);
+    }
+
+    /**
+     * Returns the search criteria, one per chunk of the email list.
+     * @return the search criteria.
+     */
+    List<SearchTerm> getTerms(){
+        return m_terms;
+    }
+
+    /**
+     * Searches the given messages for those sent by members of the email list.
+     *
+     * @param folder the open folder the messages belong to.
+     * @param messages the messages to search.
+     * @return the messages that match, in their original order.
+     * @throws MessagingException if the server cannot perform the search.
+     */
+    Message[] search(IMAPFolder folder, Message[] messages) throws MessagingException {
+        if (messages.length == 0 || m_terms.isEmpty()){
+            return new Message[0];
+        }
+        Set<Message> found = new LinkedHashSet<>();
+        for (SearchTerm term : m_terms){
+            found.addAll(Arrays.asList(folder.search(term, messages)));
+        }
+        Message[] result = found.toArray(new Message[found.size()]);
+        Arrays.sort(result, new Comparator<Message>() {
+            @Override
+            public int compare(Message m1, Message m2) {
+                return Integer.compare(m1.getMessageNumber(), m2.getMessageNumber());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Builds one search term per chunk of addresses.  Each term matches messages from any address in its chunk.
+     *
+     * @param addresses the addresses to match.
+     * @param chunkSize the maximum number of addresses per term.
+     * @return the search terms.
+     */
+    private static List<SearchTerm> buildTerms(List<String> addresses, int chunkSize){
+        List<SearchTerm> terms = new ArrayList<>();
+        for (int start = 0; start < addresses.size(); start += chunkSize){
+            List<String> chunk = addresses.subList(start, Math.min(start + chunkSize, addresses.size()));
+            SearchTerm[] from = new SearchTerm[chunk.size()];
+            for (int i = 0; i < from.length; i++){
+                from[i] = buildTerm(chunk.get(i));
+            }
+            terms.add(from.length == 1 ? from[0] : new OrTerm(from));
+        }
+        return terms;
+    }
+
+    /**
+     * Builds the search term for a single normalized address.  The term matches the address itself and, where the
+     * address has a local part and a domain, any "local+tag@domain" alias of it.
+     *
+     * @param address the normalized address.
+     * @return the search term.
+     */
+    private static SearchTerm buildTerm(String address){
+        SearchTerm exact = new FromStringTerm(address);
+        int at = address.lastIndexOf('@');
+        if (at <= 0){
+            return exact;
+        }
+        SearchTerm alias = new AndTerm(new FromStringTerm(address.substring(0, at) + "+"),
+                new FromStringTerm(address.substring(at)));
+        return new OrTerm(exact, alias);
+    }
+}
@@ -0,0 +1,21 @@
+package openagendamail.data;
+
+import java.io.IOException;
+
+/**
+ * An interface for providers that hand out their {@link AgendaItem}s as a stream rather than as a whole Collection,
+ * so that the memory needed to build an agenda does not grow with the number of items submitted.  Providers that
+ * only implement {@link AgendaItemProvider} can be used wherever a stream is expected through
+ * {@link StreamingProviderAdapter}.
+ */
+public interface StreamingAgendaItemProvider {
+
+    /**
+     * Opens a stream of the {@link AgendaItem}s this provider has access to, in the order they belong on the agenda.
+     * The caller must close the stream.
+     *
+     * @return the stream of items.
+     * @throws IOException if the stream cannot be opened.
+     */
+    public AgendaItemStream openItems() throws IOException;
+}
@@ -0,0 +1,67 @@
+package openagendamail.data;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Lets an {@link AgendaItemProvider} be used as a {@link StreamingAgendaItemProvider}.  The provider's Collection is
+ * fetched when the stream is opened and its items are read from it in the order it holds them.  Since the items are
+ * already in memory, the stream is fingerprinted when it is opened.
+ */
+public class StreamingProviderAdapter implements StreamingAgendaItemProvider {
+
+    /** The provider adapted. */
+    private AgendaItemProvider m_provider;
+
+    /**
+     * Constructor.
+     * @param provider the provider to adapt.
+     */
+    public StreamingProviderAdapter(AgendaItemProvider provider){
+        if (provider == null){
+            throw new IllegalArgumentException("Parameter 'provider' cannot be null.");
+        }
+        m_provider = provider;
+    }
+
+    /**
+     * Returns the given provider as a streaming provider:  the provider itself if it already streams its items, or an
+     * adapter around it if it does not.
+     *
+     * @param provider the provider.
+     * @return the provider as a streaming provider.
+     */
+    public static StreamingAgendaItemProvider adapt(AgendaItemProvider provider){
+        if (provider instanceof StreamingAgendaItemProvider){
+            return (StreamingAgendaItemProvider)provider;
+        }
+        return new StreamingProviderAdapter(provider);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public AgendaItemStream openItems() {
+        Collection<AgendaItem> all = m_provider.getItems();
+        final ItemFingerprint fingerprint = new ItemFingerprint();
+        for (AgendaItem item : all){
+            fingerprint.add(item);
+        }
+        final Iterator<AgendaItem> items = all.iterator();
+        return new FingerprintedItemStream() {
+            @Override
+            public String getFingerprint() {
+                return fingerprint.getValue();
+            }
+
+            @Override
+            public AgendaItem read() {
+                return items.hasNext() ? items.next() : null;
+            }
+
+            @Override
+            public void close() {
+                // Nothing to release.
+            }
+        };
+    }
+}
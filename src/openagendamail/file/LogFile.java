@@ -5,6 +5,9 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 
 /**
@@ -34,6 +37,12 @@ public class LogFile {
     /** True if the log directory exists, false otherwise. */
     private static boolean m_directoryExists = false;
 
+    /** The log files of the agendas being run, by the agenda's directory. */
+    private static final Map<String, LogFile> AGENDA_LOGS = new HashMap<>();
+
+    /** The log file the current thread writes to in place of the application's, if any. */
+    private static final ThreadLocal<LogFile> THREAD_LOG = new ThreadLocal<>();
+
     /**
      * Creates an instance of LogFile.
      * @param fileName the name of the log file.
@@ -43,11 +52,107 @@ public class LogFile {
     }
     
     /**
-     * Gets a reference to the LogFile.  If the log file does not exist, one is created.
+     * Gets a reference to the LogFile.  If the log file does not exist, one is created.  If the current thread is
+     * working for a particular agenda, that agenda's log file is returned instead.
      * @return Returns the current log file.  If a log file does not already exist for this
      * application run, a new one is created.
      */
     public static LogFile getLogFile(){
+        LogFile threadLog = THREAD_LOG.get();
+        if (threadLog != null){
+            return threadLog;
+        }
+        return getApplicationLogFile();
+    }
+
+    /**
+     * Gets the log file of the agenda kept in the given directory.  The log is written to a 'logs' directory inside
+     * it, which is created if need be.
+     *
+     * @param directory the agenda's directory.
+     * @return the agenda's log file, or null if it cannot be created.
+     */
+    public static synchronized LogFile getLogFile(String directory){
+        LogFile log = AGENDA_LOGS.get(directory);
+        if (log == null){
+            try {
+                File logs = new File(directory, DIRECTORY);
+                logs.mkdirs();
+                String date = new Date().toString().replaceAll("[^a-zA-Z0-9\\s]", "-");
+                log = new LogFile(new File(logs, "log-" + date + ".txt").getPath());
+                AGENDA_LOGS.put(directory, log);
+            } catch (IOException ex){
+                logLoggingError(ex);
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Sets the log file the current thread writes to in place of the application's, for example while it is working
+     * for a particular agenda.
+     * @param log the log file to write to, or null to write to the application's log file again.
+     */
+    public static void setThreadLogFile(LogFile log){
+        if (log == null){
+            THREAD_LOG.remove();
+        } else {
+            THREAD_LOG.set(log);
+        }
+    }
+
+    /**
+     * Wraps a task so that it writes to the log file the current thread writes to now, whichever thread it later runs
+     * on, for example when work done for an agenda is handed to another thread.
+     *
+     * @param task the task to wrap.
+     * @return the wrapped task.
+     */
+    public static Runnable inheritThreadLogFile(final Runnable task){
+        final LogFile log = THREAD_LOG.get();
+        return new Runnable() {
+            @Override
+            public void run() {
+                LogFile previous = THREAD_LOG.get();
+                setThreadLogFile(log);
+                try {
+                    task.run();
+                } finally {
+                    setThreadLogFile(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps a task so that it writes to the log file the current thread writes to now, whichever thread it later runs
+     * on.
+     *
+     * @param <T> the type of the task's result.
+     * @param task the task to wrap.
+     * @return the wrapped task.
+     */
+    public static <T> Callable<T> inheritThreadLogFile(final Callable<T> task){
+        final LogFile log = THREAD_LOG.get();
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                LogFile previous = THREAD_LOG.get();
+                setThreadLogFile(log);
+                try {
+                    return task.call();
+                } finally {
+                    setThreadLogFile(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Gets the application's log file, creating it if it does not exist.
+     * @return the application's log file.
+     */
+    private static synchronized LogFile getApplicationLogFile(){
         try {
             if (INSTANCE == null){
                 String date = new Date().toString().replaceAll("[^a-zA-Z0-9\\s]", "-");
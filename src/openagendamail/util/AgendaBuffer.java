@@ -0,0 +1,229 @@
+package openagendamail.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.activation.DataSource;
+import openagendamail.file.LogFile;
+
+/**
+ * Holds an agenda document in memory, so that it can be rendered and handed to the email sender without being written
+ * to disk and read back.  There is one buffer per document name, shared by the agenda's builder and its sender.
+ *
+ * The document is rendered into a back buffer and only published once it is complete, so the sender never sees a half
+ * written document:  it sends the last complete one.  Two buffers are kept and swapped each time a document is
+ * published, and their memory is reused from one build to the next.  A document stays readable until the build after
+ * the one that replaces it, which is long after it has been sent.
+ *
+ * A published document can also be archived to disk.  Archiving is done on a background thread, and the file is
+ * written under a temporary name and then renamed, so readers of the file never see it half written either.
+ */
+public class AgendaBuffer {
+
+    /** The buffers, by document name. */
+    private static final ConcurrentMap<String, AgendaBuffer> BUFFERS = new ConcurrentHashMap<>();
+
+    /** Writes archived documents to disk, one at a time, on a daemon thread. */
+    private static final ExecutorService ARCHIVER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "agenda-archiver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** The name of the document, which is also the name of the file it is archived to. */
+    private final String m_docName;
+
+    /** The buffer the next document is rendered into.  Guarded by this. */
+    private Buffer m_back = new Buffer();
+
+    /** The buffer holding the last document published, or null if none has been.  Guarded by this. */
+    private Buffer m_front;
+
+    /**
+     * Constructor.
+     * @param docName the name of the document.
+     */
+    private AgendaBuffer(String docName){
+        m_docName = docName;
+    }
+
+    /**
+     * Returns the buffer of the document with the given name, creating it the first time it is asked for.
+     * @param docName the name of the document, as given by the 'doc.name' property.
+     * @return the document's buffer.
+     */
+    public static AgendaBuffer get(String docName){
+        if (docName == null){
+            throw new IllegalArgumentException("Parameter 'docName' cannot be null.");
+        }
+        AgendaBuffer buffer = BUFFERS.get(docName);
+        if (buffer == null){
+            BUFFERS.putIfAbsent(docName, new AgendaBuffer(docName));
+            buffer = BUFFERS.get(docName);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns true if the agenda is built in memory:  when the 'doc.in.memory' property is on.
+     * @param props the properties of the agenda.
+     * @return true if the agenda is built in memory.
+     */
+    public static boolean isInMemory(Properties props){
+        return props.getProperty("doc.in.memory", "false").toLowerCase().equals("true");
+    }
+
+    /**
+     * Empties the back buffer and returns a stream that renders a document into it.  The document is not seen by
+     * readers until it is published.
+     *
+     * @return the stream to render the document to.
+     */
+    public synchronized OutputStream startDocument(){
+        m_back.reset();
+        return m_back;
+    }
+
+    /** Publishes the document rendered since {@link #startDocument()}, replacing the last one published. */
+    public synchronized void publish(){
+        Buffer published = m_back;
+        m_back = m_front == null ? new Buffer() : m_front;
+        m_front = published;
+    }
+
+    /**
+     * Returns the size of the last document published.
+     * @return the size, in bytes, or -1 if no document has been published.
+     */
+    public synchronized int size(){
+        return m_front == null ? -1 : m_front.size();
+    }
+
+    /**
+     * Returns a data source that reads the last document published at the time it is read, without copying it.  If
+     * no document has been published in this process the archived copy on disk is read instead, if there is one.
+     *
+     * @return the data source, named after the document's file, with the content type its name gives it.
+     */
+    public DataSource getDataSource(){
+        return new DataSource() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                synchronized (AgendaBuffer.this){
+                    if (m_front != null){
+                        return m_front.getInputStream();
+                    }
+                }
+                File archived = new File(m_docName);
+                if (!archived.exists()){
+                    throw new IOException("The agenda '" + m_docName + "' has not been built.");
+                }
+                return new FileInputStream(archived);
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                throw new IOException("The agenda document cannot be written through its data source.");
+            }
+
+            @Override
+            public String getContentType() {
+                return AgendaBuffer.getContentType(m_docName);
+            }
+
+            @Override
+            public String getName() {
+                return new File(m_docName).getName();
+            }
+        };
+    }
+
+    /**
+     * Returns the content type of a document, from the extension of its name:  an HTML page or plain text in UTF-8,
+     * or otherwise a PDF.
+     * @param docName the name of the document.
+     * @return the content type.
+     */
+    static String getContentType(String docName){
+        String name = docName.toLowerCase();
+        if (name.endsWith(".html") || name.endsWith(".htm")){
+            return "text/html; charset=UTF-8";
+        }
+        if (name.endsWith(".txt")){
+            return "text/plain; charset=UTF-8";
+        }
+        return "application/pdf";
+    }
+
+    /**
+     * Writes the last document published to disk, under the document's name, on a background thread.
+     * @return the pending write, which completes once the file is in place.
+     */
+    public Future<?> archive(){
+        final InputStream document;
+        synchronized (this){
+            if (m_front == null){
+                throw new IllegalStateException("No agenda document has been published.");
+            }
+            document = m_front.getInputStream();
+        }
+        // The archiver is shared by every agenda, so the write is logged to the log of the agenda asking for it.
+        return ARCHIVER.submit(LogFile.inheritThreadLogFile(new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(m_docName);
+                File temp = new File(m_docName + ".part");
+                try (OutputStream out = new FileOutputStream(temp)) {
+                    byte[] chunk = new byte[64 * 1024];
+                    for (int read = document.read(chunk); read > 0; read = document.read(chunk)){
+                        out.write(chunk, 0, read);
+                    }
+                } catch (IOException ex) {
+                    LogFile.getLogFile().log("Error archiving the agenda document to '" + file + "'.", ex);
+                    temp.delete();
+                    return;
+                }
+                try {
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    LogFile.getLogFile().log("Archived the agenda document to '" + file + "'.");
+                } catch (IOException ex) {
+                    LogFile.getLogFile().log("Error archiving the agenda document to '" + file + "'.", ex);
+                }
+            }
+        }));
+    }
+
+    /** A byte array output stream whose content can be read back without being copied. */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        /** Constructor.  Creates an empty buffer. */
+        Buffer(){
+            super(64 * 1024);
+        }
+
+        /**
+         * Returns a stream that reads the content of the buffer as it is now, without copying it.
+         * @return the stream.
+         */
+        synchronized InputStream getInputStream(){
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
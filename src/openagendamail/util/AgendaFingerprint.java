@@ -0,0 +1,185 @@
+package openagendamail.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import openagendamail.OpenAgendaMail;
+import openagendamail.data.ItemFingerprint;
+import openagendamail.file.LogFile;
+import openagendamail.util.render.AgendaRenderers;
+
+/**
+ * Keeps track of what the agenda document holds, so that an agenda whose items have not changed since it was last
+ * built is not rendered again, and one that has not changed since it was last sent is not sent again in full.
+ *
+ * The fingerprint of an agenda combines the {@link ItemFingerprint} of its items with the properties that change how
+ * it is rendered.  The fingerprint of the document last built is kept in a file next to it, named after the document
+ * with '.fingerprint' added, and the fingerprint of the document last sent in one with '.sent' added.
+ *
+ * Fingerprints are only kept when 'skip.unchanged' is on or 'unchanged.send' is set to something other than 'send'.
+ */
+public class AgendaFingerprint {
+
+    /** The properties that change how an agenda is rendered. */
+    private static final String[] RENDER_PROPERTIES = {
+        "agenda.title", "agenda.formats", "pdf.streaming", "pdf.parallel", "pdf.optimize"
+    };
+
+    /** The properties of the agenda. */
+    private Properties m_props;
+
+    /** The file holding the fingerprint of the document last built. */
+    private File m_builtFile;
+
+    /** The file holding the fingerprint of the document last sent. */
+    private File m_sentFile;
+
+    /**
+     * Constructor.
+     * @param props the properties of the agenda.
+     */
+    public AgendaFingerprint(Properties props){
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' cannot be null.");
+        }
+        String docName = props.getProperty("doc.name", "agenda.pdf");
+        m_props = props;
+        m_builtFile = new File(docName + ".fingerprint");
+        m_sentFile = new File(docName + ".sent");
+    }
+
+    /**
+     * Returns true if fingerprints are kept for the agenda:  when 'skip.unchanged' is on, or when 'unchanged.send' asks
+     * for an unchanged agenda to be sent other than in full.
+     *
+     * @param props the properties of the agenda.
+     * @return true if fingerprints are kept.
+     */
+    public static boolean isEnabled(Properties props){
+        return isSkipUnchanged(props) || !props.getProperty("unchanged.send", "send").toLowerCase().equals("send");
+    }
+
+    /**
+     * Returns true if an agenda whose fingerprint matches the document already built is not rendered again.
+     * @param props the properties of the agenda.
+     * @return true if unchanged agendas are not rendered.
+     */
+    public static boolean isSkipUnchanged(Properties props){
+        return props.getProperty("skip.unchanged", "false").toLowerCase().equals("true");
+    }
+
+    /**
+     * Returns the fingerprint of the agenda with the given items.
+     * @param items the fingerprint of the agenda's items.
+     * @return the agenda's fingerprint.
+     */
+    public String compute(String items){
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException("SHA-256 is not available.", ex);
+        }
+        StringBuilder text = new StringBuilder(OpenAgendaMail.VERSION);
+        for (String name : RENDER_PROPERTIES){
+            text.append('\n').append(name).append('=').append(m_props.getProperty(name, ""));
+        }
+        text.append('\n').append(items);
+        byte[] hash = digest.digest(text.toString().getBytes(StandardCharsets.UTF_8));
+        return String.format("%064x", new BigInteger(1, hash));
+    }
+
+    /**
+     * Returns true if the agenda exists in each of its formats, on disk or in memory, and was built from an agenda with
+     * the given fingerprint.
+     * @param fingerprint the fingerprint of the agenda.
+     * @return true if the agenda's outputs already hold the agenda.
+     */
+    public boolean isBuilt(String fingerprint){
+        for (String format : AgendaRenderers.getFormats(m_props)){
+            String name = AgendaRenderers.getOutputName(m_props, format);
+            boolean exists = new File(name).exists()
+                    || (AgendaBuffer.isInMemory(m_props) && AgendaBuffer.get(name).size() >= 0);
+            if (!exists){
+                return false;
+            }
+        }
+        return fingerprint.equals(read(m_builtFile));
+    }
+
+    /**
+     * Returns the fingerprint of the agenda document last built.
+     * @return the fingerprint, or null if it is not known.
+     */
+    public String getBuilt(){
+        return read(m_builtFile);
+    }
+
+    /**
+     * Records the fingerprint of the agenda document just built.
+     * @param fingerprint the fingerprint, or null to forget the fingerprint, as when the document is being rebuilt.
+     */
+    public void setBuilt(String fingerprint){
+        write(m_builtFile, fingerprint);
+    }
+
+    /**
+     * Returns true if the agenda with the given fingerprint was the last one sent.
+     * @param fingerprint the fingerprint of the agenda.
+     * @return true if the agenda was already sent.
+     */
+    public boolean isSent(String fingerprint){
+        return fingerprint.equals(read(m_sentFile));
+    }
+
+    /**
+     * Records the fingerprint of the agenda just sent.
+     * @param fingerprint the fingerprint.
+     */
+    public void setSent(String fingerprint){
+        write(m_sentFile, fingerprint);
+    }
+
+    /**
+     * Reads a fingerprint from a file.
+     * @param file the file.
+     * @return the fingerprint, or null if the file does not exist or cannot be read.
+     */
+    private static String read(File file){
+        if (!file.exists()){
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+        } catch (IOException ex) {
+            LogFile.getLogFile().log("Unable to read the agenda fingerprint '" + file + "'.", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a fingerprint to a file, replacing the file in one step so it is never left half written.
+     * @param file the file.
+     * @param fingerprint the fingerprint, or null to delete the file.
+     */
+    private static void write(File file, String fingerprint){
+        try {
+            if (fingerprint == null){
+                Files.deleteIfExists(file.toPath());
+                return;
+            }
+            File temp = new File(file.getPath() + ".tmp");
+            Files.write(temp.toPath(), (fingerprint + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            LogFile.getLogFile().log("Unable to write the agenda fingerprint '" + file + "'.", ex);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package openagendamail.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import openagendamail.data.AgendaItemProvider;
+import openagendamail.data.EmailAgendaItemProvider;
+import openagendamail.data.IdleAgendaItemProvider;
+import openagendamail.file.LogFile;
+
+/**
+ * Schedules the building and sending of one agenda.  The agenda is described entirely by its properties, and its
+ * tasks run on an executor that may be shared with other agendas, so a single process can serve many agendas.
+ *
+ * Every task is run with the agenda's log file in place of the application's, and a task that fails is logged and
+ * does not stop the agenda's later tasks, nor any other agenda's.
+ */
+public class AgendaScheduler {
+
+    /** The properties holding file names, by the file name used if the property is not set. */
+    private static final String[][] FILE_PROPERTIES = {
+        {"doc.name", "agenda.pdf"},
+        {"email.list.filename", "emails.txt"},
+        {"imap.checkpoint.filename", "inbox.checkpoint"},
+        {"journal.filename", "agenda.journal"},
+        {"dedupe.index.filename", "duplicate.index"}};
+
+    /** The name of the agenda, for the log. */
+    private String m_name;
+
+    /** The properties of the agenda. */
+    private Properties m_props;
+
+    /** The executor the agenda's tasks are run on. */
+    private ScheduledExecutorService m_executor;
+
+    /** The log file the agenda's tasks write to, or null to write to the application's log file. */
+    private LogFile m_log;
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the agenda, for the log.
+     * @param props the properties of the agenda.
+     * @param executor the executor to run the agenda's tasks on.
+     * @param log the log file the agenda's tasks write to, or null to write to the application's log file.
+     */
+    public AgendaScheduler(String name, Properties props, ScheduledExecutorService executor, LogFile log){
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' cannot be null.");
+        }
+        if (executor == null){
+            throw new IllegalArgumentException("Parameter 'executor' cannot be null.");
+        }
+        m_name = name;
+        m_props = props;
+        m_executor = executor;
+        m_log = log;
+    }
+
+    /**
+     * Creates the scheduler for an agenda kept in its own directory.  The agenda's properties are read from the
+     * directory, the files it uses (its document, email list, checkpoint and so on) are kept in the directory, and it
+     * logs to the directory's 'logs' directory.
+     *
+     * @param directory the agenda's directory.
+     * @param executor the executor to run the agenda's tasks on.
+     * @return the agenda's scheduler.
+     * @throws IOException if the agenda's properties cannot be read.
+     */
+    public static AgendaScheduler forDirectory(File directory, ScheduledExecutorService executor) throws IOException {
+        Properties props = OamTools.loadProperties(directory);
+        resolveFiles(props, directory);
+        return new AgendaScheduler(directory.getName(), props, executor, LogFile.getLogFile(directory.getPath()));
+    }
+
+    /**
+     * Makes every file name in an agenda's properties relative to the agenda's directory, so that agendas never share
+     * files.  File names that are not set are given their default name inside the directory.  Absolute file names are
+     * left alone.
+     *
+     * @param props the agenda's properties.
+     * @param directory the agenda's directory.
+     */
+    static void resolveFiles(Properties props, File directory){
+        for (String[] property : FILE_PROPERTIES){
+            File file = new File(props.getProperty(property[0], property[1]));
+            if (!file.isAbsolute()){
+                file = new File(directory, file.getPath());
+            }
+            props.setProperty(property[0], file.getPath());
+        }
+    }
+
+    /**
+     * Returns the properties of the agenda.
+     * @return the properties of the agenda.
+     */
+    public Properties getProperties(){
+        return m_props;
+    }
+
+    /**
+     * Starts the agenda in the given mode.
+     * @param mode the mode:  'week-based' or '1stand3rd'.
+     */
+    public void start(final String mode){
+        guard(new Runnable() {
+            @Override
+            public void run() {
+                switch (mode.toLowerCase()) {
+                    case "week-based":
+                        LogFile.getLogFile().log("Agenda '" + m_name + "' started in week-based mode.");
+                        scheduleWeekBased();
+                        break;
+
+                    case "1stand3rd":
+                        LogFile.getLogFile().log("Agenda '" + m_name + "' started in 1stAndThird mode.");
+                        scheduleFirstAndThird();
+                        break;
+
+                    default:
+                        LogFile.getLogFile().log("Agenda '" + m_name + "' has an invalid mode:  " + mode);
+                        break;
+                }
+            }
+        }).run();
+    }
+
+    /** Schedules the agenda on a weekly recurring basis on the same day (ie every week or every two weeks etc.) */
+    public void scheduleWeekBased(){
+        long frequencyInSeconds = Integer.valueOf(m_props.getProperty("weeks.between.meetings", "1")) * OamTools.ONE_WEEK_IN_SECONDS;
+        long secondsUntilAgendaIsDue = OamTools.getSecondsUntilSpecifiedDay(OamTools.getDayOfWeek(m_props.getProperty("send.day", "tue")));
+        LogFile.getLogFile().log("Time until send:  " + OamTools.getCountdownString(secondsUntilAgendaIsDue));
+        boolean debug = m_props.getProperty("debug", "false").toLowerCase().equals("true");
+
+        // Schedule the agenda building.  In IDLE mode the inbox is watched all week and the agenda is built as items
+        // arrive, otherwise the inbox is read when the agenda is due.
+        AgendaItemProvider provider;
+        if (m_props.getProperty("imap.idle", "false").toLowerCase().equals("true")){
+            IdleAgendaItemProvider idleProvider = new IdleAgendaItemProvider(true, m_props);
+            idleProvider.start();
+            provider = idleProvider;
+        } else {
+            provider = new EmailAgendaItemProvider(true, m_props);
+        }
+        BuildAgendaRunnable builder = new BuildAgendaRunnable(provider, m_props);
+        scheduleWithFixedDelay(builder, debug ? 0 : secondsUntilAgendaIsDue, frequencyInSeconds);
+
+        // Schedule the agenda sending.
+        EmailSenderRunnable sender = OamTools.buildAgendaEmailSender(null, m_props);
+        sender.setBuilder(builder);
+        sender.setScheduler(this);
+        scheduleWithFixedDelay(sender, debug ? 60 : secondsUntilAgendaIsDue + OamTools.SECONDS_IN_FOUR_HOURS, frequencyInSeconds);
+
+        // if enabled, schedule the reminder email
+        if ((m_props.getProperty("reminders.on", "false")).toLowerCase().equals("true")){
+            long secondsUntilReminder = OamTools.getSecondsUntilSpecifiedDay(OamTools.getDayOfWeek(m_props.getProperty("reminder.day", "mon")));
+            EmailSenderRunnable reminder = OamTools.buildReminderSender(m_props);
+            reminder.setScheduler(this);
+            if (debug){
+                System.out.println("Debug scheduling reminder...");
+            }
+            scheduleWithFixedDelay(reminder, debug ? 30 : secondsUntilReminder, frequencyInSeconds);
+        }
+    }
+
+    /** Schedules the agenda for meetings that are on the 1st and 3rd of a given day of the week within a month. */
+    public void scheduleFirstAndThird(){
+        // Get time until the day that we need to send the agenda.
+        int dayofweek = OamTools.getDayOfWeek(m_props.getProperty("send.day", "tue"));
+        long secondsUntilAgendaIsDue = OamTools.getSecondsUntilSpecifiedDay(dayofweek);
+        LogFile.getLogFile().log("Time until send:  " + OamTools.getCountdownString(secondsUntilAgendaIsDue));
+
+        // Schedule the day check.
+        FirstAndThirdRunnable firstAndThird = new FirstAndThirdRunnable(this);
+        if (m_props.getProperty("debug", "false").toLowerCase().equals("true")){
+            scheduleWithFixedDelay(firstAndThird, 5, secondsUntilAgendaIsDue);
+        } else {
+            // Schedules the first and third runnable to be run once a week starting on the next 'send day' at midnight.
+            scheduleWithFixedDelay(firstAndThird, secondsUntilAgendaIsDue, OamTools.ONE_WEEK_IN_SECONDS);
+        }
+    }
+
+    /**
+     * Builds a single agenda right now and sends it 90 seconds later.  Nothing is repeated.
+     * @param deleteEmails true if the agenda's emails should be deleted once it is built.
+     */
+    public void runOneShot(boolean deleteEmails){
+        EmailAgendaItemProvider provider = new EmailAgendaItemProvider(deleteEmails, m_props);
+        BuildAgendaRunnable builder = new BuildAgendaRunnable(provider, m_props);
+        schedule(builder, 0);
+
+        // Send the agenda after a 90 second delay, or once it is built if that takes longer.
+        EmailSenderRunnable sender = OamTools.buildAgendaEmailSender(null, m_props);
+        sender.setBuilder(builder);
+        sender.setScheduler(this);
+        schedule(sender, 90);
+    }
+
+    /**
+     * Runs a task once for this agenda after the given delay.
+     *
+     * @param task the task to run.
+     * @param delaySeconds the delay, in seconds.
+     */
+    public void schedule(Runnable task, long delaySeconds){
+        m_executor.schedule(guard(task), delaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Runs a task repeatedly for this agenda, with the given delay between the end of one run and the start of the
+     * next.
+     *
+     * @param task the task to run.
+     * @param initialDelaySeconds the delay before the first run, in seconds.
+     * @param delaySeconds the delay between runs, in seconds.
+     */
+    public void scheduleWithFixedDelay(Runnable task, long initialDelaySeconds, long delaySeconds){
+        m_executor.scheduleWithFixedDelay(guard(task), initialDelaySeconds, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Wraps a task so that it logs to this agenda's log file and so that a failure is logged rather than cancelling
+     * the task's later runs.
+     *
+     * @param task the task to wrap.
+     * @return the wrapped task.
+     */
+    Runnable guard(final Runnable task){
+        return new Runnable() {
+            @Override
+            public void run() {
+                LogFile.setThreadLogFile(m_log);
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    LogFile.getLogFile().log("Agenda '" + m_name + "' task failed.", ex);
+                } finally {
+                    LogFile.setThreadLogFile(null);
+                }
+            }
+        };
+    }
+}
@@ -1,15 +1,19 @@
 package openagendamail.util;
 
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Date;
+import java.util.Properties;
 import openagendamail.OpenAgendaMail;
 import openagendamail.data.AgendaItem;
 import openagendamail.data.AgendaItemProvider;
+import openagendamail.data.AgendaItemStream;
+import openagendamail.data.FingerprintedItemStream;
+import openagendamail.data.ItemFingerprint;
+import openagendamail.data.StreamingAgendaItemProvider;
+import openagendamail.data.StreamingProviderAdapter;
 import openagendamail.file.LogFile;
-import org.apache.pdfbox.exceptions.COSVisitorException;
-import plainpdf.Pdf;
-import plainpdf.PdfFont;
+import openagendamail.util.render.AgendaRenderer;
+import openagendamail.util.render.AgendaRenderers;
 
 
 /**
@@ -24,85 +28,155 @@ public class BuildAgendaRunnable implements Runnable {
     /** The AgendaItemProvider to use to fetch the items to build the Agenda document using. */
     private AgendaItemProvider m_itemProvider;
 
+    /** The properties of the agenda being built. */
+    private Properties m_props;
+
+    /** The number of times the agenda has finished building, whether or not the build succeeded.  Guarded by this. */
+    private int m_builds;
+
     /**
      * Constructor.  Creates a new CheckMailRunnable.
      * @param provider an {@link AgendaItem} provider to use to fetch emails to build the agenda with.
      */
     public BuildAgendaRunnable(AgendaItemProvider provider) {
+        this(provider, OamTools.PROPS);
+    }
+
+    /**
+     * Constructor.
+     * @param provider an {@link AgendaItem} provider to use to fetch emails to build the agenda with.
+     * @param props the properties of the agenda being built, such as its title and file name.
+     */
+    public BuildAgendaRunnable(AgendaItemProvider provider, Properties props) {
         if (provider == null){
             throw new IllegalArgumentException("Parameter 'provider' cannot be null.");
         }
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' cannot be null.");
+        }
         m_itemProvider = provider;
+        m_props = props;
     }
 
-    /** {@inheritDoc} */
+    /**
+     * Builds the agenda document.  The items are read from the provider as a stream, so a provider that implements
+     * {@link StreamingAgendaItemProvider} never has to hold every item in memory at once.
+     */
     @Override
     public void run() {
         LogFile.getLogFile().log("Generating Agenda document.");
-        generatePdfAgenda(m_itemProvider.getItems());
+        try (AgendaItemStream items = StreamingProviderAdapter.adapt(m_itemProvider).openItems()) {
+            if (AgendaFingerprint.isEnabled(m_props)){
+                generateIfChanged(items, m_props);
+            } else {
+                generateAgenda(items, m_props);
+            }
+        } catch (IOException ex) {
+            LogFile.getLogFile().log("Error reading the agenda items.", ex);
+        } finally {
+            synchronized (this){
+                m_builds++;
+                notifyAll();
+            }
+        }
         LogFile.getLogFile().log("Done creating Agenda document.");
     }
 
-    /** Generates the agenda document. */
-    private static void generatePdfAgenda(Collection<AgendaItem> items){
+    /**
+     * Waits until the agenda has finished building the given number of times, so that the agenda's sender never sends
+     * a document that is still being built.
+     *
+     * @param builds the number of builds to wait for, counting from the first.
+     * @param timeoutMillis the longest to wait, in milliseconds.
+     * @return true if the agenda has finished building that many times, false if the wait timed out or was
+     * interrupted.
+     */
+    public synchronized boolean awaitBuilds(int builds, long timeoutMillis){
+        long deadline = System.currentTimeMillis() + timeoutMillis;
         try {
-            Pdf pdf = new Pdf(PdfFont.HELVETICA, 12);
+            long left = timeoutMillis;
+            while (m_builds < builds && left > 0){
+                wait(left);
+                left = deadline - System.currentTimeMillis();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return m_builds >= builds;
+    }
 
-            // Render Title of Agenda
-            String title = OamTools.PROPS.getProperty("agenda.title", "Agenda");
-            String sub = "This document generated By OpenAgendaMail " + OpenAgendaMail.VERSION + " on:  " + OamTools.getFormattedDateString(new Date());
-            pdf.renderLine(title, PdfFont.HELVETICA_BOLD, 16);
-            pdf.renderLine(sub, 9);
-            pdf.insertBlankLine();
-
-            // Render Agenda Items to PDF.
-            if (!items.isEmpty()){
-                // Render Each Agenda Item
-                for (AgendaItem item : items){
-
-                    // TEST LINE
-                    LogFile.getLogFile().log("Rendering Agenda Item:  " + item.getTitle());
-
-                    // Render the Header Line
-                    LogFile.getLogFile().log("Rendering header.");
-                    pdf.renderLine(item.getTitle(), PdfFont.HELVETICA_BOLD, 12);
-
-                    // Render From Line
-                    LogFile.getLogFile().log("Rendering from.");
-                    String fromLine = "Submitted By:  " + item.getUser() + " (" + item.getEmail() +")";
-                    pdf.renderLine(fromLine, 9);
-
-                    // Skip a Line
-                    LogFile.getLogFile().log("Inserting blank line.");
-                    pdf.insertBlankLine();
-
-                    // Render the Body if any.
-                    LogFile.getLogFile().log("Checking body for content.");
-                    if (!(item.getBody() == null || item.getBody().isEmpty())){
-                        LogFile.getLogFile().log("Rendering body.");
-                        pdf.renderLine(item.getBody(), 9);
+    /**
+     * Generates the agenda document unless it already holds the same agenda, and records the fingerprint of the agenda
+     * it holds.  If the stream knows its fingerprint up front, and 'skip.unchanged' is on, an agenda that matches the
+     * document already built is not rendered again.  Otherwise the items are fingerprinted as they are rendered, so
+     * the next build, and the sender, can tell whether the agenda has changed.
+     *
+     * @param items the items of the agenda.
+     * @param props the properties of the agenda.
+     */
+    private static void generateIfChanged(AgendaItemStream items, Properties props){
+        AgendaFingerprint fingerprints = new AgendaFingerprint(props);
+        if (items instanceof FingerprintedItemStream){
+            String fingerprint = fingerprints.compute(((FingerprintedItemStream)items).getFingerprint());
+            if (AgendaFingerprint.isSkipUnchanged(props) && fingerprints.isBuilt(fingerprint)){
+                LogFile.getLogFile().log("The agenda has not changed since it was last built.  Reusing the document.");
+                return;
+            }
+            fingerprints.setBuilt(null);
+            if (generateAgenda(items, props)){
+                fingerprints.setBuilt(fingerprint);
+            }
+        } else {
+            fingerprints.setBuilt(null);
+            final AgendaItemStream source = items;
+            final ItemFingerprint itemFingerprint = new ItemFingerprint();
+            AgendaItemStream fingerprinted = new AgendaItemStream() {
+                @Override
+                public AgendaItem read() throws IOException {
+                    AgendaItem item = source.read();
+                    if (item != null){
+                        itemFingerprint.add(item);
                     }
+                    return item;
+                }
 
-                    // Skip a Line
-                    LogFile.getLogFile().log("Skipping a line.");
-                    pdf.insertBlankLine();
+                @Override
+                public void close() throws IOException {
+                    source.close();
                 }
-            } else {
-                pdf.renderLine("No items were submitted to the agenda.");
+            };
+            if (generateAgenda(fingerprinted, props)){
+                fingerprints.setBuilt(fingerprints.compute(itemFingerprint.getValue()));
             }
+        }
+    }
 
-            try {
-                // Save PDF to disk.
-                LogFile.getLogFile().log("Saving file....");
-                pdf.saveAs(OamTools.PROPS.getProperty("doc.name", "agenda.pdf"));
-                LogFile.getLogFile().log("Save complete.");
+    /**
+     * Generates the agenda in each of the formats listed by the 'agenda.formats' property.  The items are read from the
+     * stream once, and each item is rendered in every format as it is read.
+     *
+     * @return true if the agenda was generated and written in every format.
+     */
+    private static boolean generateAgenda(AgendaItemStream items, Properties props){
+        try (AgendaRenderer renderer = AgendaRenderers.open(props)) {
 
-            } catch (COSVisitorException ex) {
-                LogFile.getLogFile().log("Error while saving pdf document.", ex);
+            // Render Title of Agenda
+            String title = props.getProperty("agenda.title", "Agenda");
+            String sub = "This document generated By OpenAgendaMail " + OpenAgendaMail.VERSION + " on:  " + OamTools.getFormattedDateString(new Date());
+            renderer.begin(title, sub);
+
+            // Render Agenda Items.
+            for (AgendaItem item = items.read(); item != null; item = items.read()){
+                renderer.renderItem(item);
             }
 
+            // Write the agenda out.
+            renderer.finish();
+            return true;
+
         } catch (IOException ex) {
-            LogFile.getLogFile().log("Error generating PDF.", ex);
+            LogFile.getLogFile().log("Error generating the agenda.", ex);
+            return false;
         }
     }
-}
\ No newline at end of file
+}
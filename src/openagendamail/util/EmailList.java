@@ -0,0 +1,130 @@
+package openagendamail.util;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import openagendamail.file.LogFile;
+
+/**
+ * The list of email addresses of the members of the agenda's email list.  Members are the only people allowed to
+ * submit agenda items, and they are the people the agenda is sent to.
+ *
+ * The addresses are read from the email list file once and kept in a hash index, so checking a sender is a single
+ * lookup however long the list is.  The file is read again only when its modification time changes.  Addresses are
+ * compared without regard to case, and plus-addressing aliases ("member+agenda@example.com") are treated as the
+ * address they belong to ("member@example.com").
+ */
+public class EmailList {
+
+    /** The loaded email lists, by file name. */
+    private static final Map<String, EmailList> LISTS = new HashMap<>();
+
+    /** The file the email list is read from. */
+    private String m_filename;
+
+    /** The modification time of the file when it was last read, or -1 if it has not been read. */
+    private long m_lastModified;
+
+    /** The addresses as they are written in the file. */
+    private volatile List<String> m_addresses;
+
+    /** The normalized addresses, for lookups. */
+    private volatile Set<String> m_index;
+
+    /**
+     * Constructor.
+     * @param filename the file the email list is read from.
+     */
+    private EmailList(String filename){
+        m_filename = filename;
+        m_lastModified = -1;
+        m_addresses = Collections.emptyList();
+        m_index = Collections.emptySet();
+    }
+
+    /**
+     * Gets the email list stored in the given file.  The file is only read the first time the list is requested and
+     * again whenever the file has changed since.
+     *
+     * @param filename the file the email list is read from.
+     * @return the email list.
+     */
+    public static EmailList getEmailList(String filename){
+        synchronized (LISTS){
+            EmailList list = LISTS.get(filename);
+            if (list == null){
+                list = new EmailList(filename);
+                LISTS.put(filename, list);
+            }
+            list.reloadIfChanged();
+            return list;
+        }
+    }
+
+    /**
+     * Returns true if the given address belongs to a member of the email list.
+     *
+     * @param address the email address to check.
+     * @return true if the address, or the address it is an alias of, is on the list.
+     */
+    public boolean contains(String address){
+        return address != null && m_index.contains(normalize(address));
+    }
+
+    /**
+     * Returns the addresses on the list as they are written in the file, for example to send the agenda to.
+     * @return the addresses on the list.
+     */
+    public List<String> getAddresses(){
+        return m_addresses;
+    }
+
+    /**
+     * Returns the number of addresses on the list.
+     * @return the number of addresses on the list.
+     */
+    public int size(){
+        return m_addresses.size();
+    }
+
+    /**
+     * Normalizes an email address for comparison.  The address is trimmed and lower-cased, and any plus-addressing tag
+     * is removed from its local part.
+     *
+     * @param address the address to normalize.
+     * @return the normalized address.
+     */
+    public static String normalize(String address){
+        String normalized = address.trim().toLowerCase();
+        int at = normalized.lastIndexOf('@');
+        if (at > 0){
+            int plus = normalized.indexOf('+');
+            if (plus > 0 && plus < at){
+                normalized = normalized.substring(0, plus) + normalized.substring(at);
+            }
+        }
+        return normalized;
+    }
+
+    /** Reads the file again if it has been modified since it was last read. */
+    private void reloadIfChanged(){
+        long lastModified = new File(m_filename).lastModified();
+        if (lastModified == m_lastModified && lastModified != 0){
+            return;
+        }
+
+        List<String> addresses = OamTools.readEmails(m_filename);
+        Set<String> index = new HashSet<>();
+        for (String address : addresses){
+            index.add(normalize(address));
+        }
+        m_addresses = Collections.unmodifiableList(addresses);
+        m_index = index;
+        m_lastModified = lastModified;
+        LogFile.getLogFile().log("Loaded " + addresses.size() + " addresses from the email list:  " + m_filename);
+    }
+}
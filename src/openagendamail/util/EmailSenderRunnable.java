@@ -1,9 +1,12 @@
 package openagendamail.util;
 
+import java.util.Properties;
 import openagendamail.file.LogFile;
+import openagendamail.util.email.Delivery;
 import openagendamail.util.email.Email;
 import openagendamail.util.email.EmailAccount;
 import openagendamail.util.email.EmailSender;
+import openagendamail.util.email.RecipientType;
 
 /**
  * This class is a general purpose email sender.  It allows you to build and send emails with variable subjects, body
@@ -15,12 +18,36 @@ import openagendamail.util.email.EmailSender;
  */
 public class EmailSenderRunnable implements Runnable {
 
+    /** How often, in seconds, a send waiting on the scheduler checks whether the agenda has been built. */
+    private static final long BUILD_CHECK_SECONDS = 10;
+
     /** The EmailAccount to send the message from. */
     private EmailAccount m_account;
 
     /** The email message to send. */
     private Email m_message;
 
+    /** The configuration of the email account. */
+    private Properties m_props;
+
+    /** Tracks the agenda the message sends, or null if the message is not an agenda. */
+    private AgendaFingerprint m_fingerprints;
+
+    /** The message sent instead when the agenda has not changed since it was last sent, or null if there is none. */
+    private Email m_unchangedNotice;
+
+    /** The builder of the agenda the message sends, or null if the message does not wait for a build. */
+    private BuildAgendaRunnable m_builder;
+
+    /** The number of times the sender has been run. */
+    private int m_runs;
+
+    /** The email list whose members the message is sent to, or null if its recipients are fixed. */
+    private String m_emailList;
+
+    /** The scheduler a send waits on, or null to wait on the thread that is sending it. */
+    private AgendaScheduler m_scheduler;
+
     /**
      * Constructs a new EmailSenderRunnable.
      *
@@ -28,36 +55,228 @@ public class EmailSenderRunnable implements Runnable {
      * @param message the message to send.
      */
     public EmailSenderRunnable(EmailAccount account, Email message){
+        this(account, message, new Properties());
+    }
+
+    /**
+     * Constructs a new EmailSenderRunnable.
+     *
+     * @param account the email account to send the email from.
+     * @param message the message to send.
+     * @param props the configuration of the email account, such as the size of its connection pool.
+     */
+    public EmailSenderRunnable(EmailAccount account, Email message, Properties props){
         if (account == null){
             throw new IllegalArgumentException("Parameter 'EmailAccount' cannot be null.");
         }
         if (message == null){
             throw new IllegalArgumentException("Parameter 'message' cannot be null.");
         }
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' cannot be null.");
+        }
         m_account = account;
         m_message = message;
+        m_props = props;
         LogFile.getLogFile().log("Initializing the email sender for " + message.getSubject());
     }
 
+    /**
+     * Marks the message as one that sends the agenda, so that an agenda that has not changed since it was last sent is
+     * handled as the 'unchanged.send' property asks:  'send' sends it again in full, 'skip' sends nothing, and 'notice'
+     * sends the given notice, which has no attachment, instead.
+     *
+     * @param fingerprints tracks the agenda built and sent.
+     * @param unchangedNotice the message to send instead of an unchanged agenda.
+     */
+    public void setAgenda(AgendaFingerprint fingerprints, Email unchangedNotice){
+        if (fingerprints == null){
+            throw new IllegalArgumentException("Parameter 'fingerprints' cannot be null.");
+        }
+        if (unchangedNotice == null){
+            throw new IllegalArgumentException("Parameter 'unchangedNotice' cannot be null.");
+        }
+        m_fingerprints = fingerprints;
+        m_unchangedNotice = unchangedNotice;
+    }
+
+    /**
+     * Makes the message wait for the agenda to be built before it is sent.  Each time the message is sent it waits for
+     * one more build of the agenda to finish, for at most 'build.wait.minutes', so a sender scheduled to run after
+     * each build never sends the document the build is still writing, however long the build takes.
+     *
+     * @param builder the builder of the agenda the message sends.
+     */
+    public void setBuilder(BuildAgendaRunnable builder){
+        if (builder == null){
+            throw new IllegalArgumentException("Parameter 'builder' cannot be null.");
+        }
+        m_builder = builder;
+    }
+
+    /**
+     * Sends the message to the members of an email list, as BCC recipients.  The list is read each time the message is
+     * sent, so members added or removed after the message was scheduled are sent it, or not, as the list says then.
+     *
+     * @param filename the file of the email list.
+     */
+    public void setEmailList(String filename){
+        if (filename == null){
+            throw new IllegalArgumentException("Parameter 'filename' cannot be null.");
+        }
+        m_emailList = filename;
+    }
+
+    /**
+     * Makes a send wait on the agenda's scheduler rather than on a thread of its own.  While the agenda is still being
+     * built, and between attempts that failed, the rest of the send is scheduled to run again later and the thread is
+     * given back, so a send that waits never holds up the other agendas that share the scheduler's threads.
+     *
+     * @param scheduler the scheduler of the agenda the message belongs to.
+     */
+    public void setScheduler(AgendaScheduler scheduler){
+        if (scheduler == null){
+            throw new IllegalArgumentException("Parameter 'scheduler' cannot be null.");
+        }
+        m_scheduler = scheduler;
+    }
+
     /** {@inheritDoc} */
     @Override
     public void run() {
-        EmailSender sender = new EmailSender(m_account);
-
-        // Try to send the email three times.
-        int attempts = 0;
-        boolean messageSent = false;
-        do {
-            attempts += 1;
-            if (attempts > 0 && attempts < 3) {
+        int builds = 0;
+        if (m_builder != null){
+            m_runs++;
+            builds = m_runs;
+        }
+        long timeout = Long.valueOf(m_props.getProperty("build.wait.minutes", "60")) * 60 * 1000;
+        new Send(builds, System.currentTimeMillis() + timeout).run();
+    }
+
+    /**
+     * Returns the message addressed to the members of the email list, as the list is now.
+     * @param message the message.
+     * @return a copy of the message with the members of the email list added to its recipients, or the message itself
+     * if it is not sent to an email list.
+     */
+    private Email address(Email message){
+        if (m_emailList == null){
+            return message;
+        }
+        Email addressed = message.copy();
+        for (String email : EmailList.getEmailList(m_emailList).getAddresses()){
+            addressed.addRecipient(email, RecipientType.BCC);
+        }
+        return addressed;
+    }
+
+    /**
+     * One send of the message:  it waits for the agenda to be built, and then makes up to three attempts to send the
+     * message, a minute apart.  With a scheduler each wait is a run of the send scheduled for later; otherwise the
+     * thread sending the message waits.
+     */
+    private class Send implements Runnable {
+
+        /** The number of builds of the agenda to wait for, or 0 if the send does not wait for a build. */
+        private final int m_builds;
+
+        /** The time, in milliseconds, after which the send stops waiting for the build. */
+        private final long m_deadline;
+
+        /** The sender, or null until the build is done and the message is ready to send. */
+        private EmailSender m_sender;
+
+        /** The delivery of the message to its recipients, or null until the message is ready to send. */
+        private Delivery m_delivery;
+
+        /** The fingerprint of the agenda being sent, or null if it is not tracked. */
+        private String m_fingerprint;
+
+        /** The number of attempts made to send the message. */
+        private int m_attempts;
+
+        /**
+         * Constructor.
+         * @param builds the number of builds of the agenda to wait for, or 0 if the send does not wait for a build.
+         * @param deadline the time, in milliseconds, after which the send stops waiting for the build.
+         */
+        Send(int builds, long deadline){
+            m_builds = builds;
+            m_deadline = deadline;
+        }
+
+        /** Sends the message, or waits for the next step of the send. */
+        @Override
+        public void run() {
+            if (m_delivery == null && !prepare()){
+                return;
+            }
+
+            // Try to send the email three times.  Each attempt only sends to the chunks of recipients still pending.
+            while (true){
+                m_attempts += 1;
+                if (m_sender.sendEmail(m_delivery)){
+                    if (m_fingerprint != null){
+                        m_fingerprints.setSent(m_fingerprint);
+                    }
+                    return;
+                }
+                if (m_attempts >= 3){
+                    return;
+                }
+                LogFile.getLogFile().log("Failed to send email on attempt # " + m_attempts
+                        + " of 3.  Will retry in one minute.");
+                if (m_scheduler != null){
+                    m_scheduler.schedule(this, 60);
+                    return;
+                }
                 try {
-                    LogFile.getLogFile().log("Failed to send email on attempt # " + attempts  + " of 3.  Will retry in one minute.");
                     Thread.sleep(60 * 1000);
                 } catch (InterruptedException ex) {
                     // Do nothing.
                 }
             }
-            messageSent = sender.sendEmail(m_message);
-        } while ((messageSent == false) && (attempts < 3));
+        }
+
+        /**
+         * Waits for the agenda to be built, and then works out what to send and to whom.
+         * @return true if the message is ready to send, false if the send is waiting or there is nothing to send.
+         */
+        private boolean prepare(){
+            if (m_builds > 0){
+                long wait = m_scheduler == null ? Math.max(0, m_deadline - System.currentTimeMillis()) : 0;
+                if (!m_builder.awaitBuilds(m_builds, wait)){
+                    if (m_scheduler != null && System.currentTimeMillis() < m_deadline){
+                        m_scheduler.schedule(this, BUILD_CHECK_SECONDS);
+                        return false;
+                    }
+                    LogFile.getLogFile().log("The agenda is still being built.  Sending the last agenda built "
+                            + "instead.");
+                }
+            }
+
+            // Work out whether the agenda has changed since it was last sent.
+            Email toSend = m_message;
+            String fingerprint = m_fingerprints == null ? null : m_fingerprints.getBuilt();
+            if (fingerprint != null && m_fingerprints.isSent(fingerprint)){
+                switch (m_props.getProperty("unchanged.send", "send").toLowerCase()){
+                    case "skip":
+                        LogFile.getLogFile().log("The agenda has not changed since it was last sent.  "
+                                + "Not resending it.");
+                        return false;
+                    case "notice":
+                        LogFile.getLogFile().log("The agenda has not changed since it was last sent.  "
+                                + "Sending a notice.");
+                        toSend = m_unchangedNotice;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            m_sender = new EmailSender(m_account, m_props);
+            m_delivery = m_sender.createDelivery(address(toSend));
+            m_fingerprint = fingerprint;
+            return true;
+        }
     }
-}
\ No newline at end of file
+}
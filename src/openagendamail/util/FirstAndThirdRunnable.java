@@ -3,9 +3,7 @@ package openagendamail.util;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Properties;
 import openagendamail.data.EmailAgendaItemProvider;
 import openagendamail.file.LogFile;
 
@@ -18,13 +16,24 @@ import openagendamail.file.LogFile;
  */
 public class FirstAndThirdRunnable implements Runnable {
 
-    /** Constructor creates a new first and third runnable. */
-    public FirstAndThirdRunnable(){
+    /** The scheduler of the agenda the meetings are for. */
+    private AgendaScheduler m_scheduler;
+
+    /**
+     * Constructor creates a new first and third runnable.
+     * @param scheduler the scheduler of the agenda the meetings are for.
+     */
+    public FirstAndThirdRunnable(AgendaScheduler scheduler){
+        if (scheduler == null){
+            throw new IllegalArgumentException("Parameter 'scheduler' cannot be null.");
+        }
+        m_scheduler = scheduler;
     }
     
     /** {@inheritDoc} */
     @Override
     public void run() {
+        Properties props = m_scheduler.getProperties();
 
         // Create a calendar and set the time/date to right now.
         Date now = new Date();
@@ -32,7 +41,7 @@ public class FirstAndThirdRunnable implements Runnable {
         cal.setTime(now);
 
         // Get the day of the week of the meeting the agenda is for.
-        int dayOfTheWeekOfTheMeeting = OamTools.getDayOfWeek(OamTools.PROPS.getProperty("meeting.day.of.week", "thu"));
+        int dayOfTheWeekOfTheMeeting = OamTools.getDayOfWeek(props.getProperty("meeting.day.of.week", "thu"));
 
         // Until the calendar created earlier is set to the correct day of the week that the meeting occurs on, 
         // increment the day of the Calendar object.
@@ -42,7 +51,7 @@ public class FirstAndThirdRunnable implements Runnable {
 
         // Gets the number of seconds until the next send day at midnight.  If this call is made on the day of the week
         // that it should be sent, the number of seconds is calculated until the next send day.
-        long secondUntilSendDay = OamTools.getSecondsUntilSpecifiedDay(OamTools.getDayOfWeek(OamTools.PROPS.getProperty("send.day", "tue")));
+        long secondUntilSendDay = OamTools.getSecondsUntilSpecifiedDay(OamTools.getDayOfWeek(props.getProperty("send.day", "tue")));
         
         
         // If the next day of the week that matches the day of the week of the meeting is a first or third of that day
@@ -52,29 +61,32 @@ public class FirstAndThirdRunnable implements Runnable {
                     cal.get(Calendar.DATE) + ", " + cal.get(Calendar.YEAR) + ") _IS_ a first or third week.");
 
             // Schedule the agenda building for the _next_ send day.
-            ScheduledExecutorService buildExecutor = Executors.newSingleThreadScheduledExecutor();
-            buildExecutor.schedule(new BuildAgendaRunnable(new EmailAgendaItemProvider(true)), secondUntilSendDay, TimeUnit.SECONDS);
+            BuildAgendaRunnable builder = new BuildAgendaRunnable(new EmailAgendaItemProvider(true, props), props);
+            m_scheduler.schedule(builder, secondUntilSendDay);
 
             // Schedule sending the agenda for four hours after the agenda is built.
-            EmailSenderRunnable sender = OamTools.buildAgendaEmailSender(null);
-            ScheduledExecutorService sendExecutor = Executors.newSingleThreadScheduledExecutor();
-            sendExecutor.schedule(sender, secondUntilSendDay + OamTools.SECONDS_IN_FOUR_HOURS, TimeUnit.SECONDS);
+            EmailSenderRunnable sender = OamTools.buildAgendaEmailSender(null, props);
+            sender.setBuilder(builder);
+            sender.setScheduler(m_scheduler);
+            m_scheduler.schedule(sender, secondUntilSendDay + OamTools.SECONDS_IN_FOUR_HOURS);
 
         } else {
             // Schedule the agenda building but dont delete agenda items.
-            ScheduledExecutorService buildExecutor = Executors.newSingleThreadScheduledExecutor();
-            buildExecutor.schedule(new BuildAgendaRunnable(new EmailAgendaItemProvider(false)), secondUntilSendDay, TimeUnit.SECONDS);
+            BuildAgendaRunnable builder = new BuildAgendaRunnable(new EmailAgendaItemProvider(false, props), props);
+            m_scheduler.schedule(builder, secondUntilSendDay);
 
             // Schedule an agenda to be sent out on the off-week.
-            ScheduledExecutorService sendExecutor = Executors.newSingleThreadScheduledExecutor();
-            sendExecutor.schedule(OamTools.buildAgendaEmailSender("Off-Week Agenda Preview"), secondUntilSendDay + OamTools.SECONDS_IN_FOUR_HOURS, TimeUnit.SECONDS);
+            EmailSenderRunnable preview = OamTools.buildAgendaEmailSender("Off-Week Agenda Preview", props);
+            preview.setBuilder(builder);
+            preview.setScheduler(m_scheduler);
+            m_scheduler.schedule(preview, secondUntilSendDay + OamTools.SECONDS_IN_FOUR_HOURS);
 
             LogFile.getLogFile().log("This week's send date (" + OamTools.getFormattedDateString(cal.getTime()) + ") is _NOT_ a first or third of that day time this month.");
         }
         
 
         // if enabled, schedule the reminder email for the next reminder email day.
-        if ((OamTools.PROPS.getProperty("reminders.on", "false")).toLowerCase().equals("true")){
+        if ((props.getProperty("reminders.on", "false")).toLowerCase().equals("true")){
             scheduleReminder();
         }
     }
@@ -83,12 +95,13 @@ public class FirstAndThirdRunnable implements Runnable {
     /** Schedules a reminder email to be sent out. */
     private void scheduleReminder(){
         // Get the day of the week of the reminder email
-        int reminderDayOfWeek = OamTools.getDayOfWeek(OamTools.PROPS.getProperty("reminder.day", "mon"));
+        Properties props = m_scheduler.getProperties();
+        int reminderDayOfWeek = OamTools.getDayOfWeek(props.getProperty("reminder.day", "mon"));
         long secondsUntilReminder = OamTools.getSecondsUntilSpecifiedDay(reminderDayOfWeek);
 
         // Create the Runnable and schedule it.
-        EmailSenderRunnable reminder = OamTools.buildReminderSender();
-        ScheduledExecutorService reminderExecutor = Executors.newSingleThreadScheduledExecutor();
-        reminderExecutor.schedule(reminder, secondsUntilReminder, TimeUnit.SECONDS);
+        EmailSenderRunnable reminder = OamTools.buildReminderSender(props);
+        reminder.setScheduler(m_scheduler);
+        m_scheduler.schedule(reminder, secondsUntilReminder);
     }
 }
\ No newline at end of file
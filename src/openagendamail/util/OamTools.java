@@ -1,5 +1,6 @@
 package openagendamail.util;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -14,7 +15,7 @@ import openagendamail.file.LogFile;
 import openagendamail.file.TextFileToolbox;
 import openagendamail.util.email.Email;
 import openagendamail.util.email.EmailAccount;
-import openagendamail.util.email.RecipientType;
+import openagendamail.util.render.AgendaRenderers;
 
 /**
  * Toolbox class for AgendaMail.
@@ -43,6 +44,10 @@ public class OamTools {
     /** A formatter for date objects used when generating the .doc object. */
     private static SimpleDateFormat m_dateFormat = new SimpleDateFormat("MMM.dd.YYYY");
 
+    /** The names of the properties files an agenda is configured by. */
+    private static final String[] PROPERTIES_FILES = {"application.properties", "agenda.properties",
+        "email.properties", "reminder.properties"};
+
     // Loads the properties for the application.
     static {
         try {
@@ -66,6 +71,28 @@ public class OamTools {
     private OamTools(){
     }
 
+    /**
+     * Loads the configuration of an agenda kept in its own directory.  The directory holds the same properties files
+     * as the application's 'data' directory (application, agenda, email and reminder.properties), any of which may be
+     * left out.
+     *
+     * @param directory the agenda's directory.
+     * @return the agenda's properties.
+     * @throws IOException if a properties file cannot be read.
+     */
+    public static Properties loadProperties(File directory) throws IOException {
+        Properties props = new Properties();
+        for (String filename : PROPERTIES_FILES){
+            File file = new File(directory, filename);
+            if (file.exists()){
+                try (FileInputStream in = new FileInputStream(file)) {
+                    props.load(in);
+                }
+            }
+        }
+        return props;
+    }
+
     /**
      * Calculates and returns the number of seconds between now and the day specified at 12am.
      *
@@ -188,7 +215,6 @@ public class OamTools {
     /**
      * Builds and returns an email sender that sends out the agenda.
      *
-     * @param props the properties object for sending the email.
      * @param subject The subject of the email to be sent.  This parameter can be null.  If it is, a default subject
      * will be used:  "This week's [Agenda Title]", or "This week's agenda" if no agenda title is specified in the
      * program's properties file.
@@ -196,39 +222,76 @@ public class OamTools {
      * @return an email sender that sends out the agenda.
      */
     public static EmailSenderRunnable buildAgendaEmailSender(String subject){
+        return buildAgendaEmailSender(subject, PROPS);
+    }
+
+    /**
+     * Builds and returns an email sender that sends out the agenda.
+     *
+     * @param subject The subject of the email to be sent.  This parameter can be null.  If it is, a default subject
+     * will be used:  "This week's [Agenda Title]", or "This week's agenda" if no agenda title is specified in the
+     * agenda's properties.
+     * @param props the properties of the agenda being sent.  If they ask for agenda fingerprints to be kept, an agenda
+     * that has not changed since it was last sent is handled as 'unchanged.send' asks.
+     *
+     * @return an email sender that sends out the agenda.
+     */
+    public static EmailSenderRunnable buildAgendaEmailSender(String subject, Properties props){
         if (subject == null){
-            subject = "This week's " + PROPS.getProperty("agenda.title", "agenda");
+            subject = "This week's " + props.getProperty("agenda.title", "agenda");
         }
-        EmailAccount account = new EmailAccount(PROPS.getProperty("email"), PROPS.getProperty("password"));
-        Email toSend = new Email(subject, PROPS.getProperty("body"));
-        toSend.addAttachment(PROPS.getProperty("doc.name", "agenda.pdf"));
-
-        for (String email : OamTools.readEmails(PROPS.getProperty("email.list.filename"))){
-            toSend.addRecipient(email, RecipientType.BCC);
+        EmailAccount account = new EmailAccount(props.getProperty("email"), props.getProperty("password"));
+        Email toSend = new Email(subject, props.getProperty("body"));
+        List<String> formats = AgendaRenderers.getFormats(props);
+        if (formats.contains(AgendaRenderers.PDF)){
+            if (AgendaBuffer.isInMemory(props)){
+                toSend.addAttachment(AgendaBuffer.get(props.getProperty("doc.name", "agenda.pdf")).getDataSource());
+            } else {
+                toSend.addAttachment(props.getProperty("doc.name", "agenda.pdf"));
+            }
+        }
+        // Plain text goes first, so mail clients that can show the HTML page prefer it.
+        for (String format : new String[]{AgendaRenderers.TEXT, AgendaRenderers.HTML}){
+            if (formats.contains(format)){
+                toSend.addInlineBody(AgendaBuffer.get(AgendaRenderers.getOutputName(props, format)).getDataSource());
+            }
         }
 
         LogFile.getLogFile().log("Created email sender for:  " + toSend.getSubject());
-        return new EmailSenderRunnable(account, toSend);
+        EmailSenderRunnable sender = new EmailSenderRunnable(account, toSend, props);
+        sender.setEmailList(props.getProperty("email.list.filename", "emails.txt"));
+        if (AgendaFingerprint.isEnabled(props)){
+            String body = props.getProperty("unchanged.body", "There are no new agenda items since the last agenda was sent.");
+            sender.setAgenda(new AgendaFingerprint(props), new Email(subject, body));
+        }
+        return sender;
     }
 
     /**
-     * Builds and returns an email sender that sends out the agenda.
+     * Builds and returns an email sender that sends out the reminder.
      *
-     * @param props the properties object for sending the email.
-     * @return an email sender that sends out the agenda.
+     * @return an email sender that sends out the reminder.
      */
     public static EmailSenderRunnable buildReminderSender(){
-        EmailAccount account = new EmailAccount(PROPS.getProperty("email"), PROPS.getProperty("password"));
-        String subject = PROPS.getProperty("reminder.subject", "Agenda Reminder");
-        String body = PROPS.getProperty("reminder.body", "Please remember to send in your agenda items.");
-        Email toSend = new Email(subject, body);
+        return buildReminderSender(PROPS);
+    }
 
-        for (String email : OamTools.readEmails(PROPS.getProperty("email.list.filename"))){
-            toSend.addRecipient(email, RecipientType.BCC);
-        }
+    /**
+     * Builds and returns an email sender that sends out the reminder.
+     *
+     * @param props the properties of the agenda the reminder is for.
+     * @return an email sender that sends out the reminder.
+     */
+    public static EmailSenderRunnable buildReminderSender(Properties props){
+        EmailAccount account = new EmailAccount(props.getProperty("email"), props.getProperty("password"));
+        String subject = props.getProperty("reminder.subject", "Agenda Reminder");
+        String body = props.getProperty("reminder.body", "Please remember to send in your agenda items.");
+        Email toSend = new Email(subject, body);
 
         LogFile.getLogFile().log("Created email sender for:  " + toSend.getSubject());
-        return new EmailSenderRunnable(account, toSend);
+        EmailSenderRunnable sender = new EmailSenderRunnable(account, toSend, props);
+        sender.setEmailList(props.getProperty("email.list.filename", "emails.txt"));
+        return sender;
     }
 
     /**
@@ -241,7 +304,10 @@ public class OamTools {
         if (date == null){
             return "";
         }
-        return m_dateFormat.format(date);
+        // SimpleDateFormat is not thread safe, and several agendas may be built at once.
+        synchronized (m_dateFormat){
+            return m_dateFormat.format(date);
+        }
     }
     
     public static String getCountdownString(long seconds){
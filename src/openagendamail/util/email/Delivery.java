@@ -0,0 +1,234 @@
+package openagendamail.util.email;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Tracks the delivery of an {@link Email} to its recipients.  Mail servers refuse or throttle messages with too many
+ * recipients, so the recipients are split into chunks of at most a given size, each sent as a message of its own, and
+ * each chunk's status is kept here.  Sending the same delivery again only sends the chunks that are still pending, so
+ * a failure is retried for the recipients it affected and not for the whole email list.
+ *
+ * Every chunk's message carries the same To and Cc headers; only the recipients it is addressed to differ.
+ */
+public class Delivery {
+
+    /** The most recipients of each chunk unless configured otherwise. */
+    public static final int DEFAULT_CHUNK_SIZE = 50;
+
+    /** The status of a chunk of recipients. */
+    public enum Status {
+        /** The chunk has not been sent yet, or sending it failed. */
+        PENDING,
+
+        /** The chunk was sent to every one of its recipients. */
+        SENT,
+
+        /** The chunk was sent, but the server refused some of its recipients. */
+        REFUSED
+    }
+
+    /** The email being delivered. */
+    private final Email m_email;
+
+    /** The chunks of recipients, in address order. */
+    private final List<Chunk> m_chunks;
+
+    /** The recipients the server refused. */
+    private final Set<String> m_refused = Collections.synchronizedSet(new TreeSet<String>());
+
+    /**
+     * Constructs a new Delivery, with the email's recipients split into chunks.
+     *
+     * @param email the email to deliver.
+     * @param chunkSize the most recipients of each chunk.
+     */
+    public Delivery(Email email, int chunkSize){
+        if (email == null){
+            throw new IllegalArgumentException("Parameter 'email' cannot be null.");
+        }
+        if (chunkSize < 1){
+            throw new IllegalArgumentException("Parameter 'chunkSize' must be greater than zero.");
+        }
+        m_email = email;
+        List<String> recipients = new ArrayList<>(new TreeSet<>(email.getAllRecipients()));
+        m_chunks = new ArrayList<>();
+        for (int start = 0; start < recipients.size(); start += chunkSize){
+            m_chunks.add(new Chunk(recipients.subList(start, Math.min(start + chunkSize, recipients.size()))));
+        }
+    }
+
+    /**
+     * Returns the email being delivered.
+     * @return the email being delivered.
+     */
+    public Email getEmail(){
+        return m_email;
+    }
+
+    /**
+     * Returns the number of chunks the recipients were split into.
+     * @return the number of chunks.
+     */
+    public int getChunkCount(){
+        return m_chunks.size();
+    }
+
+    /**
+     * Returns the status of a chunk.
+     * @param index the index of the chunk, from 0.
+     * @return the chunk's status.
+     */
+    public Status getStatus(int index){
+        return m_chunks.get(index).m_status;
+    }
+
+    /**
+     * Returns true if no chunk is still pending:  every recipient the server accepted has been sent the email.
+     * @return true if the delivery is complete.
+     */
+    public boolean isComplete(){
+        return getPending().isEmpty();
+    }
+
+    /**
+     * Returns the recipients the server refused.  They are not sent the email again.
+     * @return the refused recipients, in address order.
+     */
+    public Set<String> getRefused(){
+        synchronized (m_refused){
+            return Collections.unmodifiableSet(new LinkedHashSet<>(m_refused));
+        }
+    }
+
+    /**
+     * Returns the chunks still to be sent.
+     * @return the pending chunks, in address order.
+     */
+    List<Chunk> getPending(){
+        List<Chunk> pending = new ArrayList<>();
+        for (Chunk chunk : m_chunks){
+            if (chunk.m_status == Status.PENDING){
+                pending.add(chunk);
+            }
+        }
+        return pending;
+    }
+
+    /** A chunk of recipients, sent as a message of its own.  Only one thread sends a chunk at a time. */
+    final class Chunk {
+
+        /** The recipients the chunk has not been sent to yet. */
+        private final List<String> m_unsent;
+
+        /** True if the server refused some of the chunk's recipients. */
+        private boolean m_refusals;
+
+        /** The status of the chunk. */
+        private volatile Status m_status = Status.PENDING;
+
+        /**
+         * Constructor.
+         * @param recipients the recipients of the chunk.
+         */
+        Chunk(List<String> recipients){
+            m_unsent = new ArrayList<>(recipients);
+        }
+
+        /**
+         * Returns the recipients the chunk is still to be sent to.
+         * @return the addresses of the recipients.
+         * @throws AddressException if one of the addresses is not valid.
+         */
+        Address[] getAddresses() throws AddressException {
+            Address[] addresses = new Address[m_unsent.size()];
+            for (int i = 0; i < addresses.length; i++){
+                addresses[i] = new InternetAddress(m_unsent.get(i));
+            }
+            return addresses;
+        }
+
+        /**
+         * Returns a description of the chunk for the log.
+         * @return the number of recipients left and the first of them.
+         */
+        String describe(){
+            return "the chunk of " + m_unsent.size() + " recipients starting with " + m_unsent.get(0);
+        }
+
+        /**
+         * Returns true if the chunk has no recipients left to send to.
+         * @return true if the chunk is done.
+         */
+        boolean isDone(){
+            return m_unsent.isEmpty();
+        }
+
+        /** Marks the chunk as sent to every recipient left. */
+        void sent(){
+            m_unsent.clear();
+            m_status = m_refusals ? Status.REFUSED : Status.SENT;
+        }
+
+        /**
+         * Records the outcome of a send that failed.  The recipients it was sent to are crossed off, and the ones the
+         * server refused are crossed off and recorded as refused, since sending to them again cannot succeed.
+         *
+         * @param ex the failure.
+         * @return true if the failure was only that the server refused some of the recipients, so the chunk can be
+         * sent to the rest again straight away.
+         */
+        boolean failed(SendFailedException ex){
+            remove(ex.getValidSentAddresses());
+            Address[] invalid = ex.getInvalidAddresses();
+            boolean refused = invalid != null && invalid.length > 0;
+            if (refused){
+                for (Address address : invalid){
+                    m_refused.add(toString(address));
+                }
+                remove(invalid);
+                m_refusals = true;
+            }
+            if (isDone()){
+                sent();
+                return false;
+            }
+            return refused;
+        }
+
+        /**
+         * Crosses recipients off the chunk.
+         * @param addresses the recipients, or null.
+         */
+        private void remove(Address[] addresses){
+            if (addresses == null){
+                return;
+            }
+            for (Address address : addresses){
+                String email = toString(address);
+                for (int i = m_unsent.size() - 1; i >= 0; i--){
+                    if (m_unsent.get(i).equalsIgnoreCase(email)){
+                        m_unsent.remove(i);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the email address of a recipient.
+         * @param address the recipient.
+         * @return the email address, without any personal name.
+         */
+        private String toString(Address address){
+            return address instanceof InternetAddress ? ((InternetAddress)address).getAddress() : address.toString();
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package openagendamail.util.email;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import javax.activation.DataSource;
 
 /**
  * A class that represents an Email.  It includes its subject, body and a list of email
@@ -28,6 +31,12 @@ public class Email {
     /** A list of paths to files to attach. */
     private Set<String> m_attachments;
 
+    /** The attachments read from data sources rather than files, in the order they were added. */
+    private List<DataSource> m_attachmentSources;
+
+    /** The forms of the content shown inline after the body, in the order they were added. */
+    private List<DataSource> m_inlineBodies;
+
     /**
      * Constructs a new Email.
      *
@@ -49,6 +58,8 @@ public class Email {
 
         // Initialize data structures.
         m_attachments = new HashSet<>();
+        m_attachmentSources = new ArrayList<>();
+        m_inlineBodies = new ArrayList<>();
         m_recipients = new HashMap<>();
         m_recipients.put(RecipientType.TO, new HashSet<String>());
         m_recipients.put(RecipientType.CC, new HashSet<String>());
@@ -104,6 +115,25 @@ public class Email {
         return Collections.unmodifiableSet(recipients);
     }
 
+    /**
+     * Returns a copy of this email, with the same recipients, attachments and inline content.  The copy can be given
+     * more recipients without changing this email.
+     *
+     * @return the copy.
+     */
+    public Email copy(){
+        Email copy = new Email(m_subject, m_body);
+        for (Map.Entry<RecipientType, Set<String>> recipients : m_recipients.entrySet()){
+            for (String recipient : recipients.getValue()){
+                copy.addRecipient(recipient, recipients.getKey());
+            }
+        }
+        copy.m_attachments.addAll(m_attachments);
+        copy.m_attachmentSources.addAll(m_attachmentSources);
+        copy.m_inlineBodies.addAll(m_inlineBodies);
+        return copy;
+    }
+
     /**
      * Adds a file to be attached to the email.
      * @param file the path to the file to add.
@@ -121,4 +151,49 @@ public class Email {
     public Set<String> getAttachments(){
         return Collections.unmodifiableSet(m_attachments);
     }
-}
\ No newline at end of file
+
+    /**
+     * Adds an attachment whose content is read from a data source, such as a document held in memory, when the email
+     * is sent.  The attachment is named after the data source.
+     *
+     * @param source the source of the attachment's content.
+     */
+    public void addAttachment(DataSource source){
+        if (source == null){
+            throw new IllegalArgumentException("Parameter 'source' cannot be null.");
+        }
+        m_attachmentSources.add(source);
+    }
+
+    /**
+     * Returns the attachments read from data sources, if any exist.  If none exist an empty list is returned.
+     * @return the data sources of the attachments.
+     */
+    public List<DataSource> getAttachmentSources(){
+        return Collections.unmodifiableList(m_attachmentSources);
+    }
+
+    /**
+     * Adds a form of the content shown inline after the body of the email, such as the agenda as plain text or as an
+     * HTML page.  The forms are sent as alternatives to each other, in the order they were added, so the form most
+     * preferred should be added last; mail clients show the last form they can display.  The content is read from the
+     * data source, with the data source's content type, when the email is sent.
+     *
+     * @param source the source of the content.
+     */
+    public void addInlineBody(DataSource source){
+        if (source == null){
+            throw new IllegalArgumentException("Parameter 'source' cannot be null.");
+        }
+        m_inlineBodies.add(source);
+    }
+
+    /**
+     * Returns the forms of the content shown inline after the body, if any exist.  If none exist an empty list is
+     * returned.
+     * @return the data sources of the content, in the order they were added.
+     */
+    public List<DataSource> getInlineBodies(){
+        return Collections.unmodifiableList(m_inlineBodies);
+    }
+}
@@ -1,15 +1,21 @@
 package openagendamail.util.email;
 
-import com.sun.mail.imap.IMAPStore;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
-import java.util.Set;
-import javax.mail.Folder;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
+import javax.mail.Part;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
-import javax.mail.Store;
 import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
@@ -36,83 +42,201 @@ public class EmailSender {
      * @param account the {@link EmailAccount} to send the emails from.
      */
     public EmailSender(EmailAccount account){
+        this(account, new Properties());
+    }
+
+    /**
+     * Constructs a new EmailSender.
+     * @param account the {@link EmailAccount} to send the emails from.
+     * @param props the configuration of the email account, such as the size of its connection pool.
+     */
+    public EmailSender(EmailAccount account, Properties props){
         if (account == null){
             throw new IllegalArgumentException("Parameter 'account' may not be null.");
         }
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' may not be null.");
+        }
         m_account = account;
-
-        // Add special properties for using SMTP / sending mail.
         m_properties = new Properties();
-        m_properties.setProperty("mail.store.protocol", "imaps");
-        m_properties.setProperty("mail.smtp.starttls.enable", "true");
-        m_properties.setProperty("mail.smtp.auth", "true");
-        m_properties.setProperty("mail.smtp.host", "smtp.gmail.com");
-        m_properties.setProperty("mail.transport.protocol", "smtp");
-        m_properties.setProperty("mail.smtp.user", m_account.getAddress());
-        m_properties.setProperty("mail.smtp.password", m_account.getPassword());
+        m_properties.putAll(props);
     }
 
     /**
-     * Sends the provided {@link Email}.
+     * Sends the provided {@link Email}.  The recipients are split into chunks of at most 'smtp.chunk.size' (50 by
+     * default), each sent as a message of its own, since mail servers refuse or throttle messages with too many
+     * recipients.  A chunk that fails is retried up to 'smtp.chunk.retries' times without resending the others.
+     *
      * @param email the Email to send.
      * @return true if the email sends successfully, or false if an issue of some sort is identified.
+     * @see #sendEmail(openagendamail.util.email.Delivery)
      */
     public boolean sendEmail(Email email){
+        return sendEmail(createDelivery(email));
+    }
+
+    /**
+     * Splits the recipients of an email into chunks of at most 'smtp.chunk.size', ready to be sent with
+     * {@link #sendEmail(openagendamail.util.email.Delivery)}.
+     *
+     * @param email the email.
+     * @return the delivery of the email, with every chunk pending.
+     */
+    public Delivery createDelivery(Email email){
+        return new Delivery(email, Integer.valueOf(m_properties.getProperty("smtp.chunk.size",
+                String.valueOf(Delivery.DEFAULT_CHUNK_SIZE))));
+    }
+
+    /**
+     * Sends the chunks of a delivery that are still pending, so a delivery that failed part way through can be sent
+     * again without anyone being sent the email twice.  The chunks are sent over as many as 'smtp.parallel.connections'
+     * pooled SMTP connections at once (no more than the pool holds), so only the first send in a while pays for
+     * connecting and logging in.  A connection is always given back to the pool:  to be used again if it is still
+     * good, which it is even if the server refused some of the recipients, or to be logged out if the send failed part
+     * way through.  Recipients the server refuses are logged and not sent to again.
+     *
+     * @param delivery the delivery.
+     * @return true if every chunk has now been sent, or false if some are still pending.
+     */
+    public boolean sendEmail(final Delivery delivery){
+        if (delivery == null){
+            throw new IllegalArgumentException("Parameter 'delivery' may not be null.");
+        }
+        if (delivery.getChunkCount() == 0){
+            LogFile.getLogFile().log("The email '" + delivery.getEmail().getSubject() + "' has no recipients.");
+            return false;
+        }
+        final MailSessionManager manager = MailSessionManager.getManager(m_account, m_properties);
+        List<Delivery.Chunk> pending = delivery.getPending();
+        int connections = Math.min(Integer.valueOf(m_properties.getProperty("smtp.parallel.connections",
+                String.valueOf(MailSessionManager.DEFAULT_MAX_TRANSPORTS))), manager.getMaxTransports());
+        connections = Math.min(connections, pending.size());
+        if (connections > 1){
+            LogFile.getLogFile().log("Sending the message to " + pending.size() + " chunks of recipients over "
+                    + connections + " connections...");
+            ExecutorService pool = Executors.newFixedThreadPool(connections);
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (final Delivery.Chunk chunk : pending){
+                    results.add(pool.submit(LogFile.inheritThreadLogFile(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(manager, delivery.getEmail(), chunk);
+                        }
+                    })));
+                }
+                for (Future<?> result : results){
+                    result.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                LogFile.getLogFile().log("Interrupted while sending the email.", ex);
+            } catch (ExecutionException ex) {
+                LogFile.getLogFile().log("Error sending the email.", ex.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        } else {
+            for (Delivery.Chunk chunk : pending){
+                deliver(manager, delivery.getEmail(), chunk);
+            }
+        }
+
+        if (!delivery.getRefused().isEmpty()){
+            LogFile.getLogFile().log("The mail server refused these recipients:  " + delivery.getRefused());
+        }
+        if (delivery.isComplete()){
+            LogFile.getLogFile().log("Message(s) sent successfully.");
+            return true;
+        }
+        LogFile.getLogFile().log(delivery.getPending().size() + " of " + delivery.getChunkCount()
+                + " chunks of recipients have not been sent the message.");
+        return false;
+    }
+
+    /**
+     * Sends a chunk of recipients their message, retrying it up to 'smtp.chunk.retries' times if it fails.
+     *
+     * @param manager the pool of connections to the account.
+     * @param email the email to send.
+     * @param chunk the chunk of recipients.
+     */
+    private void deliver(MailSessionManager manager, Email email, Delivery.Chunk chunk){
+        int retries = Integer.valueOf(m_properties.getProperty("smtp.chunk.retries", "2"));
+        for (int attempt = 0; ; attempt++){
+            try {
+                send(manager, email, chunk);
+                return;
+            } catch (NoSuchProviderException ex) {
+                LogFile.getLogFile().log("Couldn't find the mail provider.", ex);
+                return;
+            } catch (MessagingException ex) {
+                if (attempt >= retries){
+                    LogFile.getLogFile().log("Failed to send the message to " + chunk.describe() + " after "
+                            + (attempt + 1) + " attempts.", ex);
+                    return;
+                }
+                LogFile.getLogFile().log("Failed to send the message to " + chunk.describe() + ".  Retrying.", ex);
+            }
+        }
+    }
+
+    /**
+     * Sends a chunk of recipients their message over a pooled SMTP connection.  If the server refuses some of the
+     * recipients the message is sent again straight away to the rest.
+     *
+     * @param manager the pool of connections to the account.
+     * @param email the email to send.
+     * @param chunk the chunk of recipients.
+     * @throws MessagingException if the message could not be sent to every recipient the server accepts.
+     */
+    private void send(MailSessionManager manager, Email email, Delivery.Chunk chunk) throws MessagingException {
+        Transport transport = null;
+        boolean reusable = false;
         try {
-            // --- Connect to the email account.
-            LogFile.getLogFile().log("Connecting to email account...");
-            Session session = Session.getInstance(m_properties);
-            Store store = session.getStore("imaps");
-            store.connect("imap.gmail.com", m_account.getAddress(), m_account.getPassword());
-            LogFile.getLogFile().log("Connected successfully.");
-
-            // Get the email message store.
-            if (store instanceof IMAPStore){
-                IMAPStore imapStore = (IMAPStore)store;
-                Folder inbox = imapStore.getFolder("inbox");
-                inbox.open(Folder.READ_WRITE);
-
-                // Assemble the message to be sent.
-                MimeMessage message = buildEmail(session, email);
-
-                // Close the message store.
-                LogFile.getLogFile().log("Closing Message store.");
-                store.close();
-
-                // Send the message.
-                LogFile.getLogFile().log("Sending the message...");
-                Transport transport = session.getTransport();
-
-                // Uses port 587 because we're using TLS/STARTTLS, its 465 for SSL
-                transport.connect("smtp.gmail.com", 587, m_account.getAddress(), m_account.getPassword());
-                transport.sendMessage(message, message.getAllRecipients());
-                LogFile.getLogFile().log("Message(s) sent successfully.");
-
-                return true;
-
-            } else {
-                LogFile.getLogFile().log("Message store was not an IMAP Message store.  No messages retrieved.");
-                return false;
+            // Assemble the message to be sent.
+            MimeMessage message = buildEmail(manager.getSession(), email);
+
+            // Send the message.
+            LogFile.getLogFile().log("Sending the message to " + chunk.describe() + "...");
+            transport = manager.getTransport();
+            while (!chunk.isDone()){
+                try {
+                    transport.sendMessage(message, chunk.getAddresses());
+                    chunk.sent();
+                } catch (SendFailedException ex) {
+                    // The server refused the message or some of its recipients, and the connection was reset.
+                    if (!chunk.failed(ex) && !chunk.isDone()){
+                        reusable = true;
+                        throw ex;
+                    }
+                }
+            }
+            reusable = true;
+        } finally {
+            if (transport != null){
+                if (reusable){
+                    manager.release(transport);
+                } else {
+                    manager.discard(transport);
+                }
             }
-        } catch (NoSuchProviderException ex) {
-            LogFile.getLogFile().log("Couldn't find the mail provider.", ex);
-            return false;
-        } catch (MessagingException ex) {
-            LogFile.getLogFile().log("Message exception while initializing store", ex);
-            return false;
         }
     }
 
 
     /**
-     * Builds the message to be sent.
+     * Builds the message to be sent.  Package-private so that it can be benchmarked.  Only the To and Cc recipients are
+     * written into the message's headers; the Bcc recipients are given to the SMTP server as each chunk is sent, since
+     * the transport never sends a Bcc header and parsing a long email list into one for every chunk would be wasted.
      *
      * @param session The email session to use to build and send the messages.
+     * @param email the email to build the message from.
      *
      * @return a fully assembled and ready to send MimeMessage.
      * @throws MessagingException if an error occurs when assembling a message.
      */
-    private MimeMessage buildEmail(Session session, Email email) throws MessagingException{
+    MimeMessage buildEmail(Session session, Email email) throws MessagingException{
         // --- Define message
         LogFile.getLogFile().log("Constructing email message....");
         MimeMessage message = new MimeMessage(session);
@@ -127,6 +251,20 @@ public class EmailSender {
         bodyText.setText(email.getBody());
         multipart.addBodyPart(bodyText);
 
+        if (!email.getInlineBodies().isEmpty()){
+            LogFile.getLogFile().log("Adding inline content to email...");
+            MimeMultipart alternatives = new MimeMultipart("alternative");
+            for (DataSource source : email.getInlineBodies()){
+                MimeBodyPart part = new MimeBodyPart();
+                part.setDataHandler(new DataHandler(source));
+                part.setDisposition(Part.INLINE);
+                alternatives.addBodyPart(part);
+            }
+            MimeBodyPart inline = new MimeBodyPart();
+            inline.setContent(alternatives);
+            multipart.addBodyPart(inline);
+        }
+
         LogFile.getLogFile().log("Attaching attachment files...");
         for (String attachment : email.getAttachments()){
             try {
@@ -137,13 +275,17 @@ public class EmailSender {
                 LogFile.getLogFile().log("Error attaching '" + attachment + "' file to email.", ex);
             }
         }
+        for (DataSource source : email.getAttachmentSources()){
+            // The content is read from the source as the message is written out, without a copy being made.
+            MimeBodyPart att = new MimeBodyPart();
+            att.setDataHandler(new DataHandler(source));
+            att.setFileName(source.getName());
+            multipart.addBodyPart(att);
+        }
         message.setContent(multipart);
 
         // Add Recipients
-        LogFile.getLogFile().log("Adding " + email.getAllRecipients().size() + " email recipients...");
-        for (String address : email.getRecipients(RecipientType.BCC)){
-            message.addRecipient(Message.RecipientType.BCC, new InternetAddress(address));
-        }
+        LogFile.getLogFile().log("Adding the To and Cc recipients...");
         for (String address : email.getRecipients(RecipientType.CC)) {
             message.addRecipient(Message.RecipientType.CC, new InternetAddress(address));
         }
@@ -0,0 +1,93 @@
+package openagendamail.util.email;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import javax.mail.Session;
+
+/**
+ * Counts the IMAP commands a {@link Session} sends to the server.  Each IMAP command is a full round trip to the mail
+ * server, so this count is a good measure of how chatty a run against the inbox was.
+ *
+ * The counter works by installing itself as the Session's debug output and watching the protocol trace for tagged
+ * client commands (lines such as "A12 FETCH 1:40 (ENVELOPE)").  The server's tagged completions ("A12 OK ...") and
+ * untagged responses are ignored.  Nothing written to this counter is kept.  Every byte the session traces, message
+ * bodies included, is passed through the counter, so it is only worth attaching while diagnosing a run.
+ */
+public class ImapCommandCounter extends OutputStream {
+
+    /** The number of tagged commands seen so far. */
+    private int m_commands;
+
+    /** The first part of the current line, just enough to identify a tagged command. */
+    private StringBuilder m_lineStart;
+
+    /** True while the rest of the current line can be skipped. */
+    private boolean m_skipLine;
+
+    /** The maximum number of characters of a line to examine. */
+    private static final int MAX_PREFIX = 16;
+
+    /** Constructs a new ImapCommandCounter with a count of zero. */
+    public ImapCommandCounter(){
+        m_lineStart = new StringBuilder(MAX_PREFIX);
+    }
+
+    /**
+     * Installs this counter as the debug output of the supplied session and turns on protocol tracing so that the
+     * commands issued through the session are counted.
+     *
+     * @param session the session to count IMAP commands for.
+     */
+    public void attach(Session session){
+        session.setDebugOut(new PrintStream(this, true));
+        session.setDebug(true);
+    }
+
+    /**
+     * Returns the number of IMAP commands (round trips) counted so far.
+     * @return the number of IMAP commands (round trips) counted so far.
+     */
+    public synchronized int getCount(){
+        return m_commands;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void write(int b) {
+        if (b == '\n'){
+            checkLine();
+            m_lineStart.setLength(0);
+            m_skipLine = false;
+            return;
+        }
+        if (m_skipLine){
+            return;
+        }
+        m_lineStart.append((char)b);
+        if (m_lineStart.length() >= MAX_PREFIX){
+            checkLine();
+            m_skipLine = true;
+        }
+    }
+
+    /** Counts the current line if it starts with a client command tag ("A" followed by digits) and a command name. */
+    private void checkLine(){
+        if (m_skipLine){
+            return;
+        }
+        String line = m_lineStart.toString();
+        int space = line.indexOf(' ');
+        if (space < 2 || line.charAt(0) != 'A'){
+            return;
+        }
+        for (int i = 1; i < space; i++){
+            if (!Character.isDigit(line.charAt(i))){
+                return;
+            }
+        }
+        String rest = line.substring(space + 1);
+        if (!(rest.startsWith("OK") || rest.startsWith("NO") || rest.startsWith("BAD"))){
+            m_commands++;
+        }
+    }
+}
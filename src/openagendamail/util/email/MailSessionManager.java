@@ -0,0 +1,574 @@
+package openagendamail.util.email;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.Service;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.Transport;
+import openagendamail.file.LogFile;
+
+/**
+ * Owns the mail {@link Session} of one email account and a bounded pool of logged in IMAP {@link Store} and SMTP
+ * {@link Transport} connections to it.  Reading the inbox and sending mail borrow a connection from the pool and give
+ * it back when done, so the TLS handshake and login are paid once rather than on every read and every send, and every
+ * agenda that uses the account shares the same connections.
+ *
+ * A pooled connection is checked before it is handed out (a NOOP to the server) and replaced if it has gone stale.
+ * Connections left idle for longer than 'pool.idle.seconds' are logged out in the background.  Until then, an idle
+ * connection is sent a NOOP every 'pool.keepalive.seconds' or so, so that the server does not drop it for being idle
+ * and agendas, previews and reminders sent minutes apart share one login; one that no longer answers is logged out.
+ * Every pooled connection is logged out when the process exits.  At most
+ * 'pool.max.stores' IMAP and 'pool.max.transports' SMTP connections are open for an account at once; a borrower waits
+ * up to 'pool.wait.seconds' for one to be given back before giving up.
+ *
+ * The servers are Gmail's unless configured otherwise:  'imap.host', 'imap.port' and 'imap.ssl' (IMAP over SSL, on by
+ * default), and 'smtp.host', 'smtp.port', 'smtp.ssl' (SMTP over SSL, off by default) and 'smtp.starttls' (on by
+ * default).
+ *
+ * Borrowers must close any folder they opened before giving a Store back, and must discard, rather than give back, a
+ * connection that failed part way through a command.
+ */
+public class MailSessionManager {
+
+    /** The default most IMAP connections open for one account at once. */
+    public static final int DEFAULT_MAX_STORES = 4;
+
+    /** The default most SMTP connections open for one account at once. */
+    public static final int DEFAULT_MAX_TRANSPORTS = 2;
+
+    /** The default number of seconds a connection may sit unused in the pool before it is logged out. */
+    public static final int DEFAULT_IDLE_SECONDS = 300;
+
+    /** The default number of seconds between NOOPs sent to a connection sitting in the pool. */
+    public static final int DEFAULT_KEEPALIVE_SECONDS = 60;
+
+    /** The default number of seconds to wait for a connection when the pool is exhausted. */
+    public static final int DEFAULT_WAIT_SECONDS = 120;
+
+    /** The number of seconds between sweeps for idle connections, which is also how often they are kept alive. */
+    private static final int EVICTION_PERIOD_SECONDS = 60;
+
+    /** The manager of each account, by account. */
+    private static final ConcurrentMap<String, MailSessionManager> MANAGERS = new ConcurrentHashMap<>();
+
+    /** Logs out of the connections left idle for too long, for every account. */
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "mail-pool-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        EVICTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (MailSessionManager manager : MANAGERS.values()){
+                    manager.evictIdle();
+                    manager.keepAlive();
+                }
+            }
+        }, EVICTION_PERIOD_SECONDS, EVICTION_PERIOD_SECONDS, TimeUnit.SECONDS);
+
+        // Log out politely rather than leave the servers to time the connections out.
+        Runtime.getRuntime().addShutdownHook(new Thread("mail-pool-shutdown") {
+            @Override
+            public void run() {
+                closeAll();
+            }
+        });
+    }
+
+    /** The session messages are built in and SMTP connections to the account are made through. */
+    private final Session m_session;
+
+    /**
+     * The session IMAP connections are made through:  the account's session, or one of their own while IMAP commands
+     * are being counted, so that the protocol trace the count is read from does not cover the SMTP traffic.
+     */
+    private final Session m_storeSession;
+
+    /** The user name to log in with. */
+    private final String m_user;
+
+    /** The password to log in with. */
+    private final String m_password;
+
+    /** The IMAP protocol:  'imaps' for IMAP over SSL, or 'imap'. */
+    private final String m_imapProtocol;
+
+    /** The host of the IMAP server. */
+    private final String m_imapHost;
+
+    /** The port of the IMAP server. */
+    private final int m_imapPort;
+
+    /** The SMTP protocol:  'smtps' for SMTP over SSL, or 'smtp'. */
+    private final String m_smtpProtocol;
+
+    /** The host of the SMTP server. */
+    private final String m_smtpHost;
+
+    /** The port of the SMTP server. */
+    private final int m_smtpPort;
+
+    /** The number of milliseconds a connection may sit unused in the pool before it is logged out. */
+    private final long m_idleMillis;
+
+    /** The number of milliseconds between NOOPs sent to a connection sitting in the pool. */
+    private final long m_keepAliveMillis;
+
+    /** The number of seconds to wait for a connection when the pool is exhausted. */
+    private final long m_waitSeconds;
+
+    /** Counts the IMAP commands sent to the account, or null if they are not being counted. */
+    private final ImapCommandCounter m_counter;
+
+    /** The pool of IMAP connections. */
+    private final Pool<Store> m_stores;
+
+    /** The pool of SMTP connections. */
+    private final Pool<Transport> m_transports;
+
+    /**
+     * Constructor.
+     * @param props the configuration of the account.
+     */
+    private MailSessionManager(Properties props){
+        boolean imapSsl = props.getProperty("imap.ssl", "true").toLowerCase().equals("true");
+        m_imapProtocol = imapSsl ? "imaps" : "imap";
+        m_imapHost = props.getProperty("imap.host", "imap.gmail.com");
+        m_imapPort = Integer.valueOf(props.getProperty("imap.port", imapSsl ? "993" : "143"));
+
+        // Uses port 587 by default because we're using TLS/STARTTLS, its 465 for SSL.
+        boolean smtpSsl = props.getProperty("smtp.ssl", "false").toLowerCase().equals("true");
+        m_smtpProtocol = smtpSsl ? "smtps" : "smtp";
+        m_smtpHost = props.getProperty("smtp.host", "smtp.gmail.com");
+        m_smtpPort = Integer.valueOf(props.getProperty("smtp.port", smtpSsl ? "465" : "587"));
+
+        Properties sessionProps = new Properties();
+        sessionProps.putAll(props);
+        sessionProps.setProperty("mail.store.protocol", m_imapProtocol);
+        sessionProps.setProperty("mail.transport.protocol", m_smtpProtocol);
+        sessionProps.setProperty("mail." + m_smtpProtocol + ".starttls.enable",
+                props.getProperty("smtp.starttls", "true").toLowerCase());
+        sessionProps.setProperty("mail." + m_smtpProtocol + ".auth", "true");
+        sessionProps.setProperty("mail." + m_smtpProtocol + ".host", m_smtpHost);
+        if (props.getProperty("email") != null){
+            sessionProps.setProperty("mail." + m_smtpProtocol + ".user", props.getProperty("email"));
+        }
+        m_session = Session.getInstance(sessionProps);
+        m_user = props.getProperty("email");
+        m_password = props.getProperty("password");
+        m_idleMillis = Long.valueOf(props.getProperty("pool.idle.seconds", String.valueOf(DEFAULT_IDLE_SECONDS))) * 1000;
+        m_keepAliveMillis = Long.valueOf(props.getProperty("pool.keepalive.seconds",
+                String.valueOf(DEFAULT_KEEPALIVE_SECONDS))) * 1000;
+        m_waitSeconds = Long.valueOf(props.getProperty("pool.wait.seconds", String.valueOf(DEFAULT_WAIT_SECONDS)));
+
+        if (props.getProperty("imap.count.round.trips", "false").toLowerCase().equals("true")){
+            m_counter = new ImapCommandCounter();
+            m_storeSession = Session.getInstance(sessionProps);
+            m_counter.attach(m_storeSession);
+        } else {
+            m_counter = null;
+            m_storeSession = m_session;
+        }
+
+        int maxStores = Integer.valueOf(props.getProperty("pool.max.stores", String.valueOf(DEFAULT_MAX_STORES)));
+        m_stores = new Pool<Store>("IMAP", maxStores) {
+            @Override
+            Store connect() throws MessagingException {
+                Store store = m_storeSession.getStore(m_imapProtocol);
+                store.connect(m_imapHost, m_imapPort, m_user, m_password);
+                return store;
+            }
+        };
+        int maxTransports = Integer.valueOf(props.getProperty("pool.max.transports", String.valueOf(DEFAULT_MAX_TRANSPORTS)));
+        m_transports = new Pool<Transport>("SMTP", maxTransports) {
+            @Override
+            Transport connect() throws MessagingException {
+                Transport transport = m_session.getTransport(m_smtpProtocol);
+                transport.connect(m_smtpHost, m_smtpPort, m_user, m_password);
+                return transport;
+            }
+        };
+    }
+
+    /**
+     * Returns the manager of the account described by the given properties ('email', 'password' and the server
+     * settings), creating it the first time the account is used.  Every caller using the same account shares one
+     * manager, and the manager keeps the configuration it was created with.
+     *
+     * @param props the configuration of the account.
+     * @return the account's manager.
+     */
+    public static MailSessionManager getManager(Properties props){
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' cannot be null.");
+        }
+        String key = String.valueOf(props.getProperty("email")).trim().toLowerCase() + "|"
+                + props.getProperty("imap.host", "imap.gmail.com").trim().toLowerCase() + ":"
+                + props.getProperty("imap.port", "") + "|"
+                + props.getProperty("smtp.host", "smtp.gmail.com").trim().toLowerCase() + ":"
+                + props.getProperty("smtp.port", "");
+        MailSessionManager manager = MANAGERS.get(key);
+        if (manager == null){
+            MANAGERS.putIfAbsent(key, new MailSessionManager(props));
+            manager = MANAGERS.get(key);
+        }
+        return manager;
+    }
+
+    /**
+     * Returns the manager of the given account, creating it the first time the account is used.
+     *
+     * @param account the email account.
+     * @param props the rest of the configuration of the account.
+     * @return the account's manager.
+     * @see #getManager(java.util.Properties)
+     */
+    public static MailSessionManager getManager(EmailAccount account, Properties props){
+        Properties accountProps = new Properties();
+        accountProps.putAll(props);
+        accountProps.setProperty("email", account.getAddress());
+        accountProps.setProperty("password", account.getPassword());
+        return getManager(accountProps);
+    }
+
+    /** Logs out of every pooled connection of every account and forgets the accounts. */
+    public static void closeAll(){
+        for (MailSessionManager manager : MANAGERS.values()){
+            manager.m_stores.closeIdle(0);
+            manager.m_transports.closeIdle(0);
+        }
+        MANAGERS.clear();
+    }
+
+    /**
+     * Returns the session connections to the account are made through, for example to build messages with.
+     * @return the account's session.
+     */
+    public Session getSession(){
+        return m_session;
+    }
+
+    /**
+     * Returns the counter of IMAP commands sent to the account, or null if they are not being counted.  The count
+     * covers every connection to the account, so callers measure a run by the change in the count.
+     *
+     * @return the counter of IMAP commands, or null.
+     */
+    public ImapCommandCounter getCommandCounter(){
+        return m_counter;
+    }
+
+    /**
+     * Returns the most IMAP connections open for the account at once.
+     * @return the most IMAP connections open for the account at once.
+     */
+    public int getMaxStores(){
+        return m_stores.m_max;
+    }
+
+    /**
+     * Borrows a logged in IMAP connection, waiting if every connection is in use.  The connection must be given back
+     * with {@link #release(javax.mail.Store)} or {@link #discard(javax.mail.Store)}.
+     *
+     * @return a logged in IMAP connection.
+     * @throws MessagingException if no connection could be made, or none was free in time.
+     */
+    public Store getStore() throws MessagingException {
+        return m_stores.borrow();
+    }
+
+    /**
+     * Gives back an IMAP connection that is still usable.  Any folders opened through it must already be closed.
+     * @param store the connection.
+     */
+    public void release(Store store){
+        m_stores.giveBack(store, true);
+    }
+
+    /**
+     * Gives back an IMAP connection that failed, so that it is logged out rather than reused.
+     * @param store the connection.
+     */
+    public void discard(Store store){
+        m_stores.giveBack(store, false);
+    }
+
+    /**
+     * Returns the most SMTP connections open for the account at once.
+     * @return the most SMTP connections open for the account at once.
+     */
+    public int getMaxTransports(){
+        return m_transports.m_max;
+    }
+
+    /**
+     * Borrows a logged in SMTP connection, waiting if every connection is in use.  The connection must be given back
+     * with {@link #release(javax.mail.Transport)} or {@link #discard(javax.mail.Transport)}.
+     *
+     * @return a logged in SMTP connection.
+     * @throws MessagingException if no connection could be made, or none was free in time.
+     */
+    public Transport getTransport() throws MessagingException {
+        return m_transports.borrow();
+    }
+
+    /**
+     * Gives back an SMTP connection that is still usable.
+     * @param transport the connection.
+     */
+    public void release(Transport transport){
+        m_transports.giveBack(transport, true);
+    }
+
+    /**
+     * Gives back an SMTP connection that failed, so that it is logged out rather than reused.
+     * @param transport the connection.
+     */
+    public void discard(Transport transport){
+        m_transports.giveBack(transport, false);
+    }
+
+    /** Logs out of the connections that have sat unused in the pool for longer than the idle limit. */
+    public void evictIdle(){
+        m_stores.closeIdle(m_idleMillis);
+        m_transports.closeIdle(m_idleMillis);
+    }
+
+    /**
+     * Sends a NOOP to each connection that has sat in the pool without one for longer than 'pool.keepalive.seconds',
+     * so that the server keeps it open, and logs out of any that no longer answer.
+     */
+    public void keepAlive(){
+        m_stores.keepAlive(m_keepAliveMillis);
+        m_transports.keepAlive(m_keepAliveMillis);
+    }
+
+    /**
+     * Logs out of a connection, ignoring any errors.
+     * @param service the connection to close.
+     */
+    private static void closeQuietly(Service service){
+        try {
+            service.close();
+        } catch (MessagingException | RuntimeException ex) {
+            // Do nothing, the connection is being thrown away.
+        }
+    }
+
+    /**
+     * A bounded pool of one kind of connection.  Idle connections are reused most recently used first, so that the
+     * connections beyond what is needed age out.
+     */
+    private abstract class Pool<T extends Service> {
+
+        /** The kind of connection, for the log. */
+        private final String m_kind;
+
+        /** The most connections open at once. */
+        private final int m_max;
+
+        /** One permit for each connection that may still be borrowed. */
+        private final Semaphore m_permits;
+
+        /** The idle connections, most recently used first, each with the time it was given back. */
+        private final Deque<Idle<T>> m_idle = new ArrayDeque<>();
+
+        /**
+         * Constructor.
+         * @param kind the kind of connection, for the log.
+         * @param max the most connections open at once.
+         */
+        Pool(String kind, int max){
+            if (max < 1){
+                throw new IllegalArgumentException("The " + kind + " connection pool must hold at least one connection.");
+            }
+            m_kind = kind;
+            m_max = max;
+            m_permits = new Semaphore(max, true);
+        }
+
+        /**
+         * Opens and logs in a new connection.
+         * @return the new connection.
+         * @throws MessagingException if the connection could not be made.
+         */
+        abstract T connect() throws MessagingException;
+
+        /**
+         * Borrows a connection:  the most recently used idle connection that is still alive, or a new one.
+         * @return a logged in connection.
+         * @throws MessagingException if no connection could be made, or none was free in time.
+         */
+        T borrow() throws MessagingException {
+            try {
+                if (!m_permits.tryAcquire(m_waitSeconds, TimeUnit.SECONDS)){
+                    throw new MessagingException("Timed out waiting for a free " + m_kind + " connection to " + m_user + ".");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while waiting for a free " + m_kind + " connection.", ex);
+            }
+
+            try {
+                for (T service = takeIdle(); service != null; service = takeIdle()){
+                    if (service.isConnected()){
+                        return service;
+                    }
+                    closeQuietly(service);
+                }
+                LogFile.getLogFile().log("Opening a new " + m_kind + " connection to " + m_user + ".");
+                return connect();
+            } catch (MessagingException | RuntimeException ex) {
+                m_permits.release();
+                throw ex;
+            }
+        }
+
+        /**
+         * Gives a borrowed connection back to the pool.
+         * @param service the connection.
+         * @param reusable true if the connection may be handed out again, false to log out of it.
+         */
+        void giveBack(T service, boolean reusable){
+            if (service == null){
+                return;
+            }
+            if (reusable){
+                long now = System.currentTimeMillis();
+                synchronized (m_idle){
+                    m_idle.addFirst(new Idle<>(service, now, now));
+                }
+            } else {
+                closeQuietly(service);
+            }
+            m_permits.release();
+        }
+
+        /**
+         * Logs out of the idle connections given back longer ago than the given limit.
+         * @param idleMillis the limit, in milliseconds.  Zero closes every idle connection.
+         */
+        void closeIdle(long idleMillis){
+            long cutoff = System.currentTimeMillis() - idleMillis;
+            Deque<Idle<T>> expired = new ArrayDeque<>();
+            synchronized (m_idle){
+                Iterator<Idle<T>> it = m_idle.iterator();
+                while (it.hasNext()){
+                    Idle<T> idle = it.next();
+                    if (idleMillis == 0 || idle.m_since < cutoff){
+                        expired.add(idle);
+                        it.remove();
+                    }
+                }
+            }
+            for (Idle<T> idle : expired){
+                closeQuietly(idle.m_service);
+            }
+        }
+
+        /**
+         * Sends a NOOP to each idle connection that has not had one for longer than the given time, and logs out of
+         * those that no longer answer.  The connections are taken out of the pool while they are checked, so no one
+         * borrows them at the same time, and put back where they were.
+         *
+         * @param checkMillis the time, in milliseconds.  Zero checks every idle connection.
+         */
+        void keepAlive(long checkMillis){
+            long cutoff = System.currentTimeMillis() - checkMillis;
+            List<Idle<T>> due = new ArrayList<>();
+            synchronized (m_idle){
+                Iterator<Idle<T>> it = m_idle.iterator();
+                while (it.hasNext()){
+                    Idle<T> idle = it.next();
+                    if (idle.m_checked <= cutoff){
+                        due.add(idle);
+                        it.remove();
+                    }
+                }
+            }
+            for (Idle<T> idle : due){
+                // Service.isConnected sends the NOOP, and closes the connection if the server does not answer.
+                if (!idle.m_service.isConnected()){
+                    LogFile.getLogFile().log("An idle " + m_kind + " connection to " + m_user + " was dropped.");
+                    closeQuietly(idle.m_service);
+                    continue;
+                }
+                boolean full;
+                synchronized (m_idle){
+                    // A connection may have been opened in its place while it was out of the pool, in which case
+                    // the pool already holds as many connections as there are free permits to borrow them with.
+                    full = m_idle.size() >= m_permits.availablePermits();
+                    if (!full){
+                        List<Idle<T>> idles = new ArrayList<>(m_idle);
+                        int at = 0;
+                        while (at < idles.size() && idles.get(at).m_since >= idle.m_since){
+                            at++;
+                        }
+                        idles.add(at, new Idle<>(idle.m_service, idle.m_since, System.currentTimeMillis()));
+                        m_idle.clear();
+                        m_idle.addAll(idles);
+                    }
+                }
+                if (full){
+                    closeQuietly(idle.m_service);
+                }
+            }
+        }
+
+        /**
+         * Takes the most recently used idle connection out of the pool.
+         * @return the connection, or null if none are idle.
+         */
+        private T takeIdle(){
+            synchronized (m_idle){
+                Idle<T> idle = m_idle.pollFirst();
+                return idle == null ? null : idle.m_service;
+            }
+        }
+    }
+
+    /** An idle connection, the time it was given back and the time it was last known to be alive. */
+    private static class Idle<T> {
+
+        /** The connection. */
+        private final T m_service;
+
+        /** The time the connection was given back, in milliseconds. */
+        private final long m_since;
+
+        /** The time the connection was last used or sent a NOOP, in milliseconds. */
+        private final long m_checked;
+
+        /**
+         * Constructor.
+         * @param service the connection.
+         * @param since the time the connection was given back, in milliseconds.
+         * @param checked the time the connection was last used or sent a NOOP, in milliseconds.
+         */
+        Idle(T service, long since, long checked){
+            m_service = service;
+            m_since = since;
+            m_checked = checked;
+        }
+    }
+}
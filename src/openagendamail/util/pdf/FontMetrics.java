@@ -0,0 +1,162 @@
+package openagendamail.util.pdf;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import plainpdf.PdfFont;
+
+/**
+ * The metrics of one of the standard Type 1 fonts at one size, kept for the life of the process so that every agenda
+ * built by a long running process shares them.  The glyph widths of each font are read from PDFBox once; after that,
+ * measuring text is a table lookup per character, and the widths of the words wrapped most often are remembered so
+ * measuring them again is a single lookup.
+ *
+ * The fonts PDFBox hands out are shared and cache glyph widths in a plain HashMap, so they cannot be measured from
+ * several threads at once; these metrics can be.  Widths are summed exactly as PDFBox sums them, character by
+ * character in single precision, so text measures the same here as it does in PlainPdf.
+ *
+ * The caches are bounded:  at most {@link #MAX_SIZES} font and size pairs are kept, each remembering the widths of at
+ * most {@link #MAX_CACHED_WORDS} words of at most {@link #MAX_CACHED_WORD_LENGTH} characters, which holds the heap they
+ * can use to a few megabytes.  A word cache that fills up is emptied and starts over with the words in use.
+ */
+final class FontMetrics {
+
+    /** The most font and size pairs whose metrics are kept.  Metrics beyond these are created each time. */
+    static final int MAX_SIZES = 32;
+
+    /** The most word widths remembered for each font and size. */
+    static final int MAX_CACHED_WORDS = 4096;
+
+    /** The longest word whose width is remembered.  Longer words are rare and measured each time. */
+    static final int MAX_CACHED_WORD_LENGTH = 32;
+
+    /** The glyph widths of each font read so far, by character code, in thousandths of the font size. */
+    private static final Map<PdfFont, float[]> GLYPH_WIDTHS = new EnumMap<>(PdfFont.class);
+
+    /** The height of the bounding box of each font read so far, in thousandths of the font size. */
+    private static final Map<PdfFont, Float> HEIGHTS = new EnumMap<>(PdfFont.class);
+
+    /** The metrics kept, by font and size. */
+    private static final ConcurrentMap<String, FontMetrics> METRICS = new ConcurrentHashMap<>();
+
+    /** The glyph widths of the font, by character code, in thousandths of the font size. */
+    private final float[] m_glyphWidths;
+
+    /** The size of the font. */
+    private final int m_size;
+
+    /** The height of a line. */
+    private final float m_lineHeight;
+
+    /** The width of a space. */
+    private final float m_spaceWidth;
+
+    /** The widths of the words measured, in points. */
+    private final ConcurrentMap<String, Float> m_words = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param font the font.
+     * @param size the size of the font.
+     * @throws IOException if the font's metrics cannot be read.
+     */
+    private FontMetrics(PdfFont font, int size) throws IOException {
+        synchronized (GLYPH_WIDTHS){
+            float[] widths = GLYPH_WIDTHS.get(font);
+            if (widths == null){
+                PDType1Font metrics = PDType1Font.getStandardFont(TextBlock.getBaseFont(font));
+                widths = new float[256];
+                for (int c = 0; c < widths.length; c++){
+                    widths[c] = metrics.getStringWidth(String.valueOf((char)c));
+                }
+                GLYPH_WIDTHS.put(font, widths);
+                HEIGHTS.put(font, metrics.getFontDescriptor().getFontBoundingBox().getHeight());
+            }
+            m_glyphWidths = widths;
+            m_lineHeight = HEIGHTS.get(font) / 1000 * size;
+        }
+        m_size = size;
+        m_spaceWidth = measure(" ");
+    }
+
+    /**
+     * Returns the metrics of a font at a size, creating them the first time they are asked for.
+     * @param font the font.
+     * @param size the size of the font.
+     * @return the metrics.
+     * @throws IOException if the font's metrics cannot be read.
+     */
+    static FontMetrics get(PdfFont font, int size) throws IOException {
+        String key = font.name() + ' ' + size;
+        FontMetrics metrics = METRICS.get(key);
+        if (metrics == null){
+            metrics = new FontMetrics(font, size);
+            if (METRICS.size() < MAX_SIZES){
+                FontMetrics existing = METRICS.putIfAbsent(key, metrics);
+                if (existing != null){
+                    metrics = existing;
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the width of text, remembering it if the text is short enough to be a word worth keeping.  Characters
+     * outside ISO-8859-1 are measured as '?', as PDFBox measures them.
+     *
+     * @param text the text.
+     * @return the width, in points.
+     */
+    float getWidth(String text){
+        if (text.length() > MAX_CACHED_WORD_LENGTH){
+            return measure(text);
+        }
+        Float width = m_words.get(text);
+        if (width == null){
+            width = measure(text);
+            if (m_words.size() >= MAX_CACHED_WORDS){
+                m_words.clear();
+            }
+            m_words.put(text, width);
+        }
+        return width;
+    }
+
+    /**
+     * Returns the width of a space.
+     * @return the width, in points.
+     */
+    float getSpaceWidth(){
+        return m_spaceWidth;
+    }
+
+    /**
+     * Returns the height of a line of text, as PlainPdf measures it:  the height of the font's bounding box.
+     * @return the height, in points.
+     */
+    float getLineHeight(){
+        return m_lineHeight;
+    }
+
+    /**
+     * Returns the number of word widths remembered.
+     * @return the number of words.
+     */
+    int getCachedWordCount(){
+        return m_words.size();
+    }
+
+    /** Measures text from the glyph widths. */
+    private float measure(String text){
+        float width = 0;
+        for (int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            width += m_glyphWidths[c < m_glyphWidths.length ? c : '?'];
+        }
+        return width / 1000 * m_size;
+    }
+}
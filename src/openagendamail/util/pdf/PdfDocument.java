@@ -0,0 +1,34 @@
+package openagendamail.util.pdf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import plainpdf.PdfFont;
+
+/**
+ * A PDF document that text is rendered into a line at a time, top to bottom, with lines that are too long wrapped and
+ * pages added as needed.  The document is written to its file by {@link #save()}.  Documents must be closed when done
+ * with; closing a document that was never saved throws away anything written so far.
+ */
+public interface PdfDocument extends Closeable {
+
+    /**
+     * Renders a line of text, wrapping it over as many lines as it needs.
+     * @param text the text to render.
+     * @param font the font to render the text in.
+     * @param size the size of the font.
+     * @throws IOException if the text cannot be rendered.
+     */
+    public void renderLine(String text, PdfFont font, int size) throws IOException;
+
+    /**
+     * Skips a line the height of the document's default font.
+     * @throws IOException if the line cannot be skipped.
+     */
+    public void insertBlankLine() throws IOException;
+
+    /**
+     * Finishes the document and writes it to its file.  Nothing more can be rendered afterwards.
+     * @throws IOException if the document cannot be written.
+     */
+    public void save() throws IOException;
+}
@@ -0,0 +1,87 @@
+package openagendamail.util.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import plainpdf.Pdf;
+import plainpdf.PdfFont;
+
+/**
+ * A {@link PdfDocument} built with PlainPdf.  The whole document is held in memory until it is saved.
+ *
+ * Text is wrapped by a {@link TextBlock}, which measures it with the process wide {@link FontMetrics}, before it is
+ * handed to PlainPdf a line at a time.  The lines always fit, so PlainPdf measures each of them once rather than
+ * re-measuring a growing line word by word, and never drops the words it loses when it wraps text itself.  Line breaks
+ * in the text start new lines.
+ */
+public class PlainPdfDocument implements PdfDocument {
+
+    /** The document. */
+    private final Pdf m_pdf;
+
+    /** The name of the file the document is saved to. */
+    private final String m_fileName;
+
+    /** The font of blank lines. */
+    private final PdfFont m_defaultFont;
+
+    /** The size of the font of blank lines. */
+    private final int m_defaultSize;
+
+    /**
+     * Constructor.
+     * @param fileName the name of the file the document is saved to.
+     * @param defaultFont the font of blank lines.
+     * @param defaultSize the size of the font of blank lines.
+     */
+    public PlainPdfDocument(String fileName, PdfFont defaultFont, int defaultSize){
+        if (fileName == null){
+            throw new IllegalArgumentException("Parameter 'fileName' cannot be null.");
+        }
+        m_pdf = new Pdf(defaultFont, defaultSize);
+        m_fileName = fileName;
+        m_defaultFont = defaultFont;
+        m_defaultSize = defaultSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void renderLine(String text, PdfFont font, int size) throws IOException {
+        TextBlock block = new TextBlock(m_defaultFont, m_defaultSize);
+        block.addLine(text, font, size);
+        for (TextBlock.Line line : block.getLines()){
+            m_pdf.renderLine(line.getText(), font, size);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void insertBlankLine() throws IOException {
+        m_pdf.insertBlankLine();
+    }
+
+    /**
+     * Saves the document.  It is written under a temporary name and then renamed, so that a reader of the file, such as
+     * the agenda's sender, never sees it half written.
+     * {@inheritDoc}
+     */
+    @Override
+    public void save() throws IOException {
+        File temp = new File(m_fileName + ".part");
+        try {
+            m_pdf.saveAs(temp.getPath());
+            Files.move(temp.toPath(), new File(m_fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (COSVisitorException ex) {
+            throw new IOException("Error while saving pdf document.", ex);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /** Does nothing:  an unsaved PlainPdf document is never written anywhere. */
+    @Override
+    public void close(){
+    }
+}
@@ -0,0 +1,663 @@
+package openagendamail.util.pdf;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import plainpdf.PdfFont;
+
+/**
+ * A {@link PdfDocument} that is written to its file a page at a time, so the memory it uses is bounded by a single
+ * page however long the agenda is.  Each page's content is written out as soon as the page is full, and only the
+ * file offsets of the objects written so far are kept until the document is saved.
+ *
+ * The layout matches PlainPdf's:  Letter pages with the same margins and line spacing, lines wrapped at word breaks,
+ * and the standard Type 1 fonts, which are not embedded.  Line breaks in the text start new lines, and text runs on
+ * from one page to the next wherever the page break falls.  Characters the standard fonts cannot show are rendered as
+ * '?'.
+ *
+ * Text can also be laid out ahead of time, on any thread, as {@link TextBlock}s and then written with
+ * {@link #render(TextBlock)}.
+ *
+ * The document is written to a '.part' file next to its file, which replaces the file when the document is saved.  It
+ * can also be written to a stream instead, such as an in-memory buffer.
+ *
+ * A compact document is written as a PDF 1.5 file, about a third smaller for the same pages.  Its page, font and
+ * catalog objects are packed into compressed object streams, and its cross-reference table into a compressed stream
+ * too; the page size and fonts are given once, on the page tree, rather than on every page; lines are written with the
+ * text leading operators rather than a move per line; and everything is compressed as tightly as Flate allows.  The
+ * fonts are the standard ones, which are never embedded, so there is nothing to subset.
+ */
+public class StreamingPdfDocument implements PdfDocument {
+
+    /** The width of a page, in points (US Letter). */
+    static final float PAGE_WIDTH = 612;
+
+    /** The height of a page, in points (US Letter). */
+    static final float PAGE_HEIGHT = 792;
+
+    /** The margin on either side of a page. */
+    static final float SIDE_MARGIN = 70;
+
+    /** The margin at the top of a page. */
+    static final float TOP_BOTTOM_MARGIN = 80;
+
+    /** A new page is started once a line ends below this height, as PlainPdf does. */
+    static final float PAGE_BREAK_Y = 2 * TOP_BOTTOM_MARGIN;
+
+    /** The width text is wrapped to. */
+    static final float TEXT_WIDTH = PAGE_WIDTH - 2 * SIDE_MARGIN;
+
+    /** The object number of the document catalog. */
+    private static final int CATALOG_ID = 1;
+
+    /** The object number of the page tree. */
+    private static final int PAGES_ID = 2;
+
+    /** The most objects packed into one object stream of a compact document. */
+    static final int OBJECTS_PER_STREAM = 100;
+
+    /** True to write a compact document. */
+    private final boolean m_compact;
+
+    /** The file the document is written to until it is saved, or null if it is written to a stream. */
+    private final File m_partFile;
+
+    /** The file the document is saved to, or null if it is written to a stream. */
+    private final File m_file;
+
+    /** The output, counting the bytes written so object offsets are known. */
+    private final CountingOutputStream m_out;
+
+    /** The font of blank lines. */
+    private final PdfFont m_defaultFont;
+
+    /** The size of the font of blank lines. */
+    private final int m_defaultSize;
+
+    /**
+     * The file offset of each object written, by object number less one.  Unwritten objects, and objects packed into
+     * an object stream, are null.
+     */
+    private final List<Long> m_offsets = new ArrayList<>();
+
+    /** The object number of the object stream each packed object is in, and its index there, by object number. */
+    private final Map<Integer, int[]> m_packed = new HashMap<>();
+
+    /** The object numbers and offsets of the objects waiting to be packed, as an object stream lists them. */
+    private final StringBuilder m_packIndex = new StringBuilder();
+
+    /** The objects waiting to be packed. */
+    private final StringBuilder m_packObjects = new StringBuilder();
+
+    /** The object number of the object stream the waiting objects are packed into, or 0 if none are waiting. */
+    private int m_packId;
+
+    /** The number of objects waiting to be packed. */
+    private int m_packCount;
+
+    /** The number of bytes the document's streams were made smaller by compressing them. */
+    private long m_compressedBytes;
+
+    /** The object numbers of the pages written. */
+    private final List<Integer> m_pageIds = new ArrayList<>();
+
+    /** The object numbers of the fonts written, by base font name. */
+    private final Map<String, Integer> m_fontIds = new LinkedHashMap<>();
+
+    /** The fonts used on the current page, by resource name. */
+    private final Map<String, Integer> m_pageFonts = new LinkedHashMap<>();
+
+    /** The content of the current page. */
+    private final ByteArrayOutputStream m_page = new ByteArrayOutputStream();
+
+    /** The font and size last set on the current page, or null if none has been set. */
+    private String m_pageFont;
+
+    /** The text leading last set on the current page of a compact document, or 0 if none has been set. */
+    private float m_leading;
+
+    /** The height of the baseline of the last line written. */
+    private float m_y;
+
+    /** True once the document has been saved. */
+    private boolean m_saved;
+
+    /**
+     * Constructor.  Starts writing the document to a file.
+     *
+     * @param fileName the name of the file the document is saved to.
+     * @param defaultFont the font of blank lines.
+     * @param defaultSize the size of the font of blank lines.
+     * @throws IOException if the file cannot be written.
+     */
+    public StreamingPdfDocument(String fileName, PdfFont defaultFont, int defaultSize) throws IOException {
+        this(fileName, null, defaultFont, defaultSize, false);
+    }
+
+    /**
+     * Constructor.  Starts writing the document to a file.
+     *
+     * @param fileName the name of the file the document is saved to.
+     * @param defaultFont the font of blank lines.
+     * @param defaultSize the size of the font of blank lines.
+     * @param compact true to write a compact PDF 1.5 document.
+     * @throws IOException if the file cannot be written.
+     */
+    public StreamingPdfDocument(String fileName, PdfFont defaultFont, int defaultSize, boolean compact)
+            throws IOException {
+        this(fileName, null, defaultFont, defaultSize, compact);
+    }
+
+    /**
+     * Constructor.  Starts writing the document to a stream, such as an in-memory buffer.  Nothing is written to disk,
+     * and the stream is closed when the document is saved or closed.
+     *
+     * @param out the stream to write the document to.
+     * @param defaultFont the font of blank lines.
+     * @param defaultSize the size of the font of blank lines.
+     * @throws IOException if the stream cannot be written.
+     */
+    public StreamingPdfDocument(OutputStream out, PdfFont defaultFont, int defaultSize) throws IOException {
+        this(null, out, defaultFont, defaultSize, false);
+    }
+
+    /**
+     * Constructor.  Starts writing the document to a stream, such as an in-memory buffer.  Nothing is written to disk,
+     * and the stream is closed when the document is saved or closed.
+     *
+     * @param out the stream to write the document to.
+     * @param defaultFont the font of blank lines.
+     * @param defaultSize the size of the font of blank lines.
+     * @param compact true to write a compact PDF 1.5 document.
+     * @throws IOException if the stream cannot be written.
+     */
+    public StreamingPdfDocument(OutputStream out, PdfFont defaultFont, int defaultSize, boolean compact)
+            throws IOException {
+        this(null, out, defaultFont, defaultSize, compact);
+    }
+
+    /**
+     * Constructor.  Starts writing the document to a file or a stream.
+     *
+     * @param fileName the name of the file the document is saved to, or null to write to the stream.
+     * @param out the stream to write the document to, or null to write to the file.
+     * @param defaultFont the font of blank lines.
+     * @param defaultSize the size of the font of blank lines.
+     * @param compact true to write a compact PDF 1.5 document.
+     * @throws IOException if the document cannot be written.
+     */
+    private StreamingPdfDocument(String fileName, OutputStream out, PdfFont defaultFont, int defaultSize,
+            boolean compact) throws IOException {
+        if (fileName == null && out == null){
+            throw new IllegalArgumentException("Parameters 'fileName' and 'out' cannot both be null.");
+        }
+        if (defaultFont == null){
+            throw new IllegalArgumentException("Parameter 'defaultFont' cannot be null.");
+        }
+        if (defaultSize <= 0){
+            throw new IllegalArgumentException("Parameter 'defaultSize' must be greater than zero.");
+        }
+        m_file = fileName == null ? null : new File(fileName);
+        m_partFile = fileName == null ? null : new File(fileName + ".part");
+        m_defaultFont = defaultFont;
+        m_defaultSize = defaultSize;
+        m_compact = compact;
+        m_offsets.add(null);
+        m_offsets.add(null);
+        m_out = new CountingOutputStream(out != null ? out
+                : new BufferedOutputStream(new FileOutputStream(m_partFile)));
+        write(compact ? "%PDF-1.5\n%\u00e2\u00e3\u00cf\u00d3\n" : "%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+        startPage();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void renderLine(String text, PdfFont font, int size) throws IOException {
+        TextBlock block = new TextBlock(m_defaultFont, m_defaultSize);
+        block.addLine(text, font, size);
+        render(block);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void insertBlankLine() throws IOException {
+        TextBlock block = new TextBlock(m_defaultFont, m_defaultSize);
+        block.addBlankLine();
+        render(block);
+    }
+
+    /**
+     * Writes a block of text that has already been laid out, starting new pages as it needs them.  Rendering blocks one
+     * after another gives the same document as rendering their lines directly.
+     *
+     * @param block the block to write.
+     * @throws IOException if the block cannot be written.
+     */
+    public void render(TextBlock block) throws IOException {
+        checkOpen();
+        for (TextBlock.Line line : block.getLines()){
+            if (line.getText() == null){
+                writeContent(line);
+                m_y -= line.getHeight();
+            } else {
+                writeLine(line);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of pages written so far, counting the one being rendered.
+     * @return the number of pages.
+     */
+    public int getPageCount(){
+        return m_pageIds.size() + (m_saved ? 0 : 1);
+    }
+
+    /**
+     * Returns the number of bytes of the document written so far.  Once the document is saved this is its size.
+     * @return the number of bytes written.
+     */
+    public long getSize(){
+        return m_out.getCount();
+    }
+
+    /**
+     * Returns the number of bytes the document written so far would take if none of its streams were compressed.
+     * @return the number of bytes.
+     */
+    public long getUncompressedSize(){
+        return m_out.getCount() + m_compressedBytes;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void save() throws IOException {
+        checkOpen();
+        endPage();
+        if (m_compact){
+            saveCompact();
+            return;
+        }
+
+        StringBuilder kids = new StringBuilder();
+        for (int id : m_pageIds){
+            kids.append(kids.length() == 0 ? "" : " ").append(id).append(" 0 R");
+        }
+        writeObject(PAGES_ID, "<< /Type /Pages /Kids [" + kids + "] /Count " + m_pageIds.size() + " >>");
+        writeObject(CATALOG_ID, "<< /Type /Catalog /Pages " + PAGES_ID + " 0 R >>");
+
+        long xref = m_out.getCount();
+        StringBuilder table = new StringBuilder();
+        table.append("xref\n0 ").append(m_offsets.size() + 1).append('\n');
+        table.append("0000000000 65535 f \n");
+        for (Long offset : m_offsets){
+            table.append(String.format(Locale.US, "%010d 00000 n \n", offset));
+        }
+        table.append("trailer\n<< /Size ").append(m_offsets.size() + 1).append(" /Root ").append(CATALOG_ID)
+                .append(" 0 R >>\nstartxref\n").append(xref).append("\n%%EOF\n");
+        write(table.toString());
+        m_out.close();
+        m_saved = true;
+        if (m_file != null){
+            Files.move(m_partFile.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Stops writing the document.  If it was not saved the part written so far is deleted. */
+    @Override
+    public void close() throws IOException {
+        if (!m_saved){
+            m_saved = true;
+            m_out.close();
+            if (m_partFile != null){
+                Files.deleteIfExists(m_partFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Writes one line of text, starting a new page if the line ends below the bottom margin.
+     * @param line the line, already wrapped to fit the page.
+     * @throws IOException if the line cannot be written.
+     */
+    private void writeLine(TextBlock.Line line) throws IOException {
+        String pageFont = getResourceName(line.getFont()) + " " + line.getSize();
+        if (!pageFont.equals(m_pageFont)){
+            writePage("/" + pageFont + " Tf\n");
+            m_pageFont = pageFont;
+        }
+        writeContent(line);
+        m_y -= line.getHeight();
+        if (m_y < PAGE_BREAK_Y){
+            endPage();
+            startPage();
+        }
+    }
+
+    /** Starts a new page at the top left corner of the text area. */
+    private void startPage(){
+        m_page.reset();
+        m_pageFonts.clear();
+        m_pageFont = null;
+        m_leading = 0;
+        m_y = PAGE_HEIGHT - TOP_BOTTOM_MARGIN;
+        writePage("BT\n" + number(SIDE_MARGIN) + " " + number(m_y) + " Td\n");
+    }
+
+    /**
+     * Writes the current page and its content to the file.
+     * @throws IOException if the page cannot be written.
+     */
+    private void endPage() throws IOException {
+        writePage("ET\n");
+        ByteArrayOutputStream compressed = compress(m_page.toByteArray());
+        int contentId = nextId();
+        startObject(contentId);
+        write("<< /Length " + compressed.size() + " /Filter /FlateDecode >>\nstream\n");
+        compressed.writeTo(m_out);
+        write("\nendstream\nendobj\n");
+
+        int pageId = nextId();
+        m_pageIds.add(pageId);
+        m_page.reset();
+        if (m_compact){
+            // The page's size and fonts are given on the page tree.
+            pack(pageId, "<< /Type /Page /Parent " + PAGES_ID + " 0 R /Contents " + contentId + " 0 R >>");
+            return;
+        }
+
+        StringBuilder fonts = new StringBuilder();
+        for (Map.Entry<String, Integer> font : m_pageFonts.entrySet()){
+            fonts.append(fonts.length() == 0 ? "" : " ").append('/').append(font.getKey()).append(' ')
+                    .append(font.getValue()).append(" 0 R");
+        }
+        writeObject(pageId, "<< /Type /Page /Parent " + PAGES_ID + " 0 R /MediaBox [0 0 " + number(PAGE_WIDTH) + " "
+                + number(PAGE_HEIGHT) + "] /Resources << /Font << " + fonts + " >> >> /Contents " + contentId
+                + " 0 R >>");
+    }
+
+    /**
+     * Returns the resource name of a font, writing the font to the file the first time it is used and adding it to
+     * the fonts of the current page.
+     *
+     * @param font the font.
+     * @return the font's resource name, such as 'F1'.
+     * @throws IOException if the font cannot be written.
+     */
+    private String getResourceName(PdfFont font) throws IOException {
+        String baseFont = TextBlock.getBaseFont(font);
+        Integer id = m_fontIds.get(baseFont);
+        if (id == null){
+            id = nextId();
+            String dictionary = "<< /Type /Font /Subtype /Type1 /BaseFont /" + baseFont
+                    + " /Encoding /WinAnsiEncoding >>";
+            if (m_compact){
+                pack(id, dictionary);
+            } else {
+                writeObject(id, dictionary);
+            }
+            m_fontIds.put(baseFont, id);
+        }
+        String name = "F" + id;
+        m_pageFonts.put(name, id);
+        return name;
+    }
+
+    /**
+     * Adds the operators that move down to a line and show its text to the content of the current page.  A compact
+     * document sets the text leading to the line's height when it changes and moves with T*, rather than giving the
+     * move with every line; the lines end up in the same places.
+     *
+     * @param line the line.
+     */
+    private void writeContent(TextBlock.Line line){
+        if (!m_compact){
+            byte[] content = line.getContent();
+            m_page.write(content, 0, content.length);
+            return;
+        }
+        if (line.getHeight() != m_leading){
+            writePage(number(line.getHeight()) + " TL\n");
+            m_leading = line.getHeight();
+        }
+        byte[] text = line.getEscapedText();
+        if (text == null){
+            writePage("T*\n");
+        } else {
+            m_page.write('(');
+            m_page.write(text, 0, text.length);
+            writePage(")'\n");
+        }
+    }
+
+    /**
+     * Finishes a compact document:  writes the page tree, with the page size and fonts every page shares, and the
+     * catalog, and then the cross-reference stream.
+     *
+     * @throws IOException if the document cannot be written.
+     */
+    private void saveCompact() throws IOException {
+        StringBuilder kids = new StringBuilder();
+        for (int id : m_pageIds){
+            kids.append(kids.length() == 0 ? "" : " ").append(id).append(" 0 R");
+        }
+        StringBuilder fonts = new StringBuilder();
+        for (int id : m_fontIds.values()){
+            fonts.append(fonts.length() == 0 ? "" : " ").append("/F").append(id).append(' ').append(id).append(" 0 R");
+        }
+        pack(PAGES_ID, "<< /Type /Pages /Kids [" + kids + "] /Count " + m_pageIds.size() + " /MediaBox [0 0 "
+                + number(PAGE_WIDTH) + " " + number(PAGE_HEIGHT) + "] /Resources << /Font << " + fonts + " >> >> >>");
+        pack(CATALOG_ID, "<< /Type /Catalog /Pages " + PAGES_ID + " 0 R >>");
+        writePacked();
+
+        // Each entry is a type byte, a four byte offset or object stream number, and a two byte generation or index.
+        int xrefId = nextId();
+        long xref = m_out.getCount();
+        byte[] rows = new byte[(m_offsets.size() + 1) * 8];
+        byte[] entry = new byte[7];
+        byte[] previous = new byte[7];
+        for (int id = 0; id <= m_offsets.size(); id++){
+            if (id == 0){
+                setXrefEntry(entry, 0, 0, 0xFFFF);
+            } else if (id == xrefId){
+                setXrefEntry(entry, 1, xref, 0);
+            } else if (m_packed.containsKey(id)){
+                int[] location = m_packed.get(id);
+                setXrefEntry(entry, 2, location[0], location[1]);
+            } else {
+                setXrefEntry(entry, 1, m_offsets.get(id - 1), 0);
+            }
+            // Each row is written as its difference from the row above, the PNG 'Up' predictor, which compresses well.
+            rows[id * 8] = 2;
+            for (int i = 0; i < entry.length; i++){
+                rows[id * 8 + 1 + i] = (byte)(entry[i] - previous[i]);
+            }
+            byte[] swap = previous;
+            previous = entry;
+            entry = swap;
+        }
+        ByteArrayOutputStream compressed = compress(rows);
+        startObject(xrefId);
+        write("<< /Type /XRef /Size " + (m_offsets.size() + 1) + " /W [1 4 2] /Root " + CATALOG_ID
+                + " 0 R /Filter /FlateDecode /DecodeParms << /Columns 7 /Predictor 12 >> /Length " + compressed.size()
+                + " >>\nstream\n");
+        compressed.writeTo(m_out);
+        write("\nendstream\nendobj\nstartxref\n" + xref + "\n%%EOF\n");
+        m_out.close();
+        m_saved = true;
+        if (m_file != null){
+            Files.move(m_partFile.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Fills in an entry of a cross-reference stream:  its type, then two fields of four and two bytes. */
+    private static void setXrefEntry(byte[] entry, int type, long first, int second){
+        entry[0] = (byte)type;
+        entry[1] = (byte)(first >>> 24);
+        entry[2] = (byte)(first >>> 16);
+        entry[3] = (byte)(first >>> 8);
+        entry[4] = (byte)first;
+        entry[5] = (byte)(second >>> 8);
+        entry[6] = (byte)second;
+    }
+
+    /**
+     * Adds an object to the object stream being filled, writing the stream once it holds as many objects as it can.
+     * @param id the object's number.
+     * @param dictionary the object, a dictionary.
+     * @throws IOException if the object stream cannot be written.
+     */
+    private void pack(int id, String dictionary) throws IOException {
+        if (m_packCount == 0){
+            m_packId = nextId();
+        }
+        m_packed.put(id, new int[]{m_packId, m_packCount});
+        m_packIndex.append(id).append(' ').append(m_packObjects.length()).append(' ');
+        m_packObjects.append(dictionary).append('\n');
+        m_packCount++;
+        if (m_packCount == OBJECTS_PER_STREAM){
+            writePacked();
+        }
+    }
+
+    /**
+     * Writes the object stream being filled, if it holds any objects.
+     * @throws IOException if the object stream cannot be written.
+     */
+    private void writePacked() throws IOException {
+        if (m_packCount == 0){
+            return;
+        }
+        byte[] content = (m_packIndex.toString() + m_packObjects).getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream compressed = compress(content);
+        startObject(m_packId);
+        write("<< /Type /ObjStm /N " + m_packCount + " /First " + m_packIndex.length() + " /Length "
+                + compressed.size() + " /Filter /FlateDecode >>\nstream\n");
+        compressed.writeTo(m_out);
+        write("\nendstream\nendobj\n");
+        m_packIndex.setLength(0);
+        m_packObjects.setLength(0);
+        m_packCount = 0;
+    }
+
+    /**
+     * Compresses the content of a stream with Flate, as tightly as it can be for a compact document.
+     * @param content the content.
+     * @return the compressed content.
+     * @throws IOException if the content cannot be compressed.
+     */
+    private ByteArrayOutputStream compress(byte[] content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(m_compact ? Deflater.BEST_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+            out.write(content);
+        } finally {
+            deflater.end();
+        }
+        m_compressedBytes += content.length - compressed.size();
+        return compressed;
+    }
+
+    /** Formats a number for the content stream, with at most three decimal places. */
+    static String number(float value){
+        String text = String.format(Locale.US, "%.3f", value);
+        text = text.replaceAll("0+$", "");
+        return text.endsWith(".") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /** Reserves the next object number. */
+    private int nextId(){
+        m_offsets.add(null);
+        return m_offsets.size();
+    }
+
+    /** Records the offset of an object and writes its header. */
+    private void startObject(int id) throws IOException {
+        m_offsets.set(id - 1, m_out.getCount());
+        write(id + " 0 obj\n");
+    }
+
+    /** Writes an object whose content is a dictionary. */
+    private void writeObject(int id, String dictionary) throws IOException {
+        startObject(id);
+        write(dictionary + "\nendobj\n");
+    }
+
+    /** Adds text to the content of the current page. */
+    private void writePage(String text){
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        m_page.write(bytes, 0, bytes.length);
+    }
+
+    /** Writes text to the file. */
+    private void write(String text) throws IOException {
+        m_out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /** Checks that the document has not been saved or closed. */
+    private void checkOpen(){
+        if (m_saved){
+            throw new IllegalStateException("The document has already been saved or closed.");
+        }
+    }
+
+    /** An output stream that counts the bytes written to it. */
+    private static class CountingOutputStream extends OutputStream {
+
+        /** The stream written to. */
+        private final OutputStream m_target;
+
+        /** The number of bytes written. */
+        private long m_count;
+
+        /**
+         * Constructor.
+         * @param target the stream to write to.
+         */
+        CountingOutputStream(OutputStream target){
+            m_target = target;
+        }
+
+        /**
+         * Returns the number of bytes written.
+         * @return the number of bytes written.
+         */
+        long getCount(){
+            return m_count;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void write(int b) throws IOException {
+            m_target.write(b);
+            m_count++;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            m_target.write(b, off, len);
+            m_count += len;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() throws IOException {
+            m_target.close();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package openagendamail.util.pdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import plainpdf.PdfFont;
+
+/**
+ * A run of text that has been measured and wrapped into lines ready to be written to a {@link StreamingPdfDocument},
+ * but not yet placed on a page.  Laying text out does not touch the document, so the blocks of an agenda can be laid
+ * out on several threads at once and then written to the document one after another.  Writing the blocks in order
+ * gives exactly the same document as rendering the same text into the document directly.
+ *
+ * The text is wrapped at word breaks to the width of a page and at line breaks, in the standard Type 1 fonts.
+ * Characters the standard fonts cannot show are replaced with '?'.  A block is not thread safe, but separate blocks
+ * can be laid out at the same time.
+ */
+public class TextBlock {
+
+    /** The width text is wrapped to. */
+    static final float TEXT_WIDTH = StreamingPdfDocument.TEXT_WIDTH;
+
+    /** The encoding of text in the standard fonts. */
+    static final Charset WIN_ANSI = Charset.forName("windows-1252");
+
+    /** Matches a line break. */
+    private static final Pattern LINE_BREAK = Pattern.compile("\r\n|\r|\n");
+
+    /** The font of blank lines. */
+    private final PdfFont m_defaultFont;
+
+    /** The size of the font of blank lines. */
+    private final int m_defaultSize;
+
+    /** The lines of the block, top to bottom. */
+    private final List<Line> m_lines = new ArrayList<>();
+
+    /** Encodes text in the standard fonts and checks which characters they can show. */
+    private final CharsetEncoder m_encoder = WIN_ANSI.newEncoder();
+
+    /** The height of the block. */
+    private float m_height;
+
+    /**
+     * Constructor.  Creates an empty block.
+     * @param defaultFont the font of blank lines.
+     * @param defaultSize the size of the font of blank lines.
+     */
+    public TextBlock(PdfFont defaultFont, int defaultSize){
+        if (defaultFont == null){
+            throw new IllegalArgumentException("Parameter 'defaultFont' cannot be null.");
+        }
+        if (defaultSize <= 0){
+            throw new IllegalArgumentException("Parameter 'defaultSize' must be greater than zero.");
+        }
+        m_defaultFont = defaultFont;
+        m_defaultSize = defaultSize;
+    }
+
+    /**
+     * Adds a line of text to the block, wrapping it over as many lines as it needs.
+     *
+     * @param text the text to add.
+     * @param font the font to render the text in.
+     * @param size the size of the font.
+     * @throws IOException if the font's metrics cannot be read.
+     */
+    public void addLine(String text, PdfFont font, int size) throws IOException {
+        if (font == null){
+            throw new IllegalArgumentException("Parameter 'font' cannot be null.");
+        }
+        if (size <= 0){
+            throw new IllegalArgumentException("Parameter 'size' must be greater than zero.");
+        }
+        FontMetrics metrics = FontMetrics.get(font, size);
+        float height = metrics.getLineHeight();
+        float spaceWidth = metrics.getSpaceWidth();
+        for (String paragraph : LINE_BREAK.split(text == null ? "" : text, -1)){
+            // Split at single spaces so that runs of spaces are kept, as PlainPdf does.
+            String[] words = sanitize(paragraph).trim().split(" ");
+            StringBuilder line = new StringBuilder(words[0]);
+            float lineWidth = metrics.getWidth(words[0]);
+            for (int i = 1; i < words.length; i++){
+                float wordWidth = metrics.getWidth(words[i]);
+                if (lineWidth + spaceWidth + wordWidth < TEXT_WIDTH){
+                    line.append(' ').append(words[i]);
+                    lineWidth += spaceWidth + wordWidth;
+                } else {
+                    add(line.toString().trim(), font, size, height);
+                    line.setLength(0);
+                    line.append(words[i]);
+                    lineWidth = wordWidth;
+                }
+            }
+            add(line.toString(), font, size, height);
+        }
+    }
+
+    /**
+     * Adds a blank line the height of the block's default font.
+     * @throws IOException if the font's metrics cannot be read.
+     */
+    public void addBlankLine() throws IOException {
+        float height = FontMetrics.get(m_defaultFont, m_defaultSize).getLineHeight();
+        add(null, m_defaultFont, m_defaultSize, height);
+    }
+
+    /**
+     * Returns the height of the block:  the sum of the heights of its lines.
+     * @return the height, in points.
+     */
+    public float getHeight(){
+        return m_height;
+    }
+
+    /**
+     * Returns the lines of the block.
+     * @return the lines, top to bottom.
+     */
+    List<Line> getLines(){
+        return Collections.unmodifiableList(m_lines);
+    }
+
+    /**
+     * Adds a line to the end of the block, along with the content stream operators that move down to it and show its
+     * text.  The operators are built here rather than when the block is written, so that the work is done on the
+     * thread laying the block out.
+     *
+     * @param text the text of the line, or null for a blank line.
+     * @param font the font of the line.
+     * @param size the size of the font.
+     * @param height the height of the line.
+     * @throws IOException if the text cannot be encoded.
+     */
+    private void add(String text, PdfFont font, int size, float height) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(("0 " + StreamingPdfDocument.number(-height) + " Td\n").getBytes(StandardCharsets.ISO_8859_1));
+        byte[] escaped = null;
+        if (text != null){
+            escaped = escape(text);
+            content.write('(');
+            content.write(escaped);
+            content.write(") Tj\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        m_lines.add(new Line(text, font, size, height, escaped, content.toByteArray()));
+        m_height += height;
+    }
+
+    /** Encodes text as the bytes of a PDF string, escaping the characters that need it. */
+    private byte[] escape(String text) throws IOException {
+        m_encoder.reset();
+        m_encoder.onUnmappableCharacter(CodingErrorAction.REPLACE).onMalformedInput(CodingErrorAction.REPLACE);
+        ByteBuffer encoded = m_encoder.encode(CharBuffer.wrap(text));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoded.remaining() + 8);
+        while (encoded.hasRemaining()){
+            byte b = encoded.get();
+            if (b == '(' || b == ')' || b == '\\'){
+                bytes.write('\\');
+            }
+            bytes.write(b);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Replaces control characters with spaces and characters the standard fonts cannot show with '?'. */
+    private String sanitize(String text){
+        StringBuilder clean = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            if (c < ' '){
+                clean.append(' ');
+            } else if (c < 127 || m_encoder.canEncode(c)){
+                clean.append(c);
+            } else {
+                clean.append('?');
+            }
+        }
+        return clean.toString();
+    }
+
+    /**
+     * Returns the name of the standard Type 1 font a PlainPdf font stands for.
+     * @param font the font.
+     * @return the font's PostScript name, such as 'Helvetica-Bold'.
+     */
+    static String getBaseFont(PdfFont font){
+        switch (font){
+            case HELVETICA: return "Helvetica";
+            case HELVETICA_BOLD: return "Helvetica-Bold";
+            case HELVETICA_ITALIC: return "Helvetica-Oblique";
+            case HELVETICA_BOLD_ITALIC: return "Helvetica-BoldOblique";
+            case COURIER: return "Courier";
+            case COURIER_BOLD: return "Courier-Bold";
+            case COURIER_ITALIC: return "Courier-Oblique";
+            case COURIER_BOLD_ITALIC: return "Courier-BoldOblique";
+            case TIMES: return "Times-Roman";
+            case TIMES_BOLD: return "Times-Bold";
+            case TIMES_ITALIC: return "Times-Italic";
+            case TIMES_BOLD_ITALIC: return "Times-BoldItalic";
+            default: throw new IllegalArgumentException("Unknown font " + font);
+        }
+    }
+
+    /** One line of a block:  wrapped text in a single font, or a blank line. */
+    static class Line {
+
+        /** The text of the line, or null for a blank line. */
+        private final String m_text;
+
+        /** The font of the line. */
+        private final PdfFont m_font;
+
+        /** The size of the font. */
+        private final int m_size;
+
+        /** The height of the line. */
+        private final float m_height;
+
+        /** The text of the line encoded as the bytes of a PDF string, without brackets, or null for a blank line. */
+        private final byte[] m_escapedText;
+
+        /** The content stream operators that move down to the line and show its text. */
+        private final byte[] m_content;
+
+        /**
+         * Constructor.
+         * @param text the text of the line, or null for a blank line.
+         * @param font the font of the line.
+         * @param size the size of the font.
+         * @param height the height of the line.
+         * @param escapedText the text encoded as the bytes of a PDF string, or null for a blank line.
+         * @param content the content stream operators that move down to the line and show its text.
+         */
+        Line(String text, PdfFont font, int size, float height, byte[] escapedText, byte[] content){
+            m_text = text;
+            m_font = font;
+            m_size = size;
+            m_height = height;
+            m_escapedText = escapedText;
+            m_content = content;
+        }
+
+        /**
+         * Returns the text of the line.
+         * @return the text, or null if the line is blank.
+         */
+        String getText(){
+            return m_text;
+        }
+
+        /**
+         * Returns the font of the line.
+         * @return the font.
+         */
+        PdfFont getFont(){
+            return m_font;
+        }
+
+        /**
+         * Returns the size of the font of the line.
+         * @return the size.
+         */
+        int getSize(){
+            return m_size;
+        }
+
+        /**
+         * Returns the height of the line.
+         * @return the height, in points.
+         */
+        float getHeight(){
+            return m_height;
+        }
+
+        /**
+         * Returns the text of the line encoded as the bytes of a PDF string, with the characters that need it escaped.
+         * @return the encoded text, without its brackets, or null if the line is blank.
+         */
+        byte[] getEscapedText(){
+            return m_escapedText;
+        }
+
+        /**
+         * Returns the content stream operators that move down to the line and show its text.
+         * @return the operators, encoded for the content stream.
+         */
+        byte[] getContent(){
+            return m_content;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package openagendamail.util.render;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import openagendamail.data.AgendaItem;
+import openagendamail.util.pdf.TextBlock;
+import plainpdf.PdfFont;
+
+/**
+ * Lays out the blocks of a run of agenda items on a fork/join pool:  each item's title, 'Submitted By' line and body
+ * are measured and wrapped into a {@link TextBlock} of their own.  The run is split in half until the pieces are
+ * small, and the pieces are laid out in parallel.  Each block is stored at its item's index, so the blocks come out in
+ * the same order as the items whatever order they were laid out in.
+ */
+class AgendaLayoutTask extends RecursiveAction {
+
+    /** The version of the serialized form of the task. */
+    private static final long serialVersionUID = 1L;
+
+    /** Runs of at most this many items are laid out on one thread rather than split. */
+    static final int THRESHOLD = 16;
+
+    /** The items to lay out. */
+    private final List<AgendaItem> m_items;
+
+    /** The blocks laid out, by the index of their item. */
+    private final TextBlock[] m_blocks;
+
+    /** The index of the first item to lay out. */
+    private final int m_start;
+
+    /** The index after the last item to lay out. */
+    private final int m_end;
+
+    /**
+     * Constructor.  Creates a task that lays out all of the items.
+     * @param items the items to lay out.
+     * @param blocks the array to store the blocks in, by the index of their item.  It must be as long as the list.
+     */
+    AgendaLayoutTask(List<AgendaItem> items, TextBlock[] blocks){
+        this(items, blocks, 0, items.size());
+    }
+
+    /**
+     * Constructor.
+     * @param items the items to lay out.
+     * @param blocks the array to store the blocks in, by the index of their item.
+     * @param start the index of the first item to lay out.
+     * @param end the index after the last item to lay out.
+     */
+    private AgendaLayoutTask(List<AgendaItem> items, TextBlock[] blocks, int start, int end){
+        m_items = items;
+        m_blocks = blocks;
+        m_start = start;
+        m_end = end;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void compute(){
+        if (m_end - m_start <= THRESHOLD){
+            for (int i = m_start; i < m_end; i++){
+                m_blocks[i] = layout(m_items.get(i));
+            }
+        } else {
+            int middle = (m_start + m_end) >>> 1;
+            invokeAll(new AgendaLayoutTask(m_items, m_blocks, m_start, middle),
+                    new AgendaLayoutTask(m_items, m_blocks, middle, m_end));
+        }
+    }
+
+    /**
+     * Lays out one agenda item the way {@link PdfAgendaRenderer} renders it:  the title, the 'Submitted By' line, a
+     * blank line, the body if there is one, and another blank line.
+     *
+     * @param item the item to lay out.
+     * @return the item's block.
+     */
+    static TextBlock layout(AgendaItem item){
+        TextBlock block = new TextBlock(PdfFont.HELVETICA, 12);
+        try {
+            block.addLine(item.getTitle(), PdfFont.HELVETICA_BOLD, 12);
+            block.addLine("Submitted By:  " + item.getUser() + " (" + item.getEmail() +")", PdfFont.HELVETICA, 9);
+            block.addBlankLine();
+            if (!(item.getBody() == null || item.getBody().isEmpty())){
+                block.addLine(item.getBody(), PdfFont.HELVETICA, 9);
+            }
+            block.addBlankLine();
+        } catch (IOException ex) {
+            // The font metrics are read once and shared; if they cannot be read no item can be laid out.
+            throw new IllegalStateException("Unable to read the font metrics.", ex);
+        }
+        return block;
+    }
+}
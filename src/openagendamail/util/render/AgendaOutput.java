@@ -0,0 +1,94 @@
+package openagendamail.util.render;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import openagendamail.file.LogFile;
+import openagendamail.util.AgendaBuffer;
+
+/**
+ * Where a rendered agenda is written:  its {@link AgendaBuffer} when the 'doc.in.memory' property is on, or otherwise
+ * a file.  Either way the agenda only replaces the last one once it is committed, so readers never see it half
+ * written.  A file is written under a temporary name and renamed when it is committed.
+ */
+final class AgendaOutput implements Closeable {
+
+    /** The properties of the agenda. */
+    private final Properties m_props;
+
+    /** The name of the output. */
+    private final String m_name;
+
+    /** The file written until the output is committed, or null when writing to memory. */
+    private final File m_temp;
+
+    /** The stream to write the agenda to. */
+    private final OutputStream m_stream;
+
+    /** True once the output has been committed. */
+    private boolean m_committed;
+
+    /**
+     * Constructor.
+     * @param props the properties of the agenda.
+     * @param name the name of the output, which is the name of its file and of its buffer.
+     * @throws IOException if the output's file cannot be created.
+     */
+    AgendaOutput(Properties props, String name) throws IOException {
+        m_props = props;
+        m_name = name;
+        if (AgendaBuffer.isInMemory(props)){
+            m_temp = null;
+            m_stream = AgendaBuffer.get(name).startDocument();
+        } else {
+            m_temp = new File(name + ".part");
+            m_stream = new FileOutputStream(m_temp);
+        }
+    }
+
+    /**
+     * Returns the stream to write the agenda to.
+     * @return the stream.
+     */
+    OutputStream getStream(){
+        return m_stream;
+    }
+
+    /**
+     * Replaces the last agenda written to this output with the one just written.  In memory, the agenda is published
+     * to its sender, and archived to disk on a background thread if the 'doc.archive' property is on.
+     *
+     * @throws IOException if the file cannot be put in place.
+     */
+    void commit() throws IOException {
+        m_stream.close();
+        if (m_temp == null){
+            AgendaBuffer buffer = AgendaBuffer.get(m_name);
+            buffer.publish();
+            LogFile.getLogFile().log("Published the " + buffer.size() + " byte agenda '" + m_name + "' in memory.");
+            if (m_props.getProperty("doc.archive", "false").toLowerCase().equals("true")){
+                buffer.archive();
+            }
+        } else {
+            Files.move(m_temp.toPath(), new File(m_name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        m_committed = true;
+    }
+
+    /** Throws away the agenda written so far, unless it has been committed. */
+    @Override
+    public void close() throws IOException {
+        if (!m_committed){
+            m_committed = true;
+            m_stream.close();
+            if (m_temp != null){
+                m_temp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package openagendamail.util.render;
+
+import java.io.Closeable;
+import java.io.IOException;
+import openagendamail.data.AgendaItem;
+
+/**
+ * Renders an agenda in one format.  The title is rendered first, then each item in agenda order as it is read, and
+ * then the agenda is finished and its output written:  a renderer never needs to see more than one item at a time, so
+ * several renderers can be fed from a single pass over the items.  Renderers must be closed when done with; closing a
+ * renderer that was never finished throws away anything rendered so far.
+ *
+ * Renderers are opened by {@link AgendaRenderers} from the 'agenda.formats' property.
+ */
+public interface AgendaRenderer extends Closeable {
+
+    /**
+     * Renders the title of the agenda.
+     * @param title the title of the agenda.
+     * @param subtitle the line rendered under the title, saying when and by what the agenda was generated.
+     * @throws IOException if the title cannot be rendered.
+     */
+    public void begin(String title, String subtitle) throws IOException;
+
+    /**
+     * Renders the next item of the agenda.
+     * @param item the item.
+     * @throws IOException if the item cannot be rendered.
+     */
+    public void renderItem(AgendaItem item) throws IOException;
+
+    /**
+     * Finishes the agenda and writes it out, saying that no items were submitted if none were rendered.  Nothing more
+     * can be rendered afterwards.
+     *
+     * @throws IOException if the agenda cannot be written.
+     */
+    public void finish() throws IOException;
+}
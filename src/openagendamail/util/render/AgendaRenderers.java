@@ -0,0 +1,192 @@
+package openagendamail.util.render;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import openagendamail.data.AgendaItem;
+import openagendamail.file.LogFile;
+
+/**
+ * Opens the renderers of the formats an agenda is built in, as listed by the 'agenda.formats' property:  'pdf' for
+ * the document attached to the agenda email, and 'html' and 'text' for the agenda in the email's body.  The formats
+ * are rendered together, from one pass over the items.
+ */
+public final class AgendaRenderers {
+
+    /** The format of the PDF document attached to the agenda email. */
+    public static final String PDF = "pdf";
+
+    /** The format of the HTML page in the body of the agenda email. */
+    public static final String HTML = "html";
+
+    /** The format of the plain text in the body of the agenda email. */
+    public static final String TEXT = "text";
+
+    /** Not instantiable. */
+    private AgendaRenderers(){
+    }
+
+    /**
+     * Returns the formats the agenda is built in, as listed by the 'agenda.formats' property, separated by commas.
+     * Formats that are not known are logged and left out; if none are left, the agenda is built as a PDF.
+     *
+     * @param props the properties of the agenda.
+     * @return the formats, in the order listed, without repeats.
+     */
+    public static List<String> getFormats(Properties props){
+        Set<String> formats = new LinkedHashSet<>();
+        for (String format : props.getProperty("agenda.formats", PDF).split(",")){
+            format = format.trim().toLowerCase();
+            switch (format){
+                case PDF:
+                case HTML:
+                case TEXT:
+                    formats.add(format);
+                    break;
+                case "":
+                    break;
+                default:
+                    LogFile.getLogFile().log("Ignoring unknown agenda format '" + format + "'.");
+            }
+        }
+        if (formats.isEmpty()){
+            formats.add(PDF);
+        }
+        return new ArrayList<>(formats);
+    }
+
+    /**
+     * Returns the name of the file, or of the buffer when the 'doc.in.memory' property is on, that the agenda is
+     * written to in a format.  The PDF is named by the 'doc.name' property; the other formats are named after it, with
+     * '.html' or '.txt' in place of '.pdf'.
+     *
+     * @param props the properties of the agenda.
+     * @param format the format.
+     * @return the name of the output.
+     */
+    public static String getOutputName(Properties props, String format){
+        String docName = props.getProperty("doc.name", "agenda.pdf");
+        if (format.equals(PDF)){
+            return docName;
+        }
+        String base = docName.toLowerCase().endsWith(".pdf") ? docName.substring(0, docName.length() - 4) : docName;
+        return base + (format.equals(HTML) ? ".html" : ".txt");
+    }
+
+    /**
+     * Opens the renderer of a format.
+     * @param props the properties of the agenda.
+     * @param format the format.
+     * @return the renderer.
+     * @throws IOException if the renderer's output cannot be created.
+     */
+    public static AgendaRenderer open(Properties props, String format) throws IOException {
+        switch (format){
+            case PDF:
+                return new PdfAgendaRenderer(props);
+            case HTML:
+                return new HtmlAgendaRenderer(props);
+            case TEXT:
+                return new TextAgendaRenderer(props);
+            default:
+                throw new IllegalArgumentException("Unknown agenda format '" + format + "'.");
+        }
+    }
+
+    /**
+     * Opens a renderer that renders the agenda in every format it is built in.  Each item given to it is handed to
+     * the renderer of each format in turn, so the items only need to be read once.
+     *
+     * @param props the properties of the agenda.
+     * @return the renderer.
+     * @throws IOException if the output of one of the formats cannot be created.
+     */
+    public static AgendaRenderer open(Properties props) throws IOException {
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' cannot be null.");
+        }
+        List<String> formats = getFormats(props);
+        if (formats.size() == 1){
+            return open(props, formats.get(0));
+        }
+        AllFormats renderer = new AllFormats(formats.size());
+        try {
+            for (String format : formats){
+                renderer.m_renderers.add(open(props, format));
+            }
+        } catch (IOException ex) {
+            try {
+                renderer.close();
+            } catch (IOException closeEx) {
+                ex.addSuppressed(closeEx);
+            }
+            throw ex;
+        }
+        return renderer;
+    }
+
+    /** Renders the agenda with several renderers at once. */
+    private static class AllFormats implements AgendaRenderer {
+
+        /** The renderers, in the order their formats are listed. */
+        private final List<AgendaRenderer> m_renderers;
+
+        /**
+         * Constructor.
+         * @param count the number of renderers.
+         */
+        AllFormats(int count){
+            m_renderers = new ArrayList<>(count);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void begin(String title, String subtitle) throws IOException {
+            for (AgendaRenderer renderer : m_renderers){
+                renderer.begin(title, subtitle);
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void renderItem(AgendaItem item) throws IOException {
+            for (AgendaRenderer renderer : m_renderers){
+                renderer.renderItem(item);
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void finish() throws IOException {
+            for (AgendaRenderer renderer : m_renderers){
+                renderer.finish();
+            }
+        }
+
+        /**
+         * Closes every renderer, even if some cannot be closed.
+         * @throws IOException the first exception thrown by a renderer that could not be closed.
+         */
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (AgendaRenderer renderer : m_renderers){
+                try {
+                    renderer.close();
+                } catch (IOException ex) {
+                    if (failure == null){
+                        failure = ex;
+                    } else {
+                        failure.addSuppressed(ex);
+                    }
+                }
+            }
+            if (failure != null){
+                throw failure;
+            }
+        }
+    }
+}
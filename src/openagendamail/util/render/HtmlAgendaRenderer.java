@@ -0,0 +1,99 @@
+package openagendamail.util.render;
+
+import java.io.IOException;
+import java.util.Properties;
+import openagendamail.data.AgendaItem;
+
+/**
+ * Renders the agenda as a small HTML page for the body of the agenda email:  a heading for the agenda and one for each
+ * item, with the item's 'Submitted By' line and body under it.  The page has no styles, scripts or images, so mail
+ * clients show it as it is sent.  Everything taken from the items is escaped, so an item cannot add markup of its own.
+ */
+public class HtmlAgendaRenderer extends InlineAgendaRenderer {
+
+    /**
+     * Constructor.  Opens the agenda's page, named after the agenda document with '.html' in place of '.pdf'.
+     * @param props the properties of the agenda.
+     * @throws IOException if the page's output cannot be created.
+     */
+    public HtmlAgendaRenderer(Properties props) throws IOException {
+        super(props, AgendaRenderers.HTML);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void begin(String title, String subtitle) throws IOException {
+        m_writer.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n<title>");
+        escape(title);
+        m_writer.write("</title>\n</head>\n<body>\n<h1>");
+        escape(title);
+        m_writer.write("</h1>\n<p><small>");
+        escape(subtitle);
+        m_writer.write("</small></p>\n");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void writeItem(AgendaItem item) throws IOException {
+        m_writer.write("<h2>");
+        escape(item.getTitle());
+        m_writer.write("</h2>\n<p><small>Submitted By:  ");
+        escape(item.getUser());
+        m_writer.write(" (");
+        escape(item.getEmail());
+        m_writer.write(")</small></p>\n");
+        if (!(item.getBody() == null || item.getBody().isEmpty())){
+            m_writer.write("<p>");
+            String[] lines = LINE_BREAK.split(item.getBody(), -1);
+            for (int i = 0; i < lines.length; i++){
+                if (i > 0){
+                    m_writer.write("<br>\n");
+                }
+                escape(lines[i]);
+            }
+            m_writer.write("</p>\n");
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void writeNoItems() throws IOException {
+        m_writer.write("<p>No items were submitted to the agenda.</p>\n");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void writeEnd() throws IOException {
+        m_writer.write("</body>\n</html>\n");
+    }
+
+    /**
+     * Writes text with the characters that HTML gives a meaning to escaped.  Null is written as 'null', as it is in
+     * the other formats.
+     *
+     * @param text the text.
+     * @throws IOException if the text cannot be written.
+     */
+    private void escape(String text) throws IOException {
+        if (text == null){
+            m_writer.write("null");
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i < text.length(); i++){
+            String entity;
+            switch (text.charAt(i)){
+                case '&':  entity = "&amp;";  break;
+                case '<':  entity = "&lt;";   break;
+                case '>':  entity = "&gt;";   break;
+                case '"':  entity = "&quot;"; break;
+                case '\'': entity = "&#39;";  break;
+                default:   continue;
+            }
+            m_writer.write(text, start, i - start);
+            m_writer.write(entity);
+            start = i + 1;
+        }
+        m_writer.write(text, start, text.length() - start);
+    }
+}
@@ -0,0 +1,87 @@
+package openagendamail.util.render;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.regex.Pattern;
+import openagendamail.data.AgendaItem;
+
+/**
+ * The base of the renderers whose agenda is text sent in the body of the agenda email, rather than a document attached
+ * to it.  The text is written as it is rendered, in UTF-8, to an {@link AgendaOutput} named after the agenda document
+ * with the format's extension, so memory use does not grow with the length of the agenda.
+ */
+abstract class InlineAgendaRenderer implements AgendaRenderer {
+
+    /** Matches a line break, however the sender's mail client wrote it. */
+    static final Pattern LINE_BREAK = Pattern.compile("\r\n|\r|\n");
+
+    /** Where the agenda is written. */
+    private final AgendaOutput m_output;
+
+    /** Writes the agenda's text to its output. */
+    protected final Writer m_writer;
+
+    /** The number of items rendered. */
+    private int m_count;
+
+    /**
+     * Constructor.  Opens the agenda's output.
+     * @param props the properties of the agenda.
+     * @param format the format rendered, which names the output.
+     * @throws IOException if the output cannot be created.
+     */
+    InlineAgendaRenderer(Properties props, String format) throws IOException {
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' cannot be null.");
+        }
+        m_output = new AgendaOutput(props, AgendaRenderers.getOutputName(props, format));
+        m_writer = new BufferedWriter(new OutputStreamWriter(m_output.getStream(), StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void renderItem(AgendaItem item) throws IOException {
+        writeItem(item);
+        m_count++;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public final void finish() throws IOException {
+        if (m_count == 0){
+            writeNoItems();
+        }
+        writeEnd();
+        m_writer.flush();
+        m_output.commit();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        m_output.close();
+    }
+
+    /**
+     * Writes an item.
+     * @param item the item.
+     * @throws IOException if the item cannot be written.
+     */
+    protected abstract void writeItem(AgendaItem item) throws IOException;
+
+    /**
+     * Writes that no items were submitted to the agenda.
+     * @throws IOException if the text cannot be written.
+     */
+    protected abstract void writeNoItems() throws IOException;
+
+    /**
+     * Writes whatever ends the agenda.
+     * @throws IOException if the text cannot be written.
+     */
+    protected abstract void writeEnd() throws IOException;
+}
@@ -0,0 +1,224 @@
+package openagendamail.util.render;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import openagendamail.data.AgendaItem;
+import openagendamail.file.LogFile;
+import openagendamail.util.AgendaBuffer;
+import openagendamail.util.pdf.PdfDocument;
+import openagendamail.util.pdf.PlainPdfDocument;
+import openagendamail.util.pdf.StreamingPdfDocument;
+import openagendamail.util.pdf.TextBlock;
+import plainpdf.PdfFont;
+
+/**
+ * Renders the agenda to the PDF document named by the 'doc.name' property, which is attached to the agenda email.
+ *
+ * With 'pdf.streaming' on, the document is written a page at a time as it is rendered, so memory use does not grow
+ * with the length of the agenda; otherwise it is built in memory with PlainPdf and written when it is finished.  With
+ * 'pdf.parallel' on, which turns streaming on too, items are gathered into batches whose layout is spread over
+ * several cores.  With 'doc.in.memory' on, the document is written a page at a time to the agenda's
+ * {@link AgendaBuffer} rather than to disk.  With 'pdf.optimize' on, which also turns streaming on, the document is
+ * written as a compact PDF 1.5 file.
+ *
+ * Once the document is saved its size is logged, along with its size before compression when it was written a page
+ * at a time, and a warning if it is bigger than the 'pdf.size.target' property, in kilobytes, allows.
+ */
+public class PdfAgendaRenderer implements AgendaRenderer {
+
+    /** The number of items gathered and laid out together when rendering in parallel. */
+    static final int LAYOUT_BATCH_SIZE = 1024;
+
+    /** The pool agenda items are laid out on when rendering in parallel, shared by every agenda in the process. */
+    private static final ForkJoinPool LAYOUT_POOL = new ForkJoinPool();
+
+    /** The document. */
+    private final PdfDocument m_pdf;
+
+    /** The agenda's buffer the document is written to, or null when it is written to disk. */
+    private final AgendaOutput m_output;
+
+    /** The name of the document. */
+    private final String m_fileName;
+
+    /** The largest the document should be, in bytes, or 0 if there is no limit. */
+    private final long m_sizeTarget;
+
+    /** The items waiting to be laid out, or null when items are rendered one at a time. */
+    private final List<AgendaItem> m_batch;
+
+    /** The number of items rendered. */
+    private int m_count;
+
+    /**
+     * Constructor.  Opens the agenda document.
+     * @param props the properties of the agenda.
+     * @throws IOException if the document cannot be created.
+     */
+    public PdfAgendaRenderer(Properties props) throws IOException {
+        if (props == null){
+            throw new IllegalArgumentException("Parameter 'props' cannot be null.");
+        }
+        String fileName = AgendaRenderers.getOutputName(props, AgendaRenderers.PDF);
+        boolean parallel = props.getProperty("pdf.parallel", "false").toLowerCase().equals("true");
+        boolean optimize = props.getProperty("pdf.optimize", "false").toLowerCase().equals("true");
+        m_fileName = fileName;
+        m_sizeTarget = getSizeTarget(props);
+        if (AgendaBuffer.isInMemory(props)){
+            m_output = new AgendaOutput(props, fileName);
+            m_pdf = new StreamingPdfDocument(m_output.getStream(), PdfFont.HELVETICA, 12, optimize);
+        } else if (parallel || optimize || props.getProperty("pdf.streaming", "false").toLowerCase().equals("true")){
+            m_output = null;
+            m_pdf = new StreamingPdfDocument(fileName, PdfFont.HELVETICA, 12, optimize);
+        } else {
+            m_output = null;
+            m_pdf = new PlainPdfDocument(fileName, PdfFont.HELVETICA, 12);
+        }
+        m_batch = parallel ? new ArrayList<AgendaItem>(LAYOUT_BATCH_SIZE) : null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void begin(String title, String subtitle) throws IOException {
+        m_pdf.renderLine(title, PdfFont.HELVETICA_BOLD, 16);
+        m_pdf.renderLine(subtitle, PdfFont.HELVETICA, 9);
+        m_pdf.insertBlankLine();
+    }
+
+    /**
+     * Renders the next item.  When rendering in parallel the item is only rendered once a batch of items has been
+     * gathered, or the agenda is finished.
+     *
+     * @param item the item.
+     * @throws IOException if the item cannot be rendered.
+     */
+    @Override
+    public void renderItem(AgendaItem item) throws IOException {
+        if (m_batch != null){
+            m_batch.add(item);
+            if (m_batch.size() >= LAYOUT_BATCH_SIZE){
+                renderBatch();
+            }
+            return;
+        }
+
+        // TEST LINE
+        LogFile.getLogFile().log("Rendering Agenda Item:  " + item.getTitle());
+
+        // Render the Header Line
+        LogFile.getLogFile().log("Rendering header.");
+        m_pdf.renderLine(item.getTitle(), PdfFont.HELVETICA_BOLD, 12);
+
+        // Render From Line
+        LogFile.getLogFile().log("Rendering from.");
+        String fromLine = "Submitted By:  " + item.getUser() + " (" + item.getEmail() +")";
+        m_pdf.renderLine(fromLine, PdfFont.HELVETICA, 9);
+
+        // Skip a Line
+        LogFile.getLogFile().log("Inserting blank line.");
+        m_pdf.insertBlankLine();
+
+        // Render the Body if any.
+        LogFile.getLogFile().log("Checking body for content.");
+        if (!(item.getBody() == null || item.getBody().isEmpty())){
+            LogFile.getLogFile().log("Rendering body.");
+            m_pdf.renderLine(item.getBody(), PdfFont.HELVETICA, 9);
+        }
+
+        // Skip a Line
+        LogFile.getLogFile().log("Skipping a line.");
+        m_pdf.insertBlankLine();
+        m_count++;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void finish() throws IOException {
+        if (m_batch != null && !m_batch.isEmpty()){
+            renderBatch();
+        }
+        if (m_count == 0){
+            m_pdf.renderLine("No items were submitted to the agenda.", PdfFont.HELVETICA, 12);
+        }
+
+        // Save PDF to disk.
+        LogFile.getLogFile().log("Saving file....");
+        m_pdf.save();
+        if (m_output != null){
+            m_output.commit();
+        }
+        LogFile.getLogFile().log("Save complete.");
+        reportSize();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        try {
+            m_pdf.close();
+        } finally {
+            if (m_output != null){
+                m_output.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the largest the document should be, from the 'pdf.size.target' property, in kilobytes.
+     * @param props the properties of the agenda.
+     * @return the target, in bytes, or 0 if there is none or it is not a number.
+     */
+    private static long getSizeTarget(Properties props){
+        String target = props.getProperty("pdf.size.target", "0").trim();
+        try {
+            return Math.max(0, Long.parseLong(target)) * 1024;
+        } catch (NumberFormatException ex) {
+            LogFile.getLogFile().log("Ignoring the pdf.size.target of '" + target + "', which is not a number.");
+            return 0;
+        }
+    }
+
+    /** Logs the size of the document just saved, and whether it is over the size target. */
+    private void reportSize(){
+        long size;
+        if (m_pdf instanceof StreamingPdfDocument){
+            StreamingPdfDocument streamed = (StreamingPdfDocument)m_pdf;
+            size = streamed.getSize();
+            LogFile.getLogFile().log("The agenda document is " + size + " bytes, from " + streamed.getUncompressedSize()
+                    + " bytes before compression.");
+        } else {
+            size = new File(m_fileName).length();
+            LogFile.getLogFile().log("The agenda document is " + size + " bytes.");
+        }
+        if (m_sizeTarget > 0 && size > m_sizeTarget){
+            LogFile.getLogFile().log("The agenda document is over its size target of " + m_sizeTarget / 1024
+                    + " KB.  Turning on pdf.optimize, or sending the agenda inline, makes it smaller.");
+        }
+    }
+
+    /**
+     * Renders the items gathered with their layout spread over several cores.  Each item is measured and wrapped on
+     * the layout pool into a block of its own, and then the blocks are paginated and written to the document in order
+     * on this thread.  The document comes out byte for byte the same as rendering the items one line at a time.
+     *
+     * @throws IOException if the items cannot be rendered.
+     */
+    private void renderBatch() throws IOException {
+        TextBlock[] blocks = new TextBlock[m_batch.size()];
+        try {
+            LAYOUT_POOL.invoke(new AgendaLayoutTask(m_batch, blocks));
+        } catch (IllegalStateException ex) {
+            throw new IOException("Error laying out the agenda items.", ex);
+        }
+        for (TextBlock block : blocks){
+            ((StreamingPdfDocument)m_pdf).render(block);
+        }
+        m_count += m_batch.size();
+        LogFile.getLogFile().log("Rendered " + m_count + " agenda items.");
+        m_batch.clear();
+    }
+}
@@ -0,0 +1,57 @@
+package openagendamail.util.render;
+
+import java.io.IOException;
+import java.util.Properties;
+import openagendamail.data.AgendaItem;
+
+/**
+ * Renders the agenda as plain text for the body of the agenda email, laid out as the PDF is:  the title and the line
+ * under it, then each item's title, 'Submitted By' line and body, with a blank line between them.  Lines are left for
+ * the reader's mail client to wrap.
+ */
+public class TextAgendaRenderer extends InlineAgendaRenderer {
+
+    /**
+     * Constructor.  Opens the agenda's text, named after the agenda document with '.txt' in place of '.pdf'.
+     * @param props the properties of the agenda.
+     * @throws IOException if the text's output cannot be created.
+     */
+    public TextAgendaRenderer(Properties props) throws IOException {
+        super(props, AgendaRenderers.TEXT);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void begin(String title, String subtitle) throws IOException {
+        m_writer.write(title);
+        m_writer.write('\n');
+        m_writer.write(subtitle);
+        m_writer.write("\n\n");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void writeItem(AgendaItem item) throws IOException {
+        m_writer.write(String.valueOf(item.getTitle()));
+        m_writer.write('\n');
+        m_writer.write("Submitted By:  " + item.getUser() + " (" + item.getEmail() + ")");
+        m_writer.write("\n\n");
+        if (!(item.getBody() == null || item.getBody().isEmpty())){
+            m_writer.write(LINE_BREAK.matcher(item.getBody()).replaceAll("\n"));
+            m_writer.write('\n');
+        }
+        m_writer.write('\n');
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void writeNoItems() throws IOException {
+        m_writer.write("No items were submitted to the agenda.\n");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void writeEnd() throws IOException {
+        // Plain text needs nothing to end it.
+    }
+}
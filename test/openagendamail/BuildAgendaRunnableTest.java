@@ -1,10 +1,14 @@
 package openagendamail;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
 import openagendamail.data.AgendaItem;
 import openagendamail.data.AgendaItemProvider;
 import openagendamail.util.BuildAgendaRunnable;
@@ -72,6 +76,7 @@ public class BuildAgendaRunnableTest {
         BuildAgendaRunnable builder1 = new BuildAgendaRunnable(provider1);
         builder1.run();
         assertTrue(Files.exists(Paths.get("agenda1.pdf")));
+        assertFalse(Files.exists(Paths.get("agenda1.pdf.part")));
 
         // Test with newlines.
         AgendaItemProvider provider2 = new AgendaItemProvider(){
@@ -93,4 +98,137 @@ public class BuildAgendaRunnableTest {
         assertTrue(Files.exists(Paths.get("agenda2.pdf")));
     }
 
-}
\ No newline at end of file
+    /** Test of run method, of class BuildAgendaRunnable, writing the document a page at a time. */
+    @Test
+    public void testRunStreaming() throws IOException {
+        System.out.println(" --- run (streaming)");
+        AgendaItemProvider provider = new AgendaItemProvider(){
+            @Override
+            public Collection<AgendaItem> getItems() {
+                Collection<AgendaItem> items = new ArrayList<>();
+                for (int i = 0; i < 200; i++){
+                    items.add(new AgendaItem("email" + i, "Boy " + i, "Agenda Item " + i, "This is the body.\nOf item " + i));
+                }
+                return items;
+            }
+        };
+        Properties props = new Properties();
+        props.setProperty("doc.name", "agenda3.pdf");
+        props.setProperty("pdf.streaming", "true");
+        Files.deleteIfExists(Paths.get("agenda3.pdf"));
+        new BuildAgendaRunnable(provider, props).run();
+        assertTrue(Files.exists(Paths.get("agenda3.pdf")));
+        assertFalse(Files.exists(Paths.get("agenda3.pdf.part")));
+    }
+
+
+    /**
+     * Test of run method, of class BuildAgendaRunnable, laying the items out in parallel.  The document must be byte
+     * for byte the same as the one rendered a line at a time.
+     */
+    @Test
+    public void testRunParallel() throws IOException {
+        System.out.println(" --- run (parallel)");
+        AgendaItemProvider provider = new AgendaItemProvider(){
+            @Override
+            public Collection<AgendaItem> getItems() {
+                Collection<AgendaItem> items = new ArrayList<>();
+                for (int i = 0; i < 2500; i++){
+                    StringBuilder body = new StringBuilder();
+                    for (int w = 0; w < i % 200; w++){
+                        body.append("word").append(w).append(w % 40 == 39 ? "\n" : " ");
+                    }
+                    items.add(new AgendaItem("email" + i, "Boy " + i, "Agenda Item " + i, body.toString()));
+                }
+                return items;
+            }
+        };
+        Properties props = new Properties();
+        props.setProperty("doc.name", "agenda4.pdf");
+        props.setProperty("pdf.streaming", "true");
+        new BuildAgendaRunnable(provider, props).run();
+
+        props.setProperty("doc.name", "agenda5.pdf");
+        props.setProperty("pdf.parallel", "true");
+        new BuildAgendaRunnable(provider, props).run();
+
+        byte[] serial = Files.readAllBytes(Paths.get("agenda4.pdf"));
+        byte[] parallel = Files.readAllBytes(Paths.get("agenda5.pdf"));
+        assertTrue(serial.length > 0);
+        assertArrayEquals(serial, parallel);
+    }
+
+    /** Test of run method, of class BuildAgendaRunnable, with an agenda that has not changed since it was built. */
+    @Test
+    public void testRunSkipsUnchanged() throws IOException {
+        System.out.println(" --- run (unchanged)");
+        final List<AgendaItem> items = new ArrayList<>();
+        items.add(new AgendaItem("email1", "Boy 1", "Agenda Item 1", "The body."));
+        AgendaItemProvider provider = new AgendaItemProvider(){
+            @Override
+            public Collection<AgendaItem> getItems() {
+                return new ArrayList<>(items);
+            }
+        };
+        Properties props = new Properties();
+        props.setProperty("doc.name", "agenda6.pdf");
+        props.setProperty("skip.unchanged", "true");
+        Files.deleteIfExists(Paths.get("agenda6.pdf.fingerprint"));
+        new BuildAgendaRunnable(provider, props).run();
+        assertTrue(Files.exists(Paths.get("agenda6.pdf")));
+        assertTrue(Files.exists(Paths.get("agenda6.pdf.fingerprint")));
+
+        // The same items again:  the document is left as it is.
+        Files.write(Paths.get("agenda6.pdf"), "marker".getBytes(StandardCharsets.UTF_8));
+        new BuildAgendaRunnable(provider, props).run();
+        assertEquals("marker", new String(Files.readAllBytes(Paths.get("agenda6.pdf")), StandardCharsets.UTF_8));
+
+        // A new item:  the document is rebuilt.
+        items.add(new AgendaItem("email2", "Boy 2", "Agenda Item 2", "Another body."));
+        new BuildAgendaRunnable(provider, props).run();
+        assertTrue(new String(Files.readAllBytes(Paths.get("agenda6.pdf")), StandardCharsets.UTF_8).startsWith("%PDF"));
+
+        // A different title:  the document is rebuilt.
+        Files.write(Paths.get("agenda6.pdf"), "marker".getBytes(StandardCharsets.UTF_8));
+        props.setProperty("agenda.title", "Another Agenda");
+        new BuildAgendaRunnable(provider, props).run();
+        assertTrue(new String(Files.readAllBytes(Paths.get("agenda6.pdf")), StandardCharsets.UTF_8).startsWith("%PDF"));
+    }
+
+    /** Test of awaitBuilds method, of class BuildAgendaRunnable, with a build that is slow to read its items. */
+    @Test
+    public void testAwaitBuilds() throws Exception {
+        System.out.println(" --- awaitBuilds");
+        final CountDownLatch release = new CountDownLatch(1);
+        AgendaItemProvider provider = new AgendaItemProvider(){
+            @Override
+            public Collection<AgendaItem> getItems() {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                Collection<AgendaItem> items = new ArrayList<>();
+                items.add(new AgendaItem("email1", "Boy 1", "Agenda Item 1", "The body."));
+                return items;
+            }
+        };
+        Properties props = new Properties();
+        props.setProperty("doc.name", "agenda7.pdf");
+        Files.deleteIfExists(Paths.get("agenda7.pdf"));
+        BuildAgendaRunnable builder = new BuildAgendaRunnable(provider, props);
+        Thread build = new Thread(builder);
+        build.start();
+        try {
+            // The sender must not go ahead while the document is still being built.
+            assertFalse(builder.awaitBuilds(1, 200));
+            assertFalse(Files.exists(Paths.get("agenda7.pdf")));
+        } finally {
+            release.countDown();
+        }
+        assertTrue(builder.awaitBuilds(1, 30000));
+        assertTrue(Files.exists(Paths.get("agenda7.pdf")));
+        assertFalse(builder.awaitBuilds(2, 0));
+        build.join();
+    }
+}
@@ -0,0 +1,114 @@
+package openagendamail.data;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the DuplicateIndex class.
+ */
+public class DuplicateIndexTest {
+
+    /** The file the indexes under test are written to. */
+    private static final String FILENAME = "test-duplicate.index";
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("DuplicateIndexTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        Files.deleteIfExists(Paths.get(FILENAME));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Paths.get(FILENAME));
+    }
+
+    /** Test of fingerprint method, of class DuplicateIndex. */
+    @Test
+    public void testFingerprint() {
+        System.out.println(" --- fingerprint");
+        AgendaItem original = new AgendaItem("member@example.com", "Member", "Budget review", "Please  discuss\nthe budget.");
+        String expected = DuplicateIndex.fingerprint(original);
+
+        // Case, spacing, reply prefixes and aliases do not matter.
+        assertEquals(expected, DuplicateIndex.fingerprint(new AgendaItem("Member+agenda@Example.com", "Someone else",
+                "Fwd: RE: budget   review", " please discuss the BUDGET. ")));
+
+        // Nor do the headers of a forwarded message.
+        String forwarded = "---------- Forwarded message ---------\nFrom: Member <member@example.com>\n"
+                + "Date: Mon, Oct 12, 2026 at 9:00 AM\nSubject: Budget review\nTo: agenda@example.com\n\n"
+                + "Please discuss\nthe budget.\n";
+        assertEquals(expected, DuplicateIndex.fingerprint(new AgendaItem("member@example.com", "Member",
+                "Fwd: Budget review", forwarded)));
+
+        // A different sender, title or body does.
+        assertNotEquals(expected, DuplicateIndex.fingerprint(new AgendaItem("other@example.com", "Member",
+                "Budget review", "Please discuss the budget.")));
+        assertNotEquals(expected, DuplicateIndex.fingerprint(new AgendaItem("member@example.com", "Member",
+                "Budget approval", "Please discuss the budget.")));
+        assertNotEquals(expected, DuplicateIndex.fingerprint(new AgendaItem("member@example.com", "Member",
+                "Budget review", "Please approve the budget.")));
+    }
+
+    /** Test of filter method, of class DuplicateIndex. */
+    @Test
+    public void testFilter() {
+        System.out.println(" --- filter");
+        AgendaItem budget = new AgendaItem("a@example.com", "A", "Budget", "Discuss.");
+        AgendaItem budgetAgain = new AgendaItem("a@example.com", "A", "Fwd: Budget", "Discuss.");
+        AgendaItem picnic = new AgendaItem("b@example.com", "B", "Picnic", "");
+
+        DuplicateIndex index = new DuplicateIndex(null);
+        Map<String, AgendaItem> items = new LinkedHashMap<>();
+        items.put("<1@example.com>", budget);
+        items.put("<2@example.com>", budgetAgain);
+        items.put("<3@example.com>", picnic);
+        Map<String, AgendaItem> kept = index.filter(items);
+        assertEquals(Arrays.asList("<1@example.com>", "<3@example.com>"), new ArrayList<>(kept.keySet()));
+
+        // Reading the same messages again keeps the same ones.
+        assertEquals(kept, index.filter(items));
+
+        // Clearing the index forgets them.
+        index.clear();
+        Map<String, AgendaItem> later = new LinkedHashMap<>();
+        later.put("<4@example.com>", budgetAgain);
+        assertEquals(later, index.filter(later));
+    }
+
+    /** Test of save and load methods, of class DuplicateIndex. */
+    @Test
+    public void testSaveAndLoad() {
+        System.out.println(" --- save/load");
+        AgendaItem budget = new AgendaItem("a@example.com", "A", "Budget", "Discuss.");
+        DuplicateIndex index = DuplicateIndex.load(FILENAME);
+        Map<String, AgendaItem> first = new LinkedHashMap<>();
+        first.put("<1@example.com>", budget);
+        index.filter(first);
+        index.save();
+
+        // A resubmission on a later run is caught, while the original is still kept.
+        DuplicateIndex loaded = DuplicateIndex.load(FILENAME);
+        Map<String, AgendaItem> second = new LinkedHashMap<>(first);
+        second.put("<2@example.com>", new AgendaItem("a@example.com", "A", "Re: Budget", "Discuss."));
+        assertEquals(first, loaded.filter(second));
+    }
+}
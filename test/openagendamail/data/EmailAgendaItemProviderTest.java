@@ -0,0 +1,389 @@
+package openagendamail.data;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.IMAPStore;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.Address;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the EmailAgendaItemProvider class.  The providers under test read from an in-memory mail store, selected
+ * through 'mail.imaps.class' and registered in META-INF/javamail.providers, rather than from a real email account.
+ */
+public class EmailAgendaItemProviderTest {
+
+    /** The mailboxes of the in-memory store, by account. */
+    private static final Map<String, Mailbox> MAILBOXES = new ConcurrentHashMap<>();
+
+    /** If not null, every inbox waits after opening until this many inboxes are open at once. */
+    private static volatile CountDownLatch s_allOpen;
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("EmailAgendaItemProviderTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        MAILBOXES.clear();
+        s_allOpen = null;
+    }
+
+    /** Test of the constructor, of class EmailAgendaItemProvider. */
+    @Test
+    public void testConstructorLeavesPropertiesAlone() {
+        System.out.println(" --- constructor");
+        Properties props = properties("account");
+        new EmailAgendaItemProvider(true, props);
+        assertNull(props.getProperty("mail.store.protocol"));
+    }
+
+    /** Test of getItems method, of class EmailAgendaItemProvider, with many providers running at once. */
+    @Test
+    public void testGetItemsConcurrently() throws Exception {
+        System.out.println(" --- getItems (concurrently)");
+        final int accounts = 8;
+        s_allOpen = new CountDownLatch(accounts);
+        List<Callable<Collection<AgendaItem>>> runs = new ArrayList<>();
+        for (int i = 0; i < accounts; i++){
+            String account = "account" + i;
+            MAILBOXES.put(account, new Mailbox(account, i + 1));
+            final EmailAgendaItemProvider provider = new EmailAgendaItemProvider(true, properties(account));
+            runs.add(new Callable<Collection<AgendaItem>>() {
+                @Override
+                public Collection<AgendaItem> call() {
+                    return provider.getItems();
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(accounts);
+        try {
+            List<Future<Collection<AgendaItem>>> results = pool.invokeAll(runs, 30, TimeUnit.SECONDS);
+            for (int i = 0; i < accounts; i++){
+                // Each provider returns exactly its own account's submissions, and deletes them.
+                Set<String> titles = new HashSet<>();
+                for (AgendaItem item : results.get(i).get()){
+                    titles.add(item.getTitle());
+                }
+                assertEquals(MAILBOXES.get("account" + i).getSubmissionTitles(), titles);
+                assertTrue(MAILBOXES.get("account" + i).isEmpty());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(0, s_allOpen.getCount());
+    }
+
+    /** Test of getItems method, of class EmailAgendaItemProvider, with several providers reading one account. */
+    @Test
+    public void testGetItemsSameAccount() throws Exception {
+        System.out.println(" --- getItems (same account)");
+        final int providers = 4;
+        final Mailbox mailbox = new Mailbox("shared", 5);
+        MAILBOXES.put("shared", mailbox);
+        List<Callable<Collection<AgendaItem>>> runs = new ArrayList<>();
+        for (int i = 0; i < providers; i++){
+            final EmailAgendaItemProvider provider = new EmailAgendaItemProvider(true, properties("shared"));
+            runs.add(new Callable<Collection<AgendaItem>>() {
+                @Override
+                public Collection<AgendaItem> call() {
+                    return provider.getItems();
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(providers);
+        try {
+            // Every submission is handed out exactly once, and the inbox is never open twice at once.
+            List<String> titles = new ArrayList<>();
+            for (Future<Collection<AgendaItem>> result : pool.invokeAll(runs, 30, TimeUnit.SECONDS)){
+                for (AgendaItem item : result.get()){
+                    titles.add(item.getTitle());
+                }
+            }
+            assertEquals(mailbox.getSubmissionTitles().size(), titles.size());
+            assertEquals(mailbox.getSubmissionTitles(), new HashSet<>(titles));
+            assertEquals(1, mailbox.m_mostOpen.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Builds the configuration of a provider that reads the given account from the in-memory store. */
+    private static Properties properties(String account){
+        Properties props = new Properties();
+        props.setProperty("mail.imaps.class", FakeStore.class.getName());
+        props.setProperty("email", account);
+        props.setProperty("password", "password");
+        props.setProperty("email.list.filename", "test/openagendamail/test-emails.txt");
+        props.setProperty("imap.prefetch", "false");
+        props.setProperty("imap.server.search", "false");
+        props.setProperty("imap.incremental", "false");
+        props.setProperty("imap.count.round.trips", "false");
+        props.setProperty("journal.on", "false");
+        props.setProperty("dedupe.on", "false");
+        return props;
+    }
+
+    /** The messages in one account of the in-memory store. */
+    private static class Mailbox {
+
+        /** The subject of each message not yet deleted, by message number. */
+        private List<String> m_subjects = new ArrayList<>();
+
+        /** The senders of each message not yet deleted, by message number. */
+        private List<String> m_senders = new ArrayList<>();
+
+        /** The titles of the messages sent by members of the email list. */
+        private Set<String> m_submissionTitles = new HashSet<>();
+
+        /** The number of times the inbox is open right now. */
+        private AtomicInteger m_open = new AtomicInteger();
+
+        /** The most times the inbox has been open at once. */
+        private AtomicInteger m_mostOpen = new AtomicInteger();
+
+        /**
+         * Fills a mailbox with submissions from a member of the email list and one message from a stranger.
+         * @param account the account the mailbox belongs to.
+         * @param submissions the number of submissions.
+         */
+        Mailbox(String account, int submissions){
+            for (int i = 0; i < submissions; i++){
+                add(account + " item " + i, "email_1@gmail.com");
+                m_submissionTitles.add(account + " item " + i);
+            }
+            add(account + " spam", "stranger@example.com");
+        }
+
+        private synchronized void add(String subject, String sender){
+            m_subjects.add(subject);
+            m_senders.add(sender);
+        }
+
+        synchronized Set<String> getSubmissionTitles(){
+            return m_submissionTitles;
+        }
+
+        synchronized boolean isEmpty(){
+            return m_subjects.isEmpty();
+        }
+    }
+
+    /** An IMAP store that serves the in-memory mailboxes. */
+    public static class FakeStore extends IMAPStore {
+
+        /** The account connected to. */
+        private String m_account;
+
+        /** True while connected. */
+        private boolean m_connected;
+
+        /** The folders opened through this store. */
+        private List<FakeFolder> m_folders = new ArrayList<>();
+
+        public FakeStore(Session session, URLName url){
+            super(session, url);
+        }
+
+        /** Returns true if the protocol trace is on for the session the store was made through. */
+        public boolean isTraced(){
+            return session.getDebug();
+        }
+
+        @Override
+        protected synchronized boolean protocolConnect(String host, int port, String user, String password) {
+            m_account = user;
+            m_connected = true;
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isConnected() {
+            return m_connected;
+        }
+
+        @Override
+        public synchronized void close() {
+            for (FakeFolder folder : m_folders){
+                folder.close(false);
+            }
+            m_connected = false;
+        }
+
+        @Override
+        public synchronized boolean hasCapability(String capability) {
+            return false;
+        }
+
+        @Override
+        public synchronized Folder getFolder(String name) {
+            FakeFolder folder = new FakeFolder(this, MAILBOXES.get(m_account));
+            m_folders.add(folder);
+            return folder;
+        }
+    }
+
+    /** An inbox in the in-memory store. */
+    private static class FakeFolder extends IMAPFolder {
+
+        /** The mailbox this folder shows. */
+        private Mailbox m_mailbox;
+
+        /** The messages, as of when the folder was opened. */
+        private Message[] m_messages;
+
+        /** True while open. */
+        private boolean m_isOpen;
+
+        FakeFolder(IMAPStore store, Mailbox mailbox){
+            super("INBOX", '/', store, false);
+            m_mailbox = mailbox;
+        }
+
+        @Override
+        public synchronized void open(int mode) throws MessagingException {
+            synchronized (m_mailbox){
+                m_messages = new Message[m_mailbox.m_subjects.size()];
+                for (int i = 0; i < m_messages.length; i++){
+                    m_messages[i] = new FakeMessage(this, i + 1, m_mailbox.m_subjects.get(i), m_mailbox.m_senders.get(i));
+                }
+            }
+            int open = m_mailbox.m_open.incrementAndGet();
+            while (true){
+                int most = m_mailbox.m_mostOpen.get();
+                if (open <= most || m_mailbox.m_mostOpen.compareAndSet(most, open)){
+                    break;
+                }
+            }
+            m_isOpen = true;
+
+            CountDownLatch allOpen = s_allOpen;
+            if (allOpen != null){
+                allOpen.countDown();
+                try {
+                    allOpen.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    throw new MessagingException("Interrupted.", ex);
+                }
+            }
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return m_isOpen;
+        }
+
+        @Override
+        public synchronized void close(boolean expunge) {
+            if (m_isOpen){
+                m_isOpen = false;
+                m_mailbox.m_open.decrementAndGet();
+            }
+        }
+
+        @Override
+        public synchronized Message[] getMessages() {
+            return m_messages.clone();
+        }
+
+        @Override
+        public synchronized int getMessageCount() {
+            return m_messages.length;
+        }
+
+        @Override
+        public synchronized void setFlags(Message[] msgs, Flags flag, boolean value) {
+            for (Message msg : msgs){
+                ((FakeMessage)msg).m_deleted = value;
+            }
+        }
+
+        @Override
+        public synchronized Message[] expunge() {
+            List<Message> expunged = new ArrayList<>();
+            synchronized (m_mailbox){
+                for (Message message : m_messages){
+                    FakeMessage msg = (FakeMessage)message;
+                    int index = m_mailbox.m_subjects.indexOf(msg.m_subject);
+                    if (msg.m_deleted && index >= 0){
+                        m_mailbox.m_subjects.remove(index);
+                        m_mailbox.m_senders.remove(index);
+                        expunged.add(msg);
+                    }
+                }
+            }
+            return expunged.toArray(new Message[expunged.size()]);
+        }
+    }
+
+    /** A message in the in-memory store. */
+    private static class FakeMessage extends IMAPMessage {
+
+        /** The subject of the message. */
+        private String m_subject;
+
+        /** The sender of the message. */
+        private String m_sender;
+
+        /** True if the message is flagged as deleted. */
+        private boolean m_deleted;
+
+        FakeMessage(IMAPFolder folder, int msgnum, String subject, String sender){
+            super(folder, msgnum);
+            m_subject = subject;
+            m_sender = sender;
+        }
+
+        @Override
+        public String getSubject() {
+            return m_subject;
+        }
+
+        @Override
+        public Address getSender() throws MessagingException {
+            return new InternetAddress(m_sender);
+        }
+
+        @Override
+        public String getMessageID() {
+            return "<" + m_subject.replace(' ', '.') + "@example.com>";
+        }
+
+        @Override
+        public Object getContent() {
+            return "";
+        }
+    }
+}
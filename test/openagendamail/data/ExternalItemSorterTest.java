@@ -0,0 +1,100 @@
+package openagendamail.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ExternalItemSorter class.
+ */
+public class ExternalItemSorterTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("ExternalItemSorterTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /** Test of sort method, of class ExternalItemSorter, with items that fit in memory. */
+    @Test
+    public void testSortInMemory() throws IOException {
+        System.out.println(" --- sort (in memory)");
+        List<AgendaItem> items = randomItems(50);
+        assertEquals(sorted(items), sortAll(items, ExternalItemSorter.DEFAULT_MAX_MEMORY_BYTES));
+    }
+
+    /** Test of sort method, of class ExternalItemSorter, with items spilled to disk in many runs. */
+    @Test
+    public void testSortOnDisk() throws IOException {
+        System.out.println(" --- sort (on disk)");
+        List<AgendaItem> items = randomItems(500);
+
+        // Tabs, line breaks, backslashes and null fields survive being written to a run.
+        items.add(new AgendaItem("a@example.com", null, "Tabs\tand\\slashes", "Line one\r\nLine two"));
+        items.add(new AgendaItem("a@example.com", "Amy", "No body", null));
+        assertEquals(sorted(items), sortAll(items, 2048));
+    }
+
+    /** Test of clear method, of class ExternalItemSorter. */
+    @Test
+    public void testClear() throws IOException {
+        System.out.println(" --- clear");
+        ExternalItemSorter sorter = new ExternalItemSorter(2048);
+        for (AgendaItem item : randomItems(100)){
+            sorter.add(item);
+        }
+        sorter.clear();
+        assertEquals(0, sorter.size());
+
+        AgendaItem kept = new AgendaItem("b@example.com", "Bob", "Kept");
+        sorter.add(kept);
+        try (AgendaItemStream stream = sorter.sort()) {
+            assertEquals(kept, stream.read());
+            assertNull(stream.read());
+        }
+    }
+
+    /** Sorts the items with a sorter holding at most the given number of bytes in memory. */
+    private static List<AgendaItem> sortAll(List<AgendaItem> items, long maxMemoryBytes) throws IOException {
+        ExternalItemSorter sorter = new ExternalItemSorter(maxMemoryBytes);
+        for (AgendaItem item : items){
+            sorter.add(item);
+        }
+        assertEquals(items.size(), sorter.size());
+
+        List<AgendaItem> result = new ArrayList<>();
+        try (AgendaItemStream stream = sorter.sort()) {
+            for (AgendaItem item = stream.read(); item != null; item = stream.read()){
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    /** Returns a sorted copy of the items. */
+    private static List<AgendaItem> sorted(List<AgendaItem> items){
+        List<AgendaItem> copy = new ArrayList<>(items);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    /** Creates items from a handful of senders with random titles. */
+    private static List<AgendaItem> randomItems(int count){
+        Random random = new Random(count);
+        List<AgendaItem> items = new ArrayList<>();
+        for (int i = 0; i < count; i++){
+            String email = "member" + random.nextInt(10) + "@example.com";
+            items.add(new AgendaItem(email, "Member", "Item " + random.nextInt(1000000), "Body of item " + i + "."));
+        }
+        return items;
+    }
+}
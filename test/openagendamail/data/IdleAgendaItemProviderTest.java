@@ -0,0 +1,141 @@
+package openagendamail.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import openagendamail.util.email.MailSessionManager;
+import openagendamail.util.email.MailboxLoadGenerator;
+import openagendamail.util.email.TestMailServer;
+import openagendamail.util.email.TestMailbox;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the IdleAgendaItemProvider class, against the TestMailServer.
+ */
+public class IdleAgendaItemProviderTest {
+
+    /** The account the agenda items are sent to. */
+    private static final String ACCOUNT = "agenda@example.com";
+
+    /** The server under test. */
+    private TestMailServer m_server;
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("IdleAgendaItemProviderTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        m_server = new TestMailServer();
+    }
+
+    @After
+    public void tearDown() {
+        MailSessionManager.closeAll();
+        m_server.close();
+    }
+
+    /** Test of getItems method, of class IdleAgendaItemProvider, when more submissions arrive than the agenda holds. */
+    @Test
+    public void testGetItemsOverflow() throws MessagingException, IOException, InterruptedException {
+        System.out.println(" --- getItems (overflow)");
+        TestMailbox mailbox = m_server.getMailbox(ACCOUNT);
+        new MailboxLoadGenerator(3, ACCOUNT, Arrays.asList("email_1@gmail.com")).fill(mailbox, 5);
+
+        Properties props = m_server.getProperties(ACCOUNT);
+        props.setProperty("email.list.filename", "test/openagendamail/test-emails.txt");
+        props.setProperty("imap.idle.max.items", "3");
+        IdleAgendaItemProvider provider = new IdleAgendaItemProvider(true, props);
+        provider.start();
+        try {
+            awaitItems(provider, 3);
+            List<AgendaItem> first = new ArrayList<>(provider.getItems());
+            assertEquals(3, first.size());
+
+            // The two submissions left in the inbox are read onto the next agenda once the first is handed out.
+            awaitItems(provider, 2);
+            List<AgendaItem> second = new ArrayList<>(provider.getItems());
+            assertEquals(2, second.size());
+            Set<String> titles = new HashSet<>();
+            for (AgendaItem item : first){
+                titles.add(item.getTitle());
+            }
+            for (AgendaItem item : second){
+                assertTrue(titles.add(item.getTitle()));
+            }
+            assertEquals(0, mailbox.size());
+        } finally {
+            provider.stop();
+        }
+    }
+
+    /**
+     * Test of getItems method, of class IdleAgendaItemProvider, when a message arrives after room on a full agenda was
+     * freed by another client.  The submissions left in the inbox earlier must still be read onto the next agenda.
+     */
+    @Test
+    public void testGetItemsOverflowAfterRemoval() throws MessagingException, IOException, InterruptedException {
+        System.out.println(" --- getItems (overflow after removal)");
+        TestMailbox mailbox = m_server.getMailbox(ACCOUNT);
+        MailboxLoadGenerator generator = new MailboxLoadGenerator(3, ACCOUNT, Arrays.asList("email_1@gmail.com"));
+        generator.fill(mailbox, 5);
+
+        Properties props = m_server.getProperties(ACCOUNT);
+        props.setProperty("email.list.filename", "test/openagendamail/test-emails.txt");
+        props.setProperty("imap.idle.max.items", "3");
+        IdleAgendaItemProvider provider = new IdleAgendaItemProvider(true, props);
+        provider.start();
+        try {
+            awaitItems(provider, 3);
+
+            // Another client deletes the first submission, then a new one arrives and takes the freed place.
+            MailSessionManager manager = MailSessionManager.getManager(props);
+            Store store = manager.getStore();
+            try {
+                Folder inbox = store.getFolder("inbox");
+                inbox.open(Folder.READ_WRITE);
+                ((UIDFolder)inbox).getMessageByUID(1).setFlag(Flags.Flag.DELETED, true);
+                inbox.close(true);
+            } finally {
+                manager.release(store);
+            }
+            awaitItems(provider, 2);
+            generator.fill(mailbox, 1);
+            awaitItems(provider, 3);
+
+            assertEquals(3, provider.getItems().size());
+            awaitItems(provider, 2);
+            assertEquals(2, provider.getItems().size());
+            assertEquals(0, mailbox.size());
+        } finally {
+            provider.stop();
+        }
+    }
+
+    /** Waits up to ten seconds for the provider to hold the given number of items. */
+    private static void awaitItems(IdleAgendaItemProvider provider, int count) throws InterruptedException {
+        for (int i = 0; i < 200 && provider.getItemCount() != count; i++){
+            Thread.sleep(50);
+        }
+        assertEquals(count, provider.getItemCount());
+    }
+}
@@ -0,0 +1,49 @@
+package openagendamail.data;
+
+import java.util.Properties;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ImapPrefetcher class.
+ */
+public class ImapPrefetcherTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("ImapPrefetcherTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /** Test of htmlToText method, of class ImapPrefetcher. */
+    @Test
+    public void testHtmlToText() {
+        System.out.println(" --- htmlToText");
+        String html = "<html><head><style>p { color: red; }</style><script>alert('x');</script></head>"
+                + "<body><p>Budget&nbsp;review</p><div>Q&amp;A &lt;10 min&gt;</div>Line one<br/>Line two"
+                + "<p>Caf&#233; &amp;lt;tag&amp;gt;</p></body></html>";
+        String expected = "Budget review\n\nQ&A <10 min>\nLine one\nLine two\nCaf\u00e9 &lt;tag&gt;";
+        assertEquals(expected, ImapPrefetcher.htmlToText(html));
+    }
+
+    /** Test of htmlToText method, of class ImapPrefetcher, with text that has no markup. */
+    @Test
+    public void testHtmlToTextPlain() {
+        System.out.println(" --- htmlToText (plain)");
+        assertEquals("Nothing to strip.", ImapPrefetcher.htmlToText("  Nothing to strip.\n\n\n\n"));
+    }
+
+    /** Test of fromProperties method, of class ImapPrefetcher, with invalid limits. */
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromPropertiesInvalid() {
+        System.out.println(" --- fromProperties (invalid)");
+        Properties props = new Properties();
+        props.setProperty("imap.max.body.bytes", "0");
+        ImapPrefetcher.fromProperties(props);
+    }
+}
@@ -0,0 +1,86 @@
+package openagendamail.data;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the InboxCheckpoint class.
+ */
+public class InboxCheckpointTest {
+
+    /** The file the checkpoints under test are written to. */
+    private static final String FILENAME = "test-inbox.checkpoint";
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("InboxCheckpointTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        Files.deleteIfExists(Paths.get(FILENAME));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Paths.get(FILENAME));
+    }
+
+    /** Test of load method, of class InboxCheckpoint, when no checkpoint has been saved. */
+    @Test
+    public void testLoadMissing() {
+        System.out.println(" --- load (missing)");
+        InboxCheckpoint checkpoint = InboxCheckpoint.load(FILENAME);
+        assertFalse(checkpoint.isValidFor(1));
+        assertEquals(0, checkpoint.getLastUid());
+        assertTrue(checkpoint.getItems().isEmpty());
+    }
+
+    /** Test of save and load methods, of class InboxCheckpoint. */
+    @Test
+    public void testSaveAndLoad() {
+        System.out.println(" --- save/load");
+        InboxCheckpoint checkpoint = InboxCheckpoint.load(FILENAME);
+        checkpoint.reset(42);
+        checkpoint.advanceTo(17);
+        checkpoint.advanceTo(9);
+        checkpoint.addItems(Arrays.asList(new AgendaItem("email", "user", "title", "line one\nline two"),
+                new AgendaItem("zemail", "zuser", "ztitle")));
+        checkpoint.save();
+
+        InboxCheckpoint loaded = InboxCheckpoint.load(FILENAME);
+        assertTrue(loaded.isValidFor(42));
+        assertFalse(loaded.isValidFor(43));
+        assertEquals(17, loaded.getLastUid());
+        assertEquals(2, loaded.getItems().size());
+        assertEquals(new AgendaItem("email", "user", "title", "line one\nline two"), loaded.getItems().get(0));
+        assertEquals(new AgendaItem("zemail", "zuser", "ztitle"), loaded.getItems().get(1));
+    }
+
+    /** Test of reset method, of class InboxCheckpoint. */
+    @Test
+    public void testReset() {
+        System.out.println(" --- reset");
+        InboxCheckpoint checkpoint = InboxCheckpoint.load(FILENAME);
+        checkpoint.reset(1);
+        checkpoint.advanceTo(5);
+        checkpoint.addItems(Arrays.asList(new AgendaItem("email", "user", "title")));
+
+        checkpoint.reset(2);
+        assertTrue(checkpoint.isValidFor(2));
+        assertEquals(0, checkpoint.getLastUid());
+        assertTrue(checkpoint.getItems().isEmpty());
+    }
+}
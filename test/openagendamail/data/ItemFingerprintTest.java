@@ -0,0 +1,71 @@
+package openagendamail.data;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ItemFingerprint class.
+ */
+public class ItemFingerprintTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("ItemFingerprintTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /** Test of getValue method, of class ItemFingerprint:  the order items are added in does not matter. */
+    @Test
+    public void testOrder() {
+        System.out.println(" --- getValue (order)");
+        AgendaItem[] items = {new AgendaItem("a@example.com", "A", "First", "Body one"),
+            new AgendaItem("b@example.com", "B", "Second", "Body two"),
+            new AgendaItem("c@example.com", "C", "Third", null)};
+        ItemFingerprint forward = new ItemFingerprint();
+        ItemFingerprint backward = new ItemFingerprint();
+        for (int i = 0; i < items.length; i++){
+            forward.add(items[i]);
+            backward.add(items[items.length - 1 - i]);
+        }
+        assertEquals(forward.getValue(), backward.getValue());
+        assertEquals(3, forward.size());
+    }
+
+    /** Test of getValue method, of class ItemFingerprint:  any change to the items changes the fingerprint. */
+    @Test
+    public void testChanges() {
+        System.out.println(" --- getValue (changes)");
+        String empty = new ItemFingerprint().getValue();
+        String one = fingerprint(new AgendaItem("a@example.com", "A", "Title", "Body"));
+        assertFalse(one.equals(empty));
+        assertEquals(one, fingerprint(new AgendaItem("a@example.com", "A", "Title", "Body")));
+        assertFalse(one.equals(fingerprint(new AgendaItem("a@example.com", "A", "Title", "Body!"))));
+        assertFalse(one.equals(fingerprint(new AgendaItem("a@example.com", "A", "TitleB", "ody"))));
+        String emptyBody = fingerprint(new AgendaItem("a", "b", "c", ""));
+        assertFalse(emptyBody.equals(fingerprint(new AgendaItem("a", "b", "c", null))));
+
+        // The same item twice is not the same as the item once.
+        AgendaItem item = new AgendaItem("a@example.com", "A", "Title", "Body");
+        assertFalse(one.equals(fingerprint(item, item)));
+
+        // Clearing starts over.
+        ItemFingerprint fingerprint = new ItemFingerprint();
+        fingerprint.add(item);
+        fingerprint.clear();
+        assertEquals(empty, fingerprint.getValue());
+    }
+
+    /** Returns the fingerprint of the given items. */
+    private static String fingerprint(AgendaItem... items){
+        ItemFingerprint fingerprint = new ItemFingerprint();
+        for (AgendaItem item : items){
+            fingerprint.add(item);
+        }
+        return fingerprint.getValue();
+    }
+}
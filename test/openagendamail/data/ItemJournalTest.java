@@ -0,0 +1,190 @@
+package openagendamail.data;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ItemJournal class.
+ */
+public class ItemJournalTest {
+
+    /** The file the journals under test are written to. */
+    private static final String FILENAME = "test-agenda.journal";
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("ItemJournalTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        Files.deleteIfExists(Paths.get(FILENAME));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Paths.get(FILENAME));
+    }
+
+    /** Test of append and open methods, of class ItemJournal. */
+    @Test
+    public void testAppendAndOpen() throws IOException {
+        System.out.println(" --- append/open");
+        AgendaItem first = new AgendaItem("a@example.com", "A", "Budget", "line one\nline\ttwo \\ three");
+        AgendaItem second = new AgendaItem("b@example.com", null, "Picnic", null);
+
+        ItemJournal journal = ItemJournal.open(FILENAME);
+        assertEquals(2, journal.append(items("<1@example.com>", first, "<2@example.com>", second)));
+        assertEquals(0, journal.append(items("<1@example.com>", first)));
+        assertTrue(journal.contains("<2@example.com>"));
+
+        ItemJournal reopened = ItemJournal.open(FILENAME);
+        assertEquals(Arrays.asList(first, second), reopened.getOpenItems());
+        assertTrue(reopened.getClosedItems().isEmpty());
+    }
+
+    /** Test of closeCycle method, of class ItemJournal. */
+    @Test
+    public void testCloseCycle() throws IOException {
+        System.out.println(" --- closeCycle");
+        AgendaItem first = new AgendaItem("a@example.com", "A", "First agenda", "");
+        AgendaItem second = new AgendaItem("b@example.com", "B", "Second agenda", "");
+        AgendaItem third = new AgendaItem("c@example.com", "C", "Third agenda", "");
+
+        ItemJournal journal = ItemJournal.open(FILENAME);
+        journal.append(items("<1@example.com>", first));
+        journal.closeCycle();
+        journal.append(items("<2@example.com>", second));
+        journal.closeCycle();
+        journal.append(items("<3@example.com>", third));
+
+        // Only the last closed cycle and the open one are kept.
+        ItemJournal reopened = ItemJournal.open(FILENAME);
+        assertEquals(Arrays.asList(second), reopened.getClosedItems());
+        assertEquals(Arrays.asList(third), reopened.getOpenItems());
+        assertEquals(3, Files.readAllLines(Paths.get(FILENAME), StandardCharsets.UTF_8).size());
+    }
+
+    /** Test of open method, of class ItemJournal, with older cycles and repeated or unreadable records. */
+    @Test
+    public void testOpenUncompacted() throws IOException {
+        System.out.println(" --- open (uncompacted)");
+        String records = "I\t<1@example.com>\ta@example.com\tA\tFirst agenda\t\nC\n"
+                + "I\t<2@example.com>\tb@example.com\tB\tSecond agenda\t\n"
+                + "I\t<2@example.com>\tb@example.com\tB\tSecond agenda, again\t\nC\n"
+                + "not a record\nI\t<3@example.com>\tc@example.com\tC\tThird agenda\t\n";
+        Files.write(Paths.get(FILENAME), records.getBytes(StandardCharsets.UTF_8));
+
+        ItemJournal journal = ItemJournal.open(FILENAME);
+        assertEquals(Arrays.asList(new AgendaItem("b@example.com", "B", "Second agenda", "")),
+                journal.getClosedItems());
+        assertEquals(Arrays.asList(new AgendaItem("c@example.com", "C", "Third agenda", "")), journal.getOpenItems());
+        assertEquals(3, Files.readAllLines(Paths.get(FILENAME), StandardCharsets.UTF_8).size());
+    }
+
+    /** Test of openItems method, of class ItemJournal, before anything is written. */
+    @Test
+    public void testOpenItemsEmpty() throws IOException {
+        System.out.println(" --- openItems (empty)");
+        ItemJournal journal = ItemJournal.open(FILENAME);
+        try (AgendaItemStream items = journal.openItems()) {
+            assertNull(items.read());
+        }
+        try (AgendaItemStream items = journal.openClosedItems()) {
+            assertNull(items.read());
+        }
+    }
+
+    /** Test of open method, of class ItemJournal, with a torn last record. */
+    @Test
+    public void testOpenTorn() throws IOException {
+        System.out.println(" --- open (torn)");
+        AgendaItem item = new AgendaItem("a@example.com", "A", "Budget", "");
+        ItemJournal.open(FILENAME).append(items("<1@example.com>", item));
+        Files.write(Paths.get(FILENAME), "I\t<2@example.com>\tb@example.com\tB\tPicnic\tcut off he".getBytes(
+                StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        ItemJournal journal = ItemJournal.open(FILENAME);
+        assertEquals(Arrays.asList(item), journal.getOpenItems());
+        assertFalse(journal.contains("<2@example.com>"));
+
+        // The repaired journal can be appended to.
+        AgendaItem later = new AgendaItem("b@example.com", "B", "Picnic", "all of it");
+        journal.append(items("<2@example.com>", later));
+        assertEquals(Arrays.asList(item, later), ItemJournal.open(FILENAME).getOpenItems());
+    }
+
+    /** Test of append method, of class ItemJournal, after an append that failed part way through. */
+    @Test
+    public void testAppendAfterFailure() throws IOException {
+        System.out.println(" --- append (after a failure)");
+        AgendaItem first = new AgendaItem("a@example.com", "A", "Budget", "");
+        AgendaItem second = new AgendaItem("b@example.com", "B", "Picnic", "");
+        ItemJournal journal = ItemJournal.open(FILENAME);
+        journal.append(items("<1@example.com>", first));
+
+        // What a failed append leaves behind is cut off, rather than joined onto the next record.
+        Files.write(Paths.get(FILENAME), "I\t<9@example.com>\tz@example.com\tZ\tLost".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        assertEquals(1, journal.append(items("<2@example.com>", second)));
+        assertEquals(Arrays.asList(first, second), ItemJournal.open(FILENAME).getOpenItems());
+    }
+
+    /** Test of append method, of class ItemJournal, with a file that cannot be written. */
+    @Test
+    public void testAppendFails() throws IOException {
+        System.out.println(" --- append (fails)");
+        Path directory = Files.createTempDirectory("journal");
+        try {
+            ItemJournal journal = ItemJournal.open(directory.toString());
+            try {
+                journal.append(items("<1@example.com>", new AgendaItem("a@example.com", "A", "Budget", "")));
+                fail("The append should have failed.");
+            } catch (IOException ex) {
+                // The failure is reported, and the item is not in the journal.
+            }
+            assertFalse(journal.contains("<1@example.com>"));
+            assertTrue(journal.getOpenItems().isEmpty());
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    /** Test of escape and unescape methods, of class ItemJournal. */
+    @Test
+    public void testEscape() {
+        System.out.println(" --- escape/unescape");
+        for (String value : Arrays.asList("", "plain", "tab\there", "a\r\nb", "back\\slash", "\\0", "\\")){
+            String escaped = ItemJournal.escape(value);
+            assertFalse(escaped.contains("\t") || escaped.contains("\n") || escaped.contains("\r"));
+            assertEquals(value, ItemJournal.unescape(escaped));
+        }
+        assertNull(ItemJournal.unescape(ItemJournal.escape(null)));
+    }
+
+    /** Builds a map of items from alternating keys and items. */
+    private static Map<String, AgendaItem> items(Object... keysAndItems){
+        Map<String, AgendaItem> items = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndItems.length; i += 2){
+            items.put((String)keysAndItems[i], (AgendaItem)keysAndItems[i + 1]);
+        }
+        return items;
+    }
+}
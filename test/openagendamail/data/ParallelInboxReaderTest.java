@@ -0,0 +1,43 @@
+package openagendamail.data;
+
+import java.util.List;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ParallelInboxReader class.
+ */
+public class ParallelInboxReaderTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("ParallelInboxReaderTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /** Test of split method, of class ParallelInboxReader. */
+    @Test
+    public void testSplit() {
+        System.out.println(" --- split");
+        long[] uids = {3, 4, 8, 9, 10, 15, 16};
+
+        List<long[]> ranges = ParallelInboxReader.split(uids, 3);
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new long[] {3, 4}, ranges.get(0));
+        assertArrayEquals(new long[] {8, 9}, ranges.get(1));
+        assertArrayEquals(new long[] {10, 15, 16}, ranges.get(2));
+
+        // Never more ranges than UIDs.
+        ranges = ParallelInboxReader.split(new long[] {1, 2}, 5);
+        assertEquals(2, ranges.size());
+        assertArrayEquals(new long[] {1}, ranges.get(0));
+        assertArrayEquals(new long[] {2}, ranges.get(1));
+
+        assertTrue(ParallelInboxReader.split(new long[0], 4).isEmpty());
+    }
+}
@@ -0,0 +1,79 @@
+package openagendamail.data;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.search.SearchTerm;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the SenderSearch class.
+ */
+public class SenderSearchTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("SenderSearchTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /** Test of getTerms method, of class SenderSearch. */
+    @Test
+    public void testGetTerms() throws MessagingException {
+        System.out.println(" --- getTerms");
+        List<String> addresses = Arrays.asList("a@example.com", "b@example.com", "c@example.com", "d@example.com",
+                "e@example.com");
+        List<SearchTerm> terms = new SenderSearch(addresses, 2).getTerms();
+        assertEquals(3, terms.size());
+
+        // Every address is matched by exactly one chunk.
+        for (String address : addresses){
+            MimeMessage msg = messageFrom(address);
+            int matches = 0;
+            for (SearchTerm term : terms){
+                if (term.match(msg)){
+                    matches++;
+                }
+            }
+            assertEquals(1, matches);
+        }
+
+        // Case and plus-addressing aliases are matched.
+        int matches = 0;
+        for (SearchTerm term : terms){
+            if (term.match(messageFrom("B+Agenda@Example.com"))){
+                matches++;
+            }
+        }
+        assertEquals(1, matches);
+
+        // Other senders are not matched.
+        for (SearchTerm term : terms){
+            assertFalse(term.match(messageFrom("spam@example.org")));
+        }
+    }
+
+    /** Test of getTerms method, of class SenderSearch, with an empty email list. */
+    @Test
+    public void testGetTermsEmpty() {
+        System.out.println(" --- getTerms (empty)");
+        assertTrue(new SenderSearch(Arrays.<String>asList(), 50).getTerms().isEmpty());
+    }
+
+    /** Creates a message from the given address. */
+    private static MimeMessage messageFrom(String address) throws MessagingException {
+        MimeMessage msg = new MimeMessage(Session.getInstance(new Properties()));
+        msg.setFrom(new InternetAddress(address));
+        return msg;
+    }
+}
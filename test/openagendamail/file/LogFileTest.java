@@ -0,0 +1,83 @@
+package openagendamail.file;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the LogFile class.
+ */
+public class LogFileTest {
+
+    /** A scratch agenda directory. */
+    private static final File DIRECTORY = new File("test-agenda-log");
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("LogFileTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+        DIRECTORY.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        LogFile.setThreadLogFile(null);
+        delete(DIRECTORY);
+    }
+
+    /** Test of inheritThreadLogFile method, of class LogFile. */
+    @Test
+    public void testInheritThreadLogFile() throws InterruptedException, ExecutionException {
+        System.out.println(" --- inheritThreadLogFile");
+        LogFile agendaLog = LogFile.getLogFile(DIRECTORY.getPath());
+        LogFile.setThreadLogFile(agendaLog);
+        Callable<LogFile> task = LogFile.inheritThreadLogFile(new Callable<LogFile>() {
+            @Override
+            public LogFile call() {
+                return LogFile.getLogFile();
+            }
+        });
+        LogFile.setThreadLogFile(null);
+
+        // The task logs to the agenda's log on another thread, and the thread's own log is restored afterwards.
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            assertSame(agendaLog, pool.submit(task).get());
+            assertNotSame(agendaLog, pool.submit(new Callable<LogFile>() {
+                @Override
+                public LogFile call() {
+                    return LogFile.getLogFile();
+                }
+            }).get());
+        } finally {
+            pool.shutdownNow();
+        }
+        assertNotSame(agendaLog, LogFile.getLogFile());
+    }
+
+    /** Deletes a file or directory and everything in it. */
+    private static void delete(File file){
+        File[] children = file.listFiles();
+        if (children != null){
+            for (File child : children){
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,104 @@
+package openagendamail.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+import javax.activation.DataSource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the AgendaBuffer class.
+ */
+public class AgendaBufferTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("AgendaBufferTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /** Test of publish method, of class AgendaBuffer:  readers see the last complete document only. */
+    @Test
+    public void testPublish() throws IOException {
+        System.out.println(" --- publish");
+        String docName = "buffer-" + System.nanoTime() + ".pdf";
+        AgendaBuffer buffer = AgendaBuffer.get(docName);
+        assertSame(buffer, AgendaBuffer.get(docName));
+        assertEquals(-1, buffer.size());
+        DataSource source = buffer.getDataSource();
+        assertEquals(docName, source.getName());
+        try {
+            source.getInputStream();
+            fail("Nothing has been built yet.");
+        } catch (IOException ex) {
+            // Expected.
+        }
+
+        write(buffer.startDocument(), "first");
+        buffer.publish();
+        assertEquals("first", read(source));
+
+        // A document being rendered is not seen until it is published.
+        InputStream sending = source.getInputStream();
+        write(buffer.startDocument(), "second document");
+        assertEquals("first", read(source));
+        assertEquals("first", read(sending));
+        buffer.publish();
+        assertEquals("second document", read(source));
+        assertEquals(15, buffer.size());
+
+        // The buffers are reused.
+        write(buffer.startDocument(), "third");
+        buffer.publish();
+        assertEquals("third", read(source));
+    }
+
+    /** Test of archive method, of class AgendaBuffer. */
+    @Test
+    public void testArchive() throws IOException, InterruptedException, ExecutionException {
+        System.out.println(" --- archive");
+        File file = new File(System.getProperty("java.io.tmpdir"), "archive-" + System.nanoTime() + ".pdf");
+        try {
+            AgendaBuffer buffer = AgendaBuffer.get(file.getPath());
+            write(buffer.startDocument(), "archived");
+            buffer.publish();
+            buffer.archive().get();
+            assertEquals("archived", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            assertFalse(new File(file.getPath() + ".part").exists());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Writes text to a stream. */
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Reads all of a data source. */
+    private static String read(DataSource source) throws IOException {
+        try (InputStream in = source.getInputStream()) {
+            return read(in);
+        }
+    }
+
+    /** Reads all of a stream. */
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int b = in.read(); b >= 0; b = in.read()){
+            bytes.write(b);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,119 @@
+package openagendamail.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import openagendamail.file.LogFile;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the AgendaScheduler class.
+ */
+public class AgendaSchedulerTest {
+
+    /** A scratch agenda directory. */
+    private static final File DIRECTORY = new File("test-agenda");
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("AgendaSchedulerTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        delete(DIRECTORY);
+        DIRECTORY.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        delete(DIRECTORY);
+    }
+
+    /** Test of resolveFiles method, of class AgendaScheduler. */
+    @Test
+    public void testResolveFiles() {
+        System.out.println(" --- resolveFiles");
+        Properties props = new Properties();
+        props.setProperty("doc.name", "committee.pdf");
+        props.setProperty("email.list.filename", new File("members.txt").getAbsolutePath());
+        AgendaScheduler.resolveFiles(props, DIRECTORY);
+
+        assertEquals(new File(DIRECTORY, "committee.pdf").getPath(), props.getProperty("doc.name"));
+        assertEquals(new File("members.txt").getAbsolutePath(), props.getProperty("email.list.filename"));
+        assertEquals(new File(DIRECTORY, "inbox.checkpoint").getPath(), props.getProperty("imap.checkpoint.filename"));
+        assertEquals(new File(DIRECTORY, "agenda.journal").getPath(), props.getProperty("journal.filename"));
+        assertEquals(new File(DIRECTORY, "duplicate.index").getPath(), props.getProperty("dedupe.index.filename"));
+    }
+
+    /** Test of forDirectory method, of class AgendaScheduler. */
+    @Test
+    public void testForDirectory() throws IOException {
+        System.out.println(" --- forDirectory");
+        Files.write(new File(DIRECTORY, "agenda.properties").toPath(),
+                "agenda.title=Committee\nmode=1stand3rd\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(DIRECTORY, "email.properties").toPath(),
+                "email=committee@example.com\n".getBytes(StandardCharsets.UTF_8));
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            Properties props = AgendaScheduler.forDirectory(DIRECTORY, executor).getProperties();
+            assertEquals("Committee", props.getProperty("agenda.title"));
+            assertEquals("1stand3rd", props.getProperty("mode"));
+            assertEquals("committee@example.com", props.getProperty("email"));
+            assertEquals(new File(DIRECTORY, "agenda.pdf").getPath(), props.getProperty("doc.name"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Test of guard method, of class AgendaScheduler. */
+    @Test
+    public void testGuard() {
+        System.out.println(" --- guard");
+        final LogFile agendaLog = LogFile.getLogFile(DIRECTORY.getPath());
+        final LogFile[] seen = new LogFile[1];
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            AgendaScheduler scheduler = new AgendaScheduler("test", new Properties(), executor, agendaLog);
+            scheduler.guard(new Runnable() {
+                @Override
+                public void run() {
+                    seen[0] = LogFile.getLogFile();
+                    throw new IllegalStateException("Failing on purpose.");
+                }
+            }).run();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The task logged to the agenda's log, its failure was contained, and the thread's log was restored.
+        assertSame(agendaLog, seen[0]);
+        assertNotSame(agendaLog, LogFile.getLogFile());
+        assertTrue(new File(DIRECTORY, "logs").isDirectory());
+    }
+
+    /** Deletes a file or directory and everything in it. */
+    private static void delete(File file){
+        File[] children = file.listFiles();
+        if (children != null){
+            for (File child : children){
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
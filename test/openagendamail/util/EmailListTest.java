@@ -0,0 +1,86 @@
+package openagendamail.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import openagendamail.file.TextFileToolbox;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the EmailList class.
+ */
+public class EmailListTest {
+
+    /** A scratch email list file. */
+    private static final String FILENAME = "test-email-list.txt";
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("EmailListTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        Files.deleteIfExists(Paths.get(FILENAME));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(Paths.get(FILENAME));
+    }
+
+    /** Test of contains method, of class EmailList. */
+    @Test
+    public void testContains() {
+        System.out.println(" --- contains");
+        EmailList list = EmailList.getEmailList("test/openagendamail/test-emails.txt");
+        assertEquals(2, list.size());
+        assertTrue(list.contains("email_1@gmail.com"));
+        assertTrue(list.contains("Email_1@GMail.com"));
+        assertTrue(list.contains(" a_second_email+agenda@hotmail.com"));
+        assertFalse(list.contains("email_2@gmail.com"));
+        assertFalse(list.contains(null));
+    }
+
+    /** Test of normalize method, of class EmailList. */
+    @Test
+    public void testNormalize() {
+        System.out.println(" --- normalize");
+        assertEquals("member@example.com", EmailList.normalize("member@example.com"));
+        assertEquals("member@example.com", EmailList.normalize(" Member@Example.COM "));
+        assertEquals("member@example.com", EmailList.normalize("member+agenda@example.com"));
+        assertEquals("+member@example.com", EmailList.normalize("+member@example.com"));
+        assertEquals("not-an-address", EmailList.normalize("not-an-address"));
+    }
+
+    /** Test of getEmailList method, of class EmailList, when the file changes. */
+    @Test
+    public void testReload() {
+        System.out.println(" --- getEmailList (reload)");
+        TextFileToolbox.writeTextFile(FILENAME, "one@example.com\n");
+        new File(FILENAME).setLastModified(1000000000000L);
+        EmailList list = EmailList.getEmailList(FILENAME);
+        assertTrue(list.contains("one@example.com"));
+        assertFalse(list.contains("two@example.com"));
+
+        // Unchanged file, same contents.
+        assertSame(list, EmailList.getEmailList(FILENAME));
+        assertEquals(1, list.size());
+
+        TextFileToolbox.writeTextFile(FILENAME, "one@example.com\n# a comment\ntwo@example.com\n");
+        new File(FILENAME).setLastModified(1000000060000L);
+        list = EmailList.getEmailList(FILENAME);
+        assertTrue(list.contains("two@example.com"));
+        assertEquals(2, list.size());
+    }
+}
@@ -0,0 +1,76 @@
+package openagendamail.util.email;
+
+import java.util.List;
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the Delivery class.
+ */
+public class DeliveryTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("DeliveryTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /** Test of the Delivery constructor:  every recipient is put in exactly one chunk, in address order. */
+    @Test
+    public void testChunks() throws Exception {
+        System.out.println(" --- Delivery");
+        Email email = new Email("Agenda", "Body");
+        for (int i = 0; i < 7; i++){
+            email.addRecipient("member" + i + "@example.com", RecipientType.BCC);
+        }
+        email.addRecipient("chair@example.com", RecipientType.TO);
+        Delivery delivery = new Delivery(email, 3);
+        assertEquals(3, delivery.getChunkCount());
+        List<Delivery.Chunk> pending = delivery.getPending();
+        assertEquals("chair@example.com", pending.get(0).getAddresses()[0].toString());
+        assertEquals(3, pending.get(0).getAddresses().length);
+        assertEquals(2, pending.get(2).getAddresses().length);
+        assertEquals("member6@example.com", pending.get(2).getAddresses()[1].toString());
+        assertFalse(delivery.isComplete());
+
+        assertEquals(0, new Delivery(new Email("Agenda", "Body"), 3).getChunkCount());
+        assertTrue(new Delivery(new Email("Agenda", "Body"), 3).isComplete());
+    }
+
+    /** Test of the failed method, of class Delivery.Chunk. */
+    @Test
+    public void testFailed() throws Exception {
+        System.out.println(" --- Chunk.failed");
+        Email email = new Email("Agenda", "Body");
+        for (int i = 0; i < 3; i++){
+            email.addRecipient("member" + i + "@example.com", RecipientType.BCC);
+        }
+        Delivery delivery = new Delivery(email, 10);
+        Delivery.Chunk chunk = delivery.getPending().get(0);
+
+        // A refused recipient is dropped, and the chunk can be sent to the rest straight away.
+        Address[] refused = {new InternetAddress("member1@example.com")};
+        assertTrue(chunk.failed(new SendFailedException("refused", null, null, null, refused)));
+        assertEquals(2, chunk.getAddresses().length);
+        assertEquals(Delivery.Status.PENDING, delivery.getStatus(0));
+
+        // A message the server failed is retried for the recipients it was not sent to.
+        Address[] sent = {new InternetAddress("member0@example.com")};
+        assertFalse(chunk.failed(new SendFailedException("failed", null, sent, chunk.getAddresses(), null)));
+        assertEquals(1, chunk.getAddresses().length);
+        assertEquals(Delivery.Status.PENDING, delivery.getStatus(0));
+
+        chunk.sent();
+        assertTrue(delivery.isComplete());
+        assertEquals(Delivery.Status.REFUSED, delivery.getStatus(0));
+        assertTrue(delivery.getRefused().contains("member1@example.com"));
+    }
+}
@@ -0,0 +1,45 @@
+package openagendamail.util.email;
+
+import java.io.PrintStream;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ImapCommandCounter class.
+ */
+public class ImapCommandCounterTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("ImapCommandCounterTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /** Test of getCount method, of class ImapCommandCounter. */
+    @Test
+    public void testGetCount() {
+        System.out.println(" --- getCount");
+        ImapCommandCounter counter = new ImapCommandCounter();
+        PrintStream out = new PrintStream(counter, true);
+
+        out.println("DEBUG: setDebug: JavaMail version 1.4.5");
+        out.println("* OK Gimap ready for requests");
+        out.println("A0 CAPABILITY");
+        out.println("* CAPABILITY IMAP4rev1 UNSELECT IDLE NAMESPACE QUOTA ID XLIST CHILDREN X-GM-EXT-1");
+        out.println("A0 OK Thats all she wrote!");
+        out.println("A1 LOGIN agenda@gmail.com secret");
+        out.println("A1 OK agenda@gmail.com authenticated (Success)");
+        out.println("A2 FETCH 1:250 (ENVELOPE INTERNALDATE RFC822.SIZE FLAGS BODYSTRUCTURE UID)");
+        out.println("* 1 FETCH (UID 12 FLAGS (\\Seen))");
+        out.println("A2 NO fetch failed");
+        out.println("A3 FETCH 2,4,6 (BODY.PEEK[1])");
+        out.println("A3 BAD could not parse command");
+        out.println("Agenda items and other text are not counted.");
+        assertEquals(4, counter.getCount());
+    }
+}
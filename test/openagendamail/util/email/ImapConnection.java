@@ -0,0 +1,958 @@
+package openagendamail.util.email;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParameterList;
+import openagendamail.util.email.TestMailbox.StoredMessage;
+
+/**
+ * One client connection to the IMAP side of the {@link TestMailServer}.  Implements the part of IMAP4rev1 that
+ * JavaMail uses:  LOGIN, CAPABILITY, LIST, SELECT/EXAMINE, FETCH (flags, UIDs, envelopes, body structures and whole or
+ * partial body sections), SEARCH, STORE, EXPUNGE, CLOSE, IDLE, NOOP and LOGOUT, along with their UID forms.  There is
+ * a single folder, the INBOX.
+ */
+class ImapConnection {
+
+    /** The capabilities announced to clients. */
+    private static final String CAPABILITIES = "IMAP4rev1 IDLE";
+
+    /** Matches a synchronizing literal at the end of a command line. */
+    private static final Pattern LITERAL = Pattern.compile("\\{(\\d+)\\}$");
+
+    /** Matches a body section fetch, such as "BODY.PEEK[1.2]<0.65536>". */
+    private static final Pattern SECTION = Pattern.compile("(?i)(BODY(?:\\.PEEK)?)\\[([^\\]]*)\\](?:<(\\d+)\\.(\\d+)>)?");
+
+    /** Matches a message or UID set. */
+    private static final Pattern SET = Pattern.compile("[0-9*][0-9*:,]*");
+
+    /** The server the connection belongs to. */
+    private final TestMailServer m_server;
+
+    /** The client's socket. */
+    private final Socket m_socket;
+
+    /** The client's input. */
+    private final InputStream m_in;
+
+    /** The client's output. */
+    private final OutputStream m_out;
+
+    /** The part of the current line read so far. */
+    private final ByteArrayOutputStream m_line = new ByteArrayOutputStream();
+
+    /** The mailbox of the logged in account, or null before login. */
+    private TestMailbox m_mailbox;
+
+    /** The messages of the selected mailbox as this connection sees them, or null if nothing is selected. */
+    private List<StoredMessage> m_view;
+
+    /** True if the mailbox was selected read only. */
+    private boolean m_readOnly;
+
+    /**
+     * Constructor.
+     * @param server the server the connection belongs to.
+     * @param socket the client's socket.
+     * @throws IOException if the socket's streams cannot be opened.
+     */
+    ImapConnection(TestMailServer server, Socket socket) throws IOException {
+        m_server = server;
+        m_socket = socket;
+        m_in = new BufferedInputStream(socket.getInputStream());
+        m_out = socket.getOutputStream();
+    }
+
+    /**
+     * Serves the client until it logs out or disconnects.
+     * @throws IOException if the connection fails.
+     */
+    void serve() throws IOException {
+        untagged("OK [CAPABILITY " + CAPABILITIES + "] Test server ready");
+        for (String command = readCommand(); command != null; command = readCommand()){
+            List<Object> words = parse(command);
+            if (words.size() < 2){
+                respond("* BAD Missing command");
+                continue;
+            }
+            String tag = text(words.get(0));
+            try {
+                if (!handle(tag, words)){
+                    return;
+                }
+            } catch (MessagingException | RuntimeException ex) {
+                respond(tag + " BAD " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Carries out one command.
+     *
+     * @param tag the command's tag.
+     * @param words the command, parsed.
+     * @return false if the client logged out.
+     * @throws IOException if the connection fails.
+     * @throws MessagingException if a message cannot be parsed.
+     */
+    private boolean handle(String tag, List<Object> words) throws IOException, MessagingException {
+        String command = text(words.get(1)).toUpperCase();
+        List<Object> args = words.subList(2, words.size());
+        boolean uid = false;
+        if (command.equals("UID") && !args.isEmpty()){
+            uid = true;
+            command = text(args.get(0)).toUpperCase();
+            args = args.subList(1, args.size());
+        }
+
+        switch (command){
+            case "CAPABILITY":
+                untagged("CAPABILITY " + CAPABILITIES);
+                break;
+            case "NOOP":
+            case "CHECK":
+                break;
+            case "LOGOUT":
+                untagged("BYE Logging out");
+                respond(tag + " OK LOGOUT completed");
+                return false;
+            case "LOGIN":
+                m_mailbox = m_server.getMailbox(text(args.get(0)));
+                respond(tag + " OK [CAPABILITY " + CAPABILITIES + "] LOGIN completed");
+                return true;
+            case "LIST":
+            case "LSUB":
+                list(command, text(args.get(1)));
+                break;
+            case "STATUS":
+                requireLogin();
+                untagged("STATUS INBOX (MESSAGES " + m_mailbox.size() + " UIDNEXT " + m_mailbox.getUidNext()
+                        + " UIDVALIDITY " + m_mailbox.getUidValidity() + " UNSEEN 0 RECENT 0)");
+                break;
+            case "SELECT":
+            case "EXAMINE":
+                select(tag, text(args.get(0)), command.equals("EXAMINE"));
+                return true;
+            case "CLOSE":
+                requireSelected();
+                if (!m_readOnly){
+                    m_mailbox.expunge();
+                }
+                m_view = null;
+                respond(tag + " OK CLOSE completed");
+                return true;
+            case "EXPUNGE":
+                requireSelected();
+                m_mailbox.expunge();
+                break;
+            case "FETCH":
+                requireSelected();
+                fetch(resolve(text(args.get(0)), uid), args.get(1), uid);
+                break;
+            case "STORE":
+                requireSelected();
+                store(resolve(text(args.get(0)), uid), text(args.get(1)).toUpperCase(), args.get(2), uid);
+                break;
+            case "SEARCH":
+                requireSelected();
+                search(args, uid);
+                break;
+            case "IDLE":
+                requireSelected();
+                idle();
+                break;
+            default:
+                respond(tag + " BAD Unknown command " + command);
+                return true;
+        }
+        // Report what changed in the mailbox.  Expunges may only be reported outside FETCH, STORE and SEARCH.
+        sync(!(command.equals("FETCH") || command.equals("STORE") || command.equals("SEARCH")));
+        respond(tag + " OK " + command + " completed");
+        return true;
+    }
+
+    /** Answers LIST and LSUB:  the only folder is the INBOX. */
+    private void list(String command, String pattern) throws IOException {
+        requireLogin();
+        if (pattern.isEmpty()){
+            untagged(command + " (\\Noselect) \"/\" \"\"");
+        } else if (pattern.equalsIgnoreCase("INBOX") || pattern.equals("*") || pattern.equals("%")){
+            untagged(command + " (\\HasNoChildren) \"/\" INBOX");
+        }
+    }
+
+    /** Selects the INBOX. */
+    private void select(String tag, String folder, boolean readOnly) throws IOException {
+        requireLogin();
+        if (!folder.equalsIgnoreCase("INBOX")){
+            m_view = null;
+            respond(tag + " NO No such folder");
+            return;
+        }
+        m_view = m_mailbox.snapshot();
+        m_readOnly = readOnly;
+        untagged("FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft)");
+        untagged(m_view.size() + " EXISTS");
+        untagged("0 RECENT");
+        untagged("OK [UIDVALIDITY " + m_mailbox.getUidValidity() + "] UIDs valid");
+        untagged("OK [UIDNEXT " + m_mailbox.getUidNext() + "] Predicted next UID");
+        untagged("OK [PERMANENTFLAGS (\\Deleted \\Seen \\*)] Limited");
+        respond(tag + " OK [" + (readOnly ? "READ-ONLY" : "READ-WRITE") + "] " + (readOnly ? "EXAMINE" : "SELECT")
+                + " completed");
+    }
+
+    /** Answers FETCH for the given messages. */
+    private void fetch(List<Integer> indexes, Object itemsArg, boolean uid) throws IOException, MessagingException {
+        List<String> items = new ArrayList<>();
+        if (itemsArg instanceof List){
+            for (Object item : (List<?>)itemsArg){
+                items.add(text(item));
+            }
+        } else {
+            String macro = text(itemsArg).toUpperCase();
+            switch (macro){
+                case "ALL": items.addAll(Arrays.asList("FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE")); break;
+                case "FAST": items.addAll(Arrays.asList("FLAGS", "INTERNALDATE", "RFC822.SIZE")); break;
+                case "FULL": items.addAll(Arrays.asList("FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE", "BODY")); break;
+                default: items.add(text(itemsArg));
+            }
+        }
+        if (uid && !containsIgnoreCase(items, "UID")){
+            items.add(0, "UID");
+        }
+
+        for (int index : indexes){
+            StoredMessage message = m_view.get(index);
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            write(response, "* " + (index + 1) + " FETCH (");
+            synchronized (message){
+                for (int i = 0; i < items.size(); i++){
+                    if (i > 0){
+                        write(response, " ");
+                    }
+                    fetchItem(response, message, items.get(i));
+                }
+            }
+            write(response, ")\r\n");
+            m_out.write(response.toByteArray());
+        }
+        m_out.flush();
+    }
+
+    /** Writes one FETCH item of a message. */
+    private void fetchItem(ByteArrayOutputStream out, StoredMessage message, String item)
+            throws IOException, MessagingException {
+        String name = item.toUpperCase();
+        Matcher section = SECTION.matcher(item);
+        if (section.matches()){
+            byte[] bytes = section(message, section.group(2));
+            String response = "BODY[" + section.group(2) + "]";
+            if (section.group(3) != null){
+                int origin = Math.min(Integer.parseInt(section.group(3)), bytes.length);
+                int count = Math.min(Integer.parseInt(section.group(4)), bytes.length - origin);
+                bytes = Arrays.copyOfRange(bytes, origin, origin + count);
+                response += "<" + origin + ">";
+            }
+            write(out, response + " ");
+            writeLiteral(out, bytes);
+            return;
+        }
+        switch (name){
+            case "UID":
+                write(out, "UID " + message.m_uid);
+                break;
+            case "FLAGS":
+                write(out, "FLAGS " + flags(message.getFlags()));
+                break;
+            case "INTERNALDATE":
+                SimpleDateFormat format = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                write(out, "INTERNALDATE \"" + format.format(message.m_received) + "\"");
+                break;
+            case "RFC822.SIZE":
+                write(out, "RFC822.SIZE " + message.m_raw.length);
+                break;
+            case "ENVELOPE":
+                write(out, "ENVELOPE ");
+                envelope(out, message.getParsed());
+                break;
+            case "BODY":
+            case "BODYSTRUCTURE":
+                write(out, name + " ");
+                bodyStructure(out, message.getParsed());
+                break;
+            case "RFC822":
+                write(out, "RFC822 ");
+                writeLiteral(out, message.m_raw);
+                break;
+            case "RFC822.HEADER":
+                write(out, "RFC822.HEADER ");
+                writeLiteral(out, section(message, "HEADER"));
+                break;
+            case "RFC822.TEXT":
+                write(out, "RFC822.TEXT ");
+                writeLiteral(out, section(message, "TEXT"));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported FETCH item " + item);
+        }
+    }
+
+    /** Answers STORE for the given messages. */
+    private void store(List<Integer> indexes, String operation, Object flagsArg, boolean uid) throws IOException {
+        boolean silent = operation.endsWith(".SILENT");
+        String op = silent ? operation.substring(0, operation.length() - ".SILENT".length()) : operation;
+        Set<String> flags = new HashSet<>();
+        if (flagsArg instanceof List){
+            for (Object flag : (List<?>)flagsArg){
+                flags.add(text(flag));
+            }
+        } else {
+            flags.add(text(flagsArg));
+        }
+        for (int index : indexes){
+            StoredMessage message = m_view.get(index);
+            message.storeFlags(flags, op);
+            if (!silent){
+                untagged((index + 1) + " FETCH (FLAGS " + flags(message.getFlags())
+                        + (uid ? " UID " + message.m_uid : "") + ")");
+            }
+        }
+    }
+
+    /** Answers SEARCH. */
+    private void search(List<Object> args, boolean uid) throws IOException, MessagingException {
+        List<Object> keys = new ArrayList<>(args);
+        if (!keys.isEmpty() && text(keys.get(0)).equalsIgnoreCase("CHARSET")){
+            keys = keys.subList(2, keys.size());
+        }
+        StringBuilder found = new StringBuilder("SEARCH");
+        for (int i = 0; i < m_view.size(); i++){
+            StoredMessage message = m_view.get(i);
+            boolean matches = true;
+            int[] position = {0};
+            synchronized (message){
+                while (position[0] < keys.size()){
+                    matches &= matches(keys, position, message, i);
+                }
+            }
+            if (matches){
+                found.append(' ').append(uid ? message.m_uid : i + 1);
+            }
+        }
+        untagged(found.toString());
+    }
+
+    /**
+     * Evaluates the search key at the given position against a message, moving the position past the key.
+     *
+     * @param keys the search keys.
+     * @param position the position of the key to evaluate.
+     * @param message the message.
+     * @param index the index of the message in this connection's view.
+     * @return true if the message matches the key.
+     */
+    private boolean matches(List<Object> keys, int[] position, StoredMessage message, int index)
+            throws MessagingException {
+        Object key = keys.get(position[0]++);
+        if (key instanceof List){
+            List<Object> group = castList(key);
+            int[] inner = {0};
+            boolean matches = true;
+            while (inner[0] < group.size()){
+                matches &= matches(group, inner, message, index);
+            }
+            return matches;
+        }
+        String name = text(key).toUpperCase();
+        switch (name){
+            case "ALL":
+                return true;
+            case "FROM":
+            case "TO":
+            case "CC":
+            case "BCC":
+            case "SUBJECT":
+                return headerContains(message, name, text(keys.get(position[0]++)));
+            case "HEADER":
+                String header = text(keys.get(position[0]++));
+                return headerContains(message, header, text(keys.get(position[0]++)));
+            case "BODY":
+            case "TEXT":
+                String value = text(keys.get(position[0]++)).toLowerCase();
+                return new String(message.m_raw, StandardCharsets.ISO_8859_1).toLowerCase().contains(value);
+            case "OR":
+                boolean first = matches(keys, position, message, index);
+                boolean second = matches(keys, position, message, index);
+                return first || second;
+            case "NOT":
+                return !matches(keys, position, message, index);
+            case "UID":
+                return resolve(text(keys.get(position[0]++)), true).contains(index);
+            case "DELETED":
+                return message.hasFlag("\\Deleted");
+            case "UNDELETED":
+                return !message.hasFlag("\\Deleted");
+            case "SEEN":
+                return message.hasFlag("\\Seen");
+            case "UNSEEN":
+                return !message.hasFlag("\\Seen");
+            default:
+                if (SET.matcher(name).matches()){
+                    return resolve(name, false).contains(index);
+                }
+                throw new IllegalArgumentException("Unsupported SEARCH key " + name);
+        }
+    }
+
+    /** Returns true if any value of a message header contains the given text, ignoring case. */
+    private static boolean headerContains(StoredMessage message, String header, String text) throws MessagingException {
+        String[] values = message.getParsed().getHeader(header);
+        if (values == null){
+            return false;
+        }
+        for (String value : values){
+            if (value.toLowerCase().contains(text.toLowerCase())){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Waits in IDLE until the client sends DONE, reporting changes to the mailbox as they happen. */
+    private void idle() throws IOException {
+        respond("+ idling");
+        m_socket.setSoTimeout(100);
+        try {
+            while (true){
+                try {
+                    String line = readLine();
+                    if (line == null || line.equalsIgnoreCase("DONE")){
+                        return;
+                    }
+                } catch (SocketTimeoutException ex) {
+                    sync(true);
+                }
+            }
+        } finally {
+            m_socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Brings this connection's view of the mailbox up to date, telling the client about expunged and new messages.
+     * @param expunges true if expunged messages may be reported now.
+     */
+    private void sync(boolean expunges) throws IOException {
+        if (m_view == null){
+            return;
+        }
+        if (expunges){
+            for (int i = m_view.size() - 1; i >= 0; i--){
+                if (!m_mailbox.contains(m_view.get(i))){
+                    m_view.remove(i);
+                    untagged((i + 1) + " EXPUNGE");
+                }
+            }
+        }
+        Set<StoredMessage> known = new HashSet<>(m_view);
+        int before = m_view.size();
+        for (StoredMessage message : m_mailbox.snapshot()){
+            if (!known.contains(message) && (m_view.isEmpty() || message.m_uid > m_view.get(m_view.size() - 1).m_uid)){
+                m_view.add(message);
+            }
+        }
+        if (m_view.size() != before){
+            untagged(m_view.size() + " EXISTS");
+        }
+    }
+
+    /**
+     * Turns a message or UID set, such as "1:4,7" or "12:*", into indexes of this connection's view.
+     * @param set the set.
+     * @param uid true if the set holds UIDs, false for message numbers.
+     * @return the indexes, in ascending order.
+     */
+    private List<Integer> resolve(String set, boolean uid){
+        TreeSet<Integer> indexes = new TreeSet<>();
+        long max = uid ? (m_view.isEmpty() ? 0 : m_view.get(m_view.size() - 1).m_uid) : m_view.size();
+        for (String range : set.split(",")){
+            String[] ends = range.split(":");
+            long a = ends[0].equals("*") ? max : Long.parseLong(ends[0]);
+            long b = ends.length < 2 ? a : (ends[1].equals("*") ? max : Long.parseLong(ends[1]));
+            long low = Math.min(a, b);
+            long high = Math.max(a, b);
+            for (int i = 0; i < m_view.size(); i++){
+                long number = uid ? m_view.get(i).m_uid : i + 1;
+                if (number >= low && number <= high){
+                    indexes.add(i);
+                }
+            }
+        }
+        return new ArrayList<>(indexes);
+    }
+
+    /**
+     * Returns the bytes of a body section of a message.
+     * @param message the message.
+     * @param spec the section, such as "", "HEADER", "TEXT", "1.2" or "1.MIME".
+     * @return the section's bytes, or none if the message has no such section.
+     */
+    private static byte[] section(StoredMessage message, String spec) throws MessagingException, IOException {
+        String upper = spec.toUpperCase();
+        int headerEnd = headerEnd(message.m_raw);
+        if (upper.isEmpty()){
+            return message.m_raw;
+        }
+        if (upper.equals("HEADER")){
+            return Arrays.copyOfRange(message.m_raw, 0, headerEnd);
+        }
+        if (upper.equals("TEXT")){
+            return Arrays.copyOfRange(message.m_raw, headerEnd, message.m_raw.length);
+        }
+        if (upper.startsWith("HEADER.FIELDS")){
+            Set<String> names = new HashSet<>();
+            for (Object name : castList(parse(spec.substring(spec.indexOf('('))).get(0))){
+                names.add(text(name).toLowerCase());
+            }
+            boolean not = upper.startsWith("HEADER.FIELDS.NOT");
+            StringBuilder headers = new StringBuilder();
+            Enumeration<?> lines = message.getParsed().getAllHeaderLines();
+            while (lines.hasMoreElements()){
+                String line = (String)lines.nextElement();
+                String name = line.substring(0, Math.max(line.indexOf(':'), 0)).trim().toLowerCase();
+                if (names.contains(name) != not){
+                    headers.append(line).append("\r\n");
+                }
+            }
+            return headers.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        // A numbered part, perhaps followed by MIME, HEADER or TEXT.
+        MimePart part = message.getParsed();
+        String suffix = "";
+        for (String number : upper.split("\\.")){
+            if (!number.matches("\\d+")){
+                suffix = number;
+                break;
+            }
+            int n = Integer.parseInt(number);
+            Object content = part.isMimeType("multipart/*") ? part.getContent() : null;
+            if (content instanceof Multipart){
+                Multipart multipart = (Multipart)content;
+                if (n > multipart.getCount()){
+                    return new byte[0];
+                }
+                part = (MimePart)multipart.getBodyPart(n - 1);
+            } else if (n != 1){
+                return new byte[0];
+            }
+        }
+        if (suffix.equals("MIME")){
+            StringBuilder headers = new StringBuilder();
+            Enumeration<?> lines = part.getAllHeaderLines();
+            while (lines.hasMoreElements()){
+                headers.append(lines.nextElement()).append("\r\n");
+            }
+            return headers.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return rawContent(part);
+    }
+
+    /** Returns the raw, still encoded, content of a part. */
+    private static byte[] rawContent(MimePart part) throws MessagingException, IOException {
+        InputStream in = part instanceof MimeMessage ? ((MimeMessage)part).getRawInputStream()
+                : ((MimeBodyPart)part).getRawInputStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1){
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Returns the length of a message's header, including the blank line that ends it. */
+    private static int headerEnd(byte[] raw){
+        for (int i = 0; i + 3 < raw.length; i++){
+            if (raw[i] == '\r' && raw[i + 1] == '\n' && raw[i + 2] == '\r' && raw[i + 3] == '\n'){
+                return i + 4;
+            }
+        }
+        return raw.length;
+    }
+
+    /** Writes the ENVELOPE of a message. */
+    private static void envelope(ByteArrayOutputStream out, MimeMessage message) throws IOException, MessagingException {
+        String from = header(message, "From");
+        write(out, "(");
+        writeString(out, header(message, "Date"));
+        write(out, " ");
+        writeString(out, header(message, "Subject"));
+        write(out, " ");
+        addresses(out, from);
+        write(out, " ");
+        addresses(out, header(message, "Sender") != null ? header(message, "Sender") : from);
+        write(out, " ");
+        addresses(out, header(message, "Reply-To") != null ? header(message, "Reply-To") : from);
+        for (String name : new String[] {"To", "Cc", "Bcc"}){
+            write(out, " ");
+            addresses(out, header(message, name));
+        }
+        write(out, " ");
+        writeString(out, header(message, "In-Reply-To"));
+        write(out, " ");
+        writeString(out, header(message, "Message-ID"));
+        write(out, ")");
+    }
+
+    /** Returns the unfolded value of a message header, or null if it is not set. */
+    private static String header(MimePart part, String name) throws MessagingException {
+        String value = part.getHeader(name, ",");
+        return value == null ? null : value.replaceAll("\r?\n[ \t]", " ").trim();
+    }
+
+    /** Writes an address list of an ENVELOPE. */
+    private static void addresses(ByteArrayOutputStream out, String header) throws IOException {
+        InternetAddress[] addresses = null;
+        if (header != null){
+            try {
+                addresses = InternetAddress.parseHeader(header, false);
+            } catch (AddressException ex) {
+                addresses = null;
+            }
+        }
+        if (addresses == null || addresses.length == 0){
+            write(out, "NIL");
+            return;
+        }
+        write(out, "(");
+        for (InternetAddress address : addresses){
+            String personal = address.getPersonal();
+            if (personal != null){
+                personal = MimeUtility.encodeWord(personal);
+            }
+            String mailbox = address.getAddress();
+            int at = mailbox.lastIndexOf('@');
+            write(out, "(");
+            writeString(out, personal);
+            write(out, " NIL ");
+            writeString(out, at < 0 ? mailbox : mailbox.substring(0, at));
+            write(out, " ");
+            writeString(out, at < 0 ? null : mailbox.substring(at + 1));
+            write(out, ")");
+        }
+        write(out, ")");
+    }
+
+    /** Writes the BODYSTRUCTURE of a part, with extension data. */
+    private static void bodyStructure(ByteArrayOutputStream out, MimePart part) throws IOException, MessagingException {
+        ContentType type = new ContentType(part.getContentType() == null ? "text/plain" : part.getContentType());
+        if (type.getPrimaryType().equalsIgnoreCase("multipart")){
+            Multipart multipart = (Multipart)part.getContent();
+            write(out, "(");
+            for (int i = 0; i < multipart.getCount(); i++){
+                bodyStructure(out, (MimePart)multipart.getBodyPart(i));
+            }
+            write(out, " ");
+            writeString(out, type.getSubType().toUpperCase());
+            write(out, " ");
+            parameters(out, type.getParameterList());
+            write(out, " NIL NIL)");
+            return;
+        }
+
+        String primary = type.getPrimaryType().toUpperCase();
+        String sub = type.getSubType().toUpperCase();
+        if (primary.equals("MESSAGE")){
+            // Attached messages are described as opaque data rather than with their own structure.
+            primary = "APPLICATION";
+            sub = "OCTET-STREAM";
+        }
+        byte[] content = rawContent(part);
+        write(out, "(");
+        writeString(out, primary);
+        write(out, " ");
+        writeString(out, sub);
+        write(out, " ");
+        parameters(out, type.getParameterList());
+        write(out, " ");
+        writeString(out, part.getContentID());
+        write(out, " ");
+        writeString(out, part.getDescription());
+        write(out, " ");
+        writeString(out, part.getEncoding() == null ? "7BIT" : part.getEncoding().toUpperCase());
+        write(out, " " + content.length);
+        if (primary.equals("TEXT")){
+            int lines = 0;
+            for (byte b : content){
+                if (b == '\n'){
+                    lines++;
+                }
+            }
+            write(out, " " + lines);
+        }
+        write(out, " NIL ");
+        String disposition = header(part, "Content-Disposition");
+        if (disposition == null){
+            write(out, "NIL");
+        } else {
+            ContentDisposition parsed = new ContentDisposition(disposition);
+            write(out, "(");
+            writeString(out, parsed.getDisposition().toUpperCase());
+            write(out, " ");
+            parameters(out, parsed.getParameterList());
+            write(out, ")");
+        }
+        write(out, " NIL)");
+    }
+
+    /** Writes a parameter list of a BODYSTRUCTURE. */
+    private static void parameters(ByteArrayOutputStream out, ParameterList parameters) throws IOException {
+        if (parameters == null || parameters.size() == 0){
+            write(out, "NIL");
+            return;
+        }
+        write(out, "(");
+        Enumeration<?> names = parameters.getNames();
+        boolean first = true;
+        while (names.hasMoreElements()){
+            String name = (String)names.nextElement();
+            if (!first){
+                write(out, " ");
+            }
+            first = false;
+            writeString(out, name.toUpperCase());
+            write(out, " ");
+            writeString(out, parameters.get(name));
+        }
+        write(out, ")");
+    }
+
+    /** Formats a set of flags. */
+    private static String flags(Set<String> flags){
+        List<String> sorted = new ArrayList<>(flags);
+        Collections.sort(sorted);
+        StringBuilder text = new StringBuilder("(");
+        for (String flag : sorted){
+            text.append(text.length() > 1 ? " " : "").append(flag);
+        }
+        return text.append(")").toString();
+    }
+
+    /** Writes a string as NIL, a quoted string or a literal, whichever it needs. */
+    private static void writeString(ByteArrayOutputStream out, String value) throws IOException {
+        if (value == null){
+            write(out, "NIL");
+            return;
+        }
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c > 127){
+                writeLiteral(out, value.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        write(out, "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+    }
+
+    /** Writes bytes as a literal. */
+    private static void writeLiteral(ByteArrayOutputStream out, byte[] bytes) throws IOException {
+        write(out, "{" + bytes.length + "}\r\n");
+        out.write(bytes);
+    }
+
+    /** Writes text to a response being built. */
+    private static void write(ByteArrayOutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /** Returns true if the list holds the given word, ignoring case. */
+    private static boolean containsIgnoreCase(List<String> words, String word){
+        for (String w : words){
+            if (w.equalsIgnoreCase(word)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Checks that the client has logged in. */
+    private void requireLogin(){
+        if (m_mailbox == null){
+            throw new IllegalStateException("Not logged in");
+        }
+    }
+
+    /** Checks that the client has selected the INBOX. */
+    private void requireSelected(){
+        requireLogin();
+        if (m_view == null){
+            throw new IllegalStateException("No folder selected");
+        }
+    }
+
+    /**
+     * Reads a whole command, including any literals it holds.  Literals are turned into quoted strings.
+     * @return the command, or null if the client disconnected.
+     */
+    private String readCommand() throws IOException {
+        String line = readLine();
+        if (line == null){
+            return null;
+        }
+        StringBuilder command = new StringBuilder();
+        Matcher literal = LITERAL.matcher(line);
+        while (literal.find()){
+            command.append(line, 0, literal.start());
+            respond("+ Ready for literal data");
+            byte[] bytes = new byte[Integer.parseInt(literal.group(1))];
+            for (int read = 0; read < bytes.length; ){
+                int n = m_in.read(bytes, read, bytes.length - read);
+                if (n < 0){
+                    return null;
+                }
+                read += n;
+            }
+            String value = new String(bytes, StandardCharsets.ISO_8859_1);
+            command.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            line = readLine();
+            if (line == null){
+                return null;
+            }
+            literal = LITERAL.matcher(line);
+        }
+        return command.append(line).toString();
+    }
+
+    /**
+     * Reads a line from the client, without its line ending.  If the read times out the part of the line read so far
+     * is kept for the next call.
+     *
+     * @return the line, or null if the client disconnected.
+     */
+    private String readLine() throws IOException {
+        int b;
+        while ((b = m_in.read()) != -1){
+            if (b == '\n'){
+                byte[] bytes = m_line.toByteArray();
+                m_line.reset();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            m_line.write(b);
+        }
+        return null;
+    }
+
+    /** Sends an untagged response. */
+    private void untagged(String response) throws IOException {
+        respond("* " + response);
+    }
+
+    /** Sends a line to the client. */
+    private void respond(String line) throws IOException {
+        m_out.write((line + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        m_out.flush();
+    }
+
+    /**
+     * Parses a command into words:  atoms and strings become Strings and parenthesized lists become Lists.  Body
+     * section specifiers such as "BODY.PEEK[HEADER.FIELDS (FROM)]<0.100>" are kept whole.
+     *
+     * @param command the command.
+     * @return the words.
+     */
+    static List<Object> parse(String command){
+        int[] position = {0};
+        return parse(command, position, false);
+    }
+
+    /** Parses words up to the end of the command, or up to the closing parenthesis of a list. */
+    private static List<Object> parse(String command, int[] position, boolean inList){
+        List<Object> words = new ArrayList<>();
+        while (position[0] < command.length()){
+            char c = command.charAt(position[0]);
+            if (c == ' '){
+                position[0]++;
+            } else if (c == ')' && inList){
+                position[0]++;
+                return words;
+            } else if (c == '('){
+                position[0]++;
+                words.add(parse(command, position, true));
+            } else if (c == '"'){
+                StringBuilder value = new StringBuilder();
+                for (position[0]++; position[0] < command.length() && command.charAt(position[0]) != '"'; position[0]++){
+                    if (command.charAt(position[0]) == '\\'){
+                        position[0]++;
+                    }
+                    value.append(command.charAt(position[0]));
+                }
+                position[0]++;
+                words.add(value.toString());
+            } else {
+                int start = position[0];
+                int depth = 0;
+                while (position[0] < command.length()){
+                    char d = command.charAt(position[0]);
+                    if (d == '['){
+                        depth++;
+                    } else if (d == ']'){
+                        depth--;
+                    } else if (depth == 0 && (d == ' ' || d == '(' || d == ')')){
+                        break;
+                    }
+                    position[0]++;
+                }
+                words.add(command.substring(start, position[0]));
+            }
+        }
+        return words;
+    }
+
+    /** Returns a parsed word as text. */
+    private static String text(Object word){
+        if (word instanceof List){
+            throw new IllegalArgumentException("Expected a word but found a list");
+        }
+        return (String)word;
+    }
+
+    /** Returns a parsed word as a list. */
+    @SuppressWarnings("unchecked")
+    private static List<Object> castList(Object word){
+        if (word instanceof List){
+            return (List<Object>)word;
+        }
+        return Collections.singletonList(word);
+    }
+}
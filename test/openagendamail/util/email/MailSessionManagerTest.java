@@ -0,0 +1,163 @@
+package openagendamail.util.email;
+
+import java.util.Properties;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import openagendamail.data.EmailAgendaItemProviderTest;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the MailSessionManager class.  The connections are made to the in-memory mail store used by the
+ * EmailAgendaItemProvider tests.
+ */
+public class MailSessionManagerTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("MailSessionManagerTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @After
+    public void tearDown() {
+        MailSessionManager.closeAll();
+    }
+
+    /** Test of getManager method, of class MailSessionManager. */
+    @Test
+    public void testGetManager() {
+        System.out.println(" --- getManager");
+        MailSessionManager manager = MailSessionManager.getManager(properties("shared"));
+        assertSame(manager, MailSessionManager.getManager(properties("SHARED")));
+        assertSame(manager, MailSessionManager.getManager(new EmailAccount("shared", "password"), properties("other")));
+        assertNotSame(manager, MailSessionManager.getManager(properties("other")));
+    }
+
+    /** Test of getStore and release methods, of class MailSessionManager. */
+    @Test
+    public void testStoreIsReused() throws MessagingException {
+        System.out.println(" --- getStore (reused)");
+        MailSessionManager manager = MailSessionManager.getManager(properties("reused"));
+        Store store = manager.getStore();
+        assertTrue(store.isConnected());
+        manager.release(store);
+        assertSame(store, manager.getStore());
+    }
+
+    /** Test of getStore and discard methods, of class MailSessionManager. */
+    @Test
+    public void testStaleStoreIsReplaced() throws MessagingException {
+        System.out.println(" --- getStore (stale)");
+        MailSessionManager manager = MailSessionManager.getManager(properties("stale"));
+
+        // A connection the server dropped while it sat in the pool is replaced.
+        Store store = manager.getStore();
+        manager.release(store);
+        store.close();
+        Store replacement = manager.getStore();
+        assertNotSame(store, replacement);
+        assertTrue(replacement.isConnected());
+
+        // A discarded connection is logged out and never handed out again.
+        manager.discard(replacement);
+        assertFalse(replacement.isConnected());
+        assertNotSame(replacement, manager.getStore());
+    }
+
+    /** Test of getStore method, of class MailSessionManager, when every connection is in use. */
+    @Test
+    public void testPoolIsBounded() throws MessagingException {
+        System.out.println(" --- getStore (bounded)");
+        Properties props = properties("bounded");
+        props.setProperty("pool.max.stores", "1");
+        props.setProperty("pool.wait.seconds", "0");
+        MailSessionManager manager = MailSessionManager.getManager(props);
+        assertEquals(1, manager.getMaxStores());
+
+        Store store = manager.getStore();
+        try {
+            manager.getStore();
+            fail("Borrowed more connections than the pool holds.");
+        } catch (MessagingException ex) {
+            // Expected.
+        }
+        manager.release(store);
+        assertSame(store, manager.getStore());
+    }
+
+    /** Test of evictIdle method, of class MailSessionManager. */
+    @Test
+    public void testEvictIdle() throws MessagingException {
+        System.out.println(" --- evictIdle");
+        Properties props = properties("idle");
+        props.setProperty("pool.idle.seconds", "0");
+        MailSessionManager manager = MailSessionManager.getManager(props);
+
+        Store busy = manager.getStore();
+        Store idle = manager.getStore();
+        manager.release(idle);
+        manager.evictIdle();
+
+        // Only the connection sitting in the pool is logged out.
+        assertFalse(idle.isConnected());
+        assertTrue(busy.isConnected());
+    }
+
+    /** Test of keepAlive method, of class MailSessionManager. */
+    @Test
+    public void testKeepAlive() throws MessagingException {
+        System.out.println(" --- keepAlive");
+        Properties props = properties("keepalive");
+        props.setProperty("pool.keepalive.seconds", "0");
+        MailSessionManager manager = MailSessionManager.getManager(props);
+
+        Store first = manager.getStore();
+        Store second = manager.getStore();
+        Store dropped = manager.getStore();
+        manager.release(dropped);
+        manager.release(first);
+        manager.release(second);
+        dropped.close();
+        manager.keepAlive();
+
+        // The connections that still answer stay in the pool, most recently used first; the dropped one is gone.
+        assertSame(second, manager.getStore());
+        assertSame(first, manager.getStore());
+        Store next = manager.getStore();
+        assertNotSame(dropped, next);
+        assertTrue(next.isConnected());
+    }
+
+    /** Test of getCommandCounter method, of class MailSessionManager:  only IMAP connections are traced. */
+    @Test
+    public void testGetCommandCounter() throws MessagingException {
+        System.out.println(" --- getCommandCounter");
+        assertNull(MailSessionManager.getManager(properties("uncounted")).getCommandCounter());
+
+        Properties props = properties("counted");
+        props.setProperty("imap.count.round.trips", "true");
+        MailSessionManager manager = MailSessionManager.getManager(props);
+        assertNotNull(manager.getCommandCounter());
+        assertFalse(manager.getSession().getDebug());
+        Store store = manager.getStore();
+        assertTrue(((EmailAgendaItemProviderTest.FakeStore)store).isTraced());
+        manager.release(store);
+    }
+
+    /** Builds the configuration of an account in the in-memory store. */
+    private static Properties properties(String account){
+        Properties props = new Properties();
+        props.setProperty("mail.imaps.class", EmailAgendaItemProviderTest.FakeStore.class.getName());
+        props.setProperty("email", account);
+        props.setProperty("password", "password");
+        props.setProperty("imap.count.round.trips", "false");
+        return props;
+    }
+}
@@ -0,0 +1,218 @@
+package openagendamail.util.email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import javax.activation.DataHandler;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+/**
+ * Fills a {@link TestMailbox} with synthetic agenda item submissions, for tests and benchmarks of the mail paths.  The
+ * size of each message body, the MIME shape of the messages and the share of them sent by members of the email list
+ * (rather than by strangers, whose mail the application ignores) can all be set.  The same seed always produces the
+ * same messages.
+ */
+public class MailboxLoadGenerator {
+
+    /** The MIME shapes a generated message can take. */
+    public enum Shape {
+        /** A single text/plain part. */
+        PLAIN,
+        /** A multipart/alternative message with a text/plain and a text/html part. */
+        ALTERNATIVE,
+        /** A single text/html part. */
+        HTML,
+        /** A multipart/mixed message with a text/plain part and a binary attachment the size of the body. */
+        ATTACHMENT
+    }
+
+    /** The words message subjects and bodies are made of. */
+    private static final String[] WORDS = {"budget", "review", "meeting", "schedule", "update", "proposal", "report",
+            "vote", "motion", "minutes", "treasurer", "event", "volunteers", "venue", "outreach", "agenda"};
+
+    /** The session messages are built with. */
+    private static final Session SESSION = Session.getInstance(new Properties());
+
+    /** The source of randomness. */
+    private final Random m_random;
+
+    /** The addresses of the email list's members. */
+    private final List<String> m_members;
+
+    /** The account the messages are sent to. */
+    private final String m_account;
+
+    /** The approximate size of each message body, in bytes. */
+    private int m_bodySize = 1024;
+
+    /** The share of messages sent by members of the email list, from 0 to 1. */
+    private double m_memberFraction = 1.0;
+
+    /** The shapes of the messages, used in turn. */
+    private Shape[] m_shapes = {Shape.ALTERNATIVE};
+
+    /** The number of messages generated so far. */
+    private int m_generated;
+
+    /**
+     * Constructor.
+     * @param seed the seed of the random choices, so runs can be repeated.
+     * @param account the account the messages are sent to.
+     * @param members the addresses of the email list's members.
+     */
+    public MailboxLoadGenerator(long seed, String account, List<String> members){
+        m_random = new Random(seed);
+        m_account = account;
+        m_members = new ArrayList<>(members);
+        if (m_members.isEmpty()){
+            throw new IllegalArgumentException("At least one member address is needed.");
+        }
+    }
+
+    /**
+     * Sets the approximate size of each message body.
+     * @param bytes the size, in bytes.
+     * @return this generator.
+     */
+    public MailboxLoadGenerator setBodySize(int bytes){
+        m_bodySize = bytes;
+        return this;
+    }
+
+    /**
+     * Sets the share of messages sent by members of the email list.  The rest come from strangers.
+     * @param fraction the share, from 0 to 1.
+     * @return this generator.
+     */
+    public MailboxLoadGenerator setMemberFraction(double fraction){
+        m_memberFraction = fraction;
+        return this;
+    }
+
+    /**
+     * Sets the MIME shapes of the messages.  When more than one is given they are used in turn.
+     * @param shapes the shapes.
+     * @return this generator.
+     */
+    public MailboxLoadGenerator setShapes(Shape... shapes){
+        if (shapes.length == 0){
+            throw new IllegalArgumentException("At least one shape is needed.");
+        }
+        m_shapes = shapes.clone();
+        return this;
+    }
+
+    /**
+     * Adds messages to a mailbox.
+     *
+     * @param mailbox the mailbox.
+     * @param count the number of messages to add.
+     * @return the number of the messages that were sent by members of the email list.
+     * @throws MessagingException if a message cannot be built.
+     * @throws IOException if a message cannot be written.
+     */
+    public int fill(TestMailbox mailbox, int count) throws MessagingException, IOException {
+        int fromMembers = 0;
+        for (int i = 0; i < count; i++){
+            boolean member = m_random.nextDouble() < m_memberFraction;
+            if (member){
+                fromMembers++;
+            }
+            mailbox.append(createMessage(member));
+        }
+        return fromMembers;
+    }
+
+    /**
+     * Creates the next message.
+     *
+     * @param fromMember true if the message should come from a member of the email list.
+     * @return the message, as raw RFC 822 bytes with CRLF line endings.
+     * @throws MessagingException if the message cannot be built.
+     * @throws IOException if the message cannot be written.
+     */
+    public byte[] createMessage(boolean fromMember) throws MessagingException, IOException {
+        int number = m_generated++;
+        String sender = fromMember ? m_members.get(m_random.nextInt(m_members.size()))
+                : "stranger" + m_random.nextInt(1000) + "@example.com";
+
+        MimeMessage message = new MimeMessage(SESSION);
+        message.setFrom(new InternetAddress(sender, "Sender " + number));
+        message.setRecipient(RecipientType.TO, new InternetAddress(m_account));
+        message.setSubject("Item " + number + ": " + words(4));
+        message.setSentDate(new Date());
+
+        String text = text(m_bodySize);
+        switch (m_shapes[number % m_shapes.length]){
+            case PLAIN:
+                message.setText(text, "UTF-8");
+                break;
+            case HTML:
+                message.setText(html(text), "UTF-8", "html");
+                break;
+            case ALTERNATIVE:
+                MimeMultipart alternative = new MimeMultipart("alternative");
+                alternative.addBodyPart(textPart(text, "plain"));
+                alternative.addBodyPart(textPart(html(text), "html"));
+                message.setContent(alternative);
+                break;
+            case ATTACHMENT:
+                MimeMultipart mixed = new MimeMultipart();
+                mixed.addBodyPart(textPart(text, "plain"));
+                byte[] data = new byte[m_bodySize];
+                m_random.nextBytes(data);
+                MimeBodyPart attachment = new MimeBodyPart();
+                attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(data, "application/octet-stream")));
+                attachment.setFileName("attachment" + number + ".bin");
+                mixed.addBodyPart(attachment);
+                message.setContent(mixed);
+                break;
+        }
+        message.saveChanges();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        message.writeTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    /** Creates a text part of the given subtype. */
+    private static MimeBodyPart textPart(String text, String subtype) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setText(text, "UTF-8", subtype);
+        return part;
+    }
+
+    /** Wraps text in a simple HTML document. */
+    private static String html(String text){
+        return "<html><body><p>" + text.replace("\n", "</p>\n<p>") + "</p></body></html>";
+    }
+
+    /** Creates text of about the given size, in lines of ten words. */
+    private String text(int size){
+        StringBuilder text = new StringBuilder();
+        while (text.length() < size){
+            text.append(words(10)).append('\n');
+        }
+        return text.toString();
+    }
+
+    /** Picks the given number of words. */
+    private String words(int count){
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++){
+            words.append(i > 0 ? " " : "").append(WORDS[m_random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+}
@@ -0,0 +1,178 @@
+package openagendamail.util.email;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One client connection to the SMTP side of the {@link TestMailServer}.  Understands EHLO/HELO, AUTH LOGIN and PLAIN
+ * (any password is accepted), MAIL, RCPT, DATA, RSET, NOOP and QUIT.  Recipients the server refuses are answered
+ * with a 550, and messages it is failing with a 451.
+ */
+class SmtpConnection {
+
+    /** The server the connection belongs to. */
+    private final TestMailServer m_server;
+
+    /** The client's input. */
+    private final InputStream m_in;
+
+    /** The client's output. */
+    private final OutputStream m_out;
+
+    /** The recipients of the message being sent. */
+    private final List<String> m_recipients = new ArrayList<>();
+
+    /**
+     * Constructor.
+     * @param server the server the connection belongs to.
+     * @param socket the client's socket.
+     * @throws IOException if the socket's streams cannot be opened.
+     */
+    SmtpConnection(TestMailServer server, Socket socket) throws IOException {
+        m_server = server;
+        m_in = new BufferedInputStream(socket.getInputStream());
+        m_out = socket.getOutputStream();
+    }
+
+    /**
+     * Serves the client until it quits or disconnects.
+     * @throws IOException if the connection fails.
+     */
+    void serve() throws IOException {
+        reply("220 localhost ESMTP test server ready");
+        for (String line = readLine(); line != null; line = readLine()){
+            String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+            switch (command){
+                case "EHLO":
+                    reply("250-localhost\r\n250-8BITMIME\r\n250 AUTH LOGIN PLAIN");
+                    break;
+                case "HELO":
+                    reply("250 localhost");
+                    break;
+                case "AUTH":
+                    authenticate(line);
+                    break;
+                case "MAIL":
+                    m_recipients.clear();
+                    reply("250 OK");
+                    break;
+                case "RCPT":
+                    if (m_server.isRefused(address(line))){
+                        reply("550 No such user here");
+                    } else {
+                        m_recipients.add(address(line));
+                        reply("250 OK");
+                    }
+                    break;
+                case "DATA":
+                    data();
+                    break;
+                case "RSET":
+                    m_recipients.clear();
+                    reply("250 OK");
+                    break;
+                case "NOOP":
+                    reply("250 OK");
+                    break;
+                case "QUIT":
+                    reply("221 Bye");
+                    return;
+                default:
+                    reply("502 Command not implemented");
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Accepts any credentials, reading them the way the chosen mechanism sends them.
+     * @param line the AUTH command.
+     * @throws IOException if the connection fails.
+     */
+    private void authenticate(String line) throws IOException {
+        String[] words = line.split(" ");
+        if (words.length > 1 && words[1].equalsIgnoreCase("LOGIN")){
+            if (words.length == 2){
+                reply("334 VXNlcm5hbWU6");
+                readLine();
+            }
+            reply("334 UGFzc3dvcmQ6");
+            readLine();
+        } else if (words.length == 2){
+            reply("334 ");
+            readLine();
+        }
+        reply("235 Authentication successful");
+    }
+
+    /**
+     * Reads a message up to the line holding a single dot and delivers it.
+     * @throws IOException if the connection fails.
+     */
+    private void data() throws IOException {
+        reply("354 End data with <CR><LF>.<CR><LF>");
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        for (String line = readLine(); line != null && !line.equals("."); line = readLine()){
+            // Undo the dot stuffing of lines that start with a dot.
+            String text = line.startsWith(".") ? line.substring(1) : line;
+            message.write(text.getBytes(StandardCharsets.ISO_8859_1));
+            message.write('\r');
+            message.write('\n');
+        }
+        if (m_server.takeFailure()){
+            m_recipients.clear();
+            reply("451 Try again later");
+            return;
+        }
+        m_server.deliver(new ArrayList<>(m_recipients), message.toByteArray());
+        m_recipients.clear();
+        reply("250 OK queued");
+    }
+
+    /**
+     * Returns the address in a MAIL or RCPT command.
+     * @param line the command.
+     * @return the address, without its angle brackets.
+     */
+    private static String address(String line){
+        int start = line.indexOf('<');
+        int end = line.indexOf('>', start + 1);
+        return start >= 0 && end > start ? line.substring(start + 1, end) : line.substring(line.indexOf(':') + 1).trim();
+    }
+
+    /**
+     * Reads a line from the client, without its line ending.
+     * @return the line, or null if the client disconnected.
+     * @throws IOException if the connection fails.
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = m_in.read()) != -1){
+            if (b == '\n'){
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    /**
+     * Sends a reply to the client.
+     * @param reply the reply, without its final line ending.
+     * @throws IOException if the connection fails.
+     */
+    private void reply(String reply) throws IOException {
+        m_out.write((reply + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        m_out.flush();
+    }
+}
@@ -0,0 +1,259 @@
+package openagendamail.util.email;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A plain text IMAP and SMTP server that runs inside the test's process on the loopback interface, so the mail paths
+ * of the application can be exercised end to end (connect, search, fetch, parse, delete, send) on a machine with no
+ * network.  It implements the part of IMAP4rev1 and ESMTP that JavaMail uses against Gmail, keeps every mailbox in
+ * memory, and accepts any password.
+ *
+ * Mail sent through the SMTP server is recorded and delivered to the mailbox of each recipient, so an agenda sent by
+ * the application can be read back.  Use {@link #getProperties(java.lang.String)} to point the application at the
+ * server.
+ */
+public class TestMailServer implements Closeable {
+
+    /** The mailboxes, by account. */
+    private final ConcurrentMap<String, TestMailbox> m_mailboxes = new ConcurrentHashMap<>();
+
+    /** The messages received over SMTP. */
+    private final List<byte[]> m_sent = Collections.synchronizedList(new ArrayList<byte[]>());
+
+    /** The socket IMAP clients connect to. */
+    private final ServerSocket m_imapSocket;
+
+    /** The socket SMTP clients connect to. */
+    private final ServerSocket m_smtpSocket;
+
+    /** Runs the listeners and a thread for each connection. */
+    private final ExecutorService m_threads;
+
+    /** The number of IMAP connections made so far. */
+    private volatile int m_imapConnections;
+
+    /** The number of SMTP connections made so far. */
+    private volatile int m_smtpConnections;
+
+    /** The recipients the SMTP server refuses. */
+    private final Set<String> m_refused = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** The number of messages still to be failed with a temporary error rather than delivered. */
+    private final AtomicInteger m_failures = new AtomicInteger();
+
+    /**
+     * Starts a server listening on free ports of the loopback interface.
+     * @throws IOException if the ports cannot be opened.
+     */
+    public TestMailServer() throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        m_imapSocket = new ServerSocket(0, 50, loopback);
+        m_smtpSocket = new ServerSocket(0, 50, loopback);
+        m_threads = Executors.newCachedThreadPool();
+        m_threads.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept(m_imapSocket, true);
+            }
+        });
+        m_threads.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept(m_smtpSocket, false);
+            }
+        });
+    }
+
+    /**
+     * Returns the properties that point the application at this server for the given account:  the account and the
+     * hosts, ports and TLS settings of the IMAP and SMTP servers.
+     *
+     * @param account the email account.
+     * @return the properties.
+     */
+    public Properties getProperties(String account){
+        Properties props = new Properties();
+        props.setProperty("email", account);
+        props.setProperty("password", "password");
+        props.setProperty("imap.host", "127.0.0.1");
+        props.setProperty("imap.port", String.valueOf(getImapPort()));
+        props.setProperty("imap.ssl", "false");
+        props.setProperty("smtp.host", "127.0.0.1");
+        props.setProperty("smtp.port", String.valueOf(getSmtpPort()));
+        props.setProperty("smtp.ssl", "false");
+        props.setProperty("smtp.starttls", "false");
+        return props;
+    }
+
+    /**
+     * Returns the port of the IMAP server.
+     * @return the port of the IMAP server.
+     */
+    public int getImapPort(){
+        return m_imapSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the port of the SMTP server.
+     * @return the port of the SMTP server.
+     */
+    public int getSmtpPort(){
+        return m_smtpSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the mailbox of an account, creating an empty one the first time the account is used.
+     * @param account the email account.
+     * @return the account's mailbox.
+     */
+    public TestMailbox getMailbox(String account){
+        String key = account.trim().toLowerCase();
+        TestMailbox mailbox = m_mailboxes.get(key);
+        if (mailbox == null){
+            m_mailboxes.putIfAbsent(key, new TestMailbox(System.currentTimeMillis() / 1000));
+            mailbox = m_mailboxes.get(key);
+        }
+        return mailbox;
+    }
+
+    /**
+     * Returns every message received over SMTP.
+     * @return the raw messages, in the order they were received.
+     */
+    public List<byte[]> getSentMessages(){
+        synchronized (m_sent){
+            return new ArrayList<>(m_sent);
+        }
+    }
+
+    /**
+     * Returns the number of IMAP connections made to the server so far.
+     * @return the number of IMAP connections.
+     */
+    public int getImapConnections(){
+        return m_imapConnections;
+    }
+
+    /**
+     * Returns the number of SMTP connections made to the server so far.
+     * @return the number of SMTP connections.
+     */
+    public int getSmtpConnections(){
+        return m_smtpConnections;
+    }
+
+    /**
+     * Makes the SMTP server refuse a recipient, as a server does an address that does not exist.
+     * @param address the recipient.
+     */
+    public void refuse(String address){
+        m_refused.add(address.trim().toLowerCase());
+    }
+
+    /**
+     * Makes the SMTP server fail the next messages sent to it with a temporary error, rather than delivering them.
+     * @param count the number of messages to fail.
+     */
+    public void failNextMessages(int count){
+        m_failures.set(count);
+    }
+
+    /**
+     * Returns true if the SMTP server refuses a recipient.
+     * @param address the recipient.
+     * @return true if the recipient is refused.
+     */
+    boolean isRefused(String address){
+        return m_refused.contains(address.trim().toLowerCase());
+    }
+
+    /**
+     * Returns true if the message being sent should fail with a temporary error, counting it off.
+     * @return true if the message should fail.
+     */
+    boolean takeFailure(){
+        for (int left = m_failures.get(); left > 0; left = m_failures.get()){
+            if (m_failures.compareAndSet(left, left - 1)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records a message received over SMTP and delivers it to its recipients' mailboxes.
+     * @param recipients the recipients.
+     * @param rfc822 the message.
+     */
+    void deliver(List<String> recipients, byte[] rfc822){
+        m_sent.add(rfc822);
+        for (String recipient : recipients){
+            getMailbox(recipient).append(rfc822);
+        }
+    }
+
+    /** Stops the server and drops every connection. */
+    @Override
+    public void close(){
+        try {
+            m_imapSocket.close();
+            m_smtpSocket.close();
+        } catch (IOException ex) {
+            // Do nothing, the server is going away.
+        }
+        m_threads.shutdownNow();
+    }
+
+    /**
+     * Accepts connections until the server is closed, handling each on its own thread.
+     * @param server the socket to accept connections on.
+     * @param imap true for IMAP connections, false for SMTP.
+     */
+    private void accept(ServerSocket server, final boolean imap){
+        while (!server.isClosed()){
+            try {
+                final Socket socket = server.accept();
+                // Responses are written a line at a time, so don't let them wait on the client's acknowledgements.
+                socket.setTcpNoDelay(true);
+                if (imap){
+                    m_imapConnections++;
+                } else {
+                    m_smtpConnections++;
+                }
+                m_threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try (Socket connection = socket) {
+                            if (imap){
+                                new ImapConnection(TestMailServer.this, connection).serve();
+                            } else {
+                                new SmtpConnection(TestMailServer.this, connection).serve();
+                            }
+                        } catch (IOException ex) {
+                            // The client went away.
+                        }
+                    }
+                });
+            } catch (SocketException ex) {
+                // The server was closed.
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
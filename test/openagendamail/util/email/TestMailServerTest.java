@@ -0,0 +1,466 @@
+package openagendamail.util.email;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import openagendamail.data.AgendaItem;
+import openagendamail.data.AgendaItemProvider;
+import openagendamail.data.EmailAgendaItemProvider;
+import openagendamail.data.ItemJournal;
+import openagendamail.util.AgendaBuffer;
+import openagendamail.util.AgendaScheduler;
+import openagendamail.util.BuildAgendaRunnable;
+import openagendamail.util.EmailSenderRunnable;
+import openagendamail.util.OamTools;
+import openagendamail.util.email.MailboxLoadGenerator.Shape;
+import openagendamail.util.render.AgendaRenderers;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * End to end tests of the mail paths against the TestMailServer, with mailboxes filled by the MailboxLoadGenerator.
+ */
+public class TestMailServerTest {
+
+    /** The account the agenda items are sent to. */
+    private static final String ACCOUNT = "agenda@example.com";
+
+    /** The members of the email list used by the tests. */
+    private static final String[] MEMBERS = {"a_second_email@hotmail.com", "email_1@gmail.com"};
+
+    /** The server under test. */
+    private TestMailServer m_server;
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("TestMailServerTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        m_server = new TestMailServer();
+    }
+
+    @After
+    public void tearDown() {
+        MailSessionManager.closeAll();
+        m_server.close();
+        File[] stateFiles = new File("data").listFiles();
+        for (File file : stateFiles == null ? new File[0] : stateFiles){
+            if (file.getName().matches("agenda\\d*@example\\.com\\..*")){
+                file.delete();
+            }
+        }
+    }
+
+    /** Reads a mailbox of every MIME shape with bulk fetches and server-side search. */
+    @Test
+    public void testReadInbox() throws MessagingException, IOException {
+        System.out.println(" --- read inbox");
+        for (AgendaItem item : assertInboxRead(properties(), 40)){
+            // The bulk fetch finds a text body in every shape, falling back to HTML when there is no plain text.
+            assertFalse(item.getBody().isEmpty());
+        }
+    }
+
+    /** Reads a mailbox message by message, without bulk fetches or server-side search. */
+    @Test
+    public void testReadInboxWithoutPrefetch() throws MessagingException, IOException {
+        System.out.println(" --- read inbox (no prefetch)");
+        Properties props = properties();
+        props.setProperty("imap.prefetch", "false");
+        props.setProperty("imap.server.search", "false");
+        assertInboxRead(props, 20);
+    }
+
+    /** Reads a mailbox over several connections at once. */
+    @Test
+    public void testReadInboxInParallel() throws MessagingException, IOException {
+        System.out.println(" --- read inbox (parallel)");
+        Properties props = properties();
+        props.setProperty("imap.parallel.connections", "3");
+        assertInboxRead(props, 30);
+    }
+
+    /** Reads a mailbox over several connections at once, in more batches than there are connections. */
+    @Test
+    public void testReadInboxInParallelBatches() throws MessagingException, IOException {
+        System.out.println(" --- read inbox (parallel, batches)");
+        Properties props = properties();
+        props.setProperty("imap.parallel.connections", "3");
+        props.setProperty("imap.fetch.batch.size", "4");
+        assertInboxRead(props, 30);
+    }
+
+    /**
+     * Reads several accounts at once with the inbox checkpoint, item journal and duplicate index on, each kept in the
+     * files named after its account, and checks that no account's state ends up in another's files.
+     */
+    @Test
+    public void testReadAccountsConcurrently() throws Exception {
+        System.out.println(" --- read inbox (concurrently, with state files)");
+        final int accounts = 4;
+        List<Callable<Collection<AgendaItem>>> runs = new ArrayList<>();
+        List<Set<String>> titles = new ArrayList<>();
+        for (int i = 0; i < accounts; i++){
+            String account = "agenda" + i + "@example.com";
+            MailboxLoadGenerator generator = new MailboxLoadGenerator(i + 1, account, Arrays.asList(MEMBERS));
+            generator.setMemberFraction(1.0).fill(m_server.getMailbox(account), 3 + i);
+            final Properties props = m_server.getProperties(account);
+            props.setProperty("email.list.filename", "test/openagendamail/test-emails.txt");
+            runs.add(new Callable<Collection<AgendaItem>>() {
+                @Override
+                public Collection<AgendaItem> call() {
+                    // The first run keeps the emails, so the second reads nothing new and relies on the checkpoint.
+                    Collection<AgendaItem> kept = new EmailAgendaItemProvider(false, props).getItems();
+                    Collection<AgendaItem> items = new EmailAgendaItemProvider(true, props).getItems();
+                    assertEquals(titles(kept), titles(items));
+                    return items;
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(accounts);
+        try {
+            for (Future<Collection<AgendaItem>> result : pool.invokeAll(runs, 60, TimeUnit.SECONDS)){
+                titles.add(titles(result.get()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        for (int i = 0; i < accounts; i++){
+            String account = "agenda" + i + "@example.com";
+            assertEquals(3 + i, titles.get(i).size());
+            assertEquals(0, m_server.getMailbox(account).size());
+            assertTrue(new File("data/" + account + ".inbox.checkpoint").exists());
+
+            // The agenda's emails were deleted, so its items are the closed cycle of the account's own journal.
+            String journal = EmailAgendaItemProvider.getStateFilename(m_server.getProperties(account),
+                    "journal.filename", "agenda.journal");
+            assertEquals("data/" + account + ".agenda.journal", journal);
+            assertEquals(titles.get(i), titles(ItemJournal.open(journal).getClosedItems()));
+        }
+    }
+
+    /**
+     * Previews the agenda twice and then builds it, with the inbox checkpoint and item journal on:  the items already
+     * read are taken from the journal, and the checkpoint only records how far the inbox was read.
+     */
+    @Test
+    public void testPreviewFromJournal() throws Exception {
+        System.out.println(" --- read inbox (preview from the journal)");
+        TestMailbox mailbox = m_server.getMailbox(ACCOUNT);
+        MailboxLoadGenerator generator = generator(7).setMemberFraction(1.0);
+        generator.fill(mailbox, 3);
+        Properties props = m_server.getProperties(ACCOUNT);
+        props.setProperty("email.list.filename", "test/openagendamail/test-emails.txt");
+        assertEquals(3, new EmailAgendaItemProvider(false, props).getItems().size());
+
+        Properties checkpoint = new Properties();
+        try (FileInputStream in = new FileInputStream("data/" + ACCOUNT + ".inbox.checkpoint")) {
+            checkpoint.load(in);
+        }
+        assertEquals("0", checkpoint.getProperty("item.count"));
+
+        generator.fill(mailbox, 2);
+        Collection<AgendaItem> preview = new EmailAgendaItemProvider(false, props).getItems();
+        assertEquals(5, preview.size());
+        ItemJournal journal = ItemJournal.open("data/" + ACCOUNT + ".agenda.journal");
+        assertEquals(titles(preview), titles(journal.getOpenItems()));
+
+        Collection<AgendaItem> items = new EmailAgendaItemProvider(true, props).getItems();
+        assertEquals(titles(preview), titles(items));
+        assertEquals(0, mailbox.size());
+    }
+
+    /**
+     * Reads the inbox when the item journal cannot be written:  the run is treated as failed, so the checkpoint is not
+     * advanced and no email is deleted, and the next run that can write the journal puts every submission on the
+     * agenda.
+     */
+    @Test
+    public void testJournalFailureKeepsEmails() throws Exception {
+        System.out.println(" --- read inbox (journal cannot be written)");
+        TestMailbox mailbox = m_server.getMailbox(ACCOUNT);
+        generator(11).setMemberFraction(1.0).fill(mailbox, 3);
+        Properties props = m_server.getProperties(ACCOUNT);
+        props.setProperty("email.list.filename", "test/openagendamail/test-emails.txt");
+        File directory = Files.createTempDirectory("journal").toFile();
+        try {
+            props.setProperty("journal.filename", directory.getPath());
+            new EmailAgendaItemProvider(true, props).getItems();
+            assertEquals(3, mailbox.size());
+            assertFalse(new File("data/" + ACCOUNT + ".inbox.checkpoint").exists());
+        } finally {
+            directory.delete();
+        }
+
+        props.remove("journal.filename");
+        assertEquals(3, new EmailAgendaItemProvider(true, props).getItems().size());
+        assertEquals(0, mailbox.size());
+    }
+
+    /** Sends an email and reads it back from the recipient's mailbox. */
+    @Test
+    public void testSendEmail() {
+        System.out.println(" --- send email");
+        Email email = new Email("This week's agenda", "The agenda is attached.");
+        email.addRecipient(MEMBERS[1], RecipientType.BCC);
+        EmailSender sender = new EmailSender(new EmailAccount(ACCOUNT, "password"), properties());
+        assertTrue(sender.sendEmail(email));
+        assertTrue(sender.sendEmail(email));
+
+        assertEquals(2, m_server.getSentMessages().size());
+        assertEquals(2, m_server.getMailbox(MEMBERS[1]).size());
+        String sent = new String(m_server.getSentMessages().get(0), StandardCharsets.ISO_8859_1);
+        assertTrue(sent.contains("Subject: This week's agenda"));
+
+        // The second email went over the pooled connection.
+        assertEquals(1, m_server.getSmtpConnections());
+    }
+
+    /** Sends an email to a long list in chunks over parallel connections, with a refused recipient and a failure. */
+    @Test
+    public void testSendInChunks() {
+        System.out.println(" --- send email (chunks)");
+        Email email = new Email("This week's agenda", "The agenda is attached.");
+        for (int i = 0; i < 7; i++){
+            email.addRecipient("member" + i + "@example.com", RecipientType.BCC);
+        }
+        m_server.refuse("member4@example.com");
+        m_server.failNextMessages(1);
+        Properties props = properties();
+        props.setProperty("smtp.chunk.size", "3");
+        props.setProperty("smtp.parallel.connections", "2");
+        EmailSender sender = new EmailSender(new EmailAccount(ACCOUNT, "password"), props);
+        Delivery delivery = sender.createDelivery(email);
+        assertEquals(3, delivery.getChunkCount());
+        assertTrue(sender.sendEmail(delivery));
+
+        // Only the failed chunk was sent again, and the refused recipient was left out.
+        assertEquals(3, m_server.getSentMessages().size());
+        for (int i = 0; i < 7; i++){
+            assertEquals(i == 4 ? 0 : 1, m_server.getMailbox("member" + i + "@example.com").size());
+        }
+        assertEquals(Delivery.Status.SENT, delivery.getStatus(0));
+        assertEquals(Delivery.Status.REFUSED, delivery.getStatus(1));
+        assertEquals(Delivery.Status.SENT, delivery.getStatus(2));
+        assertEquals("[member4@example.com]", delivery.getRefused().toString());
+        assertTrue(m_server.getSmtpConnections() <= 2);
+    }
+
+    /** Sends a delivery again after a chunk ran out of retries, which sends only that chunk. */
+    @Test
+    public void testResendPendingChunks() {
+        System.out.println(" --- send email (pending chunks)");
+        Email email = new Email("This week's agenda", "The agenda is attached.");
+        for (int i = 0; i < 5; i++){
+            email.addRecipient("member" + i + "@example.com", RecipientType.BCC);
+        }
+        m_server.failNextMessages(1);
+        Properties props = properties();
+        props.setProperty("smtp.chunk.size", "2");
+        props.setProperty("smtp.parallel.connections", "1");
+        props.setProperty("smtp.chunk.retries", "0");
+        EmailSender sender = new EmailSender(new EmailAccount(ACCOUNT, "password"), props);
+        Delivery delivery = sender.createDelivery(email);
+        assertFalse(sender.sendEmail(delivery));
+        assertEquals(Delivery.Status.PENDING, delivery.getStatus(0));
+        assertEquals(Delivery.Status.SENT, delivery.getStatus(1));
+        assertEquals(2, m_server.getSentMessages().size());
+
+        assertTrue(sender.sendEmail(delivery));
+        assertTrue(delivery.isComplete());
+        assertEquals(3, m_server.getSentMessages().size());
+        for (int i = 0; i < 5; i++){
+            assertEquals(1, m_server.getMailbox("member" + i + "@example.com").size());
+        }
+    }
+
+    /**
+     * Sends a message whose first attempt fails on an agenda's scheduler:  the retry is scheduled rather than slept
+     * through, so the scheduler's only thread is free for other tasks straight away.  The message goes to the email
+     * list as it is when the message is sent, not as it was when the sender was built.
+     */
+    @Test
+    public void testSendOnScheduler() throws Exception {
+        System.out.println(" --- send email (on the scheduler)");
+        File list = File.createTempFile("emails", ".txt");
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+        try {
+            Files.write(list.toPath(), "member0@example.com\nmember1@example.com\n".getBytes(StandardCharsets.UTF_8));
+            Properties props = properties();
+            props.setProperty("email.list.filename", list.getPath());
+            props.setProperty("smtp.chunk.retries", "0");
+            AgendaScheduler scheduler = new AgendaScheduler("test", props, executor, null);
+            EmailSenderRunnable sender = OamTools.buildReminderSender(props);
+            sender.setScheduler(scheduler);
+
+            m_server.failNextMessages(1);
+            final CountDownLatch free = new CountDownLatch(1);
+            scheduler.schedule(sender, 0);
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    free.countDown();
+                }
+            }, 0);
+            assertTrue(free.await(20, TimeUnit.SECONDS));
+            assertEquals(0, m_server.getMailbox("member0@example.com").size());
+            executor.shutdownNow();
+
+            Files.write(list.toPath(), "member0@example.com\nmember2@example.com\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(list.setLastModified(list.lastModified() + 2000));
+            sender.run();
+            assertEquals(1, m_server.getMailbox("member0@example.com").size());
+            assertEquals(0, m_server.getMailbox("member1@example.com").size());
+            assertEquals(1, m_server.getMailbox("member2@example.com").size());
+        } finally {
+            executor.shutdownNow();
+            list.delete();
+        }
+    }
+
+    /** Builds an agenda in memory and sends it straight from the buffer, without it touching the disk. */
+    @Test
+    public void testSendAgendaFromMemory() throws IOException {
+        System.out.println(" --- send agenda from memory");
+        final String docName = "memory-agenda-" + System.nanoTime() + ".pdf";
+        Properties props = properties();
+        props.setProperty("doc.name", docName);
+        props.setProperty("doc.in.memory", "true");
+        new BuildAgendaRunnable(new AgendaItemProvider() {
+            @Override
+            public Collection<AgendaItem> getItems() {
+                return Arrays.asList(new AgendaItem(MEMBERS[0], "Member", "Approve the minutes", "As circulated."));
+            }
+        }, props).run();
+        assertFalse(new File(docName).exists());
+        assertTrue(AgendaBuffer.get(docName).size() > 0);
+
+        Email email = new Email("This week's agenda", "The agenda is attached.");
+        email.addRecipient(MEMBERS[1], RecipientType.BCC);
+        email.addAttachment(AgendaBuffer.get(docName).getDataSource());
+        assertTrue(new EmailSender(new EmailAccount(ACCOUNT, "password"), props).sendEmail(email));
+
+        String sent = new String(m_server.getSentMessages().get(0), StandardCharsets.ISO_8859_1);
+        assertTrue(sent.contains("application/pdf"));
+        assertTrue(sent.contains(docName));
+        assertFalse(new File(docName).exists());
+    }
+
+    /** Test of sendEmail method, of class EmailSender, with the agenda rendered inline in the body. */
+    @Test
+    public void testSendAgendaInline() throws IOException {
+        System.out.println(" --- send agenda inline");
+        final String docName = "inline-agenda-" + System.nanoTime() + ".pdf";
+        Properties props = properties();
+        props.setProperty("doc.name", docName);
+        props.setProperty("doc.in.memory", "true");
+        props.setProperty("agenda.formats", "html, text");
+        new BuildAgendaRunnable(new AgendaItemProvider() {
+            @Override
+            public Collection<AgendaItem> getItems() {
+                return Arrays.asList(new AgendaItem(MEMBERS[0], "Member", "Approve the minutes", "As circulated."));
+            }
+        }, props).run();
+        assertEquals(-1, AgendaBuffer.get(docName).size());
+
+        Email email = new Email("This week's agenda", "The agenda follows.");
+        email.addRecipient(MEMBERS[1], RecipientType.BCC);
+        String text = AgendaRenderers.getOutputName(props, AgendaRenderers.TEXT);
+        String html = AgendaRenderers.getOutputName(props, AgendaRenderers.HTML);
+        email.addInlineBody(AgendaBuffer.get(text).getDataSource());
+        email.addInlineBody(AgendaBuffer.get(html).getDataSource());
+        assertTrue(new EmailSender(new EmailAccount(ACCOUNT, "password"), props).sendEmail(email));
+
+        String sent = new String(m_server.getSentMessages().get(0), StandardCharsets.ISO_8859_1);
+        assertTrue(sent.contains("multipart/alternative"));
+        assertTrue(sent.indexOf("text/plain; charset=UTF-8") < sent.indexOf("text/html; charset=UTF-8"));
+        assertTrue(sent.contains("<h2>Approve the minutes</h2>"));
+        assertFalse(sent.contains("application/pdf"));
+        assertFalse(new File(html).exists());
+    }
+
+    /** Test of fill method, of class MailboxLoadGenerator. */
+    @Test
+    public void testGeneratorIsRepeatable() throws MessagingException, IOException {
+        System.out.println(" --- MailboxLoadGenerator.fill");
+        TestMailbox first = m_server.getMailbox("first@example.com");
+        TestMailbox second = m_server.getMailbox("second@example.com");
+        int fromMembers = generator(7).setMemberFraction(0.5).fill(first, 50);
+        assertEquals(fromMembers, generator(7).setMemberFraction(0.5).fill(second, 50));
+        assertTrue(fromMembers > 0 && fromMembers < 50);
+        assertEquals(50, first.size());
+        assertEquals(50, second.size());
+    }
+
+    /**
+     * Fills the mailbox with messages from members and strangers, reads it, and checks that every member's message
+     * became an agenda item and that every message was deleted.
+     * @return the agenda items read.
+     */
+    private Collection<AgendaItem> assertInboxRead(Properties props, int count) throws MessagingException, IOException {
+        TestMailbox mailbox = m_server.getMailbox(ACCOUNT);
+        int fromMembers = generator(count).setMemberFraction(0.75)
+                .setShapes(Shape.PLAIN, Shape.ALTERNATIVE, Shape.HTML, Shape.ATTACHMENT).fill(mailbox, count);
+
+        Collection<AgendaItem> items = new EmailAgendaItemProvider(true, props).getItems();
+        assertEquals(fromMembers, items.size());
+        for (AgendaItem item : items){
+            assertTrue(Arrays.asList(MEMBERS).contains(item.getEmail()));
+            assertTrue(item.getTitle().startsWith("Item "));
+        }
+        assertEquals(0, mailbox.size());
+        return items;
+    }
+
+    /** Returns the titles of the given agenda items. */
+    private static Set<String> titles(Collection<AgendaItem> items){
+        Set<String> titles = new HashSet<>();
+        for (AgendaItem item : items){
+            titles.add(item.getTitle());
+        }
+        return titles;
+    }
+
+    /** Creates a generator of messages to the test account. */
+    private static MailboxLoadGenerator generator(long seed){
+        return new MailboxLoadGenerator(seed, ACCOUNT, Arrays.asList(MEMBERS)).setBodySize(2048);
+    }
+
+    /** Creates the properties that point the application at the test server. */
+    private Properties properties(){
+        Properties props = m_server.getProperties(ACCOUNT);
+        props.setProperty("email.list.filename", "test/openagendamail/test-emails.txt");
+        props.setProperty("imap.incremental", "false");
+        props.setProperty("journal.on", "false");
+        props.setProperty("dedupe.on", "false");
+        return props;
+    }
+}
@@ -0,0 +1,195 @@
+package openagendamail.util.email;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * The inbox of one account on the {@link TestMailServer}.  Messages are stored as raw RFC 822 bytes and given UIDs in
+ * the order they arrive.  Every connection to the account shares the same mailbox.
+ */
+public class TestMailbox {
+
+    /** The messages, in the order they arrived. */
+    private final List<StoredMessage> m_messages = new ArrayList<>();
+
+    /** The UIDVALIDITY of the mailbox. */
+    private final long m_uidValidity;
+
+    /** The UID the next message will be given. */
+    private long m_uidNext = 1;
+
+    /**
+     * Constructor.
+     * @param uidValidity the UIDVALIDITY of the mailbox.
+     */
+    TestMailbox(long uidValidity){
+        m_uidValidity = uidValidity;
+    }
+
+    /**
+     * Adds a message to the mailbox.
+     * @param rfc822 the message, with CRLF line endings.
+     * @return the UID of the message.
+     */
+    public synchronized long append(byte[] rfc822){
+        StoredMessage message = new StoredMessage(m_uidNext++, rfc822);
+        m_messages.add(message);
+        return message.m_uid;
+    }
+
+    /**
+     * Returns the number of messages in the mailbox.
+     * @return the number of messages in the mailbox.
+     */
+    public synchronized int size(){
+        return m_messages.size();
+    }
+
+    /**
+     * Returns the raw bytes of every message in the mailbox.
+     * @return the messages, in the order they arrived.
+     */
+    public synchronized List<byte[]> getMessages(){
+        List<byte[]> messages = new ArrayList<>();
+        for (StoredMessage message : m_messages){
+            messages.add(message.m_raw);
+        }
+        return messages;
+    }
+
+    /** Removes every message from the mailbox. */
+    public synchronized void clear(){
+        m_messages.clear();
+    }
+
+    /**
+     * Returns the UIDVALIDITY of the mailbox.
+     * @return the UIDVALIDITY of the mailbox.
+     */
+    long getUidValidity(){
+        return m_uidValidity;
+    }
+
+    /**
+     * Returns the UID the next message will be given.
+     * @return the UID the next message will be given.
+     */
+    synchronized long getUidNext(){
+        return m_uidNext;
+    }
+
+    /**
+     * Returns a copy of the list of messages, for a connection to keep as its view of the mailbox.
+     * @return the messages, in the order they arrived.
+     */
+    synchronized List<StoredMessage> snapshot(){
+        return new ArrayList<>(m_messages);
+    }
+
+    /**
+     * Returns true if the given message is still in the mailbox.
+     * @param message the message.
+     * @return true if the message has not been expunged.
+     */
+    synchronized boolean contains(StoredMessage message){
+        return m_messages.contains(message);
+    }
+
+    /** Removes every message flagged as deleted. */
+    synchronized void expunge(){
+        List<StoredMessage> kept = new ArrayList<>();
+        for (StoredMessage message : m_messages){
+            if (!message.hasFlag("\\Deleted")){
+                kept.add(message);
+            }
+        }
+        m_messages.clear();
+        m_messages.addAll(kept);
+    }
+
+    /** A message in the mailbox. */
+    static class StoredMessage {
+
+        /** The session messages are parsed with. */
+        private static final Session SESSION = Session.getInstance(new Properties());
+
+        /** The UID of the message. */
+        final long m_uid;
+
+        /** The message, as raw RFC 822 bytes. */
+        final byte[] m_raw;
+
+        /** The time the message arrived. */
+        final Date m_received;
+
+        /** The flags set on the message. */
+        private final Set<String> m_flags = new HashSet<>();
+
+        /** The parsed message, or null until it is first needed. */
+        private MimeMessage m_parsed;
+
+        /**
+         * Constructor.
+         * @param uid the UID of the message.
+         * @param raw the message, as raw RFC 822 bytes.
+         */
+        StoredMessage(long uid, byte[] raw){
+            m_uid = uid;
+            m_raw = raw;
+            m_received = new Date();
+        }
+
+        /**
+         * Returns the message parsed into its MIME structure.
+         * @return the parsed message.
+         * @throws MessagingException if the message cannot be parsed.
+         */
+        synchronized MimeMessage getParsed() throws MessagingException {
+            if (m_parsed == null){
+                m_parsed = new MimeMessage(SESSION, new ByteArrayInputStream(m_raw));
+            }
+            return m_parsed;
+        }
+
+        /**
+         * Returns true if the message has the given flag.
+         * @param flag the flag, such as "\Deleted".
+         * @return true if the flag is set.
+         */
+        synchronized boolean hasFlag(String flag){
+            return m_flags.contains(flag);
+        }
+
+        /**
+         * Returns the flags set on the message.
+         * @return a copy of the flags.
+         */
+        synchronized Set<String> getFlags(){
+            return new HashSet<>(m_flags);
+        }
+
+        /**
+         * Changes the flags of the message.
+         * @param flags the flags.
+         * @param operation "FLAGS" to replace the flags, "+FLAGS" to add them or "-FLAGS" to remove them.
+         */
+        synchronized void storeFlags(Set<String> flags, String operation){
+            if (operation.equals("FLAGS")){
+                m_flags.clear();
+                m_flags.addAll(flags);
+            } else if (operation.equals("+FLAGS")){
+                m_flags.addAll(flags);
+            } else {
+                m_flags.removeAll(flags);
+            }
+        }
+    }
+}
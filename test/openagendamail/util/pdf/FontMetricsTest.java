@@ -0,0 +1,65 @@
+package openagendamail.util.pdf;
+
+import java.io.IOException;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import plainpdf.PdfFont;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the FontMetrics class.
+ */
+public class FontMetricsTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("FontMetricsTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /** Test of get method, of class FontMetrics:  metrics are shared by font and size. */
+    @Test
+    public void testGet() throws IOException {
+        System.out.println(" --- get");
+        assertSame(FontMetrics.get(PdfFont.HELVETICA, 9), FontMetrics.get(PdfFont.HELVETICA, 9));
+        assertNotSame(FontMetrics.get(PdfFont.HELVETICA, 9), FontMetrics.get(PdfFont.HELVETICA, 12));
+        assertNotSame(FontMetrics.get(PdfFont.HELVETICA, 9), FontMetrics.get(PdfFont.HELVETICA_BOLD, 9));
+    }
+
+    /** Test of getWidth method, of class FontMetrics:  text measures exactly as PDFBox measures it. */
+    @Test
+    public void testGetWidth() throws IOException {
+        System.out.println(" --- getWidth");
+        String[] texts = {"", "Agenda", "Submitted By:  Member (member1@example.com)", "caf\u00e9 \u20acuro", "(x)",
+            "a word much longer than the longest word that is ever remembered by the cache"};
+        for (PdfFont font : new PdfFont[]{PdfFont.HELVETICA, PdfFont.TIMES_BOLD, PdfFont.COURIER}){
+            PDType1Font pdfbox = PDType1Font.getStandardFont(TextBlock.getBaseFont(font));
+            FontMetrics metrics = FontMetrics.get(font, 9);
+            for (String text : texts){
+                // Measured twice so that the remembered width is checked as well.
+                assertEquals(text, pdfbox.getStringWidth(text) / 1000 * 9, metrics.getWidth(text), 0);
+                assertEquals(text, pdfbox.getStringWidth(text) / 1000 * 9, metrics.getWidth(text), 0);
+            }
+            assertEquals(pdfbox.getStringWidth(" ") / 1000 * 9, metrics.getSpaceWidth(), 0);
+            assertEquals(pdfbox.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * 9,
+                    metrics.getLineHeight(), 0);
+        }
+    }
+
+    /** Test of getWidth method, of class FontMetrics:  the word cache does not grow past its limit. */
+    @Test
+    public void testWordCacheLimit() throws IOException {
+        System.out.println(" --- getWidth (cache limit)");
+        FontMetrics metrics = FontMetrics.get(PdfFont.TIMES_ITALIC, 11);
+        for (int i = 0; i < FontMetrics.MAX_CACHED_WORDS * 3; i++){
+            metrics.getWidth("word" + i);
+            assertTrue(metrics.getCachedWordCount() <= FontMetrics.MAX_CACHED_WORDS);
+        }
+        assertTrue(metrics.getCachedWordCount() > 0);
+    }
+}
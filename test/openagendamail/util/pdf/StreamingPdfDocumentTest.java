@@ -0,0 +1,199 @@
+package openagendamail.util.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.util.PDFTextStripper;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import plainpdf.PdfFont;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the StreamingPdfDocument class.  The documents are read back with PDFBox and compared with the same text
+ * rendered by PlainPdf.
+ */
+public class StreamingPdfDocumentTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("StreamingPdfDocumentTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /** Test of save method, of class StreamingPdfDocument:  the layout matches PlainPdf's, page for page. */
+    @Test
+    public void testMatchesPlainPdf() throws IOException {
+        System.out.println(" --- save (matches PlainPdf)");
+        File streamed = File.createTempFile("streamed", ".pdf");
+        File plain = File.createTempFile("plain", ".pdf");
+        try {
+            render(new StreamingPdfDocument(streamed.getPath(), PdfFont.HELVETICA, 12), 60);
+            render(new PlainPdfDocument(plain.getPath(), PdfFont.HELVETICA, 12), 60);
+
+            PDDocument streamedDoc = PDDocument.load(streamed);
+            PDDocument plainDoc = PDDocument.load(plain);
+            try {
+                assertTrue(streamedDoc.getNumberOfPages() > 3);
+                assertEquals(plainDoc.getNumberOfPages(), streamedDoc.getNumberOfPages());
+                PDFTextStripper stripper = new PDFTextStripper();
+                for (int page = 1; page <= plainDoc.getNumberOfPages(); page++){
+                    stripper.setStartPage(page);
+                    stripper.setEndPage(page);
+                    assertEquals("Page " + page, stripper.getText(plainDoc), stripper.getText(streamedDoc));
+                }
+            } finally {
+                streamedDoc.close();
+                plainDoc.close();
+            }
+        } finally {
+            streamed.delete();
+            plain.delete();
+        }
+    }
+
+    /** Test of renderLine method, of class StreamingPdfDocument, with text that runs across page breaks. */
+    @Test
+    public void testLongBody() throws IOException {
+        System.out.println(" --- renderLine (long body)");
+        File file = File.createTempFile("long", ".pdf");
+        try {
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < 3000; i++){
+                body.append("word").append(i).append(i % 50 == 49 ? "\r\n" : " ");
+            }
+            StreamingPdfDocument pdf = new StreamingPdfDocument(file.getPath(), PdfFont.HELVETICA, 12);
+            pdf.renderLine(body.toString(), PdfFont.HELVETICA, 9);
+            pdf.renderLine("Brackets (and) back\\slashes, tabs\tand accents:  caf\u00e9", PdfFont.HELVETICA_BOLD, 12);
+            pdf.save();
+            assertFalse(new File(file.getPath() + ".part").exists());
+
+            PDDocument doc = PDDocument.load(file);
+            try {
+                assertEquals(pdf.getPageCount(), doc.getNumberOfPages());
+                assertTrue(doc.getNumberOfPages() > 3);
+                String text = " " + new PDFTextStripper().getText(doc).replaceAll("\\s+", " ");
+                for (int i = 0; i < 3000; i += 97){
+                    assertTrue("word" + i, text.contains(" word" + i + " "));
+                }
+                assertTrue(text.contains("Brackets (and) back\\slashes, tabs and accents: caf\u00e9"));
+            } finally {
+                doc.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Test of render method, of class StreamingPdfDocument:  blocks laid out ahead give the same document. */
+    @Test
+    public void testRenderBlock() throws IOException {
+        System.out.println(" --- render");
+        File lines = File.createTempFile("lines", ".pdf");
+        File blocks = File.createTempFile("blocks", ".pdf");
+        try {
+            String body = "A body long enough to wrap over several lines of the page, with (brackets) and accents:  "
+                    + "caf\u00e9, and a line break\nhere.  ";
+            StreamingPdfDocument pdf = new StreamingPdfDocument(lines.getPath(), PdfFont.HELVETICA, 12);
+            for (int i = 0; i < 100; i++){
+                pdf.renderLine("Item " + i, PdfFont.HELVETICA_BOLD, 12);
+                pdf.insertBlankLine();
+                pdf.renderLine(body + body + body, PdfFont.TIMES, 9);
+            }
+            pdf.save();
+
+            pdf = new StreamingPdfDocument(blocks.getPath(), PdfFont.HELVETICA, 12);
+            for (int i = 0; i < 100; i++){
+                TextBlock block = new TextBlock(PdfFont.HELVETICA, 12);
+                block.addLine("Item " + i, PdfFont.HELVETICA_BOLD, 12);
+                block.addBlankLine();
+                block.addLine(body + body + body, PdfFont.TIMES, 9);
+                assertTrue(block.getHeight() > 0);
+                pdf.render(block);
+            }
+            pdf.save();
+
+            assertTrue(pdf.getPageCount() > 3);
+            assertArrayEquals(Files.readAllBytes(lines.toPath()), Files.readAllBytes(blocks.toPath()));
+        } finally {
+            lines.delete();
+            blocks.delete();
+        }
+    }
+
+    /** Test of save method, of class StreamingPdfDocument:  a compact document has the same pages and is smaller. */
+    @Test
+    public void testCompact() throws IOException {
+        System.out.println(" --- save (compact)");
+        File standard = File.createTempFile("standard", ".pdf");
+        File compact = File.createTempFile("compact", ".pdf");
+        try {
+            render(new StreamingPdfDocument(standard.getPath(), PdfFont.HELVETICA, 12), 600);
+            StreamingPdfDocument pdf = new StreamingPdfDocument(compact.getPath(), PdfFont.HELVETICA, 12, true);
+            render(pdf, 600);
+            assertEquals(compact.length(), pdf.getSize());
+            assertTrue(pdf.getUncompressedSize() > pdf.getSize());
+            assertTrue(compact.length() < standard.length() * 0.9);
+            assertEquals("%PDF-1.5", new String(Files.readAllBytes(compact.toPath()), 0, 8, "ISO-8859-1"));
+
+            PDDocument standardDoc = PDDocument.load(standard);
+            PDDocument compactDoc = PDDocument.load(compact);
+            try {
+                // More pages than fit in one object stream, so that several are written.
+                assertTrue(compactDoc.getNumberOfPages() > StreamingPdfDocument.OBJECTS_PER_STREAM);
+                assertEquals(standardDoc.getNumberOfPages(), compactDoc.getNumberOfPages());
+                PDFTextStripper stripper = new PDFTextStripper();
+                for (int page = 1; page <= standardDoc.getNumberOfPages(); page += 7){
+                    stripper.setStartPage(page);
+                    stripper.setEndPage(page);
+                    assertEquals("Page " + page, stripper.getText(standardDoc), stripper.getText(compactDoc));
+                }
+            } finally {
+                standardDoc.close();
+                compactDoc.close();
+            }
+        } finally {
+            standard.delete();
+            compact.delete();
+        }
+    }
+
+    /** Test of close method, of class StreamingPdfDocument, for a document that was never saved. */
+    @Test
+    public void testCloseWithoutSave() throws IOException {
+        System.out.println(" --- close (not saved)");
+        File file = new File(System.getProperty("java.io.tmpdir"), "unsaved-" + System.nanoTime() + ".pdf");
+        try (StreamingPdfDocument pdf = new StreamingPdfDocument(file.getPath(), PdfFont.HELVETICA, 12)) {
+            pdf.renderLine("Never saved.", PdfFont.HELVETICA, 12);
+            assertTrue(new File(file.getPath() + ".part").exists());
+        }
+        assertFalse(new File(file.getPath() + ".part").exists());
+        assertFalse(file.exists());
+    }
+
+    /** Renders an agenda's worth of titles, sender lines and bodies, and saves the document. */
+    private static void render(PdfDocument pdf, int items) throws IOException {
+        Random random = new Random(items);
+        pdf.renderLine("Agenda", PdfFont.HELVETICA_BOLD, 16);
+        pdf.insertBlankLine();
+        for (int i = 0; i < items; i++){
+            pdf.renderLine("Agenda Item " + i, PdfFont.HELVETICA_BOLD, 12);
+            pdf.renderLine("Submitted By:  Member (member" + i + "@example.com)", PdfFont.HELVETICA, 9);
+            pdf.insertBlankLine();
+            StringBuilder body = new StringBuilder();
+            for (int w = random.nextInt(120); w >= 0; w--){
+                body.append("lorem").append(random.nextInt(100)).append(' ');
+            }
+            pdf.renderLine(body.toString(), PdfFont.HELVETICA, 9);
+            pdf.insertBlankLine();
+        }
+        pdf.save();
+        pdf.close();
+    }
+}
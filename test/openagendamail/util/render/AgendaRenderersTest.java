@@ -0,0 +1,98 @@
+package openagendamail.util.render;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+import openagendamail.data.AgendaItem;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the AgendaRenderers class and the renderers it opens.
+ */
+public class AgendaRenderersTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("AgendaRenderersTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /** Test of getFormats method, of class AgendaRenderers. */
+    @Test
+    public void testGetFormats() {
+        System.out.println(" --- getFormats");
+        Properties props = new Properties();
+        assertEquals(Arrays.asList("pdf"), AgendaRenderers.getFormats(props));
+        props.setProperty("agenda.formats", " HTML, text,,html , fax");
+        assertEquals(Arrays.asList("html", "text"), AgendaRenderers.getFormats(props));
+        props.setProperty("agenda.formats", "fax");
+        assertEquals(Arrays.asList("pdf"), AgendaRenderers.getFormats(props));
+    }
+
+    /** Test of getOutputName method, of class AgendaRenderers. */
+    @Test
+    public void testGetOutputName() {
+        System.out.println(" --- getOutputName");
+        Properties props = new Properties();
+        props.setProperty("doc.name", "out/Agenda.PDF");
+        assertEquals("out/Agenda.PDF", AgendaRenderers.getOutputName(props, AgendaRenderers.PDF));
+        assertEquals("out/Agenda.html", AgendaRenderers.getOutputName(props, AgendaRenderers.HTML));
+        assertEquals("out/Agenda.txt", AgendaRenderers.getOutputName(props, AgendaRenderers.TEXT));
+    }
+
+    /** Test of open method, of class AgendaRenderers:  every format is rendered from the same items. */
+    @Test
+    public void testOpen() throws IOException {
+        System.out.println(" --- open");
+        Properties props = new Properties();
+        props.setProperty("doc.name", "renderers.pdf");
+        props.setProperty("agenda.formats", "pdf,html,text");
+        try (AgendaRenderer renderer = AgendaRenderers.open(props)) {
+            renderer.begin("Agenda <Draft>", "Generated today");
+            renderer.renderItem(new AgendaItem("a@example.com", "Ann", "Budget & <b>Fees</b>", "Line one\r\nLine two"));
+            renderer.renderItem(new AgendaItem("b@example.com", "Bob", "Minutes", ""));
+            renderer.finish();
+        }
+
+        File pdf = new File("renderers.pdf");
+        File html = new File("renderers.html");
+        File text = new File("renderers.txt");
+        assertTrue(pdf.length() > 0);
+        String page = new String(Files.readAllBytes(html.toPath()), StandardCharsets.UTF_8);
+        assertTrue(page.contains("<h1>Agenda &lt;Draft&gt;</h1>"));
+        assertTrue(page.contains("<h2>Budget &amp; &lt;b&gt;Fees&lt;/b&gt;</h2>"));
+        assertTrue(page.contains("<p>Line one<br>\nLine two</p>"));
+        assertTrue(page.indexOf("Budget") < page.indexOf("Minutes"));
+        assertTrue(page.endsWith("</html>\n"));
+        assertEquals("Agenda <Draft>\nGenerated today\n\n"
+                + "Budget & <b>Fees</b>\nSubmitted By:  Ann (a@example.com)\n\nLine one\nLine two\n\n"
+                + "Minutes\nSubmitted By:  Bob (b@example.com)\n\n\n",
+                new String(Files.readAllBytes(text.toPath()), StandardCharsets.UTF_8));
+        assertFalse(new File("renderers.txt.part").exists());
+        pdf.delete();
+        html.delete();
+        text.delete();
+    }
+
+    /** Test of close method, of class AgendaRenderer:  an agenda that is not finished is thrown away. */
+    @Test
+    public void testCloseUnfinished() throws IOException {
+        System.out.println(" --- close (unfinished)");
+        Properties props = new Properties();
+        props.setProperty("doc.name", "unfinished.pdf");
+        try (AgendaRenderer renderer = AgendaRenderers.open(props, AgendaRenderers.TEXT)) {
+            renderer.begin("Agenda", "Generated today");
+        }
+        assertFalse(new File("unfinished.txt").exists());
+        assertFalse(new File("unfinished.txt.part").exists());
+    }
+}